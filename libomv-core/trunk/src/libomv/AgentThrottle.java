@@ -269,14 +269,21 @@ public class AgentThrottle
 
 	/**
 	 * Send an AgentThrottle packet to the specified server using the current
-	 * values
+	 * values and pace the packets we send to it accordingly
 	 * 
 	 * @param simulator
-	 *            the simulator to which to send the packet
+	 *            the simulator to which to send the packet, or null for the
+	 *            current simulator
 	 * @throws Exception
 	 */
 	public final void Set(Simulator simulator) throws Exception
 	{
+		if (simulator == null)
+		{
+			simulator = Client.Network.getCurrentSim();
+		}
+		simulator.getScheduler().setRates(this);
+
 		AgentThrottlePacket throttle = new AgentThrottlePacket();
 		throttle.AgentData.AgentID = Client.Self.getAgentID();
 		throttle.AgentData.SessionID = Client.Self.getSessionID();
@@ -34,35 +34,37 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.URI;
-import java.net.UnknownServiceException;
-import java.security.KeyStore;
-import java.security.cert.X509Certificate;
-import java.util.Hashtable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
-
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.HttpsURLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
 
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.nio.concurrent.FutureCallback;
+
+import libomv.capabilities.AsyncHTTPClient;
+import libomv.capabilities.HttpReactor;
 import libomv.utils.Callback;
 import libomv.utils.CallbackHandler;
-import libomv.utils.Helpers;
 import libomv.utils.Logger;
 import libomv.utils.Logger.LogLevel;
 
-/// Manages HTTP texture downloads with a limit on maximum concurrent downloads
+/**
+ * Manages HTTP texture and mesh downloads. The downloads are executed
+ * asynchronously over the keep-alive connections of the HttpReactor of the
+ * client, with a limit on the number of concurrent downloads per host. Further
+ * downloads from a busy host are queued until one of its downloads finishes.
+ */
 public class DownloadManager
 {
-     public class DownloadResult
+    public class DownloadResult
     {
         public boolean finished;
+        // Bytes received so far, or the size of the data when finished
         public int current;
+        // Full size of the resource, larger than the data for a partial download
         public int full;
         public byte[] data;
         
@@ -74,182 +76,377 @@ public class DownloadManager
         }
         
         public DownloadResult(byte[] data)
+        {
+        	this(data, data != null ? data.length : 0);
+        }
+
+        public DownloadResult(byte[] data, int full)
         {
         	finished = true;
         	this.data = data;
+        	this.current = data != null ? data.length : 0;
+        	this.full = full;
+        }
+    }
+
+    /* Client returning the response content as is */
+    private static class DownloadClient extends AsyncHTTPClient<byte[]>
+    {
+        public DownloadClient(HttpReactor reactor)
+        {
+            super("DownloadManager", reactor);
+        }
+
+        @Override
+        protected byte[] convertContent(InputStream in, String encoding) throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+
+        @Override
+        protected byte[] convertContent(ByteBuffer buffer, String encoding)
+        {
+            // The buffer is allocated from the content length, so usually it can be passed on directly
+            if (buffer.arrayOffset() == 0 && buffer.limit() == buffer.capacity())
+                return buffer.array();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
         }
     }
 
-    private class ActiveDownload implements Runnable
+    /* The downloads running and waiting for one host */
+    private class HostQueue
+    {
+        int active;
+        LinkedList<ActiveDownload> pending = new LinkedList<ActiveDownload>();
+    }
+
+    private class ActiveDownload implements FutureCallback<byte[]>, AsyncHTTPClient.ProgressCallback
     {
         // URI of the item to fetch 
-        private URI address;
+        private final URI address;
+        // Key of this download in the request table
+        private final String key;
         // Timout specified in milliseconds 
-        private int millisecondsTimeout;
+        private final int millisecondsTimeout;
         // Accept the following content type
-        private String acceptType;
-        // How many times will this request be retried
-        private int retries;
+        private final String acceptType;
+        // Byte range to fetch, rangeEnd is -1 to fetch the whole resource
+        private final long rangeStart, rangeEnd;
+        // The cache location to store this resources data after successful download if any
+        private final File cacheFile;
         // Current fetch attempt
         private int attempt;
-        // The cache location to store this resources data after successful download if any
-        private File cacheFile;
+        private volatile DownloadClient client;
+        private volatile Future<byte[]> future;
+        private volatile boolean aborted;
         
         private CallbackHandler<DownloadResult> callbacks = new CallbackHandler<DownloadResult>();
-    	
-        // Default constructor
-        public ActiveDownload()
-        {
-            this.retries = 5;
-            this.attempt = 0;
-        }
 
-        public ActiveDownload(URI address, int millisecondsTimeout, String acceptType, File cacheFile, Callback<DownloadResult> callback)
-		{
-        	this();
+        public ActiveDownload(URI address, String key, int millisecondsTimeout, String acceptType, long rangeStart, long rangeEnd,
+        		              File cacheFile, Callback<DownloadResult> callback)
+        {
             this.address = address;
+            this.key = key;
             this.millisecondsTimeout = millisecondsTimeout;
             this.acceptType = acceptType;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
             this.cacheFile = cacheFile;
             this.callbacks.add(callback, false);
-		}
-        
+        }
+
         public void addCallback(Callback<DownloadResult> callback)
         {
             this.callbacks.add(callback, false);        	
         }
-        
-		@Override
-		public void run()
-		{
-			while (attempt++ < retries)
-			{
-				try
-				{
-					HttpURLConnection con = (HttpURLConnection)address.toURL().openConnection();
-					try
-					{
-						con.setRequestProperty("Accept-Encoding", "identity");
-						if (acceptType != null)
-						    con.setRequestProperty("Accept", acceptType);
-						con.setReadTimeout(millisecondsTimeout > 0 ? millisecondsTimeout : 0);
-						if (address.getScheme().equals("https"))
-						{
-							try
-							{
-								String hostname = address.getHost();
-								X509Certificate	certificate = Helpers.getCertificate(hostname);
-								if (certificate != null)
-								{
-									KeyStore keyStore = Helpers.getExtendedKeyStore();
-									keyStore.setCertificateEntry(hostname, certificate);
-									KeyManagerFactory kmf = KeyManagerFactory.getInstance("X509");
-									kmf.init(keyStore, null);
-									SSLContext context = SSLContext.getInstance("TLS");
-									context.init(kmf.getKeyManagers(), null, null);
-									((HttpsURLConnection)con).setSSLSocketFactory(context.getSocketFactory());
-								}
-							}
-							catch (Exception e)
-							{
-								/* Ignore any exceptions here and let the connection fail if the security manager has a problem */
-							}
-						}
-						con.connect();
-						int len, total = con.getContentLength();
-						ByteArrayOutputStream bos = new ByteArrayOutputStream(total > 0 ? total : 10000);
-						InputStream is = con.getInputStream();
-						byte b[] = new byte[10000];
-						while ((len = is.read(b)) >= 0)
-						{
-							callbacks.dispatch(new DownloadResult(len, total));
-							bos.write(b, 0, len);
-						}
-						if (cacheFile != null)
-						{
-							try
-							{
-								FileOutputStream fos = new FileOutputStream(cacheFile);
-								try
-								{
-									fos.write(bos.toByteArray());
-								}
-								finally
-								{
-									fos.close();
-								}
-							}
-							catch (Exception ex) {}
-						}
-						callbacks.dispatch(new DownloadResult(bos.toByteArray()));
-						return;
-					}
-					catch (MalformedURLException ex)
-					{
-						Logger.Log("HTTP Texture download failed, attempt " + attempt + " from " + retries, LogLevel.Debug, ex);						
-					}
-					catch (UnknownServiceException ex)
-					{
-						Logger.Log("HTTP Texture download failed, attempt " + attempt + " from " + retries, LogLevel.Debug, ex);						
-					}
-			        catch (ProtocolException ex)
-					{
-						Logger.Log("HTTP Texture download failed, attempt " + attempt + " from " + retries, LogLevel.Debug, ex);						
-					}
-					catch (IOException ex)
-					{
-						Logger.Log("HTTP Texture download failed, attempt " + attempt + " from " + retries, LogLevel.Debug, ex);						
-					}
-					finally
-					{
-						con.disconnect();
-					}
-				}
-				catch (Exception ex)
-				{
-					Logger.Log("HTTP Texture download failed, attempt " + attempt + " from " + retries, LogLevel.Debug, ex);
-				}
-			}
-			callbacks.dispatch(new DownloadResult(null));
-		}
+
+        public void start()
+        {
+            // Attempts follow each other, the client is set before the reactor can call back
+            attempt++;
+            try
+            {
+                client = new DownloadClient(_Client != null ? _Client.Network.getHttpReactor() : HttpReactor.getDefault());
+                client.setProgressCallback(this);
+                future = client.executeHttpGet(address, acceptType, rangeStart, rangeEnd, this,
+                		                       millisecondsTimeout > 0 ? millisecondsTimeout : AsyncHTTPClient.TIMEOUT_INFINITE);
+                // Cancelled while the request was being started
+                if (aborted)
+                    future.cancel(true);
+            }
+            catch (Exception ex)
+            {
+                failed(ex);
+            }
+        }
+
+        public void cancel()
+        {
+            aborted = true;
+            Future<byte[]> future = this.future;
+            if (future != null)
+                future.cancel(true);
+        }
+
+        @Override
+        public void progress(long bytesTransceived, long totalBytes)
+        {
+            callbacks.dispatch(new DownloadResult((int)bytesTransceived, (int)totalBytes));
+        }
+
+        @Override
+        public void completed(byte[] data)
+        {
+            if (data == null)
+            {
+                failed(new IOException("Empty response"));
+                return;
+            }
+
+            if (cacheFile != null)
+            {
+                try
+                {
+                    FileOutputStream fos = new FileOutputStream(cacheFile);
+                    try
+                    {
+                        fos.write(data);
+                    }
+                    finally
+                    {
+                        fos.close();
+                    }
+                }
+                catch (Exception ex) {}
+            }
+            long full = client.getResourceLength();
+            finish(new DownloadResult(data, full >= data.length ? (int)full : data.length));
+        }
+
+        @Override
+        public void failed(Exception ex)
+        {
+            Logger.Log("HTTP download of " + address + " failed, attempt " + attempt + " from " + RETRIES, LogLevel.Debug, ex);
+            // Retrying a request the server refused is pointless
+            boolean refused = ex instanceof HttpResponseException && ((HttpResponseException)ex).getStatusCode() < 500;
+            if (!refused && attempt < RETRIES && !aborted && !shutdown)
+            {
+                start();
+            }
+            else
+            {
+                finish(new DownloadResult(null));
+            }
+        }
+
+        @Override
+        public void cancelled()
+        {
+            finish(new DownloadResult(null));
+        }
+
+        private void finish(DownloadResult result)
+        {
+            ActiveDownload next = null;
+            synchronized (_Hosts)
+            {
+                _Requests.remove(key);
+                HostQueue host = _Hosts.get(hostKey(address));
+                if (host != null)
+                {
+                    host.active--;
+                    next = host.pending.poll();
+                    if (next != null)
+                        host.active++;
+                    else if (host.active <= 0)
+                        _Hosts.remove(hostKey(address));
+                }
+            }
+            if (next != null)
+                next.start();
+            callbacks.dispatch(result);
+        }
+    }
+
+    // How many times a failed download is attempted
+    private static final int RETRIES = 5;
+
+    // Connections to a host left to other capability requests while downloads are running
+    private static final int RESERVED_CONNECTIONS = 2;
+
+    private final GridClient _Client;
+    private int _MaxPerHost = Math.max(1, LibSettings.HTTP_MAX_CONNECTIONS_PER_HOST - RESERVED_CONNECTIONS);
+    private volatile boolean shutdown;
+
+    // Downloads by URI and range, guarded by _Hosts
+    private final HashMap<String, ActiveDownload> _Requests = new HashMap<String, ActiveDownload>();
+    private final HashMap<String, HostQueue> _Hosts = new HashMap<String, HostQueue>();
+
+    /**
+     * Create a download manager executing its downloads on the HttpReactor of a client
+     *
+     * @param client The client whose reactor to use or null to use the reactor shared by all clients
+     */
+    public DownloadManager(GridClient client)
+    {
+        _Client = client;
     }
-    
-    private static int num = 0;
 
-    class SimpleThreadFactory implements ThreadFactory
+    /**
+     * Change the number of downloads executed in parallel from the same host.
+     * By default this stays a few below the connection limit per host of the
+     * reactor, so that downloads never take all connections to a simulator.
+     *
+     * @param max The maximum number of downloads per host
+     */
+    public void setMaxDownloadsPerHost(int max)
     {
-    	public Thread newThread(Runnable r)
-    	{
-    		return new Thread(r, "DownloadManager" + ++num);    			
-    	}
+        synchronized (_Hosts)
+        {
+            _MaxPerHost = Math.max(1, max);
+        }
     }
-    
-    private ExecutorService execPool = Executors.newFixedThreadPool(8, new SimpleThreadFactory());
-	private Hashtable<URI, ActiveDownload> requests = new Hashtable<URI, ActiveDownload>();
-    
-    // Enqueue a new HTPP download
+
+    private static String hostKey(URI address)
+    {
+        return address.getScheme() + "://" + address.getHost() + ":" + address.getPort();
+    }
+
+    private static String requestKey(URI address, long rangeStart, long rangeEnd)
+    {
+        return rangeStart > 0 || rangeEnd >= 0 ? address + "#" + rangeStart + "-" + rangeEnd : address.toString();
+    }
+
+    // Enqueue a new HTTP download
     public void enque(URI address, int millisecondsTimeout, String acceptType, File cacheFile, Callback<DownloadResult> callback)
     {
-    	synchronized (requests)
-    	{
-    		ActiveDownload download = requests.get(address);
-    		if (download == null)
-    		{
-    			download = new ActiveDownload(address, millisecondsTimeout, acceptType, cacheFile, callback);
-    			requests.put(address, download);
-    	    	execPool.submit(download);
-    		}
-    		else if (callback != null)
-    		{
-    			download.addCallback(callback);
-    		}
-    	}
+        enque(address, millisecondsTimeout, acceptType, 0, -1, cacheFile, callback);
     }
 
-    // Cleanup method
+    /**
+     * Enqueue a new HTTP download of a byte range of a resource. The result
+     * contains the full size of the resource, which is larger than the data
+     * received if the range did not cover the whole resource. Servers not
+     * supporting range requests return the whole resource.
+     *
+     * @param address The resource to download
+     * @param millisecondsTimeout The timeout for each attempt or 0 for no timeout
+     * @param acceptType The content type to add as Accept: header or null
+     * @param rangeStart The offset of the first byte to download
+     * @param rangeEnd The offset of the last byte to download or -1 to download up to the end
+     * @param cacheFile A file to store the data in after a successful download or null
+     * @param callback The callback receiving the progress and the result of the download
+     */
+    public void enque(URI address, int millisecondsTimeout, String acceptType, long rangeStart, long rangeEnd,
+    		          File cacheFile, Callback<DownloadResult> callback)
+    {
+        if (shutdown)
+        {
+            if (callback != null)
+                callback.callback(new DownloadResult(null));
+            return;
+        }
+
+        String key = requestKey(address, rangeStart, rangeEnd);
+        ActiveDownload download;
+        synchronized (_Hosts)
+        {
+            download = _Requests.get(key);
+            if (download != null)
+            {
+                if (callback != null)
+                    download.addCallback(callback);
+                return;
+            }
+
+            download = new ActiveDownload(address, key, millisecondsTimeout, acceptType, rangeStart, rangeEnd, cacheFile, callback);
+            _Requests.put(key, download);
+
+            HostQueue host = _Hosts.get(hostKey(address));
+            if (host == null)
+            {
+                host = new HostQueue();
+                _Hosts.put(hostKey(address), host);
+            }
+            if (host.active >= _MaxPerHost)
+            {
+                host.pending.add(download);
+                return;
+            }
+            host.active++;
+        }
+        download.start();
+    }
+
+    /**
+     * Cancel a download, whether it is queued or running. Its callbacks receive
+     * a finished result without data.
+     *
+     * @param address The resource being downloaded
+     * @param rangeStart The offset of the first byte requested
+     * @param rangeEnd The offset of the last byte requested or -1
+     * @return true if the download was found
+     */
+    public boolean cancel(URI address, long rangeStart, long rangeEnd)
+    {
+        ActiveDownload download;
+        boolean queued = false;
+        synchronized (_Hosts)
+        {
+            download = _Requests.get(requestKey(address, rangeStart, rangeEnd));
+            if (download == null)
+                return false;
+
+            HostQueue host = _Hosts.get(hostKey(address));
+            if (host != null && host.pending.remove(download))
+            {
+                // Never started, so it holds no slot of its host
+                queued = true;
+                _Requests.remove(download.key);
+                if (host.active <= 0 && host.pending.isEmpty())
+                    _Hosts.remove(hostKey(address));
+            }
+        }
+        if (queued)
+            download.callbacks.dispatch(new DownloadResult(null));
+        else
+            download.cancel();
+        return true;
+    }
+
+    /**
+     * Cancel all downloads. Their callbacks receive a finished result without
+     * data, and downloads enqueued afterwards fail right away.
+     */
     public void shutdown()
     {
-    	execPool.shutdownNow();
-    	requests.clear();
+        ArrayList<ActiveDownload> queued = new ArrayList<ActiveDownload>();
+        ArrayList<ActiveDownload> running;
+        synchronized (_Hosts)
+        {
+            shutdown = true;
+            for (HostQueue host : _Hosts.values())
+            {
+                for (ActiveDownload download : host.pending)
+                {
+                    _Requests.remove(download.key);
+                    queued.add(download);
+                }
+                host.pending.clear();
+            }
+            running = new ArrayList<ActiveDownload>(_Requests.values());
+        }
+        // Queued downloads never started, so nothing else would ever complete them
+        for (ActiveDownload download : queued)
+            download.callbacks.dispatch(new DownloadResult(null));
+        for (ActiveDownload download : running)
+            download.cancel();
     }
 }
@@ -105,6 +105,31 @@ public class LibSettings extends Settings implements PacketCallback
 	/* IP Address the client will bind to */
 	public static InetSocketAddress BIND_ADDR = InetSocketAddress.createUnresolved("*", 13000);
 
+	/*
+	 * Receive from all simulator circuits through the shared UDPReactor instead
+	 * of running a dedicated receive thread for each simulator
+	 */
+	public static final String USE_SHARED_UDP_TRANSPORT = "useSharedUdpTransport";
+
+	/* Number of selector threads of the UDPReactor shared by all clients in the JVM */
+	public static int UDP_REACTOR_THREADS = 2;
+
+	/* Number of I/O threads of the HttpReactor shared by all clients in the JVM */
+	public static int HTTP_REACTOR_THREADS = 2;
+
+	/* Maximum number of connections kept open by the shared HttpReactor */
+	public static int HTTP_MAX_CONNECTIONS = 64;
+
+	/* Maximum number of connections the shared HttpReactor keeps open to the same host */
+	public static int HTTP_MAX_CONNECTIONS_PER_HOST = 8;
+
+	/*
+	 * Maximum number of event queue long-polls open at any time. Long-polls run
+	 * on their own HttpReactor, so they never use up the connections of the
+	 * shared one. Each connected simulator of each client holds one of them.
+	 */
+	public static int HTTP_MAX_LONG_POLLS = 1024;
+
 	/* Use XML-RPC Login or LLSD Login, default is XML-RPC Login */
 	public static final String USE_LLSD_LOGIN = "useLLSDLogin";
 
@@ -203,6 +228,21 @@ public class LibSettings extends Settings implements PacketCallback
 	 * Maximum number of queued ACKs to be sent before SendAcks() is forced
 	 */
 	public int MAX_PENDING_ACKS = 10;
+	/*
+	 * Maximum number of reliable packets waiting for an ACK from a simulator,
+	 * older packets are given up on when more are sent
+	 */
+	public int MAX_UNACKED_PACKETS = 4096;
+	/*
+	 * Number of threads running the packet callbacks when they are not
+	 * executed synchronously
+	 */
+	public int PACKET_DISPATCH_THREADS = 4;
+	/*
+	 * Maximum number of packets waiting for or running their callbacks, the
+	 * incoming packet handler waits when this is reached
+	 */
+	public int PACKET_DISPATCH_CAPACITY = 1000;
 	/* Network stats queue length (seconds) */
 	public int STATS_QUEUE_SIZE = 5;
 
@@ -358,6 +398,12 @@ public class LibSettings extends Settings implements PacketCallback
 	/* Maximum size cached files are allowed to take on disk (bytes) */
 	public static final String ASSET_CACHE_MAX_SIZE = "assetCacheMaxSize";
 
+	/*
+	 * Maximum size of recently used assets kept in memory in front of the disk
+	 * cache (bytes), shared by all clients in the JVM. 0 disables it
+	 */
+	public static final String ASSET_MEMORY_CACHE_MAX_SIZE = "assetMemoryCacheMaxSize";
+
 	// #region Misc
 
 	/* Default color used for viewer particle effects */
@@ -432,6 +478,7 @@ public class LibSettings extends Settings implements PacketCallback
             new DefaultSetting(RESOURCE_DIR, "libomv"),
             new DefaultSetting(CHARACTER_DIR, "character"),
             new DefaultSetting(USE_LLSD_LOGIN, false),
+            new DefaultSetting(USE_SHARED_UDP_TRANSPORT, true),
             new DefaultSetting(USE_HTTP_TEXTURES, true),
             new DefaultSetting(SEND_AGENT_UPDATES, true),
             new DefaultSetting(SYNC_PACKETCALLBACKS, false),
@@ -451,6 +498,7 @@ public class LibSettings extends Settings implements PacketCallback
             new DefaultSetting(USE_ASSET_CACHE, true),
             new DefaultSetting(ASSET_CACHE_DIR, "cache"),
             new DefaultSetting(ASSET_CACHE_MAX_SIZE, (long)1024 * 1024 * 1024), // 1GB
+            new DefaultSetting(ASSET_MEMORY_CACHE_MAX_SIZE, (long)64 * 1024 * 1024), // 64MB
             new DefaultSetting(PACKET_ARCHIVE_SIZE, 1000),
 
 	};
@@ -1150,7 +1150,7 @@ public class LoginManager
 				// Make the RPC call for login
 				OSDArray request = new OSDArray(1);
 				request.add(loginLLSD);
-			    RpcClient loginRequest = new RpcClient("LoginAgent");
+			    RpcClient loginRequest = new RpcClient("LoginAgent", _Client.Network.getHttpReactor());
 			    httpClient = loginRequest;
 			    loginRequest.call(loginUri, loginParams.MethodName, request, handler, loginParams.Timeout);
 			}
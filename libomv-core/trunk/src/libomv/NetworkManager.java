@@ -37,15 +37,15 @@ import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.http.nio.reactor.IOReactorException;
 
 import libomv.Simulator.RegionFlags;
 import libomv.Simulator.RegionProtocols;
@@ -56,6 +56,7 @@ import libomv.capabilities.AsyncHTTPClient;
 import libomv.capabilities.CapsCallback;
 import libomv.capabilities.CapsMessage.CapsEventType;
 import libomv.capabilities.CapsMessage.EnableSimulatorMessage;
+import libomv.capabilities.HttpReactor;
 import libomv.capabilities.IMessage;
 import libomv.packets.CompletePingCheckPacket;
 import libomv.packets.EnableSimulatorPacket;
@@ -64,6 +65,7 @@ import libomv.packets.LogoutReplyPacket;
 import libomv.packets.LogoutRequestPacket;
 import libomv.packets.Packet;
 import libomv.packets.PacketType;
+import libomv.packets.PacketView;
 import libomv.packets.RegionHandshakePacket;
 import libomv.packets.RegionHandshakeReplyPacket;
 import libomv.packets.SimStatsPacket;
@@ -73,9 +75,11 @@ import libomv.types.PacketCallback;
 import libomv.utils.Callback;
 import libomv.utils.CallbackArgs;
 import libomv.utils.CallbackHandler;
+import libomv.utils.HandlerRegistry;
 import libomv.utils.Helpers;
 import libomv.utils.Logger;
 import libomv.utils.Logger.LogLevel;
+import libomv.utils.OrderedExecutor;
 import libomv.utils.Settings.SettingsUpdateCallbackArgs;
 import libomv.utils.TimeoutEvent;
 
@@ -101,9 +105,10 @@ public class NetworkManager implements PacketCallback, CapsCallback
 
 	/**
 	 * Holds a simulator reference and a decoded packet, these structs are put
-	 * in the packet inbox for event handling
+	 * in the packet inbox for event handling. They are recycled once all
+	 * callbacks for the packet have finished.
 	 */
-	public final class IncomingPacket
+	public final class IncomingPacket implements Runnable
 	{
 		/** Reference to the simulator that this packet came from */
 		public Simulator Simulator;
@@ -123,6 +128,48 @@ public class NetworkManager implements PacketCallback, CapsCallback
 			Simulator = simulator;
 			Message = message;
 		}
+
+		/** Fire the callbacks for this packet and return it to the pool */
+		@Override
+		public void run()
+		{
+			try
+			{
+				if (Packet != null)
+					FirePacketCallbacks(Packet, Simulator);
+				else if (Message != null)
+					FireCapsCallbacks(Message, Simulator);
+			}
+			finally
+			{
+				recycle(this);
+			}
+		}
+	}
+
+	/** Idle IncomingPacket objects, to avoid an allocation for every received packet */
+	private final BlockingQueue<IncomingPacket> _IncomingPool = new ArrayBlockingQueue<IncomingPacket>(
+			LibSettings.PACKET_INBOX_SIZE);
+
+	private IncomingPacket obtainIncoming(Simulator simulator, Packet packet, IMessage message)
+	{
+		IncomingPacket incoming = _IncomingPool.poll();
+		if (incoming == null)
+		{
+			incoming = new IncomingPacket(simulator, packet);
+		}
+		incoming.Simulator = simulator;
+		incoming.Packet = packet;
+		incoming.Message = message;
+		return incoming;
+	}
+
+	private void recycle(IncomingPacket incoming)
+	{
+		incoming.Simulator = null;
+		incoming.Packet = null;
+		incoming.Message = null;
+		_IncomingPool.offer(incoming);
 	}
 
 	/**
@@ -359,8 +406,11 @@ public class NetworkManager implements PacketCallback, CapsCallback
 
 	public CallbackHandler<LoggedOutCallbackArgs> OnLoggedOut = new CallbackHandler<LoggedOutCallbackArgs>();
 
-	private HashMap<PacketType, ArrayList<PacketCallback>> simCallbacks;
-	private HashMap<CapsEventType, ArrayList<CapsCallback>> capCallbacks;
+	/* Registered callbacks, looked up without locking so that slow callbacks for one type never block another */
+	private HandlerRegistry<PacketType, PacketCallback> simCallbacks;
+	/* Callbacks that asked for packets as lazily decoded views */
+	private HandlerRegistry<PacketType, PacketCallback> viewCallbacks;
+	private HandlerRegistry<CapsEventType, CapsCallback> capCallbacks;
 
 	private GridClient _Client;
 
@@ -443,6 +493,119 @@ public class NetworkManager implements PacketCallback, CapsCallback
 
 	private ArrayList<Simulator> _Simulators;
 
+	/** The transport serving the UDP circuits of our simulators */
+	private UDPReactor _Reactor;
+
+	/**
+	 * Get the UDP transport used by the simulators of this client. Unless
+	 * explicitly set this is the reactor shared by all clients in this JVM.
+	 *
+	 * @return the UDP reactor for this client
+	 * @throws IOException if the shared reactor could not be started
+	 */
+	public UDPReactor getReactor() throws IOException
+	{
+		synchronized (_Simulators)
+		{
+			if (_Reactor == null || !_Reactor.isRunning())
+			{
+				_Reactor = UDPReactor.getDefault();
+			}
+			return _Reactor;
+		}
+	}
+
+	/**
+	 * Set a specific UDP transport for the simulators of this client, for
+	 * instance to isolate a group of clients onto their own selector threads.
+	 * Only affects simulators connected after this call.
+	 *
+	 * @param reactor The reactor to use, or null to use the shared reactor
+	 */
+	public void setReactor(UDPReactor reactor)
+	{
+		synchronized (_Simulators)
+		{
+			_Reactor = reactor;
+		}
+	}
+
+	/** The transport serving the capability requests of this client */
+	private HttpReactor _HttpReactor;
+	/** The transport serving the event queue long-polls of this client */
+	private HttpReactor _LongPollReactor;
+
+	/**
+	 * Get the HTTP transport and connection pool used by the capability
+	 * clients of this client. Unless explicitly set this is the reactor shared
+	 * by all clients in this JVM.
+	 *
+	 * @return the HTTP reactor for this client
+	 * @throws IOReactorException if the shared reactor could not be started
+	 */
+	public HttpReactor getHttpReactor() throws IOReactorException
+	{
+		synchronized (_Simulators)
+		{
+			if (_HttpReactor == null || !_HttpReactor.isRunning())
+			{
+				_HttpReactor = HttpReactor.getDefault();
+			}
+			return _HttpReactor;
+		}
+	}
+
+	/**
+	 * Set a specific HTTP transport for the capability clients of this client,
+	 * for instance to give it its own connection pool and limits. Only affects
+	 * capability clients created after this call.
+	 *
+	 * @param reactor The reactor to use, or null to use the shared reactor
+	 */
+	public void setHttpReactor(HttpReactor reactor)
+	{
+		synchronized (_Simulators)
+		{
+			_HttpReactor = reactor;
+		}
+	}
+
+	/**
+	 * Get the HTTP transport used for the event queue long-polls of this
+	 * client. Unless explicitly set this is the long-poll reactor shared by
+	 * all clients in this JVM, which is separate from the one returned by
+	 * getHttpReactor() so that long-polls never hold connections other
+	 * capability requests are waiting for.
+	 *
+	 * @return the long-poll HTTP reactor for this client
+	 * @throws IOReactorException if the shared reactor could not be started
+	 */
+	public HttpReactor getLongPollReactor() throws IOReactorException
+	{
+		synchronized (_Simulators)
+		{
+			if (_LongPollReactor == null || !_LongPollReactor.isRunning())
+			{
+				_LongPollReactor = HttpReactor.getLongPoll();
+			}
+			return _LongPollReactor;
+		}
+	}
+
+	/**
+	 * Set a specific HTTP transport for the event queue long-polls of this
+	 * client. Only affects simulators connected after this call.
+	 *
+	 * @param reactor The reactor to use, or null to use the shared long-poll reactor
+	 */
+	public void setLongPollReactor(HttpReactor reactor)
+	{
+		synchronized (_Simulators)
+		{
+			_LongPollReactor = reactor;
+		}
+	}
+
 	/**
 	 * Get the array with all currently known simulators. This list must be
 	 * protected with a synchronization lock on itself if you do anything with it.
@@ -455,11 +618,10 @@ public class NetworkManager implements PacketCallback, CapsCallback
 	}
 
 	/** Incoming packets that are awaiting handling */
-	private BlockingQueue<IncomingPacket> _PacketInbox = new LinkedBlockingQueue<IncomingPacket>(
+	private BlockingQueue<IncomingPacket> _PacketInbox = new ArrayBlockingQueue<IncomingPacket>(
 			LibSettings.PACKET_INBOX_SIZE);
-	/** Outgoing packets that are awaiting handling */
-	private BlockingQueue<OutgoingPacket> _PacketOutbox = new LinkedBlockingQueue<OutgoingPacket>(
-			LibSettings.PACKET_OUTBOX_SIZE);
+	/** The thread sending out the packets queued in the simulator schedulers */
+	private volatile Thread _SendThread;
 
 	/** Number of packets in the incoming queue */
 	public final int getInboxCount()
@@ -467,52 +629,61 @@ public class NetworkManager implements PacketCallback, CapsCallback
 		return _PacketInbox.size();
 	}
 
-	/** Number of packets in the outgoing queue */
+	/** Number of packets in the outgoing queues of all simulators */
 	public final int getOutboxCount()
 	{
-		return _PacketOutbox.size();
+		int count = 0;
+		synchronized (_Simulators)
+		{
+			for (Simulator simulator : _Simulators)
+			{
+				count += simulator.getScheduler().size();
+			}
+		}
+		return count;
 	}
 
 	private IncomingPacketHandler _PacketHandlerThread;
 
 	private class OutgoingPacketHandler implements Runnable
 	{
+		/* Longest time to sleep when there is nothing to send */
+		private static final long IDLE_WAIT = 100000000L;
+		/* Interval in which closable HTTP clients are cleaned up */
+		private static final long CLEANUP_INTERVAL = 2000000000L;
+
 		@Override
 		public void run()
 		{
-			long lastTime = System.currentTimeMillis();
-			int count = 0;
+			Simulator[] simulators = new Simulator[0];
+			long lastCleanup = System.nanoTime();
 
 			while (_Connected)
 			{
 				try
 				{
-					OutgoingPacket outgoingPacket = _PacketOutbox.poll(100, TimeUnit.MILLISECONDS);
-					if (outgoingPacket != null)
+					synchronized (_Simulators)
 					{
-						// Very primitive rate limiting, keeps a fixed minimum buffer of time between each packet
-						long newTime = System.currentTimeMillis();
-						long remains = 10 + lastTime - newTime;
-						lastTime = newTime;
-
-						if (remains > 0)
-						{
-//							Logger.DebugLog(String.format("Rate limiting, last packet was %d ms ago", remains), _Client);
-							Thread.sleep(remains);
-						}
-						outgoingPacket.Simulator.sendPacketFinal(outgoingPacket);
-						count++;
+						simulators = _Simulators.toArray(simulators);
 					}
-					else
+
+					// Let every simulator send what its throttle allows right
+					// now and sleep until the earliest bucket has refilled
+					long now = System.nanoTime(), wait = IDLE_WAIT;
+					for (int i = 0; i < simulators.length && simulators[i] != null; i++)
 					{
-						count += 10;
+						long delay = simulators[i].getScheduler().send(now);
+						if (delay > 0 && delay < wait)
+							wait = delay;
+						simulators[i] = null;
 					}
+					LockSupport.parkNanos(this, wait);
 
-					if (count > 200)
-					{	
+					if (now - lastCleanup > CLEANUP_INTERVAL)
+					{
 						cleanClosableClients();
-						count = 0;
-					}	
+						lastCleanup = now;
+					}
 				}
 				catch (InterruptedException ex)
 				{
@@ -527,43 +698,55 @@ public class NetworkManager implements PacketCallback, CapsCallback
 		boolean specialHandler = false;
 		PacketType type = packet.getType();
 
-		synchronized (simCallbacks)
+		if (packet instanceof PacketView)
 		{
-			// Fire any default callbacks
-			ArrayList<PacketCallback> callbackArray = simCallbacks.get(PacketType.Default);
-			if (callbackArray != null)
+			// Fire the callbacks that asked for a view
+			for (PacketCallback callback : viewCallbacks.get(type))
 			{
-				for (PacketCallback callback : callbackArray)
+				try
 				{
-					try
-					{
-						callback.packetCallback(packet, simulator);
-					}
-					catch (Exception ex)
-					{
-						Logger.Log("Default packet event handler: " + type, LogLevel.Error, _Client, ex);
-					}
+					callback.packetCallback(packet, simulator);
 				}
-			}
-			// Fire any registered callbacks
-			callbackArray = simCallbacks.get(type);
-			if (callbackArray != null)
-			{
-				for (PacketCallback callback : callbackArray)
+				catch (Exception ex)
 				{
-					try
-					{
-						callback.packetCallback(packet, simulator);
-					}
-					catch (Exception ex)
-					{
-						Logger.Log("Packet event handler: " + type, LogLevel.Error, _Client, ex);
-					}
-					specialHandler = true;
+					Logger.Log("Packet view event handler: " + type, LogLevel.Error, _Client, ex);
 				}
+				specialHandler = true;
+			}
+
+			// All other callbacks get the regular packet, decoded once for all of them
+			if (simCallbacks.containsKey(PacketType.Default) || simCallbacks.containsKey(type))
+			{
+				packet = ((PacketView) packet).toPacket();
 			}
 		}
 
+		// Fire any default callbacks
+		for (PacketCallback callback : simCallbacks.get(PacketType.Default))
+		{
+			try
+			{
+				callback.packetCallback(packet, simulator);
+			}
+			catch (Exception ex)
+			{
+				Logger.Log("Default packet event handler: " + type, LogLevel.Error, _Client, ex);
+			}
+		}
+		// Fire any registered callbacks
+		for (PacketCallback callback : simCallbacks.get(type))
+		{
+			try
+			{
+				callback.packetCallback(packet, simulator);
+			}
+			catch (Exception ex)
+			{
+				Logger.Log("Packet event handler: " + type, LogLevel.Error, _Client, ex);
+			}
+			specialHandler = true;
+		}
+
 		if (!specialHandler && type != PacketType.Default && type != PacketType.PacketAck)
 		{
 //			Logger.Log("No handler registered for packet event " + type, LogLevel.Warning, _Client);
@@ -574,41 +757,30 @@ public class NetworkManager implements PacketCallback, CapsCallback
 	{
 		boolean specialHandler = false;
 
-		synchronized (capCallbacks)
+		// Fire any default callbacks
+		for (CapsCallback callback : capCallbacks.get(CapsEventType.Default))
 		{
-			// Fire any default callbacks
-			ArrayList<CapsCallback> callbackArray = capCallbacks.get(CapsEventType.Default);
-			if (callbackArray != null)
+			try
 			{
-				for (CapsCallback callback : callbackArray)
-				{
-					try
-					{
-						callback.capsCallback(message, simulator);
-					}
-					catch (Exception ex)
-					{
-						Logger.Log("CAPS event handler: " + message.getType(), LogLevel.Error, _Client, ex);
-					}
-				}
+				callback.capsCallback(message, simulator);
 			}
-			// Fire any registered callbacks
-			callbackArray = capCallbacks.get(message.getType());
-			if (callbackArray != null)
+			catch (Exception ex)
 			{
-				for (CapsCallback callback : callbackArray)
-				{
-					try
-					{
-						callback.capsCallback(message, simulator);
-					}
-					catch (Exception ex)
-					{
-						Logger.Log("CAPS event handler: " + message.getType(), LogLevel.Error, _Client, ex);
-					}
-					specialHandler = true;
-				}
+				Logger.Log("CAPS event handler: " + message.getType(), LogLevel.Error, _Client, ex);
+			}
+		}
+		// Fire any registered callbacks
+		for (CapsCallback callback : capCallbacks.get(message.getType()))
+		{
+			try
+			{
+				callback.capsCallback(message, simulator);
+			}
+			catch (Exception ex)
+			{
+				Logger.Log("CAPS event handler: " + message.getType(), LogLevel.Error, _Client, ex);
 			}
+			specialHandler = true;
 		}
 		if (!specialHandler)
 		{
@@ -616,32 +788,81 @@ public class NetworkManager implements PacketCallback, CapsCallback
 		}
 	}
 
-	private class PacketCallbackExecutor implements Runnable
-	{
-		private final IncomingPacket packet;
+	/* Groups of packets that keep their order per simulator, but are handled independently from each other */
+	private static final int DISPATCH_DEFAULT = 0;
+	private static final int DISPATCH_OBJECTS = 1;
+	private static final int DISPATCH_TRANSFERS = 2;
+	private static final int DISPATCH_CAPS = 3;
+	private static final int DISPATCH_GROUPS = 4;
 
-		public PacketCallbackExecutor(IncomingPacket packet)
-		{
-			this.packet = packet;
+	private static int getDispatchGroup(IncomingPacket incomingPacket)
+	{
+		if (incomingPacket.Packet == null)
+			return DISPATCH_CAPS;
+
+		switch (incomingPacket.Packet.getType())
+		{
+			case ObjectUpdate:
+			case ObjectUpdateCompressed:
+			case ObjectUpdateCached:
+			case ImprovedTerseObjectUpdate:
+			case KillObject:
+			case ObjectProperties:
+			case ObjectPropertiesFamily:
+				return DISPATCH_OBJECTS;
+			case ImageData:
+			case ImagePacket:
+			case ImageNotInDatabase:
+			case TransferInfo:
+			case TransferPacket:
+			case SendXferPacket:
+			case LayerData:
+				return DISPATCH_TRANSFERS;
+			default:
+				return DISPATCH_DEFAULT;
 		}
+	}
 
-		@Override
-		public void run()
-		{
-			if (packet.Packet != null)
-				FirePacketCallbacks(packet.Packet, packet.Simulator);
-			else
-				FireCapsCallbacks(packet.Message, packet.Simulator);
-		}
+	/* Runs the packet callbacks in order per simulator and packet group on a fixed number of threads */
+	private OrderedExecutor _Dispatcher;
+
+	/**
+	 * Get the executor running the packet callbacks, for its queue depth and
+	 * backpressure statistics
+	 * 
+	 * @return the packet dispatcher, null if not connected yet
+	 */
+	public OrderedExecutor getDispatcher()
+	{
+		return _Dispatcher;
 	}
 
 	private class IncomingPacketHandler implements Runnable
 	{
-		ExecutorService threadPool = Executors.newCachedThreadPool();
+		private final OrderedExecutor dispatcher;
+
+		public IncomingPacketHandler()
+		{
+			dispatcher = new OrderedExecutor("Packet dispatcher", _Client.Settings.PACKET_DISPATCH_THREADS,
+					DISPATCH_GROUPS, _Client.Settings.PACKET_DISPATCH_CAPACITY);
+			_Dispatcher = dispatcher;
+		}
 
 		public void shutdown()
 		{
-			threadPool.shutdown();
+			dispatcher.shutdown();
+		}
+
+		private void dispatch(IncomingPacket incomingPacket) throws InterruptedException
+		{
+			if (syncPacketCallbacks)
+			{
+				incomingPacket.run();
+			}
+			else if (!dispatcher.isShutdown())
+			{
+				dispatcher.execute(incomingPacket.Simulator, getDispatchGroup(incomingPacket), incomingPacket);
+			}
 		}
 
 		@Override
@@ -663,28 +884,16 @@ public class NetworkManager implements PacketCallback, CapsCallback
 										String.format("Discarding Blacklisted packet %s from %s",
 												incomingPacket.Packet.getType(),
 												incomingPacket.Simulator.getIPEndPoint()), LogLevel.Warning, _Client);
-							}
-							else if (syncPacketCallbacks)
-							{
-								FirePacketCallbacks(incomingPacket.Packet, incomingPacket.Simulator);
+								recycle(incomingPacket);
 							}
 							else
 							{
-								if (!threadPool.isShutdown())
-									threadPool.submit(new PacketCallbackExecutor(incomingPacket));
+								dispatch(incomingPacket);
 							}
 						}
 						else if (incomingPacket.Message != null)
 						{
-							if (syncPacketCallbacks)
-							{
-								FireCapsCallbacks(incomingPacket.Message, incomingPacket.Simulator);
-							}
-							else
-							{
-								if (!threadPool.isShutdown())
-									threadPool.submit(new PacketCallbackExecutor(incomingPacket));
-							}
+							dispatch(incomingPacket);
 						}
 					}
 				}
@@ -810,8 +1019,9 @@ public class NetworkManager implements PacketCallback, CapsCallback
 	{
 		_Client = client;
 		_Simulators = new ArrayList<Simulator>();
-		simCallbacks = new HashMap<PacketType, ArrayList<PacketCallback>>();
-		capCallbacks = new HashMap<CapsEventType, ArrayList<CapsCallback>>();
+		simCallbacks = new HandlerRegistry<PacketType, PacketCallback>(PacketType.class, PacketCallback.class);
+		viewCallbacks = new HandlerRegistry<PacketType, PacketCallback>(PacketType.class, PacketCallback.class);
+		capCallbacks = new HandlerRegistry<CapsEventType, CapsCallback>(CapsEventType.class, CapsCallback.class);
 		_LogoutTimer = new Timer("LogoutTimer");
 		_CurrentSim = null;
 		
@@ -882,97 +1092,76 @@ public class NetworkManager implements PacketCallback, CapsCallback
 		if (callback == null)
 			return;
 
-		synchronized (capCallbacks)
-		{
-			ArrayList<CapsCallback> callbacks = capCallbacks.get(capability);
-			if (callbacks == null)
-			{
-				callbacks = new ArrayList<CapsCallback>();
-				capCallbacks.put(capability, callbacks);
-			}
-			else
-			{
-				callbacks.remove(callback);
-			}
-			callbacks.add(callback);
-		}
+		capCallbacks.add(capability, callback);
 	}
 
 	public void UnregisterCallback(CapsEventType capability, CapsCallback callback)
 	{
-		synchronized (capCallbacks)
+		if (!capCallbacks.containsKey(capability))
 		{
-			if (!capCallbacks.containsKey(capability))
-			{
-				Logger.Log("Trying to unregister a callback for capability " + capability
-						+ " when no callbacks are setup for that capability", LogLevel.Info, _Client);
-				return;
-			}
-
-			ArrayList<CapsCallback> callbackArray = capCallbacks.get(capability);
-
-			if (callbackArray.contains(callback))
-			{
-				callbackArray.remove(callback);
-				if (callbackArray.isEmpty())
-				{
-					capCallbacks.remove(capability);
-				}
-			}
-			else
-			{
-				Logger.Log("Trying to unregister a non-existant callback for capability " + capability, LogLevel.Info,
-						_Client);
-			}
+			Logger.Log("Trying to unregister a callback for capability " + capability
+					+ " when no callbacks are setup for that capability", LogLevel.Info, _Client);
+		}
+		else if (!capCallbacks.remove(capability, callback))
+		{
+			Logger.Log("Trying to unregister a non-existant callback for capability " + capability, LogLevel.Info,
+					_Client);
 		}
 	}
 
+	/**
+	 * Check if incoming packets of a type are decoded as views, which is the
+	 * case as long as a callback is registered for views of this type
+	 * 
+	 * @param type The packet type to check
+	 * @return True if packets of this type are decoded as views
+	 */
+	public boolean isPacketView(PacketType type)
+	{
+		return viewCallbacks.containsKey(type);
+	}
+
 	public void RegisterCallback(PacketType type, PacketCallback callback)
+	{
+		RegisterCallback(type, callback, false);
+	}
+
+	/**
+	 * Register a callback for a packet type
+	 * 
+	 * A callback registered as view receives the PacketView subclass for the
+	 * type, a read-only view that decodes its fields only when they are
+	 * accessed instead of materializing the whole packet up front. It only
+	 * receives packets that arrive after it was registered. All other
+	 * callbacks keep receiving the regular packet class.
+	 * 
+	 * @param type The packet type to register the callback for
+	 * @param callback The callback to register
+	 * @param view True to receive the packets as view
+	 */
+	public void RegisterCallback(PacketType type, PacketCallback callback, boolean view)
 	{
 		/* Don't accept null callbacks */
 		if (callback == null)
 			return;
 
-		synchronized (simCallbacks)
-		{
-			ArrayList<PacketCallback> callbacks = simCallbacks.get(type);
-			if (callbacks == null)
-			{
-				callbacks = new ArrayList<PacketCallback>();
-				simCallbacks.put(type, callbacks);
-			}
-			else
-			{
-				callbacks.remove(callback);
-			}
-			callbacks.add(callback);
-		}
+		if (view)
+			viewCallbacks.add(type, callback);
+		else
+			simCallbacks.add(type, callback);
 	}
 
 	public void UnregisterCallback(PacketType type, PacketCallback callback)
 	{
-		synchronized (simCallbacks)
+		boolean view = viewCallbacks.remove(type, callback);
+		if (!view && !simCallbacks.containsKey(type))
 		{
-			if (!simCallbacks.containsKey(type))
-			{
-				Logger.Log("Trying to unregister a callback for packet " + type
-						+ " when no callbacks are setup for that packet", LogLevel.Info, _Client);
-				return;
-			}
-
-			ArrayList<PacketCallback> callbackArray = simCallbacks.get(type);
-			if (callbackArray.contains(callback))
-			{
-				callbackArray.remove(callback);
-				if (callbackArray.isEmpty())
-				{
-					simCallbacks.remove(type);
-				}
-			}
-			else
-			{
-				Logger.Log("Trying to unregister a non-existant callback for packet " + type, LogLevel.Info, _Client);
-			}
+			Logger.Log("Trying to unregister a callback for packet " + type
+					+ " when no callbacks are setup for that packet", LogLevel.Info, _Client);
+		}
+		else if (!view && !simCallbacks.remove(type, callback))
+		{
+			Logger.Log("Trying to unregister a non-existant callback for packet " + type, LogLevel.Info, _Client);
 		}
 	}
 
@@ -1013,16 +1202,17 @@ public class NetworkManager implements PacketCallback, CapsCallback
 		}
 	}
 
-	public void QueuePacket(OutgoingPacket packet) throws InterruptedException
+	public void QueuePacket(OutgoingPacket packet)
 	{
-		_PacketOutbox.put(packet);
+		packet.Simulator.getScheduler().enqueue(packet);
+		LockSupport.unpark(_SendThread);
 	}
 
 	public void DistributePacket(Simulator simulator, Packet packet)
 	{
 		try
 		{
-			_PacketInbox.add(new IncomingPacket(simulator, packet));
+			_PacketInbox.add(obtainIncoming(simulator, packet, null));
 		}
 		catch (Exception ex)
 		{
@@ -1034,7 +1224,7 @@ public class NetworkManager implements PacketCallback, CapsCallback
 	{
 		try
 		{
-			_PacketInbox.add(new IncomingPacket(simulator, message));
+			_PacketInbox.add(obtainIncoming(simulator, null, message));
 		}
 		catch (Exception ex)
 		{
@@ -1095,9 +1285,9 @@ public class NetworkManager implements PacketCallback, CapsCallback
 				decodeThread.start();
 
 				// Start the packet sending thread
-				Thread sendThread = new Thread(new OutgoingPacketHandler());
-				sendThread.setName("Outgoing UDP packet dispatcher");
-				sendThread.start();
+				_SendThread = new Thread(new OutgoingPacketHandler());
+				_SendThread.setName("Outgoing UDP packet dispatcher");
+				_SendThread.start();
 			}
 
 			if (OnSimConnecting.count() > 0)
@@ -1323,6 +1513,11 @@ public class NetworkManager implements PacketCallback, CapsCallback
 			// Fire the SimDisconnected event if a handler is registered
 			OnSimDisconnected.dispatch(new SimDisconnectedCallbackArgs(simulator, DisconnectType.NetworkTimeout));
 
+			if (_Dispatcher != null)
+			{
+				_Dispatcher.remove(simulator);
+			}
+
 			synchronized (_Simulators)
 			{
 				_Simulators.remove(simulator);
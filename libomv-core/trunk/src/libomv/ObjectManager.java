@@ -73,7 +73,7 @@ import libomv.packets.ObjectSaleInfoPacket;
 import libomv.packets.ObjectSelectPacket;
 import libomv.packets.ObjectShapePacket;
 import libomv.packets.ObjectUpdateCachedPacket;
-import libomv.packets.ObjectUpdateCompressedPacket;
+import libomv.packets.ObjectUpdateCompressedPacketView;
 import libomv.packets.ObjectUpdatePacket;
 import libomv.packets.Packet;
 import libomv.packets.PacketType;
@@ -1246,7 +1246,7 @@ public class ObjectManager implements PacketCallback, CapsCallback
 
 		_Client.Network.RegisterCallback(PacketType.ObjectUpdate, this);
 		_Client.Network.RegisterCallback(PacketType.ImprovedTerseObjectUpdate, this);
-		_Client.Network.RegisterCallback(PacketType.ObjectUpdateCompressed, this);
+		_Client.Network.RegisterCallback(PacketType.ObjectUpdateCompressed, this, true);
 		_Client.Network.RegisterCallback(PacketType.ObjectUpdateCached, this);
 		_Client.Network.RegisterCallback(PacketType.KillObject, this);
 		_Client.Network.RegisterCallback(PacketType.ObjectPropertiesFamily, this);
@@ -3249,14 +3249,17 @@ public class ObjectManager implements PacketCallback, CapsCallback
 	 */
 	private final void HandleObjectUpdateCompressed(Packet packet, Simulator simulator)
 	{
-		ObjectUpdateCompressedPacket update = (ObjectUpdateCompressedPacket) packet;
-		UpdateDilation(simulator, update.RegionData.TimeDilation);
+		// Registered as view callback, the object data is decoded directly from the receive buffer
+		ObjectUpdateCompressedPacketView update = (ObjectUpdateCompressedPacketView) packet;
+		short timeDilation = update.getRegionData().getTimeDilation();
+		UpdateDilation(simulator, timeDilation);
 
-		for (int b = 0; b < update.ObjectData.length; b++)
+		byte[] data = update.array();
+		for (int b = 0; b < update.getObjectDataCount(); b++)
 		{
-			ObjectUpdateCompressedPacket.ObjectDataBlock block = update.ObjectData[b];
-			int i = 0;
-			byte[] data = block.getData();
+			ObjectUpdateCompressedPacketView.ObjectDataBlock block = update.getObjectData(b);
+			int i = block.getDataOffset();
+			int end = i + block.getDataLength();
 
 			// UUID
 			UUID fullID = new UUID(data, i); i += 16;
@@ -3287,7 +3290,7 @@ public class ObjectManager implements PacketCallback, CapsCallback
 			RefObject<Boolean> isNewObject = new RefObject<Boolean>(false);
 			Primitive prim = getPrimitive(simulator, localid, fullID, isNewObject);
 
-			prim.Flags = PrimFlags.setValue(block.UpdateFlags);
+			prim.Flags = PrimFlags.setValue(block.getUpdateFlags());
 			prim.PrimData = prim.new ConstructionData();
 			prim.PrimData.PCode = pcode;
 
@@ -3447,7 +3450,7 @@ public class ObjectManager implements PacketCallback, CapsCallback
 				}
 			}
 
-			if (data.length >= i + 23)
+			if (end >= i + 23)
 			{
 				prim.PrimData.PathCurve = PathCurve.setValue(data[i++]);
 
@@ -3471,7 +3474,7 @@ public class ObjectManager implements PacketCallback, CapsCallback
 				prim.PrimData.ProfileHollow = Primitive.UnpackProfileHollow((short)Helpers.BytesToUInt16L(data, i)); i += 2;
 			}
 
-			if (data.length >= i + 4)
+			if (end >= i + 4)
 			{
 				// TextureEntry
 				int textureEntryLength = (int) Helpers.BytesToUInt32L(data, i); i += 4;
@@ -3479,7 +3482,7 @@ public class ObjectManager implements PacketCallback, CapsCallback
 				i += textureEntryLength;
 			}
 		    // int textureAnimLength = (int)Helpers.BytesToUInt32L(data, i);
-			if (data.length >= i + 20 && (flags & CompressedFlags.TextureAnimation) != 0)
+			if (end >= i + 20 && (flags & CompressedFlags.TextureAnimation) != 0)
 			{
 				// Texture animation
 				int textureAnimationLength = (int) Helpers.BytesToUInt32L(data, i); i += 4;
@@ -3489,13 +3492,13 @@ public class ObjectManager implements PacketCallback, CapsCallback
             
 			prim.IsAttachment = (flags & CompressedFlags.HasNameValues) != 0 && prim.ParentID != 0;
 
-			if (data.length > i)
+			if (end > i)
 			{
-				Logger.Log("CompressedUpdate has extra data of " + (data.length - i) + " bytes.", LogLevel.Debug);
+				Logger.Log("CompressedUpdate has extra data of " + (end - i) + " bytes.", LogLevel.Debug);
 			}
 			// #endregion
 
-			OnObjectUpdate.dispatch(new PrimCallbackArgs(simulator, prim, update.RegionData.TimeDilation, isNewObject.argvalue));
+			OnObjectUpdate.dispatch(new PrimCallbackArgs(simulator, prim, timeDilation, isNewObject.argvalue));
 
 			if (prim.ParticleSys != null && prim.ParticleSys.PartMaxAge != 0)
 			{
@@ -0,0 +1,279 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import libomv.NetworkManager.OutgoingPacket;
+import libomv.types.PacketHeader;
+
+/**
+ * Schedules the packets queued for sending to a simulator according to the
+ * throttle categories of the agent.
+ * 
+ * Every category has its own lane and token bucket refilled at the rate set
+ * in the AgentThrottle for that category. Lanes are served in priority order
+ * and as many packets are sent in one pass as the buckets allow, so a burst of
+ * small packets goes out immediately while a flood of texture or asset
+ * requests is paced without holding back the more important traffic.
+ */
+public class PacketScheduler
+{
+	/** The throttle categories, in the order in which their lanes are served */
+	public enum Category
+	{
+		Resend, Task, Land, Wind, Cloud, Asset, Texture;
+	}
+
+	/* Minimum amount of bytes a bucket can burst, a few full sized packets */
+	private static final long MIN_BURST = 4 * 1500;
+
+	/**
+	 * Simple token bucket, refilled at a fixed rate up to the burst size. A
+	 * packet may be sent as long as the bucket is not empty, which can drive it
+	 * negative and so delays the next packet until the debt is refilled.
+	 */
+	static class TokenBucket
+	{
+		/* Refill rate in bytes per second, 0 for unlimited */
+		private long rate;
+		private long burst;
+		private long tokens;
+		private long lastRefill;
+
+		TokenBucket(long now)
+		{
+			lastRefill = now;
+		}
+
+		void setRate(float bitsPerSecond)
+		{
+			boolean initial = burst == 0;
+			rate = (long) (bitsPerSecond / 8);
+			burst = Math.max(rate / 4, MIN_BURST);
+			// start out with a full bucket
+			tokens = initial ? burst : Math.min(tokens, burst);
+		}
+
+		void refill(long now)
+		{
+			long elapsed = now - lastRefill;
+			if (rate > 0 && elapsed > 0)
+			{
+				/*
+				 * Time after which the bucket is full again. Checking against it first
+				 * keeps elapsed * rate from overflowing after the lane was idle for hours.
+				 */
+				long fill = (burst - tokens) * 1000000000L / rate + 1;
+				if (elapsed >= fill)
+				{
+					tokens = burst;
+					lastRefill = now;
+					return;
+				}
+
+				long added = elapsed * rate / 1000000000L;
+				if (added > 0)
+				{
+					tokens += added;
+					// only advance by the time actually accounted for to not lose fractions
+					lastRefill += added * 1000000000L / rate;
+				}
+			}
+			else if (elapsed > 0)
+			{
+				lastRefill = now;
+			}
+		}
+
+		boolean consume(int bytes)
+		{
+			if (rate <= 0)
+				return true;
+			if (tokens <= 0)
+				return false;
+			tokens -= bytes;
+			return true;
+		}
+
+		/* Nanoseconds until the bucket allows sending again */
+		long getDelay()
+		{
+			if (rate <= 0 || tokens > 0)
+				return 0;
+			return (1 - tokens) * 1000000000L / rate + 1;
+		}
+	}
+
+	private final Simulator _Simulator;
+	private final ConcurrentLinkedQueue<OutgoingPacket>[] _Lanes;
+	private final TokenBucket[] _Buckets;
+	private final AtomicInteger _Count = new AtomicInteger();
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public PacketScheduler(Simulator simulator, AgentThrottle throttle)
+	{
+		_Simulator = simulator;
+		long now = System.nanoTime();
+		Category[] categories = Category.values();
+		_Lanes = new ConcurrentLinkedQueue[categories.length];
+		_Buckets = new TokenBucket[categories.length];
+		for (int i = 0; i < categories.length; i++)
+		{
+			_Lanes[i] = new ConcurrentLinkedQueue<OutgoingPacket>();
+			_Buckets[i] = new TokenBucket(now);
+		}
+		setRates(throttle);
+	}
+
+	/**
+	 * Update the bucket rates from the throttle values of the agent
+	 * 
+	 * @param throttle
+	 *            The throttle to take the rates from, if null a default total
+	 *            bandwidth is distributed over the categories
+	 */
+	public synchronized void setRates(AgentThrottle throttle)
+	{
+		if (throttle == null)
+		{
+			throttle = new AgentThrottle(null);
+		}
+		_Buckets[Category.Resend.ordinal()].setRate(throttle.getResend());
+		_Buckets[Category.Task.ordinal()].setRate(throttle.getTask());
+		_Buckets[Category.Land.ordinal()].setRate(throttle.getLand());
+		_Buckets[Category.Wind.ordinal()].setRate(throttle.getWind());
+		_Buckets[Category.Cloud.ordinal()].setRate(throttle.getCloud());
+		_Buckets[Category.Asset.ordinal()].setRate(throttle.getAsset());
+		_Buckets[Category.Texture.ordinal()].setRate(throttle.getTexture());
+	}
+
+	/**
+	 * Determine the throttle category of an outgoing packet
+	 * 
+	 * @param packet
+	 *            The packet to categorize
+	 * @return the category whose bandwidth this packet is accounted on
+	 */
+	public static Category categorize(OutgoingPacket packet)
+	{
+		if ((packet.Buffer.get(0) & PacketHeader.MSG_RESENT) != 0)
+			return Category.Resend;
+
+		if (packet.Type != null)
+		{
+			switch (packet.Type)
+			{
+				case RequestImage:
+					return Category.Texture;
+				case TransferRequest:
+				case RequestXfer:
+				case SendXferPacket:
+				case ConfirmXferPacket:
+				case AssetUploadRequest:
+					return Category.Asset;
+				case LayerData:
+					return Category.Land;
+				default:
+					break;
+			}
+		}
+		return Category.Task;
+	}
+
+	/**
+	 * Queue a packet in the lane of its category
+	 * 
+	 * @param packet
+	 *            The packet to queue
+	 */
+	public void enqueue(OutgoingPacket packet)
+	{
+		_Lanes[categorize(packet).ordinal()].offer(packet);
+		_Count.incrementAndGet();
+	}
+
+	/** Number of packets waiting in all lanes */
+	public int size()
+	{
+		return _Count.get();
+	}
+
+	/**
+	 * Send as many queued packets as the token buckets allow
+	 * 
+	 * @param now
+	 *            The current time as returned by System.nanoTime()
+	 * @return the number of nanoseconds after which more packets can be sent,
+	 *         0 if all lanes are empty
+	 */
+	public synchronized long send(long now)
+	{
+		long delay = 0;
+		if (_Count.get() == 0)
+			return delay;
+
+		for (int i = 0; i < _Lanes.length; i++)
+		{
+			ConcurrentLinkedQueue<OutgoingPacket> lane = _Lanes[i];
+			OutgoingPacket packet = lane.peek();
+			if (packet == null)
+				continue;
+
+			TokenBucket bucket = _Buckets[i];
+			bucket.refill(now);
+			while (packet != null && bucket.consume(packet.Buffer.limit()))
+			{
+				lane.poll();
+				_Count.decrementAndGet();
+				_Simulator.sendPacketFinal(packet);
+				packet = lane.peek();
+			}
+
+			if (packet != null)
+			{
+				long wait = bucket.getDelay();
+				if (delay == 0 || wait < delay)
+					delay = wait;
+			}
+		}
+		return delay;
+	}
+
+	/** Drop all queued packets */
+	public void clear()
+	{
+		for (ConcurrentLinkedQueue<OutgoingPacket> lane : _Lanes)
+		{
+			while (lane.poll() != null)
+				_Count.decrementAndGet();
+		}
+	}
+}
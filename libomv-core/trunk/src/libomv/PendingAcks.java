@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Queue of sequence numbers we still have to acknowledge to a simulator.
+ * 
+ * Sequence numbers are added only by the thread receiving from the simulator
+ * and can be taken out concurrently by any thread sending packets, without
+ * locking and without boxing the sequence numbers.
+ */
+public class PendingAcks
+{
+	private final AtomicIntegerArray _Items;
+	private final int _Mask;
+	private final AtomicInteger _Head = new AtomicInteger();
+	private final AtomicInteger _Tail = new AtomicInteger();
+
+	/**
+	 * Create a new queue
+	 * 
+	 * @param capacity The maximum number of pending ACKs, rounded up to a
+	 *            power of two
+	 */
+	public PendingAcks(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+		_Items = new AtomicIntegerArray(size);
+		_Mask = size - 1;
+	}
+
+	public int size()
+	{
+		return _Tail.get() - _Head.get();
+	}
+
+	public boolean isEmpty()
+	{
+		return _Tail.get() == _Head.get();
+	}
+
+	/**
+	 * Add a sequence number to acknowledge. Must only be called from the
+	 * receiving thread.
+	 * 
+	 * @param sequence The sequence number of the received packet
+	 * @return false if the queue is full and the ACK was not added
+	 */
+	public boolean offer(int sequence)
+	{
+		int tail = _Tail.get();
+		if (tail - _Head.get() > _Mask)
+			return false;
+
+		_Items.set(tail & _Mask, sequence);
+		_Tail.lazySet(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Take out the oldest pending ACK
+	 * 
+	 * @return the sequence number or -1 if the queue is empty
+	 */
+	public long poll()
+	{
+		while (true)
+		{
+			int head = _Head.get();
+			if (head == _Tail.get())
+				return -1;
+
+			int sequence = _Items.get(head & _Mask);
+			if (_Head.compareAndSet(head, head + 1))
+				return sequence & 0xFFFFFFFFL;
+		}
+	}
+
+	/**
+	 * Take out up to max pending ACKs
+	 * 
+	 * @param max The maximum number of ACKs to take out
+	 * @return an array with the sequence numbers, possibly empty
+	 */
+	public int[] drain(int max)
+	{
+		int count = Math.min(max, size());
+		int[] acks = new int[Math.max(count, 0)];
+		int i = 0;
+		for (; i < acks.length; i++)
+		{
+			long sequence = poll();
+			if (sequence < 0)
+				break;
+			acks[i] = (int) sequence;
+		}
+		if (i < acks.length)
+		{
+			int[] shorter = new int[i];
+			System.arraycopy(acks, 0, shorter, 0, i);
+			return shorter;
+		}
+		return acks;
+	}
+}
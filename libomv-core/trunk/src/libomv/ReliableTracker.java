@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import libomv.NetworkManager.OutgoingPacket;
+
+/**
+ * Keeps track of the reliable packets sent to a simulator which have not been
+ * acknowledged yet.
+ * 
+ * Unacknowledged packets are stored in a ring indexed by their sequence
+ * number, so adding and acknowledging a packet is a single atomic operation on
+ * a primitive index without any locking or boxing. In addition every sent
+ * packet is queued in the order it was sent, which is also the order in which
+ * its resend timeout expires, so the resend check only needs to look at the
+ * packets that actually expired.
+ */
+public class ReliableTracker
+{
+	private final AtomicReferenceArray<OutgoingPacket> _Slots;
+	private final int _Mask;
+	/* Sent packets in the order their resend timeout expires */
+	private final ConcurrentLinkedQueue<OutgoingPacket> _Deadlines = new ConcurrentLinkedQueue<OutgoingPacket>();
+	private final AtomicInteger _Count = new AtomicInteger();
+	/* Highest sequence number added so far */
+	private final AtomicInteger _Latest = new AtomicInteger();
+	/* Scan position of getOldestUnacked() */
+	private int _Oldest = 1;
+
+	/**
+	 * Create a new tracker
+	 * 
+	 * @param window The maximum number of packets which can be in flight at
+	 *            any time, rounded up to a power of two
+	 */
+	public ReliableTracker(int window)
+	{
+		int size = Integer.highestOneBit(Math.max(window, 16) - 1) << 1;
+		_Slots = new AtomicReferenceArray<OutgoingPacket>(size);
+		_Mask = size - 1;
+	}
+
+	/**
+	 * @return the number of packets waiting for an acknowledgement
+	 */
+	public int size()
+	{
+		return _Count.get();
+	}
+
+	/**
+	 * Start tracking a packet which was sent out for the first time. Its
+	 * SequenceNumber and TickCount must already be set.
+	 * 
+	 * @param packet The packet waiting for an ACK
+	 * @return the packet which had to be dropped to make room for this one
+	 *         because the window was exhausted, or null
+	 */
+	public OutgoingPacket add(OutgoingPacket packet)
+	{
+		int sequence = packet.SequenceNumber;
+		OutgoingPacket old = _Slots.getAndSet(sequence & _Mask, packet);
+		if (old == null)
+		{
+			_Count.incrementAndGet();
+		}
+
+		int latest;
+		do
+		{
+			latest = _Latest.get();
+		}
+		while (sequence - latest > 0 && !_Latest.compareAndSet(latest, sequence));
+
+		_Deadlines.add(packet);
+		return old;
+	}
+
+	/**
+	 * Requeue a packet which has just been resent, so its new resend timeout
+	 * gets checked. Only valid for packets returned by <code>pollExpired()</code>.
+	 * 
+	 * @param packet The packet that got resent
+	 */
+	public void requeue(OutgoingPacket packet)
+	{
+		if (isPending(packet))
+		{
+			_Deadlines.add(packet);
+		}
+	}
+
+	/**
+	 * Process an ACK from the simulator
+	 * 
+	 * @param sequence The sequence number that was acknowledged
+	 * @return true if the packet was being tracked, false if we never sent it
+	 *         or it was acknowledged or dropped before
+	 */
+	public boolean acknowledge(int sequence)
+	{
+		int index = sequence & _Mask;
+		OutgoingPacket packet = _Slots.get(index);
+		if (packet != null && packet.SequenceNumber == sequence && _Slots.compareAndSet(index, packet, null))
+		{
+			_Count.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stop tracking a packet, for instance after it was resent too often
+	 * 
+	 * @param packet The packet to remove
+	 * @return true if the packet was still tracked
+	 */
+	public boolean remove(OutgoingPacket packet)
+	{
+		if (_Slots.compareAndSet(packet.SequenceNumber & _Mask, packet, null))
+		{
+			_Count.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the next packet whose resend timeout has expired. Packets that got
+	 * acknowledged meanwhile are discarded on the way. Must only be called from
+	 * one thread at a time.
+	 * 
+	 * @param now The current time in ms
+	 * @param timeout The resend timeout in ms
+	 * @return the oldest expired and still unacknowledged packet, or null if
+	 *         there is none
+	 */
+	public OutgoingPacket pollExpired(long now, long timeout)
+	{
+		OutgoingPacket packet;
+		while ((packet = _Deadlines.peek()) != null)
+		{
+			if (!isPending(packet))
+			{
+				_Deadlines.poll();
+			}
+			else if (packet.TickCount != 0 && now - packet.TickCount > timeout)
+			{
+				_Deadlines.poll();
+				return packet;
+			}
+			else
+			{
+				break;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the lowest sequence number still waiting for an ACK. This is an
+	 * approximation as packets which are being added concurrently may be
+	 * missed. Must only be called from one thread at a time.
+	 * 
+	 * @return the oldest unacknowledged sequence number or 0 if there is none
+	 */
+	public int getOldestUnacked()
+	{
+		int latest = _Latest.get();
+		int sequence = _Oldest;
+		if (latest - sequence > _Mask)
+		{
+			// Anything older has been overwritten already
+			sequence = latest - _Mask;
+		}
+
+		for (; latest - sequence >= 0; sequence++)
+		{
+			OutgoingPacket packet = _Slots.get(sequence & _Mask);
+			if (packet != null && packet.SequenceNumber == sequence)
+			{
+				_Oldest = sequence;
+				return sequence;
+			}
+		}
+		_Oldest = sequence;
+		return 0;
+	}
+
+	private boolean isPending(OutgoingPacket packet)
+	{
+		return _Slots.get(packet.SequenceNumber & _Mask) == packet;
+	}
+}
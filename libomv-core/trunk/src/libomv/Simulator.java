@@ -31,24 +31,19 @@
 package libomv;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
 import java.net.URI;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import libomv.ParcelManager.Parcel;
@@ -69,6 +64,7 @@ import libomv.types.PacketHeader;
 import libomv.types.UUID;
 import libomv.types.Vector2;
 import libomv.types.Vector3;
+import libomv.utils.BufferPool;
 import libomv.utils.Callback;
 import libomv.utils.Helpers;
 import libomv.utils.Logger;
@@ -77,7 +73,7 @@ import libomv.utils.Settings.SettingsUpdateCallbackArgs;
 
 // Simulator is a wrapper for a network connection to a simulator and the
 // Region class representing the block of land in the metaverse.
-public class Simulator extends Thread
+public class Simulator
 {
 	/* Simulator (region) properties */
 	// [Flags]
@@ -426,38 +422,90 @@ public class Simulator extends Thread
 		public int SimPctSteppedCharacters;
 	}
 
+	/**
+	 * Duplicate detector for the sequence numbers of received reliable packets.
+	 * 
+	 * Remembers which sequence numbers were seen within a sliding window below
+	 * the highest sequence number received so far, as a bitmap. Sequence
+	 * numbers older than the window are assumed to be new. Only the thread
+	 * receiving from the simulator may call <code>tryEnqueue()</code>.
+	 */
 	public final class IncomingPacketIDCollection
 	{
-		private final int[] Items;
-		private HashSet<Integer> hashSet;
-		private int first = 0;
-		private int next = 0;
-		private int capacity;
+		private final long[] bits;
+		private final int mask;
+		private int highest;
+		private boolean empty = true;
+
+		private volatile long hits;
+		private volatile long misses;
 
+		/**
+		 * @param capacity The size of the window, rounded up to a power of two
+		 *            of at least 64
+		 */
 		public IncomingPacketIDCollection(int capacity)
 		{
-			this.capacity = capacity;
-			Items = new int[capacity];
-			hashSet = new HashSet<Integer>();
+			int size = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+			bits = new long[size >> 6];
+			mask = size - 1;
 		}
 
+		/** Number of sequence numbers detected as duplicates */
+		public long getHits()
+		{
+			return hits;
+		}
+
+		/** Number of sequence numbers accepted as new */
+		public long getMisses()
+		{
+			return misses;
+		}
+
+		/**
+		 * Record a received sequence number
+		 * 
+		 * @param ack The sequence number of the received packet
+		 * @return false if this sequence number was already received before
+		 */
 		public boolean tryEnqueue(int ack)
 		{
-			synchronized (hashSet)
+			int delta = ack - highest;
+			if (empty || delta > mask)
 			{
-				if (hashSet.add(ack))
+				// First packet or a jump beyond the window, start over
+				Arrays.fill(bits, 0);
+				highest = ack;
+				empty = false;
+			}
+			else if (delta > 0)
+			{
+				// Clear the slots of the sequence numbers that newly enter the window
+				for (int seq = highest + 1; seq != ack; seq++)
 				{
-					Items[next] = ack;
-					next = (next + 1) % capacity;
-					if (next == first)
-					{
-						hashSet.remove(Items[first]);
-						first = (first + 1) % capacity;
-					}
-					return true;
+					bits[(seq & mask) >>> 6] &= ~(1L << seq);
 				}
+				bits[(ack & mask) >>> 6] &= ~(1L << ack);
+				highest = ack;
 			}
-			return false;
+			else if (-delta > mask)
+			{
+				// Too old to tell, assume it is new
+				misses++;
+				return true;
+			}
+
+			int index = (ack & mask) >>> 6;
+			long bit = 1L << ack;
+			if ((bits[index] & bit) != 0)
+			{
+				hits++;
+				return false;
+			}
+			bits[index] |= bit;
+			misses++;
+			return true;
 		}
 	}
 
@@ -541,11 +589,25 @@ public class Simulator extends Thread
 
 	/* Sequence numbers of packets we've received (for duplicate checking) */
 	private IncomingPacketIDCollection _PacketArchive;
+
+	/* The duplicate detector for received packets, for its hit and miss statistics */
+	public IncomingPacketIDCollection getPacketArchive()
+	{
+		return _PacketArchive;
+	}
+
 	/* ACKs that are queued up to be sent to the simulator */
-	private TreeSet<Integer> _PendingAcks;
+	private PendingAcks _PendingAcks;
 	/* Packets we sent out that need ACKs from the simulator */
-	
-	private TreeMap<Integer, NetworkManager.OutgoingPacket> _NeedAck; // int -> Packet
+	private ReliableTracker _NeedAck;
+	/* Packets queued for sending, paced according to the agent throttle */
+	private PacketScheduler _Scheduler;
+
+	/* The scheduler pacing the packets queued for sending to this simulator */
+	public PacketScheduler getScheduler()
+	{
+		return _Scheduler;
+	}
 	/* Sequence number for pause/resume */
 	private AtomicInteger _PauseSerial;
 
@@ -723,10 +785,34 @@ public class Simulator extends Thread
 	/* Flags indicating which protocols this region supports */
    	public long Protocols;
 
-	private DatagramSocket _Connection;
+	private DatagramChannel _Connection;
 	// The IP address and port of the server.
 	private InetSocketAddress ipEndPoint;
+	// The shared transport serving our connection, null if we use our own receive thread
+	private UDPReactor _Reactor;
+	private Thread _ReceiveThread;
+	private String _Name;
 	
+	public String getName()
+	{
+		return _Name;
+	}
+
+	public void setName(String name)
+	{
+		_Name = name;
+		if (_ReceiveThread != null)
+		{
+			_ReceiveThread.setName(name);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return _Name;
+	}
+
 	private String simName;
 	
 	public void setSimName(String name)
@@ -873,6 +959,7 @@ public class Simulator extends Thread
 
 	private boolean trackUtilization;
 	private boolean throttleOutgoingPackets;
+	private boolean logRawPackets;
 	
 	private class SettingsUpdate implements Callback<SettingsUpdateCallbackArgs>
 	{
@@ -884,6 +971,7 @@ public class Simulator extends Thread
 			{
 				trackUtilization = _Client.Settings.getBool(LibSettings.TRACK_UTILIZATION);
 				throttleOutgoingPackets = _Client.Settings.getBool(LibSettings.THROTTLE_OUTGOING_PACKETS);
+				logRawPackets = _Client.Settings.getBool(LibSettings.LOG_RAW_PACKET_BYTES);
 			}
 			else if (key.equals(LibSettings.TRACK_UTILIZATION))
 			{
@@ -893,6 +981,10 @@ public class Simulator extends Thread
 			{
 				throttleOutgoingPackets = params.getValue().AsBoolean();
 			}
+			else if (key.equals(LibSettings.LOG_RAW_PACKET_BYTES))
+			{
+				logRawPackets = params.getValue().AsBoolean();
+			}
 			return false;
 		}
 	}
@@ -917,15 +1009,16 @@ public class Simulator extends Thread
 
 	public Simulator(GridClient client, InetSocketAddress endPoint, long handle) throws Exception
 	{
-		super("Simulator: " + endPoint.getHostName());
+		_Name = "Simulator: " + endPoint.getHostName();
 		_Client = client;
 
 		_Client.Settings.OnSettingsUpdate.add(new SettingsUpdate());
 		trackUtilization = _Client.Settings.getBool(LibSettings.TRACK_UTILIZATION);
 		throttleOutgoingPackets = _Client.Settings.getBool(LibSettings.THROTTLE_OUTGOING_PACKETS);
+		logRawPackets = _Client.Settings.getBool(LibSettings.LOG_RAW_PACKET_BYTES);
 
 		ipEndPoint = endPoint;
-		_Connection = new DatagramSocket();
+		_Connection = DatagramChannel.open();
 		_Connected = false;
 		_DisconnectCandidate = false;
 
@@ -939,11 +1032,12 @@ public class Simulator extends Thread
 		_OutBytes = new BoundedLongArray(_Client.Settings.STATS_QUEUE_SIZE);
 
 		// Initialize the dictionary for reliable packets waiting on ACKs from the server
-		_NeedAck = new TreeMap<Integer, NetworkManager.OutgoingPacket>();
+		_NeedAck = new ReliableTracker(_Client.Settings.MAX_UNACKED_PACKETS);
 
 		// Initialize the lists of sequence numbers we've received so far
 		_PacketArchive = new IncomingPacketIDCollection(_Client.Settings.getInt(LibSettings.PACKET_ARCHIVE_SIZE));
-		_PendingAcks = new TreeSet<Integer>();
+		_PendingAcks = new PendingAcks(256);
+		_Scheduler = new PacketScheduler(this, _Client.Throttle);
 
 		if (client.Settings.getBool(LibSettings.STORE_LAND_PATCHES))
 		{
@@ -1000,8 +1094,15 @@ public class Simulator extends Thread
 
 		Logger.Log("Connecting to " + ipEndPoint.toString(), LogLevel.Info, _Client);
 
-		// runs background thread to read from DatagramSocket
-		start();
+		// hand the socket to the shared transport or start our own receive thread
+		if (!openConnection())
+		{
+			synchronized (_Client.Network.getSimulators())
+			{
+				_Client.Network.getSimulators().remove(this);
+			}
+			return false;
+		}
 
 		Statistics.ConnectTime = System.currentTimeMillis();
 
@@ -1136,7 +1237,8 @@ public class Simulator extends Thread
 				try
 				{
 					ByteBuffer data = close.ToBytes();
-					_Connection.send(new DatagramPacket(data.array(), data.position()));
+					data.flip();
+					_Connection.write(data);
 					Thread.sleep(50);
 				}
 				catch (IOException ex)
@@ -1146,9 +1248,16 @@ public class Simulator extends Thread
 				}
 			}
 
+			// Anything still queued can't be sent anymore
+			_Scheduler.clear();
+
 			try
 			{
 				// Shut the socket communication down
+				if (_Reactor != null)
+				{
+					_Reactor.unregister(_Connection);
+				}
 				_Connection.close();
 			}
 			catch (Exception ex)
@@ -1215,16 +1324,8 @@ public class Simulator extends Thread
 
 	private final void sendPing() throws Exception
 	{
-		int oldestUnacked = 0;
-
-		// Get the oldest NeedAck value, the first entry in the sorted dictionary
-		synchronized (_NeedAck)
-		{
-			if (!_NeedAck.isEmpty())
-			{
-				oldestUnacked = _NeedAck.firstKey();
-			}
-		}
+		// Get the oldest NeedAck value
+		int oldestUnacked = _NeedAck.getOldestUnacked();
 
 		// if (oldestUnacked != 0)
 		//     Logger.DebugLog("Sending ping with oldestUnacked=" + oldestUnacked);
@@ -1265,179 +1366,248 @@ public class Simulator extends Thread
 
 	}
 
-	@Override
-	public void run()
+	/**
+	 * Connect the UDP socket to the simulator and start receiving from it,
+	 * either through the shared UDPReactor or with our own receive thread
+	 * 
+	 * @return true if the socket could be set up
+	 */
+	private boolean openConnection()
 	{
 		try
 		{
 			_Connection.connect(ipEndPoint);
+			if (_Client.Settings.getBool(LibSettings.USE_SHARED_UDP_TRANSPORT))
+			{
+				_Reactor = _Client.Network.getReactor();
+				_Reactor.register(_Connection, this);
+			}
+			else
+			{
+				_ReceiveThread = new ReceiveThread();
+				_ReceiveThread.start();
+			}
 		}
-		catch (SocketException e)
+		catch (IOException ex)
 		{
-			Logger.Log("Failed to startup the UDP socket", Logger.LogLevel.Error, _Client);
-			return;
+			Logger.Log("Failed to startup the UDP socket", Logger.LogLevel.Error, _Client, ex);
+			return false;
 		}
-		byte[] RecvBuffer = new byte[4096];
-		DatagramPacket p = new DatagramPacket(RecvBuffer, RecvBuffer.length);
-		boolean logRawPackets = _Client.Settings.getBool(LibSettings.LOG_RAW_PACKET_BYTES);
 		_Connected = true;
+		return true;
+	}
 
-		while (true)
-		{
-			try
-			{
-				_Connection.receive(p);
-				int numBytes = p.getLength();
-				Packet packet = null;
-
-				// Update the disconnect flag so this sim doesn't time out
-				_DisconnectCandidate = false;
-
-				synchronized (RecvBuffer)
-				{
-					byte[] byteBuffer = RecvBuffer;
+	/*
+	 * Output buffers for zero decoding, shared by all simulators. The largest
+	 * datagrams the simulators send us decode to well below this size.
+	 */
+	private static final BufferPool _DecodePool = new BufferPool(8192, 64, false);
 
-					// Retrieve the incoming packet
-					try
-					{
-						if (logRawPackets)
-						{
-							DumpBuffer(byteBuffer, numBytes, "<=============== Received packet, length = ", LogLevel.Debug);
-						}
-
-						if ((RecvBuffer[0] & PacketHeader.MSG_ZEROCODED) != 0)
-						{
-							int bodylen = numBytes;
-							if ((RecvBuffer[0] & PacketHeader.MSG_APPENDED_ACKS) != 0)
-							{
-								bodylen -= (RecvBuffer[numBytes - 1] * 4 + 1);
-							}
-							byteBuffer = new byte[numBytes <= 1000 ? 4000 : numBytes * 4];
-							numBytes = ZeroDecode(RecvBuffer, numBytes, bodylen, byteBuffer);
-							if (logRawPackets)
-							{
-								DumpBuffer(byteBuffer, numBytes, "<==========Zero-Decoded packet, length=", LogLevel.Debug);
-							}
-						}
-
-						packet = Packet.BuildPacket(ByteBuffer.wrap(byteBuffer, 0, numBytes));
-						if (logRawPackets)
-						{
-							Logger.Log("Decoded packet " + packet.getClass().getName(), Logger.LogLevel.Debug, _Client);
-						}
-					}
-					catch (IOException ex)
-					{
-						Logger.Log(ipEndPoint.toString() + " socket is closed, shutting down " + getName(), LogLevel.Info, _Client, ex);
+	/**
+	 * @return the pool of zero decode buffers, mainly for statistics
+	 */
+	public static BufferPool getDecodePool()
+	{
+		return _DecodePool;
+	}
 
-						_Connected = false;
-						_Client.Network.disconnectSim(this, true);
-						return;
-					}
-					catch (BufferUnderflowException ex)
-					{
-						DumpBuffer(byteBuffer, numBytes, "<=========== Buffer Underflow in packet, length = ", LogLevel.Debug);
-					}
-				}
+	/* Blocking receive loop, used when the shared UDP transport is disabled */
+	private class ReceiveThread extends Thread
+	{
+		public ReceiveThread()
+		{
+			super(_Name);
+		}
 
-				if (packet == null)
+		@Override
+		public void run()
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(4096);
+			while (true)
+			{
+				try
 				{
-					DumpBuffer(RecvBuffer, numBytes, "<=========== Couldn't build a message from the incoming data, length = ", LogLevel.Warning);
-					continue;
+					buffer.clear();
+					_Connection.receive(buffer);
+					buffer.flip();
+					packetReceived(buffer);
 				}
-
-				Statistics.RecvBytes += numBytes;
-				Statistics.RecvPackets++;
-
-				if (packet.getHeader().getResent())
+				catch (IOException ex)
 				{
-					Statistics.ReceivedResends++;
+					receiveFailed(ex);
+					return;
 				}
-
-				// Handle appended ACKs
-				if (packet.getHeader().getAppendedAcks() && packet.getHeader().AckList != null)
+				catch (Exception ex)
 				{
-					synchronized (_NeedAck)
-					{
-						for (int ack : packet.getHeader().AckList)
-						{
-							if (_NeedAck.remove(ack) == null)
-							{
-								Logger.Log(String.format("Appended ACK for a packet (%d) we didn't send: %s", ack,
-										packet.getClass().getName()), LogLevel.Warning, _Client);
-							}
-						}
-					}
+					ex.printStackTrace();
 				}
-				// Handle PacketAck packets
-				if (packet.getType() == PacketType.PacketAck)
-				{
-					PacketAckPacket ackPacket = (PacketAckPacket) packet;
+			}
+		}
+	}
 
-					synchronized (_NeedAck)
-					{
-						for (int ID : ackPacket.ID)
-						{
-							if (_NeedAck.remove(ID) == null)
-							{
-								Logger.Log(String.format("ACK for a packet (%d) we didn't send: %s", ID,
-										packet.getClass().getName()), LogLevel.Warning, _Client);
-							}
-						}
-					}
-				}
+	/**
+	 * Called by the transport when the socket failed or got closed
+	 * 
+	 * @param ex The exception reported by the socket
+	 */
+	void receiveFailed(IOException ex)
+	{
+		if (_Connected)
+		{
+			Logger.Log(ipEndPoint.toString() + " socket is closed, shutting down " + getName(), LogLevel.Info, _Client, ex);
+			_Connected = false;
+		}
+	}
 
-				// Add this packet to the list of ACKs that need to be sent out
-				int sequence = packet.getHeader().getSequence();
-				synchronized (_PendingAcks)
-				{
-					_PendingAcks.add(sequence);
-				}
+	/**
+	 * Called by the transport for every datagram received from the simulator.
+	 * The buffer is only valid for the duration of this call.
+	 * 
+	 * @param buffer The received datagram, from position 0 to the limit
+	 * @throws Exception
+	 */
+	void packetReceived(ByteBuffer buffer) throws Exception
+	{
+		byte[] RecvBuffer = buffer.array();
+		byte[] byteBuffer = RecvBuffer;
+		int numBytes = buffer.limit();
+		ByteBuffer decoded = null;
+		Packet packet = null;
+
+		// Update the disconnect flag so this sim doesn't time out
+		_DisconnectCandidate = false;
 
-				// Send out ACKs if we have a lot of them
-				if (_PendingAcks.size() >= _Client.Settings.MAX_PENDING_ACKS)
+		// Retrieve the incoming packet
+		try
+		{
+			if (logRawPackets)
+			{
+				DumpBuffer(byteBuffer, numBytes, "<=============== Received packet, length = ", LogLevel.Debug);
+			}
+
+			if ((RecvBuffer[0] & PacketHeader.MSG_ZEROCODED) != 0)
+			{
+				int bodylen = numBytes;
+				if ((RecvBuffer[0] & PacketHeader.MSG_APPENDED_ACKS) != 0)
 				{
-					sendPendingAcks();
+					bodylen -= (RecvBuffer[numBytes - 1] * 4 + 1);
 				}
-
-				/*
-				 * Track the sequence number for this packet if it's marked as reliable
-				 */
-				if (packet.getHeader().getReliable() && !_PacketArchive.tryEnqueue(sequence))
+				decoded = _DecodePool.acquire(numBytes <= 1000 ? 4000 : numBytes * 4);
+				byteBuffer = decoded.array();
+				numBytes = ZeroDecode(RecvBuffer, numBytes, bodylen, byteBuffer);
+				if (logRawPackets)
 				{
-					if (packet.getHeader().getResent())
-					{
-						Logger.DebugLog(String.format("Received a resend of already processed packet #%d, type: %s, from %s",
-								                       sequence, packet.getType(), getName()), _Client);
-					}
-					else
-					{
-						Logger.Log(String.format("Received a duplicate (not marked as resend) of packet #%d, type: %s for %s from %s", 
-								                 sequence, packet.getType(), _Client.Self.getName(), getName()), LogLevel.Warning, _Client);
-					}
-					// Avoid firing a callback twice for the same packet
-					continue;
+					DumpBuffer(byteBuffer, numBytes, "<==========Zero-Decoded packet, length=", LogLevel.Debug);
 				}
+				buffer = decoded;
+				buffer.limit(numBytes);
+			}
+
+			if (numBytes >= 10 && _Client.Network.isPacketView(Packet.getType(buffer)))
+			{
+				// A view reads from its buffer when accessed, so it gets its own copy of the datagram
+				packet = Packet.BuildPacketView(ByteBuffer.wrap(Arrays.copyOf(buffer.array(), numBytes)));
+			}
+			else
+			{
+				// The packet copies everything it needs, so the buffer can be reused right after this
+				packet = Packet.BuildPacket(buffer);
+			}
+			if (logRawPackets)
+			{
+				Logger.Log("Decoded packet " + packet.getClass().getName(), Logger.LogLevel.Debug, _Client);
+			}
+		}
+		catch (BufferUnderflowException ex)
+		{
+			DumpBuffer(byteBuffer, numBytes, "<=========== Buffer Underflow in packet, length = ", LogLevel.Debug);
+		}
+		finally
+		{
+			_DecodePool.release(decoded);
+		}
+
+		if (packet == null)
+		{
+			DumpBuffer(RecvBuffer, numBytes, "<=========== Couldn't build a message from the incoming data, length = ", LogLevel.Warning);
+			return;
+		}
+
+		Statistics.RecvBytes += numBytes;
+		Statistics.RecvPackets++;
 
-				// Let the network manager distribute the packet to the callbacks
-				_Client.Network.DistributePacket(this, packet);
+		if (packet.getHeader().getResent())
+		{
+			Statistics.ReceivedResends++;
+		}
 
-				if (trackUtilization)
+		// Handle appended ACKs
+		if (packet.getHeader().getAppendedAcks() && packet.getHeader().AckList != null)
+		{
+			for (int ack : packet.getHeader().AckList)
+			{
+				if (!_NeedAck.acknowledge(ack))
 				{
-					_Client.Stats.updateNetStats(packet.getType().toString(), Type.Packet, 0, numBytes);
+					Logger.Log(String.format("Appended ACK for a packet (%d) we didn't send: %s", ack,
+							packet.getClass().getName()), LogLevel.Warning, _Client);
 				}
 			}
-			catch (IOException ex)
+		}
+		// Handle PacketAck packets
+		if (packet.getType() == PacketType.PacketAck)
+		{
+			PacketAckPacket ackPacket = (PacketAckPacket) packet;
+
+			for (int ID : ackPacket.ID)
 			{
-				Logger.Log(ipEndPoint.toString() + " socket is closed, shutting down " + getName(), LogLevel.Info, _Client);
+				if (!_NeedAck.acknowledge(ID))
+				{
+					Logger.Log(String.format("ACK for a packet (%d) we didn't send: %s", ID,
+							packet.getClass().getName()), LogLevel.Warning, _Client);
+				}
+			}
+		}
 
-				_Connected = false;
-				return;
+		// Add this packet to the list of ACKs that need to be sent out
+		int sequence = packet.getHeader().getSequence();
+		if (!_PendingAcks.offer(sequence))
+		{
+			// Queue is full, flush it and try again
+			sendPendingAcks();
+			_PendingAcks.offer(sequence);
+		}
+
+		// Send out ACKs if we have a lot of them
+		if (_PendingAcks.size() >= _Client.Settings.MAX_PENDING_ACKS)
+		{
+			sendPendingAcks();
+		}
+
+		/*
+		 * Track the sequence number for this packet if it's marked as reliable
+		 */
+		if (packet.getHeader().getReliable() && !_PacketArchive.tryEnqueue(sequence))
+		{
+			if (packet.getHeader().getResent())
+			{
+				Logger.DebugLog(String.format("Received a resend of already processed packet #%d, type: %s, from %s",
+						                       sequence, packet.getType(), getName()), _Client);
 			}
-			catch (Exception ex)
+			else
 			{
-				ex.printStackTrace();
+				Logger.Log(String.format("Received a duplicate (not marked as resend) of packet #%d, type: %s for %s from %s", 
+						                 sequence, packet.getType(), _Client.Self.getName(), getName()), LogLevel.Warning, _Client);
 			}
+			// Avoid firing a callback twice for the same packet
+			return;
+		}
+
+		// Let the network manager distribute the packet to the callbacks
+		_Client.Network.DistributePacket(this, packet);
+
+		if (trackUtilization)
+		{
+			_Client.Stats.updateNetStats(packet.getType().toString(), Type.Packet, 0, numBytes);
 		}
 	}
 
@@ -1522,21 +1692,13 @@ public class Simulator extends Thread
 	/* Sends out pending acknowledgements */
 	private void sendPendingAcks()
 	{
-		synchronized (_PendingAcks)
+		if (!_PendingAcks.isEmpty())
 		{
-			if (_PendingAcks.size() > 0)
+			PacketAckPacket acks = new PacketAckPacket();
+			acks.ID = _PendingAcks.drain(Integer.MAX_VALUE);
+			acks.getHeader().setReliable(false);
+			if (acks.ID.length > 0)
 			{
-				PacketAckPacket acks = new PacketAckPacket();
-				acks.ID = new int[_PendingAcks.size()];
-				acks.getHeader().setReliable(false);
-				int i = 0;
-				Iterator<Integer> iter = _PendingAcks.iterator();
-				while (iter.hasNext())
-				{
-					acks.ID[i++] = iter.next();
-				}
-				_PendingAcks.clear();
-
 				try
 				{
 					sendPacket(acks);
@@ -1554,58 +1716,47 @@ public class Simulator extends Thread
 	 */
 	private void resendUnacked()
 	{
-		if (_NeedAck.size() > 0)
-		{
-			ArrayList<NetworkManager.OutgoingPacket> array;
-
-			synchronized (_NeedAck)
-			{
-				// Create a temporary copy of the outgoing packets array to iterate over
-				array = new ArrayList<NetworkManager.OutgoingPacket>(_NeedAck.size());
-				array.addAll(_NeedAck.values());
-			}
-
-			long now = System.currentTimeMillis();
+		long now = System.currentTimeMillis();
+		NetworkManager.OutgoingPacket outgoing;
 
-			// Resend packets
-			for (int i = 0; i < array.size(); i++)
+		// Only the packets whose timeout expired are looked at, oldest first
+		while ((outgoing = _NeedAck.pollExpired(now, _Client.Settings.RESEND_TIMEOUT)) != null)
+		{
+			if (outgoing.ResendCount < _Client.Settings.MAX_RESEND_COUNT)
 			{
-				NetworkManager.OutgoingPacket outgoing = array.get(i);
-
-				if (outgoing.TickCount != 0 && now - outgoing.TickCount > _Client.Settings.RESEND_TIMEOUT)
+				if (_Client.Settings.LOG_RESENDS)
 				{
-					if (outgoing.ResendCount < _Client.Settings.MAX_RESEND_COUNT)
-					{
-						if (_Client.Settings.LOG_RESENDS)
-						{
-							Logger.DebugLog(String.format("Resending %s packet #%d, %d ms have passed",
-									outgoing.Type, outgoing.SequenceNumber, now - outgoing.TickCount), _Client);
-						}
-
-						// The TickCount will be set to the current time when
-						// the packet is actually sent out again
-						outgoing.TickCount = 0;
+					Logger.DebugLog(String.format("Resending %s packet #%d, %d ms have passed",
+							outgoing.Type, outgoing.SequenceNumber, now - outgoing.TickCount), _Client);
+				}
 
-						// Set the resent flag
-						outgoing.Buffer.array()[0] |= PacketHeader.MSG_RESENT;
+				// The TickCount will be set to the current time when
+				// the packet is actually sent out again
+				outgoing.TickCount = 0;
 
-						// Stats tracking
-						outgoing.ResendCount++;
-						Statistics.ResentPackets++;
+				// Set the resent flag
+				outgoing.Buffer.array()[0] |= PacketHeader.MSG_RESENT;
 
-						sendPacketFinal(outgoing);
-					}
-					else
-					{
-						Logger.DebugLog(String.format("Dropping packet #%d after %d failed attempts",
-								outgoing.SequenceNumber, outgoing.ResendCount, _Client));
+				// Stats tracking
+				outgoing.ResendCount++;
+				Statistics.ResentPackets++;
 
-						synchronized (_NeedAck)
-						{
-							_NeedAck.remove(outgoing.SequenceNumber);
-						}
-					}
+				// Resends are paced in their own throttle category
+				if (throttleOutgoingPackets)
+				{
+					_Client.Network.QueuePacket(outgoing);
 				}
+				else
+				{
+					sendPacketFinal(outgoing);
+				}
+			}
+			else
+			{
+				Logger.DebugLog(String.format("Dropping packet #%d after %d failed attempts",
+						outgoing.SequenceNumber, outgoing.ResendCount, _Client));
+
+				_NeedAck.remove(outgoing);
 			}
 		}
 	}
@@ -1627,13 +1778,11 @@ public class Simulator extends Thread
 		// Keep appending ACKs until there is no room left in the packet or
 		// there are no more ACKs to append
 		int ackCount = 0;
-		synchronized (_PendingAcks)
+		long ack;
+		while (dataLength + 5 < buffer.capacity() && (ack = _PendingAcks.poll()) >= 0)
 		{
-			while (dataLength + 5 < buffer.capacity() && !_PendingAcks.isEmpty())
-			{
-				dataLength += Helpers.UInt32ToBytesB(_PendingAcks.pollFirst(), bytes, dataLength);
-				++ackCount;
-			}
+			dataLength += Helpers.UInt32ToBytesB((int) ack, bytes, dataLength);
+			++ackCount;
 		}
 
 		if (ackCount > 0)
@@ -1658,16 +1807,23 @@ public class Simulator extends Thread
 			{
 				// Add this packet to the list of ACK responses we are waiting
 				// on from the server
-				synchronized (_NeedAck)
+				NetworkManager.OutgoingPacket dropped = _NeedAck.add(outgoingPacket);
+				if (dropped != null)
 				{
-					_NeedAck.put(outgoingPacket.SequenceNumber, outgoingPacket);
+					Logger.Log(String.format("Too many unacknowledged packets, giving up on packet #%d",
+							dropped.SequenceNumber), LogLevel.Warning, _Client);
 				}
 			}
 		}
+		else if (isReliable)
+		{
+			// Wait for the ACK of the resent packet
+			_NeedAck.requeue(outgoingPacket);
+		}
 
 		try
 		{
-			_Connection.send(new DatagramPacket(buffer.array(), dataLength));
+			_Connection.write(ByteBuffer.wrap(bytes, 0, dataLength));
 		}
 		catch (IOException ex)
 		{
@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import libomv.utils.Logger;
+import libomv.utils.Logger.LogLevel;
+
+/**
+ * Non-blocking UDP transport which serves the circuits of any number of
+ * simulators from a small fixed set of selector threads instead of one
+ * blocking receive thread per simulator.
+ * 
+ * By default all GridClient instances in the JVM share one reactor, returned
+ * by <code>getDefault()</code>. A client can be given its own reactor through
+ * <code>NetworkManager.setReactor()</code> before connecting.
+ */
+public class UDPReactor
+{
+	/* Maximum number of datagrams read from one circuit before serving the next one */
+	private static final int MAX_READS_PER_WAKEUP = 16;
+	/* Large enough for any (not zero decoded) datagram the simulators send us */
+	private static final int RECEIVE_BUFFER_SIZE = 4096;
+
+	private static UDPReactor _Default;
+
+	/**
+	 * Get the reactor shared by all clients in this JVM, starting it if
+	 * necessary
+	 * 
+	 * @return the shared reactor
+	 * @throws IOException if the selectors could not be opened
+	 */
+	public static synchronized UDPReactor getDefault() throws IOException
+	{
+		if (_Default == null || !_Default.isRunning())
+		{
+			_Default = new UDPReactor(LibSettings.UDP_REACTOR_THREADS);
+		}
+		return _Default;
+	}
+
+	private final EventLoop[] _Loops;
+	private final AtomicInteger _NextLoop = new AtomicInteger();
+	private volatile boolean _Running;
+
+	/**
+	 * Create a new reactor and start its event loop threads
+	 * 
+	 * @param threads The number of selector threads to distribute the circuits over
+	 * @throws IOException if the selectors could not be opened
+	 */
+	public UDPReactor(int threads) throws IOException
+	{
+		_Loops = new EventLoop[Math.max(1, threads)];
+		for (int i = 0; i < _Loops.length; i++)
+		{
+			_Loops[i] = new EventLoop("UDP Reactor " + i);
+		}
+
+		_Running = true;
+		for (EventLoop loop : _Loops)
+		{
+			loop.start();
+		}
+	}
+
+	public boolean isRunning()
+	{
+		return _Running;
+	}
+
+	/**
+	 * @return the number of simulator circuits currently served by this reactor
+	 */
+	public int getCircuitCount()
+	{
+		int count = 0;
+		for (EventLoop loop : _Loops)
+		{
+			count += loop.selector.keys().size();
+		}
+		return count;
+	}
+
+	/**
+	 * Start serving the circuit of a simulator. The channel is switched to
+	 * non-blocking mode and every datagram received on it is passed to
+	 * <code>Simulator.packetReceived()</code> from one of the reactor threads.
+	 * 
+	 * @param channel The connected channel of the simulator
+	 * @param simulator The simulator to receive the datagrams
+	 * @throws IOException if the channel could not be configured
+	 */
+	public void register(final DatagramChannel channel, final Simulator simulator) throws IOException
+	{
+		if (!_Running)
+			throw new ClosedChannelException();
+
+		channel.configureBlocking(false);
+
+		final EventLoop loop = _Loops[(_NextLoop.getAndIncrement() & 0x7FFFFFFF) % _Loops.length];
+		loop.submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					channel.register(loop.selector, SelectionKey.OP_READ, simulator);
+				}
+				catch (ClosedChannelException ex)
+				{
+					// Simulator got disconnected before we got around to register it
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop serving the circuit of a simulator. This does not close the channel.
+	 * 
+	 * @param channel The channel previously registered
+	 */
+	public void unregister(final DatagramChannel channel)
+	{
+		for (final EventLoop loop : _Loops)
+		{
+			if (channel.keyFor(loop.selector) != null)
+			{
+				loop.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						SelectionKey key = channel.keyFor(loop.selector);
+						if (key != null)
+							key.cancel();
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Stop all event loop threads. Channels still registered are left open
+	 * but will not receive any more datagrams.
+	 */
+	public void shutdown()
+	{
+		_Running = false;
+		for (EventLoop loop : _Loops)
+		{
+			loop.selector.wakeup();
+		}
+	}
+
+	private class EventLoop extends Thread
+	{
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+		private final ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+
+		public EventLoop(String name) throws IOException
+		{
+			super(name);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		/* Run a task on the selector thread, registration changes must happen there */
+		public void submit(Runnable task)
+		{
+			pending.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run()
+		{
+			while (_Running)
+			{
+				try
+				{
+					selector.select();
+
+					Runnable task;
+					while ((task = pending.poll()) != null)
+					{
+						task.run();
+					}
+
+					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+					while (iter.hasNext())
+					{
+						SelectionKey key = iter.next();
+						iter.remove();
+						if (key.isValid() && key.isReadable())
+						{
+							read(key);
+						}
+					}
+				}
+				catch (IOException ex)
+				{
+					Logger.Log(getName() + " select failed", LogLevel.Error, ex);
+				}
+			}
+
+			try
+			{
+				selector.close();
+			}
+			catch (IOException ex)
+			{
+			}
+		}
+
+		private void read(SelectionKey key)
+		{
+			DatagramChannel channel = (DatagramChannel) key.channel();
+			Simulator simulator = (Simulator) key.attachment();
+			try
+			{
+				for (int i = 0; i < MAX_READS_PER_WAKEUP; i++)
+				{
+					buffer.clear();
+					if (channel.receive(buffer) == null)
+						break;
+					buffer.flip();
+					simulator.packetReceived(buffer);
+				}
+			}
+			catch (IOException ex)
+			{
+				key.cancel();
+				simulator.receiveFailed(ex);
+			}
+			catch (Exception ex)
+			{
+				Logger.Log("Failed to process packet from " + simulator.getName(), LogLevel.Error, simulator.getClient(), ex);
+			}
+		}
+	}
+}
@@ -33,8 +33,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -50,6 +50,10 @@ import libomv.utils.Logger.LogLevel;
 import libomv.utils.Settings.SettingsUpdateCallbackArgs;
 
 // Class that handles the local asset cache
+// Assets are kept in a SegmentedAssetStore in the cache directory, unless the
+// user computes the cache location, in which case every asset is its own file.
+// The same per file storage is used when the store is in use by another process.
+// Recently used assets are also kept in a MemoryAssetCache shared by all clients
 public class AssetCache
 {
 	// User can plug in a routine to compute the asset cache location
@@ -61,12 +65,17 @@ public class AssetCache
 	public ComputeAssetCacheFilenameDelegate ComputeAssetCacheFilename = null;
 
 	private GridClient _Client;
-	private Thread cleanerThread;
+	private SegmentedAssetStore _Store;
+	// Set when the store for the current directory could not be opened, assets are then stored as files
+	private boolean _StoreFailed;
+	private final MemoryAssetCache _Memory = MemoryAssetCache.getShared();
 	private Timer cleanerTimer;
 	private long pruneInterval = 1000 * 60 * 5;
 	private boolean autoPruneEnabled = true;
 
-	// Allows setting weather to periodically prune the cache if it grows too big
+	// Allows setting weather to periodically compact the cache segments
+	// The least recently used assets are removed as soon as a write makes the
+	// cache grow too big, this only reclaims their space on disk
 	// Default is enabled, when caching is enabled
 	public final void setAutoPruneEnabled(boolean value)
 	{
@@ -120,12 +129,76 @@ public class AssetCache
 		settingsPath.mkdir();
 	}
 
-	private void setAssetPath(String path)
+	private synchronized void setAssetPath(String path)
 	{
 		if (path != null)
 			cacheAssetDir = path;
 		cacheAssetPath = new File(settingsPath, cacheAssetDir); // &(APPDATA)/_libomv/cache
 		cacheAssetPath.mkdir();
+		// Other clients may still use the store, so only forget about it here
+		if (_Store != null)
+			_Store.removeMaxSize(this);
+		_Store = null;
+		_StoreFailed = false;
+	}
+
+	/**
+	 * Get the store for the current cache directory, opening it on first use.
+	 * Assets cached as individual files by earlier versions are imported into
+	 * the store in the background.
+	 * 
+	 * If the store can not be opened, for instance because another process is
+	 * using the same cache directory, this is only tried once per directory and
+	 * assets are stored as individual files instead.
+	 * 
+	 * @return the store or null if it could not be opened or the user computes the cache location
+	 */
+	private synchronized SegmentedAssetStore getStore()
+	{
+		if (ComputeAssetCacheFilename != null)
+		{
+			return null;
+		}
+
+		if (_Store == null && !_StoreFailed)
+		{
+			try
+			{
+				_Store = SegmentedAssetStore.open(cacheAssetPath);
+				_Store.setMaxSize(this, cacheAssetMaxSize);
+				File[] files = ListCacheFiles();
+				if (files != null && files.length > 0)
+				{
+					_Store.importFiles(files);
+				}
+			}
+			catch (IOException ex)
+			{
+				_StoreFailed = true;
+				Logger.Log("Failed opening the asset cache (" + ex.getMessage() + "), storing assets as files", LogLevel.Warning, _Client, ex);
+			}
+		}
+		return _Store;
+	}
+
+	private static String cacheKey(UUID assetID, String suffix)
+	{
+		String key = assetID.toString();
+		if (suffix != null)
+		{
+			key = key + "." + suffix;
+		}
+		return key;
+	}
+
+	private void setMaxSize(long maxSize)
+	{
+		cacheAssetMaxSize = maxSize;
+		synchronized (this)
+		{
+			if (_Store != null)
+				_Store.setMaxSize(this, maxSize);
+		}
 	}
 
 	private class SettingsUpdate implements Callback<SettingsUpdateCallbackArgs>
@@ -137,7 +210,8 @@ public class AssetCache
 			if (key == null)
 			{
 				useAssetCache = _Client.Settings.getBool(LibSettings.USE_ASSET_CACHE);
-				cacheAssetMaxSize = _Client.Settings.getLong(LibSettings.ASSET_CACHE_MAX_SIZE);
+				setMaxSize(_Client.Settings.getLong(LibSettings.ASSET_CACHE_MAX_SIZE));
+				_Memory.setMaxSize(_Client.Settings.getLong(LibSettings.ASSET_MEMORY_CACHE_MAX_SIZE));
 				setResourcePath(_Client.Settings.getString(LibSettings.RESOURCE_DIR));
 				setAssetPath(_Client.Settings.getString(LibSettings.ASSET_CACHE_DIR));
 			}
@@ -145,9 +219,13 @@ public class AssetCache
 			{
 				useAssetCache = params.getValue().AsBoolean();
 			}
-			else if (key.equals(LibSettings.USE_ASSET_CACHE))
+			else if (key.equals(LibSettings.ASSET_CACHE_MAX_SIZE))
+			{
+				setMaxSize(params.getValue().AsLong());
+			}
+			else if (key.equals(LibSettings.ASSET_MEMORY_CACHE_MAX_SIZE))
 			{
-				cacheAssetMaxSize = params.getValue().AsLong();
+				_Memory.setMaxSize(params.getValue().AsLong());
 			}
 			else if (key.equals(LibSettings.ASSET_CACHE_DIR))
 			{
@@ -175,6 +253,7 @@ public class AssetCache
 		_Client.Settings.OnSettingsUpdate.add(new SettingsUpdate());
 		useAssetCache = _Client.Settings.getBool(LibSettings.USE_ASSET_CACHE);
 		cacheAssetMaxSize = _Client.Settings.getLong(LibSettings.ASSET_CACHE_MAX_SIZE);
+		_Memory.setMaxSize(_Client.Settings.getLong(LibSettings.ASSET_MEMORY_CACHE_MAX_SIZE));
 		setResourcePath(_Client.Settings.getString(LibSettings.RESOURCE_DIR));
 		setAssetPath(_Client.Settings.getString(LibSettings.ASSET_CACHE_DIR));
 
@@ -218,6 +297,7 @@ public class AssetCache
 	// Only create timer when needed
 	private void SetupTimer()
 	{
+		DestroyTimer();
 		if (useAssetCache && autoPruneEnabled && _Client.Network.getConnected())
 		{
 			cleanerTimer = new Timer("AssetCleaner");
@@ -243,35 +323,97 @@ public class AssetCache
 	{
 		if (useAssetCache)
 		{
+			String key = cacheKey(assetID, suffix);
+			byte[] assetData = _Memory.get(key);
+			if (assetData != null)
+			{
+				return assetData;
+			}
+
 			try
 			{
-				File file = cachedAssetFile(assetID, suffix);
-				boolean exists = file.exists() && file.length() > 0;
-				if (!exists)
+				SegmentedAssetStore store = getStore();
+				if (store != null)
 				{
-					file = getStaticAssetFile(assetID);
-					exists = file.exists() && file.length() > 0;
-					if (exists)
-						Logger.DebugLog("Reading " + file + " from static asset cache.", _Client);
+					assetData = store.get(key);
+					if (assetData != null)
+					{
+						Logger.DebugLog("Reading " + assetID + " from asset cache.", _Client);
+					}
 				}
 				else
 				{
-					Logger.DebugLog("Reading " + file + " from asset cache.", _Client);
+					assetData = readFile(assetID, suffix);
 				}
-				
-				if (exists)
+
+				if (assetData == null)
 				{
-					byte[] assetData = new byte[(int) file.length()];
-					FileInputStream fis = new FileInputStream(file);
-					try
-					{
-						fis.read(assetData);
-					}
-					finally
+					assetData = readStaticFile(assetID);
+				}
+
+				if (assetData != null)
+				{
+					_Memory.put(key, assetData);
+				}
+				return assetData;
+			}
+			catch (Throwable ex)
+			{
+				Logger.Log("Failed reading asset from cache (" + ex.getMessage() + ")", LogLevel.Warning, _Client, ex);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return a read only buffer with the asset from the local asset cache, null
+	 * if it does not exist. Assets in the segmented store are returned as a view
+	 * of the mapped segment without copying them, which makes this the cheapest
+	 * way to hand cached textures to J2KImage.decode(ByteBuffer). Unlike get(),
+	 * this does not add the asset to the in memory cache, as that would copy it.
+	 * 
+	 * @param assetID
+	 *            UUID of the asset we want to get
+	 * @return Buffer with the raw bytes of the asset from its position up to its
+	 *         limit, or null on failure
+	 */
+	public final ByteBuffer getBuffer(UUID assetID, String suffix)
+	{
+		if (useAssetCache)
+		{
+			String key = cacheKey(assetID, suffix);
+			byte[] assetData = _Memory.get(key);
+			if (assetData != null)
+			{
+				return ByteBuffer.wrap(assetData).asReadOnlyBuffer();
+			}
+
+			try
+			{
+				SegmentedAssetStore store = getStore();
+				if (store != null)
+				{
+					ByteBuffer buffer = store.getBuffer(key);
+					if (buffer != null)
 					{
-						fis.close();
+						Logger.DebugLog("Reading " + assetID + " from asset cache.", _Client);
+						return buffer;
 					}
-					return assetData;
+				}
+				else
+				{
+					assetData = readFile(assetID, suffix);
+				}
+
+				if (assetData == null)
+				{
+					assetData = readStaticFile(assetID);
+				}
+
+				if (assetData != null)
+				{
+					_Memory.put(key, assetData);
+					return ByteBuffer.wrap(assetData).asReadOnlyBuffer();
 				}
 			}
 			catch (Throwable ex)
@@ -282,6 +424,47 @@ public class AssetCache
 		return null;
 	}
 
+	private byte[] readFile(UUID assetID, String suffix) throws IOException
+	{
+		File file = cachedAssetFile(assetID, suffix);
+		if (file.exists() && file.length() > 0)
+		{
+			Logger.DebugLog("Reading " + file + " from asset cache.", _Client);
+			return readFile(file);
+		}
+		return null;
+	}
+
+	private byte[] readStaticFile(UUID assetID) throws IOException
+	{
+		File file = getStaticAssetFile(assetID);
+		if (file.exists() && file.length() > 0)
+		{
+			Logger.DebugLog("Reading " + file + " from static asset cache.", _Client);
+			return readFile(file);
+		}
+		return null;
+	}
+
+	private static byte[] readFile(File file) throws IOException
+	{
+		byte[] assetData = new byte[(int) file.length()];
+		FileInputStream fis = new FileInputStream(file);
+		try
+		{
+			int off = 0, len;
+			while (off < assetData.length && (len = fis.read(assetData, off, assetData.length - off)) > 0)
+			{
+				off += len;
+			}
+		}
+		finally
+		{
+			fis.close();
+		}
+		return assetData;
+	}
+
 	/**
 	 * Constructs a file name of the cached asset
 	 * 
@@ -294,12 +477,7 @@ public class AssetCache
 		{
 			return ComputeAssetCacheFilename.callback(cacheAssetDir, assetID, suffix);
 		}
-		String filename = assetID.toString();
-		if (suffix != null)
-		{
-			filename = filename + "." + suffix;
-		}
-		return new File(cacheAssetPath, filename);
+		return new File(cacheAssetPath, cacheKey(assetID, suffix));
 	}
 
 	/**
@@ -327,8 +505,16 @@ public class AssetCache
 	{
 		if (useAssetCache)
 		{
+			_Memory.put(cacheKey(assetID, suffix), assetData);
 			try
 			{
+				SegmentedAssetStore store = getStore();
+				if (store != null)
+				{
+					Logger.DebugLog("Saving " + assetID + " to asset cache.", _Client);
+					return store.put(cacheKey(assetID, suffix), assetData);
+				}
+
 				File file = cachedAssetFile(assetID, suffix);
 				Logger.DebugLog("Saving " + file + " to asset cache.", _Client);
 				FileOutputStream fos = new FileOutputStream(file);
@@ -362,12 +548,21 @@ public class AssetCache
 	{
 		if (useAssetCache)
 		{
-			File file = cachedAssetFile(assetID, suffix);
-			if (!file.exists())
+			if (_Memory.containsKey(cacheKey(assetID, suffix)))
+			{
+				return true;
+			}
+			SegmentedAssetStore store = getStore();
+			if (store != null)
+			{
+				if (store.containsKey(cacheKey(assetID, suffix)))
+					return true;
+			}
+			else if (cachedAssetFile(assetID, suffix).exists())
 			{
-				file = getStaticAssetFile(assetID);
+				return true;
 			}
-			return file.exists();
+			return getStaticAssetFile(assetID).exists();
 		}
 		return false;
 	}
@@ -384,11 +579,11 @@ public class AssetCache
 			@Override
 			public boolean accept(File dir, String name)
 			{
-				return name.matches("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+				return name.matches("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}(\\.\\w+)?");
 			}
 		}
 
-		// We save file with UUID as file name, only count those
+		// We save file with UUID and optional suffix as file name, only count those
 		return cacheAssetPath.listFiles(new CacheNameFilter());
 	}
 
@@ -398,6 +593,16 @@ public class AssetCache
 	 */
 	public final void clear()
 	{
+		_Memory.clear();
+
+		SegmentedAssetStore store = getStore();
+		if (store != null)
+		{
+			int num = store.getCount();
+			store.clear();
+			Logger.Log("Wiped out " + num + " assets from the cache.", LogLevel.Debug, _Client);
+		}
+
 		File[] files = ListCacheFiles();
 		if (files != null)
 		{
@@ -412,76 +617,42 @@ public class AssetCache
 	}
 
 	/**
-	 * Brings cache size to the 90% of the max size
-	 * 
+	 * @return the in memory cache in front of the disk cache, for its statistics
 	 */
-	public final void Prune()
+	public final MemoryAssetCache getMemoryCache()
 	{
-		File[] files = ListCacheFiles();
-		long size = GetFileSize(files);
-
-		if (size > cacheAssetMaxSize)
-		{
-			Arrays.sort(files, new SortFilesByModTimeHelper());
-			long targetSize = (long)(cacheAssetMaxSize * 0.9);
-			int num = 0;
-			for (File file : files)
-			{
-				++num;
-				size -= file.length();
-				file.delete();
-				if (size < targetSize)
-				{
-					break;
-				}
-			}
-			Logger.Log(num + " files deleted from the cache, cache size now: " + NiceFileSize(size), LogLevel.Debug, _Client);
-		}
-		else
-		{
-			Logger.Log("Cache size is " + NiceFileSize(size) + ", file deletion not needed", LogLevel.Debug, _Client);
-		}
-
+		return _Memory;
 	}
 
 	/**
-	 * Asynchronously brings cache size to the 90% of the max size
+	 * Brings cache size to the 90% of the max size by removing the least
+	 * recently used assets
 	 * 
 	 */
-	public final void BeginPrune()
+	public final void Prune()
 	{
-		// Check if the background cache cleaning thread is active first
-		if (cleanerThread != null && cleanerThread.isAlive())
-		{
-			return;
-		}
-
-		synchronized (this)
+		SegmentedAssetStore store = getStore();
+		if (store != null)
 		{
-			cleanerThread = new Thread(new Runnable()
+			if (store.prune() == 0)
 			{
-				@Override
-				public void run()
-				{
-					Prune();
-				}
-			});
-			cleanerThread.setDaemon(true);
-			cleanerThread.start();
+				Logger.Log("Cache size is " + NiceFileSize(store.getLiveSize()) + ", asset removal not needed", LogLevel.Debug, _Client);
+			}
 		}
 	}
 
 	/**
-	 * Adds up file sizes passed in a File array
+	 * Asynchronously brings cache size to the 90% of the max size and compacts
+	 * the store segments
+	 * 
 	 */
-	private long GetFileSize(File[] files)
+	public final void BeginPrune()
 	{
-		long ret = 0;
-		for (File file : files)
+		SegmentedAssetStore store = getStore();
+		if (store != null)
 		{
-			ret += file.length();
+			store.beginMaintenance();
 		}
-		return ret;
 	}
 
 	/**
@@ -513,25 +684,4 @@ public class AssetCache
 
 		return size;
 	}
-
-	/**
-	 * Helper class for sorting files by their last accessed time
-	 * 
-	 */
-	private class SortFilesByModTimeHelper implements Comparator<File>
-	{
-		@Override
-		public int compare(File f1, File f2)
-		{
-			if (f1.lastModified() > f2.lastModified())
-			{
-				return 1;
-			}
-			if (f1.lastModified() < f2.lastModified())
-			{
-				return -1;
-			}
-			return 0;
-		}
-	}
 }
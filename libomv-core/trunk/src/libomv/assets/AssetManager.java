@@ -307,7 +307,7 @@ public class AssetManager implements PacketCallback
 		}
 	}
 	
-	public class Transfer
+	public static class Transfer
 	{
 		public UUID ItemID;
 		public int Size;
@@ -394,7 +394,6 @@ public class AssetManager implements PacketCallback
 
 	public class MeshDownload extends Transfer
 	{
-		public UUID ItemID;
 		private CallbackHandler<MeshDownload> callbacks;
 
 		public MeshDownload()
@@ -533,10 +532,11 @@ public class AssetManager implements PacketCallback
 
     private GridClient _Client;
 
-    /* Transfers based on the asset ID to maintain an overview of currently active transfers */
-	private HashMap<UUID, Transfer> _ActiveDownloads;
+    /* Downloads in flight by asset ID, type and discard level, shared by the UDP and HTTP transports
+     * and with the other clients in the JVM */
+	private TransferRegistry _ActiveDownloads;
 
-	/* Transfers based on the transaction ID used by the old transfer system */
+	/* Transfers based on the transaction ID used by the old transfer system, protected by itself */
 	private HashMap<UUID, Transfer> _AssetTransfers;
 
 	/* Transfers based on the transaction ID used by the even older xfer system */
@@ -561,13 +561,13 @@ public class AssetManager implements PacketCallback
 		_PendingUpload = new ArrayBlockingQueue<AssetUpload>(1);
 				
 		_AssetTransfers = new HashMap<UUID, Transfer>();
-		_ActiveDownloads = new HashMap<UUID, Transfer>();
+		_ActiveDownloads = TransferRegistry.getShared();
 		
-		_TexDownloads = new TexturePipeline(client, _Cache);
+		_TexDownloads = new TexturePipeline(client, _Cache, _ActiveDownloads);
 
 		_ThreadPool = Executors.newSingleThreadExecutor();
 
-		_HttpDownloads = new DownloadManager();
+		_HttpDownloads = new DownloadManager(client);
 			
 		// Transfer packets for downloading large assets
 		_Client.Network.RegisterCallback(PacketType.TransferInfo, this);
@@ -604,6 +604,7 @@ public class AssetManager implements PacketCallback
 		// Simulator is responding to a request to download a file
 		_Client.Network.UnregisterCallback(PacketType.InitiateDownload, this);
 		
+		_ActiveDownloads.abortAll(this);
 		_TexDownloads.shutdown();
 		_TexDownloads = null;
 
@@ -784,34 +785,66 @@ public class AssetManager implements PacketCallback
 	public boolean AbortAssetTransfer(UUID transactionID) throws Exception
 	{
 		AssetDownload download;
-		synchronized (_ActiveDownloads)
+		synchronized (_AssetTransfers)
 		{
-			download = (AssetDownload)_AssetTransfers.remove(transactionID);
+			download = (AssetDownload)_AssetTransfers.get(transactionID);
 			if (download != null)
-				_ActiveDownloads.remove(download.ItemID);
+				_ActiveDownloads.remove(download);
 		}
 		
 		if (download != null)
 		{
-			// Abort the transfer
-			TransferAbortPacket abort = new TransferAbortPacket();
-			abort.TransferInfo.ChannelType = download.Channel.getValue();
-			abort.TransferInfo.TransferID = download.TransactionID;
-			download.Simulator.sendPacket(abort);
-
-			download.Success = false;
+			abortAssetDownload(download);
+			return true;
+		}
+		return false;
+	}
 
-			// Fire the event with our transfer that contains Success = false
-			if (download.callbacks != null)
+	/**
+	 * Cancel the asset download of one requester. The download is only
+	 * aborted when no other request for the same asset is waiting for it.
+	 *
+	 * @param assetID The asset requested
+	 * @param callback The callback the asset was requested with
+	 * @return true if the request was found
+	 */
+	public boolean RequestAssetCancel(UUID assetID, Callback<AssetDownload> callback)
+	{
+		for (AssetDownload download : _ActiveDownloads.get(assetID, AssetDownload.class))
+		{
+			if (download.callbacks.remove(callback))
 			{
-				download.Status = StatusCode.Abort;
-				download.callbacks.dispatch(download);
+				_ActiveDownloads.release(download, this);
+				return true;
 			}
-			return true;
 		}
 		return false;
 	}
 
+	private void abortAssetDownload(AssetDownload download) throws Exception
+	{
+		synchronized (_AssetTransfers)
+		{
+			if (_AssetTransfers.remove(download.TransactionID) == null)
+				return;
+		}
+
+		// Abort the transfer
+		TransferAbortPacket abort = new TransferAbortPacket();
+		abort.TransferInfo.ChannelType = download.Channel.getValue();
+		abort.TransferInfo.TransferID = download.TransactionID;
+		download.Simulator.sendPacket(abort);
+
+		download.Success = false;
+
+		// Fire the event with our transfer that contains Success = false
+		if (download.callbacks != null)
+		{
+			download.Status = StatusCode.Abort;
+			download.callbacks.dispatch(download);
+		}
+	}
+
 	/**
 	 * Request an asset download for the inventory
 	 *
@@ -934,12 +967,12 @@ public class AssetManager implements PacketCallback
 		/* If we already have this asset requested and in the download queue just add the new callback to this request */
 		synchronized (_ActiveDownloads)
 		{
-			transfer = (AssetDownload)_ActiveDownloads.get(assetID);
-		}
-		if (transfer != null)
-		{
-			transfer.callbacks.add(callback);
-			return null;
+			transfer = _ActiveDownloads.join(assetID, type, 0, AssetDownload.class, this);
+			if (transfer != null)
+			{
+				transfer.callbacks.add(callback);
+				return null;
+			}
 		}
 		
 		// Add this transfer to the dictionary
@@ -955,10 +988,27 @@ public class AssetManager implements PacketCallback
 		transfer.callbacks = new CallbackHandler<AssetDownload>();
 		transfer.callbacks.add(callback);
 
-		synchronized (_ActiveDownloads)
+		final AssetDownload download = transfer;
+		synchronized (_AssetTransfers)
 		{
 			_AssetTransfers.put(transfer.TransactionID, transfer);
-			_ActiveDownloads.put(assetID, transfer);
+			// Runs over the circuit of this client
+			_ActiveDownloads.add(transfer, type, 0, this, false);
+			_ActiveDownloads.setAbort(transfer, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						abortAssetDownload(download);
+					}
+					catch (Exception ex)
+					{
+						Logger.Log("Failed to abort transfer for asset " + download.ItemID, LogLevel.Warning, _Client, ex);
+					}
+				}
+			});
 		}
 
 		// Build the request packet and send it
@@ -1062,7 +1112,7 @@ public class AssetManager implements PacketCallback
 			Logger.Log(String.format("Beginning asset upload [Single Packet], ID: %s, AssetID: %s, Size: %d",
 					upload.TransactionID, upload.AssetID, upload.Size), LogLevel.Info, _Client);
 
-			synchronized (_ActiveDownloads) 
+			synchronized (_AssetTransfers)
 			{
 				_AssetTransfers.put(transactionID, upload);
 			}
@@ -1259,9 +1309,10 @@ public class AssetManager implements PacketCallback
 			return true;
 		}
 
+		boolean http = _Client.Settings.getBool(LibSettings.USE_HTTP_TEXTURES) && _Client.Network.getCapabilityURI("GetTexture") != null;
 		synchronized (_ActiveDownloads)
 		{
-			download = (ImageDownload)_ActiveDownloads.get(textureID);
+			download = _ActiveDownloads.join(textureID, AssetType.Texture, discardLevel, ImageDownload.class, this);
 			if (download != null)
 			{
 				download.callbacks.add(callback);
@@ -1278,17 +1329,20 @@ public class AssetManager implements PacketCallback
 			download.suffix = "tex";
 			download.callbacks = new CallbackHandler<ImageDownload>();
 			download.callbacks.add(callback);
-			_ActiveDownloads.put(textureID, download);
+			// Other clients can join as long as it is fetched over HTTP
+			_ActiveDownloads.add(download, AssetType.Texture, discardLevel, this, http);
 		}
 		
 		boolean sent = false;
-		if (_Client.Settings.getBool(LibSettings.USE_HTTP_TEXTURES) && _Client.Network.getCapabilityURI("GetTexture") != null)
+		if (http)
 		{
 			sent = HttpRequestTexture(download);
 		}
 
 		if (!sent)
 		{
+			_ActiveDownloads.setShared(download, false);
+			_ActiveDownloads.setAbort(download, AbortTexturePipeline(download));
 			sent = _TexDownloads.RequestTexture(download);
 		}
 		return sent;
@@ -1350,20 +1404,64 @@ public class AssetManager implements PacketCallback
 	}
 
 	/**
-	 * Cancel a texture request
+	 * Cancel all requests of this client for a texture. A download shared with
+	 * other clients that still wait for it keeps running.
 	 *
 	 * @param textureID The texture assets <see cref="UUID"/>
 	 * @throws Exception
 	 */
 	public void RequestImageCancel(UUID textureID) throws Exception
 	{
-		synchronized (_ActiveDownloads)
+		for (ImageDownload download : _ActiveDownloads.get(textureID, ImageDownload.class))
 		{
-			_ActiveDownloads.remove(textureID);
+			_ActiveDownloads.abort(download, this);
 		}
 		_TexDownloads.AbortTextureRequest(textureID);
 	}
 
+	/**
+	 * Cancel the texture request of one requester. The download is only
+	 * aborted when no other request for the same texture is waiting for it.
+	 *
+	 * @param textureID The texture assets <see cref="UUID"/>
+	 * @param callback The callback the texture was requested with
+	 * @return true if the request was found
+	 */
+	public boolean RequestImageCancel(UUID textureID, Callback<ImageDownload> callback)
+	{
+		for (ImageDownload download : _ActiveDownloads.get(textureID, ImageDownload.class))
+		{
+			if (download.callbacks.remove(callback))
+			{
+				_ActiveDownloads.release(download, this);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stop the UDP transfer of a texture whose last request has been cancelled
+	 */
+	private Runnable AbortTexturePipeline(final ImageDownload download)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					_TexDownloads.AbortTextureRequest(download);
+				}
+				catch (Exception ex)
+				{
+					Logger.Log("Failed to abort texture request " + download.ItemID, LogLevel.Warning, _Client, ex);
+				}
+			}
+		};
+	}
+
 	private class MeshDownloadCallback implements Callback<DownloadResult>
 	{
 		private MeshDownload download;
@@ -1378,9 +1476,11 @@ public class AssetManager implements PacketCallback
 		{
 			if (result.finished)
 			{
+				_ActiveDownloads.remove(download);
 				if (result.data != null) // success
 				{
 					download.AssetData = result.data;
+					_Cache.put(download.ItemID, result.data, download.suffix);
 				}
 				download.callbacks.dispatch(download);
 			}
@@ -1418,7 +1518,7 @@ public class AssetManager implements PacketCallback
 		{
 			synchronized (_ActiveDownloads)
 			{
-				download = (MeshDownload)_ActiveDownloads.get(meshID);
+				download = _ActiveDownloads.join(meshID, AssetType.Mesh, 0, MeshDownload.class, this);
 				if (download != null)
 				{
 					download.callbacks.add(callback);
@@ -1426,10 +1526,11 @@ public class AssetManager implements PacketCallback
 				}
 				download = new MeshDownload();
 				download.ItemID = meshID;
+				download.AssetType = AssetType.Mesh;
 				download.suffix = "mesh";
 				download.callbacks = new CallbackHandler<MeshDownload>();
 				download.callbacks.add(callback);
-				_ActiveDownloads.put(meshID, download);
+				_ActiveDownloads.add(download, AssetType.Mesh, 0, this, true);
 			}
 
 			try
@@ -1437,11 +1538,13 @@ public class AssetManager implements PacketCallback
 				url = new URI(String.format("%s/?mesh_id=%s", url, meshID));
 
 				Callback<DownloadResult> downloadCallback = new MeshDownloadCallback(download);
-				_HttpDownloads.enque(url, _Client.Settings.CAPS_TIMEOUT, null, _Cache.cachedAssetFile(download.ItemID, download.suffix), downloadCallback);
+				_ActiveDownloads.setAbort(download, AbortHttpDownload(url, 0, -1));
+				_HttpDownloads.enque(url, _Client.Settings.CAPS_TIMEOUT, null, null, downloadCallback);
 				return true;
 			}
 			catch (URISyntaxException ex)
 			{
+				_ActiveDownloads.remove(download);
 				Logger.Log("Failed to fetch mesh asset {c}: " + ex.getMessage(), LogLevel.Warning, _Client);
 				callback.callback(null);
 			}
@@ -1454,6 +1557,42 @@ public class AssetManager implements PacketCallback
 		return false;
 	}
 
+	/**
+	 * Cancel the mesh request of one requester. The download is only aborted
+	 * when no other request for the same mesh is waiting for it.
+	 *
+	 * @param meshID UUID of the mesh asset
+	 * @param callback The callback the mesh was requested with
+	 * @return true if the request was found
+	 */
+	public boolean RequestMeshCancel(UUID meshID, Callback<MeshDownload> callback)
+	{
+		for (MeshDownload download : _ActiveDownloads.get(meshID, MeshDownload.class))
+		{
+			if (download.callbacks.remove(callback))
+			{
+				_ActiveDownloads.release(download, this);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stop the HTTP download of an asset whose last request has been cancelled
+	 */
+	private Runnable AbortHttpDownload(final URI url, final long rangeStart, final long rangeEnd)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				_HttpDownloads.cancel(url, rangeStart, rangeEnd);
+			}
+		};
+	}
+
 	/**
 	 * Fetch avatar texture on a grid capable of server side baking
 	 *
@@ -1469,7 +1608,7 @@ public class AssetManager implements PacketCallback
 		if (UUID.isZeroOrNull(avatarID) || UUID.isZeroOrNull(textureID) || callback == null)
 			return false;
 		
-		final ImageDownload download = new ImageDownload();
+		ImageDownload download = new ImageDownload();
 		download.ItemID = textureID;
 		download.AssetType = AssetType.Texture;
 		download.ImageType = ImageType.ServerBaked;
@@ -1495,6 +1634,22 @@ public class AssetManager implements PacketCallback
 			return false;
 		}
 		URI url = new URI(appearenceUri + "texture/" + avatarID + "/" + bakeName + "/" + textureID);
+
+		synchronized (_ActiveDownloads)
+		{
+			ImageDownload active = _ActiveDownloads.join(textureID, AssetType.Texture, 0, ImageDownload.class, this);
+			if (active != null)
+			{
+				active.callbacks.add(callback);
+				return true;
+			}
+			download.callbacks = new CallbackHandler<ImageDownload>();
+			download.callbacks.add(callback);
+			_ActiveDownloads.add(download, AssetType.Texture, 0, this, true);
+			_ActiveDownloads.setAbort(download, AbortHttpDownload(url, 0, -1));
+		}
+
+		final ImageDownload bake = download;
 		Callback<DownloadResult> downloadCallback = new Callback<DownloadResult>()
 		{
 			@Override
@@ -1502,19 +1657,21 @@ public class AssetManager implements PacketCallback
 			{
 				if (result.finished)
 				{
+					_ActiveDownloads.remove(bake);
 					if (result.data != null) // success
 					{
-						download.State = TextureRequestState.Finished;
-						download.AssetData = result.data;
-						callback.callback(download);
+						bake.State = TextureRequestState.Finished;
+						bake.AssetData = result.data;
+						_Cache.put(textureID, result.data, bake.suffix);
+						bake.callbacks.dispatch(bake);
 
 						FireImageProgressEvent(textureID, result.data.length, result.data.length);
 					}
 					else
 					{
-						download.State = TextureRequestState.Timeout;
-						download.AssetData = result.data; 
-						callback.callback(download);
+						bake.State = TextureRequestState.Timeout;
+						bake.AssetData = result.data; 
+						bake.callbacks.dispatch(bake);
 						Logger.Log("Failed to fetch server bake {" + textureID + "}: empty data", LogLevel.Warning, _Client);
 					}
 				}
@@ -1526,7 +1683,7 @@ public class AssetManager implements PacketCallback
 			}
 
 		};
-		_HttpDownloads.enque(url, _Client.Settings.CAPS_TIMEOUT, "image/x-j2c", _Cache.cachedAssetFile(download.ItemID, download.suffix), downloadCallback);
+		_HttpDownloads.enque(url, _Client.Settings.CAPS_TIMEOUT, "image/x-j2c", null, downloadCallback);
 		return true;
 	}
 
@@ -1576,25 +1733,35 @@ public class AssetManager implements PacketCallback
 					{
 						if (result.data != null) // success
 						{
-							synchronized (_ActiveDownloads)
-							{
-								_ActiveDownloads.remove(download.ItemID);
-							}
+							_ActiveDownloads.remove(download);
 
 							download.Codec = ImageCodec.J2K;
 							download.State = TextureRequestState.Finished;
 							download.AssetData = result.data;
+							download.Size = result.full;
+							download.Transferred = result.data.length;
+							// Only the complete texture goes into the cache, not the first discard levels
+							if (result.data.length >= result.full)
+								_Cache.put(download.ItemID, result.data, download.suffix);
 							download.callbacks.dispatch(download);
 
-							FireImageProgressEvent(download.ItemID, result.data.length, result.data.length);
+							FireImageProgressEvent(download.ItemID, result.data.length, result.full);
 						}
-						else
+						else if (_ActiveDownloads.contains(download))
 						{
 							download.State = TextureRequestState.Pending;
 							download.callbacks.dispatch(download);
 							Logger.Log(String.format("Failed to fetch texture {%s} over HTTP, falling back to UDP", download.ItemID), LogLevel.Warning, _Client);
+							_ActiveDownloads.setShared(download, false);
+							_ActiveDownloads.setAbort(download, AbortTexturePipeline(download));
 							_TexDownloads.RequestTexture(download);
 						}
+						else
+						{
+							// The texture request has been cancelled
+							download.State = TextureRequestState.Aborted;
+							download.callbacks.dispatch(download);
+						}
 					}
 					else
 					{
@@ -1604,7 +1771,9 @@ public class AssetManager implements PacketCallback
 				}
 
 			};
-			_HttpDownloads.enque(url, _Client.Settings.CAPS_TIMEOUT, "image/x-j2c", _Cache.cachedAssetFile(download.ItemID, download.suffix), downloadCallback);
+			long rangeEnd = download.DiscardLevel > 0 ? HttpTextureRange(download.DiscardLevel) - 1 : -1;
+			_ActiveDownloads.setAbort(download, AbortHttpDownload(url, 0, rangeEnd));
+			_HttpDownloads.enque(url, _Client.Settings.CAPS_TIMEOUT, "image/x-j2c", 0, rangeEnd, null, downloadCallback);
 			return true;
 
 		}
@@ -1617,6 +1786,24 @@ public class AssetManager implements PacketCallback
 		return false;
 	}
 
+	/* Estimated size of a full texture, a 1024x1024 RGBA image compressed 8:1 */
+	private static final int HTTP_TEXTURE_FULL_SIZE = 512 * 1024;
+	/* The smallest range requested, holding at least the codestream header */
+	private static final int HTTP_TEXTURE_MIN_RANGE = 600;
+
+	/**
+	 * Estimate how many bytes of a texture are needed to decode it up to a
+	 * discard level. The quality layers in the codestream are ordered by
+	 * resolution, and every discard level halves the width and height.
+	 *
+	 * @param discardLevel The number of resolution levels that can be dropped
+	 * @return The number of bytes to request from the start of the texture
+	 */
+	private static int HttpTextureRange(int discardLevel)
+	{
+		return Math.max(HTTP_TEXTURE_MIN_RANGE, HTTP_TEXTURE_FULL_SIZE >> (2 * Math.min(discardLevel, 8)));
+	}
+
 	// #region Helpers
 	public static AssetItem CreateAssetItem(AssetType type, UUID assetID, byte[] assetData)
 	{
@@ -1681,10 +1868,10 @@ public class AssetManager implements PacketCallback
 			
 			if (download.Status != StatusCode.OK)
 			{
-				synchronized (_ActiveDownloads)
+				synchronized (_AssetTransfers)
 				{
 					_AssetTransfers.remove(download.TransactionID);
-					_ActiveDownloads.remove(download.ItemID);
+					_ActiveDownloads.remove(download);
 				}
 				download.delayed.clear();
 
@@ -1719,7 +1906,7 @@ public class AssetManager implements PacketCallback
 		TransferInfoPacket info = (TransferInfoPacket) packet;
 
 		AssetDownload download = null;
-		synchronized (_ActiveDownloads)
+		synchronized (_AssetTransfers)
 		{
 			download = (AssetDownload) _AssetTransfers.get(info.TransferInfo.TransferID);
 		}
@@ -1739,10 +1926,10 @@ public class AssetManager implements PacketCallback
 		{
 			Logger.Log("Transfer failed with status code " + download.Status, LogLevel.Warning, _Client);
 
-			synchronized (_ActiveDownloads)
+			synchronized (_AssetTransfers)
 			{
 				_AssetTransfers.remove(download.TransactionID);
-				_ActiveDownloads.remove(download.ItemID);
+				_ActiveDownloads.remove(download);
 			}
 			download.delayed.clear();
 
@@ -1800,7 +1987,7 @@ public class AssetManager implements PacketCallback
 		TransferPacketPacket asset = (TransferPacketPacket) packet;
 
 		AssetDownload download = null;
-		synchronized (_ActiveDownloads)
+		synchronized (_AssetTransfers)
 		{
 			download = (AssetDownload) _AssetTransfers.get(asset.TransferData.TransferID);
 		}
@@ -1939,7 +2126,7 @@ public class AssetManager implements PacketCallback
 		AssetUploadCompletePacket complete = (AssetUploadCompletePacket) packet;
 
 		AssetUpload upload = null;
-		synchronized (_ActiveDownloads)
+		synchronized (_AssetTransfers)
 		{
 			upload = (AssetUpload)_AssetTransfers.remove(complete.AssetBlock.UUID);
 		}
@@ -29,10 +29,8 @@
  */
 package libomv.assets;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 import libomv.imaging.ManagedImage;
 import libomv.imaging.J2KImage;
@@ -160,40 +158,38 @@ public class AssetTexture extends AssetItem
         if (AssetData == null)
 			return false;
 
-		InputStream is = new ByteArrayInputStream(AssetData);
 		try
 		{
-			Image = J2KImage.decode(is);
+			Image = J2KImage.decode(AssetData);
 			return true;
 		}
 		catch (Exception ex)
 		{
 			Logger.Log("Error decoding asset texture data", LogLevel.Error, ex);
 		}
-		finally
-		{
-			try
-			{
-				is.close();
-			}
-			catch (IOException e)
-			{ }
-		}
 		return false;
 	}
 
 	/**
 	 * Decodes the begin and end byte positions for each quality layer in the image
 	 * 
-	 * @return
+	 * @return True if at least one quality layer was found, otherwise false
 	 */
 	public boolean decodeLayerBoundaries()
 	{
 		if (AssetData == null)
 			encode();
 
-		LayerInfo = J2KImage.decodeLayerBoundaries(AssetData);
-		return (LayerInfo.length > 0);
+		try
+		{
+			LayerInfo = J2KImage.decodeLayerBoundaries(AssetData);
+			return (LayerInfo.length > 0);
+		}
+		catch (Exception ex)
+		{
+			Logger.Log("Error decoding asset texture layer boundaries", LogLevel.Error, ex);
+		}
+		return false;
 	}
 
 }
@@ -0,0 +1,443 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.assets;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import libomv.assets.AssetItem.AssetType;
+import libomv.assets.AssetManager.AssetDownload;
+import libomv.assets.AssetManager.ImageDownload;
+import libomv.assets.AssetManager.StatusCode;
+import libomv.assets.TexturePipeline.TextureRequestState;
+import libomv.types.UUID;
+import libomv.utils.Callback;
+import libomv.utils.CallbackArgs;
+import libomv.utils.Logger;
+import libomv.utils.Logger.LogLevel;
+
+/**
+ * Downloads a large number of assets, keeping a limited number of requests in
+ * flight. The window starts small, grows by one request for every window full
+ * of successful downloads and is halved whenever a request fails or times out,
+ * so the request rate follows what the simulator and the throttle allow.
+ * 
+ * Assets found in the asset cache are handed to the sink without taking a
+ * request slot. Downloaded assets are handed to the sink from the thread which
+ * received them, so the sink must accept concurrent calls.
+ */
+public class BulkAssetFetcher
+{
+	// Receives the data of every asset that could be retrieved
+	public interface AssetSink
+	{
+		public void write(UUID assetID, AssetType type, byte[] data) throws IOException;
+	}
+
+	public class FetchProgressCallbackArgs implements CallbackArgs
+	{
+		private final int m_Total;
+		private final int m_Completed;
+		private final int m_Failed;
+		private final int m_InFlight;
+
+		// Number of assets requested
+		public final int getTotal()
+		{
+			return m_Total;
+		}
+
+		// Number of assets handed to the sink
+		public final int getCompleted()
+		{
+			return m_Completed;
+		}
+
+		// Number of assets which could not be retrieved
+		public final int getFailed()
+		{
+			return m_Failed;
+		}
+
+		// Number of requests currently waiting for a reply
+		public final int getInFlight()
+		{
+			return m_InFlight;
+		}
+
+		public FetchProgressCallbackArgs(int total, int completed, int failed, int inFlight)
+		{
+			this.m_Total = total;
+			this.m_Completed = completed;
+			this.m_Failed = failed;
+			this.m_InFlight = inFlight;
+		}
+	}
+
+	private static final int MAX_ATTEMPTS = 3;
+
+	private final AssetManager _Manager;
+	private int _MaxInFlight = 16;
+	private long _Timeout = 60 * 1000;
+
+	public BulkAssetFetcher(AssetManager manager)
+	{
+		_Manager = manager;
+	}
+
+	// Maximum number of requests waiting for a reply at any time
+	public void setMaxInFlight(int value)
+	{
+		_MaxInFlight = Math.max(value, 1);
+	}
+
+	public int getMaxInFlight()
+	{
+		return _MaxInFlight;
+	}
+
+	// How long (in ms) to wait for a single asset before retrying it
+	public void setTimeout(long value)
+	{
+		_Timeout = value;
+	}
+
+	public long getTimeout()
+	{
+		return _Timeout;
+	}
+
+	/**
+	 * Download a set of assets and hand each one to the sink. Returns as soon as
+	 * every asset was either written or given up on.
+	 * 
+	 * @param type The type of the assets
+	 * @param assets The assets to download
+	 * @param sink Receives the asset data
+	 * @param progress Called whenever an asset was written or failed, can be null
+	 * @return The number of assets written to the sink
+	 * @throws InterruptedException
+	 */
+	public int fetch(AssetType type, Collection<UUID> assets, AssetSink sink, Callback<FetchProgressCallbackArgs> progress)
+			throws InterruptedException
+	{
+		Fetch fetch = new Fetch(type, assets.size(), sink, progress);
+		String suffix = type == AssetType.Texture ? "tex" : "asset";
+		AssetCache cache = _Manager.getCache();
+		for (UUID assetID : assets)
+		{
+			Request request = new Request(fetch, assetID);
+			byte[] data = cache.get(assetID, suffix);
+			if (data != null)
+				fetch.received(request, data);
+			else
+				fetch.add(request);
+		}
+		return fetch.run();
+	}
+
+	private class Request
+	{
+		public final Fetch fetch;
+		public final UUID assetID;
+		// Protected by the fetch lock
+		public int attempts;
+		public boolean done;
+
+		public Request(Fetch fetch, UUID assetID)
+		{
+			this.fetch = fetch;
+			this.assetID = assetID;
+		}
+	}
+
+	// One try to download an asset, holds a request slot until it ends
+	private class Attempt extends TimerTask
+	{
+		private final Request request;
+		// Protected by the fetch lock
+		private boolean ended;
+
+		public Attempt(Request request)
+		{
+			this.request = request;
+		}
+
+		public void send()
+		{
+			boolean sent = false;
+			try
+			{
+				if (request.fetch.type == AssetType.Texture)
+				{
+					sent = _Manager.RequestImage(request.assetID, new Callback<ImageDownload>()
+					{
+						@Override
+						public boolean callback(ImageDownload download)
+						{
+							if (download.State == TextureRequestState.Finished)
+								finished(download.AssetData, true);
+							else if (download.State == TextureRequestState.NotFound)
+								finished(null, false);
+							else if (download.State == TextureRequestState.Aborted
+									|| download.State == TextureRequestState.Timeout)
+								finished(null, true);
+							// Keep listening while the download is still running
+							return download.State != TextureRequestState.Pending
+									&& download.State != TextureRequestState.Started
+									&& download.State != TextureRequestState.Progress;
+						}
+					});
+				}
+				else
+				{
+					sent = _Manager.RequestAsset(request.assetID, request.fetch.type, false, new Callback<AssetDownload>()
+					{
+						@Override
+						public boolean callback(AssetDownload download)
+						{
+							if (download.Success)
+								finished(download.AssetData, true);
+							else
+								finished(null, download.Status != StatusCode.UnknownSource
+										&& download.Status != StatusCode.InsufficientPermissions);
+							return true;
+						}
+					}) != null;
+				}
+			}
+			catch (Exception ex)
+			{
+				Logger.Log("Failed to request asset " + request.assetID, LogLevel.Warning, ex);
+			}
+
+			if (!sent)
+				finished(null, false);
+		}
+
+		private void finished(byte[] data, boolean retry)
+		{
+			if (request.fetch.end(this))
+			{
+				if (data != null && data.length > 0)
+					request.fetch.received(request, data);
+				else
+					request.fetch.failed(request, retry);
+			}
+			else if (data != null && data.length > 0)
+			{
+				// A late reply to an attempt which already timed out is still good
+				request.fetch.received(request, data);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			if (request.fetch.end(this))
+			{
+				Logger.Log("Request for asset " + request.assetID + " timed out", LogLevel.Debug);
+				if (request.fetch.type == AssetType.Texture)
+				{
+					try
+					{
+						_Manager.RequestImageCancel(request.assetID);
+					}
+					catch (Exception ex)
+					{
+					}
+				}
+				request.fetch.failed(request, true);
+			}
+		}
+	}
+
+	/* The state of one call to fetch(), protected by its own lock */
+	private class Fetch
+	{
+		public final AssetType type;
+		private final int total;
+		private final AssetSink sink;
+		private final Callback<FetchProgressCallbackArgs> progress;
+		private final ArrayDeque<Request> pending = new ArrayDeque<Request>();
+		private float window = Math.min(4, _MaxInFlight);
+		private int inFlight;
+		private int completed;
+		private int failed;
+
+		public Fetch(AssetType type, int total, AssetSink sink, Callback<FetchProgressCallbackArgs> progress)
+		{
+			this.type = type;
+			this.total = total;
+			this.sink = sink;
+			this.progress = progress;
+		}
+
+		public synchronized void add(Request request)
+		{
+			pending.add(request);
+		}
+
+		public int run() throws InterruptedException
+		{
+			Timer timer = new Timer("BulkAssetFetcher", true);
+			try
+			{
+				ArrayList<Attempt> attempts = new ArrayList<Attempt>();
+				while (true)
+				{
+					synchronized (this)
+					{
+						while (completed + failed < total && (pending.isEmpty() || inFlight >= (int) window))
+						{
+							wait();
+						}
+						if (completed + failed >= total)
+							break;
+
+						while (!pending.isEmpty() && inFlight < (int) window)
+						{
+							Request request = pending.poll();
+							if (!request.done)
+							{
+								request.attempts++;
+								inFlight++;
+								attempts.add(new Attempt(request));
+							}
+						}
+					}
+
+					// Send outside of the lock, replies may arrive on this thread right away
+					for (Attempt attempt : attempts)
+					{
+						timer.schedule(attempt, _Timeout);
+						attempt.send();
+					}
+					attempts.clear();
+				}
+			}
+			finally
+			{
+				timer.cancel();
+			}
+			Logger.Log("Fetched " + completed + " of " + total + " assets, " + failed + " failed", LogLevel.Info);
+			return completed;
+		}
+
+		/* Releases the slot of an attempt, returns false if the attempt had already ended */
+		public synchronized boolean end(Attempt attempt)
+		{
+			if (attempt.ended)
+				return false;
+			attempt.ended = true;
+			attempt.cancel();
+			inFlight--;
+			notifyAll();
+			return true;
+		}
+
+		public void received(Request request, byte[] data)
+		{
+			synchronized (this)
+			{
+				if (request.done)
+					return;
+				request.done = true;
+				// Additive increase, one more slot per window full of successes
+				window = Math.min(window + 1 / window, _MaxInFlight);
+			}
+
+			boolean written = false;
+			try
+			{
+				sink.write(request.assetID, type, data);
+				written = true;
+			}
+			catch (IOException ex)
+			{
+				Logger.Log("Failed to write asset " + request.assetID, LogLevel.Warning, ex);
+			}
+
+			FetchProgressCallbackArgs args;
+			synchronized (this)
+			{
+				if (written)
+					completed++;
+				else
+					failed++;
+				args = new FetchProgressCallbackArgs(total, completed, failed, inFlight);
+				notifyAll();
+			}
+			report(args);
+		}
+
+		public void failed(Request request, boolean retry)
+		{
+			FetchProgressCallbackArgs args;
+			synchronized (this)
+			{
+				if (request.done)
+					return;
+				// Multiplicative decrease, the simulator is not keeping up
+				window = Math.max(window / 2, 1);
+				if (retry && request.attempts < MAX_ATTEMPTS)
+				{
+					pending.add(request);
+					notifyAll();
+					return;
+				}
+				request.done = true;
+				failed++;
+				args = new FetchProgressCallbackArgs(total, completed, failed, inFlight);
+				notifyAll();
+			}
+			Logger.Log("Failed to retrieve asset " + request.assetID, LogLevel.Warning);
+			report(args);
+		}
+
+		private void report(FetchProgressCallbackArgs args)
+		{
+			if (progress != null)
+			{
+				try
+				{
+					progress.callback(args);
+				}
+				catch (Throwable ex)
+				{
+					Logger.Log("Progress callback failed", LogLevel.Error, ex);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.assets;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In memory tier of the asset cache, shared by all clients in the JVM. Keeps
+ * the most recently used assets up to a maximum number of bytes and evicts
+ * the least recently used ones when a new asset does not fit anymore.
+ * 
+ * Assets are copied when they are added and when they are returned, so
+ * callers can not modify the cached data.
+ */
+public class MemoryAssetCache
+{
+	private static final MemoryAssetCache _Shared = new MemoryAssetCache(0);
+
+	/**
+	 * @return the cache shared by all AssetCache instances
+	 */
+	public static MemoryAssetCache getShared()
+	{
+		return _Shared;
+	}
+
+	// Access ordered, so iteration starts with the least recently used asset
+	private final LinkedHashMap<String, byte[]> _Assets = new LinkedHashMap<String, byte[]>(256, 0.75f, true);
+	private long _MaxSize;
+	private long _Size;
+	private long _Hits;
+	private long _Misses;
+	private long _Evictions;
+
+	/**
+	 * Create a memory cache
+	 * 
+	 * @param maxSize The maximum number of bytes of asset data to keep, 0 disables the cache
+	 */
+	public MemoryAssetCache(long maxSize)
+	{
+		_MaxSize = Math.max(maxSize, 0);
+	}
+
+	/**
+	 * Get a copy of a cached asset
+	 * 
+	 * @param key The key of the asset
+	 * @return The asset data or null if it is not cached
+	 */
+	public byte[] get(String key)
+	{
+		byte[] data;
+		synchronized (this)
+		{
+			if (_MaxSize == 0)
+				return null;
+
+			data = _Assets.get(key);
+			if (data == null)
+			{
+				_Misses++;
+				return null;
+			}
+			_Hits++;
+		}
+		return data.clone();
+	}
+
+	public synchronized boolean containsKey(String key)
+	{
+		return _Assets.containsKey(key);
+	}
+
+	/**
+	 * Add an asset, evicting the least recently used assets if needed. Assets
+	 * larger than a quarter of the maximum size are not cached, so a single
+	 * large asset can not flush the whole cache.
+	 * 
+	 * @param key The key of the asset
+	 * @param data The asset data
+	 */
+	public void put(String key, byte[] data)
+	{
+		if (data == null)
+			return;
+
+		synchronized (this)
+		{
+			if (_MaxSize == 0 || data.length > _MaxSize / 4)
+				return;
+		}
+		byte[] copy = data.clone();
+
+		synchronized (this)
+		{
+			byte[] old = _Assets.put(key, copy);
+			if (old != null)
+				_Size -= old.length;
+			_Size += copy.length;
+			evict(_MaxSize);
+		}
+	}
+
+	public synchronized void remove(String key)
+	{
+		byte[] old = _Assets.remove(key);
+		if (old != null)
+			_Size -= old.length;
+	}
+
+	public synchronized void clear()
+	{
+		_Assets.clear();
+		_Size = 0;
+	}
+
+	/**
+	 * Change the maximum size, evicting assets if the cache is now too large
+	 * 
+	 * @param maxSize The maximum number of bytes of asset data to keep, 0 disables the cache
+	 */
+	public synchronized void setMaxSize(long maxSize)
+	{
+		_MaxSize = Math.max(maxSize, 0);
+		evict(_MaxSize);
+	}
+
+	public synchronized long getMaxSize()
+	{
+		return _MaxSize;
+	}
+
+	/**
+	 * @return the number of bytes of asset data currently cached
+	 */
+	public synchronized long getSize()
+	{
+		return _Size;
+	}
+
+	public synchronized int getCount()
+	{
+		return _Assets.size();
+	}
+
+	public synchronized long getHits()
+	{
+		return _Hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return _Misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return _Evictions;
+	}
+
+	/**
+	 * @return the fraction of lookups which found the asset in memory
+	 */
+	public synchronized float getHitRatio()
+	{
+		long lookups = _Hits + _Misses;
+		return lookups > 0 ? (float) _Hits / lookups : 0f;
+	}
+
+	public synchronized void resetStatistics()
+	{
+		_Hits = _Misses = _Evictions = 0;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("%d assets, %d of %d bytes, %d hits, %d misses, %d evictions", _Assets.size(), _Size,
+				_MaxSize, _Hits, _Misses, _Evictions);
+	}
+
+	/* Must be called with the cache lock held */
+	private void evict(long maxSize)
+	{
+		Iterator<Map.Entry<String, byte[]>> iter = _Assets.entrySet().iterator();
+		while (_Size > maxSize && iter.hasNext())
+		{
+			_Size -= iter.next().getValue().length;
+			iter.remove();
+			_Evictions++;
+		}
+	}
+}
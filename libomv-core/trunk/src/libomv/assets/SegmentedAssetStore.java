@@ -0,0 +1,1012 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.assets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import libomv.utils.Logger;
+import libomv.utils.Logger.LogLevel;
+
+/**
+ * Log structured storage for the asset cache. Instead of one file per asset,
+ * assets are appended as records to memory mapped segment files and an in
+ * memory index maps every cache key to the segment, offset and length of its
+ * latest record. Reads are served directly from the mapped segments without
+ * touching the file system.
+ * 
+ * The index is saved when the store is closed and reloaded on the next start.
+ * After an unclean shutdown it is rebuilt by scanning the segments, records
+ * are checksummed so a torn write simply ends the scan of its segment.
+ * 
+ * The index is kept in access order and the store tracks the number of bytes
+ * referenced by it. As soon as a write makes this exceed the maximum size, the
+ * least recently used assets are removed from the index until it is back at
+ * 90% of the maximum size. Records which got replaced or removed stay in their
+ * segment until a background thread compacts it, copying the records still
+ * referenced by the index into the current segment and deleting the old file.
+ * Segments without any referenced records are deleted right away.
+ * 
+ * Only one store is opened per directory in a JVM, all clients using the same
+ * cache directory share it. A lock file keeps other processes out. Each of
+ * them can ask for its own maximum size, the largest one applies to the store.
+ */
+public class SegmentedAssetStore
+{
+	/* Size of new segment files, larger assets get a segment of their own */
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+	/* Record length, data checksum and key length */
+	private static final int RECORD_HEADER = 10;
+	/* Segments with less than this fraction of referenced records get compacted */
+	private static final float COMPACT_RATIO = 0.5f;
+	/* Time in ms close() waits for the maintenance thread to stop */
+	private static final long MAINTENANCE_TIMEOUT = 10 * 1000;
+
+	private static final int INDEX_MAGIC = 0x4C41534C; // "LASL"
+	private static final int INDEX_VERSION = 2;
+	private static final String INDEX_FILE = "index.dat";
+	private static final String LOCK_FILE = "store.lock";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final HashMap<File, SegmentedAssetStore> _Stores = new HashMap<File, SegmentedAssetStore>();
+
+	/**
+	 * Open the store in a directory, or return the store already opened for
+	 * this directory
+	 * 
+	 * @param directory The directory containing the segment files
+	 * @return The store for this directory
+	 * @throws IOException if the directory could not be locked or the segments could not be mapped
+	 */
+	public static SegmentedAssetStore open(File directory) throws IOException
+	{
+		return open(directory, SEGMENT_SIZE);
+	}
+
+	/* Also used by the tests, to get many segments with little data */
+	static SegmentedAssetStore open(File directory, int segmentSize) throws IOException
+	{
+		File dir = directory.getCanonicalFile();
+		synchronized (_Stores)
+		{
+			SegmentedAssetStore store = _Stores.get(dir);
+			if (store == null)
+			{
+				if (_Stores.isEmpty())
+				{
+					Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							closeAll();
+						}
+					}, "AssetStore Shutdown"));
+				}
+				store = new SegmentedAssetStore(dir, segmentSize);
+				_Stores.put(dir, store);
+			}
+			return store;
+		}
+	}
+
+	private static void closeAll()
+	{
+		ArrayList<SegmentedAssetStore> stores;
+		synchronized (_Stores)
+		{
+			stores = new ArrayList<SegmentedAssetStore>(_Stores.values());
+		}
+		for (SegmentedAssetStore store : stores)
+		{
+			store.close();
+		}
+	}
+
+	private static class Segment
+	{
+		public final int id;
+		public final File file;
+		public final MappedByteBuffer buffer;
+		// Logical end of the records in this segment, protected by the store lock
+		public int end;
+		// Bytes of the records referenced by the index, protected by the store lock
+		public long live;
+
+		public Segment(int id, File file, int capacity) throws IOException
+		{
+			this.id = id;
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try
+			{
+				if (raf.length() < capacity)
+					raf.setLength(capacity);
+				buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, raf.length());
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+
+		public int capacity()
+		{
+			return buffer.capacity();
+		}
+
+		public ByteBuffer slice(int offset, int length)
+		{
+			ByteBuffer dup = buffer.duplicate();
+			dup.limit(offset + length).position(offset);
+			return dup.slice();
+		}
+	}
+
+	/* Mutable fields are protected by the store lock */
+	private static class Entry
+	{
+		public Segment segment;
+		public int offset;
+		public final int length;
+		public final int record;
+		// Set once the entry got replaced or removed from the index
+		public boolean removed;
+
+		public Entry(Segment segment, int offset, int length, int record)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.record = record;
+		}
+	}
+
+	private final File _Directory;
+	private final File _IndexFile;
+	private final int _SegmentSize;
+	private final FileChannel _LockChannel;
+	private final FileLock _Lock;
+
+	// Least recently used first, protected by the store lock
+	private final LinkedHashMap<String, Entry> _Index = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+	// All segments ordered by age, protected by the store lock
+	private final TreeMap<Integer, Segment> _Segments = new TreeMap<Integer, Segment>();
+	private Segment _Current;
+	// Sum of the logical size of all segments, protected by the store lock
+	private long _Size;
+	// Sum of the records referenced by the index, protected by the store lock
+	private long _Live;
+	private volatile long _MaxSize = Long.MAX_VALUE;
+	// Maximum size asked for by each user of the store, protected by itself
+	private final WeakHashMap<Object, Long> _MaxSizes = new WeakHashMap<Object, Long>();
+	private boolean _IndexSaved;
+	private boolean _Closed;
+
+	private final ExecutorService _Maintenance;
+	private final AtomicBoolean _MaintenancePending = new AtomicBoolean();
+
+	private SegmentedAssetStore(File directory, int segmentSize) throws IOException
+	{
+		_Directory = directory;
+		_SegmentSize = segmentSize;
+		_Directory.mkdirs();
+		_IndexFile = new File(directory, INDEX_FILE);
+
+		_LockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+		_Lock = _LockChannel.tryLock();
+		if (_Lock == null)
+		{
+			_LockChannel.close();
+			throw new IOException("Asset cache " + directory + " is in use by another process");
+		}
+
+		File[] files = directory.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				String name = file.getName();
+				try
+				{
+					int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+					if (file.length() > 0)
+						_Segments.put(id, new Segment(id, file, 0));
+					else
+						file.delete();
+				}
+				catch (NumberFormatException ex)
+				{
+					Logger.Log("Ignoring unknown file " + file + " in asset cache", LogLevel.Warning);
+				}
+			}
+		}
+
+		if (!loadIndex())
+		{
+			rebuildIndex();
+		}
+		// Any write from now on makes the saved index stale
+		_IndexFile.delete();
+		if (!_Segments.isEmpty())
+		{
+			_Current = _Segments.lastEntry().getValue();
+		}
+
+		_Maintenance = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "AssetStore Maintenance");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Logger.Log("Opened asset cache " + directory + " with " + _Index.size() + " assets in " + _Segments.size()
+				+ " segments", LogLevel.Debug);
+	}
+
+	private static int recordSize(String key, int length)
+	{
+		return RECORD_HEADER + key.getBytes(UTF8).length + length;
+	}
+
+	private boolean loadIndex()
+	{
+		if (!_IndexFile.isFile())
+			return false;
+
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_IndexFile), 64 * 1024));
+			try
+			{
+				if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+					return false;
+
+				int count = in.readInt();
+				if (count != _Segments.size())
+					return false;
+				for (int i = 0; i < count; i++)
+				{
+					Segment segment = _Segments.get(in.readInt());
+					int end = in.readInt();
+					if (segment == null || end < 0 || end > segment.capacity())
+						return false;
+					segment.end = end;
+					_Size += end;
+				}
+
+				count = in.readInt();
+				for (int i = 0; i < count; i++)
+				{
+					String key = in.readUTF();
+					Segment segment = _Segments.get(in.readInt());
+					int offset = in.readInt();
+					int length = in.readInt();
+					if (segment == null || offset < 0 || length < 0 || offset + length > segment.end)
+						return false;
+					int record = recordSize(key, length);
+					// Saved least recently used first, which restores the access order
+					_Index.put(key, new Entry(segment, offset, length, record));
+					segment.live += record;
+					_Live += record;
+				}
+				return true;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			Logger.Log("Failed to load the asset cache index, rebuilding it", LogLevel.Warning, ex);
+			return false;
+		}
+	}
+
+	private void resetIndex()
+	{
+		_Index.clear();
+		_Size = 0;
+		_Live = 0;
+		for (Segment segment : _Segments.values())
+		{
+			segment.end = 0;
+			segment.live = 0;
+		}
+	}
+
+	private void rebuildIndex()
+	{
+		// Discard anything a failed loadIndex() left behind
+		resetIndex();
+		CRC32 crc = new CRC32();
+		for (Segment segment : _Segments.values())
+		{
+			ByteBuffer buffer = segment.buffer.duplicate();
+			int capacity = segment.capacity();
+			int pos = 0;
+			while (pos + RECORD_HEADER <= capacity)
+			{
+				int length = buffer.getInt(pos);
+				int keyLength = buffer.getShort(pos + 8);
+				if (length <= 0 || keyLength <= 0 || keyLength > length || pos + RECORD_HEADER + length > capacity)
+					break;
+
+				byte[] key = new byte[keyLength];
+				byte[] data = new byte[length - keyLength];
+				buffer.position(pos + RECORD_HEADER);
+				buffer.get(key);
+				buffer.get(data);
+				crc.reset();
+				crc.update(data);
+				if ((int) crc.getValue() != buffer.getInt(pos + 4))
+					break;
+
+				int record = RECORD_HEADER + length;
+				Entry old = _Index.put(new String(key, UTF8),
+						new Entry(segment, pos + RECORD_HEADER + keyLength, data.length, record));
+				if (old != null)
+				{
+					old.segment.live -= old.record;
+					_Live -= old.record;
+				}
+				segment.live += record;
+				_Live += record;
+				pos += record;
+			}
+			segment.end = pos;
+			_Size += pos;
+		}
+		Logger.Log("Rebuilt asset cache index with " + _Index.size() + " assets", LogLevel.Info);
+	}
+
+	/**
+	 * Write the index to disk so it can be loaded on the next start instead of
+	 * scanning all segments. The saved index is removed again as soon as the
+	 * store is modified.
+	 */
+	public synchronized void saveIndex() throws IOException
+	{
+		if (_Closed || _IndexSaved)
+			return;
+
+		for (Segment segment : _Segments.values())
+		{
+			segment.buffer.force();
+		}
+
+		File temp = new File(_Directory, INDEX_FILE + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+		try
+		{
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(_Segments.size());
+			for (Segment segment : _Segments.values())
+			{
+				out.writeInt(segment.id);
+				out.writeInt(segment.end);
+			}
+			out.writeInt(_Index.size());
+			for (Map.Entry<String, Entry> e : _Index.entrySet())
+			{
+				Entry entry = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeInt(entry.segment.id);
+				out.writeInt(entry.offset);
+				out.writeInt(entry.length);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		_IndexFile.delete();
+		_IndexSaved = temp.renameTo(_IndexFile);
+	}
+
+	/**
+	 * Save the index and release the directory. The store can not be used
+	 * anymore afterwards, a new one can be opened for the same directory.
+	 * Waits for a running compaction to stop, which it does at the next asset.
+	 */
+	public void close()
+	{
+		synchronized (_Stores)
+		{
+			_Stores.remove(_Directory);
+		}
+
+		synchronized (this)
+		{
+			try
+			{
+				saveIndex();
+			}
+			catch (IOException ex)
+			{
+				Logger.Log("Failed to save the asset cache index", LogLevel.Warning, ex);
+			}
+			_Closed = true;
+			_Maintenance.shutdown();
+			try
+			{
+				_Lock.release();
+				_LockChannel.close();
+			}
+			catch (IOException ex)
+			{
+			}
+		}
+
+		try
+		{
+			_Maintenance.awaitTermination(MAINTENANCE_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Get a read only view of an asset in the mapped segment, without copying
+	 * it. Marks the asset as most recently used.
+	 * 
+	 * @param key The key of the asset
+	 * @return A buffer containing the asset data or null if it is not in the store
+	 */
+	public ByteBuffer getBuffer(String key)
+	{
+		Entry entry;
+		Segment segment;
+		int offset;
+		synchronized (this)
+		{
+			entry = _Index.get(key);
+			if (entry == null)
+				return null;
+			segment = entry.segment;
+			offset = entry.offset;
+		}
+		return segment.slice(offset, entry.length).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get a copy of an asset
+	 * 
+	 * @param key The key of the asset
+	 * @return The asset data or null if it is not in the store
+	 */
+	public byte[] get(String key)
+	{
+		ByteBuffer buffer = getBuffer(key);
+		if (buffer != null)
+		{
+			byte[] data = new byte[buffer.remaining()];
+			buffer.get(data);
+			return data;
+		}
+		return null;
+	}
+
+	public synchronized boolean containsKey(String key)
+	{
+		return _Index.containsKey(key);
+	}
+
+	/**
+	 * Append an asset to the store, replacing any previous version
+	 * 
+	 * @param key The key of the asset
+	 * @param data The asset data
+	 * @return true if the asset was stored
+	 * @throws IOException if a new segment could not be created
+	 */
+	public boolean put(String key, byte[] data) throws IOException
+	{
+		return append(key, data, null);
+	}
+
+	/**
+	 * Append a record to the current segment and point the index to it
+	 * 
+	 * @param key The key of the asset
+	 * @param data The asset data
+	 * @param expected When not null, move this entry to the new record, keeping
+	 *            its position in the access order, unless it was removed meanwhile
+	 * @return true if the record was appended
+	 */
+	private boolean append(String key, byte[] data, Entry expected) throws IOException
+	{
+		byte[] keyBytes = key.getBytes(UTF8);
+		int record = RECORD_HEADER + keyBytes.length + data.length;
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		boolean maintain;
+		synchronized (this)
+		{
+			if (_Closed || expected != null && expected.removed)
+				return false;
+
+			if (_IndexSaved)
+			{
+				_IndexFile.delete();
+				_IndexSaved = false;
+			}
+
+			maintain = _Current == null || _Current.end + record > _Current.capacity();
+			if (maintain)
+			{
+				int id = _Segments.isEmpty() ? 1 : _Segments.lastKey() + 1;
+				File file = new File(_Directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+				_Current = new Segment(id, file, Math.max(_SegmentSize, record));
+				_Segments.put(id, _Current);
+			}
+
+			int pos = _Current.end;
+			ByteBuffer buffer = _Current.buffer.duplicate();
+			buffer.position(pos + 4);
+			buffer.putInt((int) crc.getValue());
+			buffer.putShort((short) keyBytes.length);
+			buffer.put(keyBytes);
+			buffer.put(data);
+			// Write the length last so a torn record ends the scan of this segment
+			buffer.putInt(pos, record - RECORD_HEADER);
+
+			_Current.end += record;
+			_Current.live += record;
+			_Size += record;
+
+			int offset = pos + RECORD_HEADER + keyBytes.length;
+			if (expected != null)
+			{
+				Segment segment = expected.segment;
+				expected.segment = _Current;
+				expected.offset = offset;
+				segment.live -= record;
+				dropIfEmpty(segment);
+			}
+			else
+			{
+				Entry old = _Index.put(key, new Entry(_Current, offset, data.length, record));
+				_Live += record;
+				if (old != null)
+					release(old);
+				if (_Live > _MaxSize)
+					evict((long) (_MaxSize * 0.9));
+			}
+
+			maintain |= _Size > _MaxSize;
+		}
+
+		if (maintain)
+		{
+			beginMaintenance();
+		}
+		return true;
+	}
+
+	/**
+	 * Move assets stored as individual files into the store on the background
+	 * thread. The name of each file is used as its key and the file is deleted
+	 * once its content is stored.
+	 * 
+	 * @param files The files to import
+	 */
+	public void importFiles(final File[] files)
+	{
+		_Maintenance.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				int num = 0;
+				for (File file : files)
+				{
+					try
+					{
+						if (!containsKey(file.getName()))
+						{
+							byte[] data = new byte[(int) file.length()];
+							DataInputStream in = new DataInputStream(new FileInputStream(file));
+							try
+							{
+								in.readFully(data);
+							}
+							finally
+							{
+								in.close();
+							}
+							if (!put(file.getName(), data))
+								return;
+						}
+						file.delete();
+						num++;
+					}
+					catch (IOException ex)
+					{
+						Logger.Log("Failed to import " + file + " into the asset cache", LogLevel.Warning, ex);
+					}
+				}
+				Logger.Log("Imported " + num + " files into the asset cache", LogLevel.Info);
+			}
+		});
+	}
+
+	/**
+	 * Remove all assets and delete all segment files
+	 */
+	public synchronized void clear()
+	{
+		for (Entry entry : _Index.values())
+		{
+			entry.removed = true;
+		}
+		_Index.clear();
+		for (Segment segment : _Segments.values())
+		{
+			deleteFile(segment.file);
+		}
+		_Segments.clear();
+		_Current = null;
+		_Size = 0;
+		_Live = 0;
+		_IndexFile.delete();
+		_IndexSaved = false;
+	}
+
+	/**
+	 * @return the number of assets in the store
+	 */
+	public synchronized int getCount()
+	{
+		return _Index.size();
+	}
+
+	/**
+	 * @return the number of bytes used by all segments, including records not referenced anymore
+	 */
+	public synchronized long getSize()
+	{
+		return _Size;
+	}
+
+	/**
+	 * @return the number of bytes of the records referenced by the index
+	 */
+	public synchronized long getLiveSize()
+	{
+		return _Live;
+	}
+
+	/**
+	 * Set the maximum size a user of the store asks for. Since all clients
+	 * using the same directory share the store, it is limited to the largest
+	 * size any of its users asks for. As long as no user set a size, or one
+	 * asks for 0 or less, the store is not limited.
+	 * 
+	 * @param user The user of the store, usually the AssetCache of a client
+	 * @param maxSize The maximum size in bytes
+	 */
+	public void setMaxSize(Object user, long maxSize)
+	{
+		synchronized (_MaxSizes)
+		{
+			_MaxSizes.put(user, maxSize > 0 ? maxSize : Long.MAX_VALUE);
+			updateMaxSize();
+		}
+	}
+
+	/**
+	 * Drop the maximum size of a user that no longer uses the store
+	 * 
+	 * @param user The user of the store
+	 */
+	public void removeMaxSize(Object user)
+	{
+		synchronized (_MaxSizes)
+		{
+			if (_MaxSizes.remove(user) != null)
+				updateMaxSize();
+		}
+	}
+
+	private void updateMaxSize()
+	{
+		long max = _MaxSizes.isEmpty() ? Long.MAX_VALUE : 0;
+		for (Long size : _MaxSizes.values())
+		{
+			max = Math.max(max, size);
+		}
+		_MaxSize = max;
+		synchronized (this)
+		{
+			if (_Size <= _MaxSize)
+				return;
+		}
+		beginMaintenance();
+	}
+
+	public long getMaxSize()
+	{
+		return _MaxSize;
+	}
+
+	/**
+	 * Schedule pruning and compaction on the background thread, unless it is
+	 * already pending
+	 */
+	public void beginMaintenance()
+	{
+		if (!_Maintenance.isShutdown() && _MaintenancePending.compareAndSet(false, true))
+		{
+			_Maintenance.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					_MaintenancePending.set(false);
+					try
+					{
+						prune();
+						compact();
+					}
+					catch (Throwable ex)
+					{
+						Logger.Log("Asset cache maintenance failed", LogLevel.Warning, ex);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Brings the referenced data to 90% of the maximum size by removing the
+	 * least recently used assets, if it exceeds the maximum size. The space is
+	 * reclaimed when their segments get compacted.
+	 * 
+	 * @return the number of assets removed
+	 */
+	public synchronized int prune()
+	{
+		int removed = 0;
+		if (!_Closed && _Live > _MaxSize)
+		{
+			removed = evict((long) (_MaxSize * 0.9));
+		}
+		return removed;
+	}
+
+	/**
+	 * Rewrite the sealed segments which contain mostly unreferenced records,
+	 * and as many others as needed to bring the store back to its maximum size.
+	 * Stops as soon as the store is closed, since its index is saved by then.
+	 */
+	private void compact() throws IOException
+	{
+		ArrayList<Segment> sealed = new ArrayList<Segment>();
+		synchronized (this)
+		{
+			if (_Closed)
+				return;
+			for (Segment segment : _Segments.values())
+			{
+				if (segment != _Current)
+					sealed.add(segment);
+			}
+			// Sparsest first, these free the most space for the least copying
+			Collections.sort(sealed, new Comparator<Segment>()
+			{
+				@Override
+				public int compare(Segment s1, Segment s2)
+				{
+					return Double.compare((double) s1.live / Math.max(s1.end, 1), (double) s2.live / Math.max(s2.end, 1));
+				}
+			});
+		}
+
+		for (Segment segment : sealed)
+		{
+			ArrayList<String> keys = new ArrayList<String>();
+			ArrayList<Entry> entries = new ArrayList<Entry>();
+			synchronized (this)
+			{
+				if (_Closed)
+					return;
+				if (_Segments.get(segment.id) != segment)
+					continue;
+				if (segment.live == 0)
+				{
+					dropSegment(segment);
+					continue;
+				}
+				if (segment.live >= segment.end * COMPACT_RATIO && _Size <= _MaxSize)
+					continue;
+
+				// Iterating the entry set does not change the access order
+				for (Map.Entry<String, Entry> e : _Index.entrySet())
+				{
+					if (e.getValue().segment == segment)
+					{
+						keys.add(e.getKey());
+						entries.add(e.getValue());
+					}
+				}
+			}
+
+			int moved = 0;
+			for (int i = 0; i < keys.size(); i++)
+			{
+				Entry entry = entries.get(i);
+				byte[] data = new byte[entry.length];
+				segment.slice(entry.offset, entry.length).get(data);
+				if (append(keys.get(i), data, entry))
+					moved++;
+			}
+
+			synchronized (this)
+			{
+				/*
+				 * Moving the last referenced record drops the segment already. If it is
+				 * still there, some records could not be moved because the store got
+				 * closed meanwhile, and the segment has to stay for them.
+				 */
+				if (_Closed || segment.live > 0)
+					return;
+				if (_Segments.get(segment.id) == segment)
+				{
+					dropSegment(segment);
+				}
+			}
+			Logger.Log("Compacted asset cache segment " + segment.id + ", moved " + moved + " assets", LogLevel.Debug);
+		}
+	}
+
+	/* Must be called with the store lock held */
+	private int evict(long target)
+	{
+		int removed = 0;
+		Iterator<Entry> iter = _Index.values().iterator();
+		while (_Live > target && iter.hasNext())
+		{
+			Entry entry = iter.next();
+			iter.remove();
+			release(entry);
+			removed++;
+		}
+		if (removed > 0)
+		{
+			Logger.Log(removed + " assets removed from the cache, cached data now: " + _Live, LogLevel.Debug);
+			beginMaintenance();
+		}
+		return removed;
+	}
+
+	/* Must be called with the store lock held, after the entry was removed from the index */
+	private void release(Entry entry)
+	{
+		entry.removed = true;
+		entry.segment.live -= entry.record;
+		_Live -= entry.record;
+		dropIfEmpty(entry.segment);
+	}
+
+	/* Must be called with the store lock held */
+	private void dropIfEmpty(Segment segment)
+	{
+		if (segment.live == 0 && segment != _Current && _Segments.get(segment.id) == segment)
+		{
+			dropSegment(segment);
+		}
+	}
+
+	/* Must be called with the store lock held */
+	private void dropSegment(Segment segment)
+	{
+		if (segment.live > 0)
+		{
+			Iterator<Entry> iter = _Index.values().iterator();
+			while (iter.hasNext())
+			{
+				Entry entry = iter.next();
+				if (entry.segment == segment)
+				{
+					iter.remove();
+					entry.removed = true;
+					_Live -= entry.record;
+				}
+			}
+			segment.live = 0;
+		}
+		_Segments.remove(segment.id);
+		if (_Current == segment)
+			_Current = null;
+		_Size -= segment.end;
+		deleteFile(segment.file);
+		if (_IndexSaved)
+		{
+			_IndexFile.delete();
+			_IndexSaved = false;
+		}
+	}
+
+	private static void deleteFile(File file)
+	{
+		// Readers may still hold a view of the mapped segment, which stays valid
+		if (!file.delete())
+		{
+			file.deleteOnExit();
+		}
+	}
+}
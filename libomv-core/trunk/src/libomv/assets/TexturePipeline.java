@@ -29,13 +29,13 @@
  */
 package libomv.assets;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.PriorityQueue;
 import java.util.SortedMap;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import libomv.GridClient;
 import libomv.LoginManager.LoginProgressCallbackArgs;
@@ -59,7 +59,6 @@ import libomv.types.UUID;
 import libomv.utils.Callback;
 import libomv.utils.Logger;
 import libomv.utils.Logger.LogLevel;
-import libomv.utils.TimeoutEvent;
 
 public class TexturePipeline implements PacketCallback
 {
@@ -114,38 +113,61 @@ public class TexturePipeline implements PacketCallback
 	// processed through the <see cref="TexturePipeline"/>
 	private class TaskInfo
 	{
-		// The slot this request is occupying in the threadpoolSlots array
-		public int RequestSlot;
+		// The order in which the request was queued, to keep requests of equal priority in FIFO order
+		public long Sequence;
 		
 		public SortedMap<Short, Short> PacketsSeen;
 		
 		public Simulator Simulator;
-		// The timeout event used for this task
-		public TimeoutEvent<Boolean> TimeoutEvent;
+		// The time in ms the last packet for this request was received, or the request was sent
+		public long LastPacketTime;
+		// The time in ms the request was last resent because of missing packets
+		public long LastRefreshTime;
 		// An object that maintains the data of an request thats in-process.
 		public ImageDownload Request;
+		// Further requests for the same texture at a lower discard level, queued once this one is done
+		public ArrayList<ImageDownload> Waiting;
 	}
 
+	// Orders pending requests by descending priority, then by descending
+	// discard level as lower resolutions complete faster, then by age
+	private static final Comparator<TaskInfo> PendingOrder = new Comparator<TaskInfo>()
+	{
+		@Override
+		public int compare(TaskInfo task1, TaskInfo task2)
+		{
+			int result = Float.compare(task2.Request.Priority, task1.Request.Priority);
+			if (result == 0)
+				result = task2.Request.DiscardLevel - task1.Request.DiscardLevel;
+			if (result == 0)
+				result = task1.Sequence < task2.Sequence ? -1 : (task1.Sequence == task2.Sequence ? 0 : 1);
+			return result;
+		}
+	};
+
 	// A dictionary containing all pending and in-process transfer requests
 	// where the Key is both the RequestID
 	// and also the Asset Texture ID, and the value is an object containing the
 	// current state of the request and also
 	// the asset data as it is being re-assembled
 	private final HashMap<UUID, TaskInfo> _TexTransfers;
+	// Requests waiting for a download slot, highest priority first. Protected by the lock on _TexTransfers
+	private final PriorityQueue<TaskInfo> _PendingTasks;
+	// Requests currently occupying a download slot. Protected by the lock on _TexTransfers
+	private final ArrayList<TaskInfo> _ActiveTasks;
+	// The number of download slots
+	private final int _MaxDownloads;
+	private long _Sequence;
 	// Holds the reference to the <see cref="GridClient"/> client object
 	private final GridClient _Client;
 
 	private final AssetCache _Cache;
+	// The downloads in flight of the asset manager, completed requests are removed from it
+	private final TransferRegistry _Transfers;
 
-	private final ExecutorService _ThreadPool;
-	// An array of worker slots which shows the availablity status of the slot
-	private final Future<?>[] _ThreadRequests;
-
-	// The primary thread which manages the requests.
-	private Thread downloadMaster;
 	// true if the TexturePipeline is currently running
-	private boolean _Running;
-	// A refresh timer used to increase the priority of stalled requests
+	private volatile boolean _Running;
+	// A refresh timer used to increase the priority of stalled requests and to time out requests
 	private Timer RefreshDownloadsTimer;
 
 	// Current number of pending and in-process transfers
@@ -161,16 +183,30 @@ public class TexturePipeline implements PacketCallback
 	 *            Reference to the instantiated <see cref="GridClient"/> object
 	 */
 	public TexturePipeline(GridClient client, AssetCache cache)
+	{
+		this(client, cache, new TransferRegistry());
+	}
+
+	/**
+	 * Instantiates a new copy of the TexturePipeline class sharing the
+	 * downloads in flight with other transports
+	 * 
+	 * @param client
+	 *            Reference to the instantiated <see cref="GridClient"/> object
+	 * @param transfers
+	 *            The registry the requests of this pipeline are added to
+	 */
+	public TexturePipeline(GridClient client, AssetCache cache, TransferRegistry transfers)
 	{
 		_Client = client;
 		_Cache = cache;
+		_Transfers = transfers;
 
-		int maxDownloads = _Client.Settings.MAX_CONCURRENT_TEXTURE_DOWNLOADS;
-
-		_ThreadPool = Executors.newFixedThreadPool(maxDownloads);
-		_ThreadRequests = new Future[maxDownloads];
+		_MaxDownloads = Math.max(1, _Client.Settings.MAX_CONCURRENT_TEXTURE_DOWNLOADS);
 
 		_TexTransfers = new HashMap<UUID, TaskInfo>();
+		_PendingTasks = new PriorityQueue<TaskInfo>(16, PendingOrder);
+		_ActiveTasks = new ArrayList<TaskInfo>(_MaxDownloads);
 
 		// Handle client connected and disconnected events
 		client.Login.OnLoginProgress.add(new Network_LoginProgress());
@@ -230,26 +266,21 @@ public class TexturePipeline implements PacketCallback
 			return;
 		}
 
-		if (downloadMaster == null)
-		{
-			// Instantiate master thread that manages the request pool
-			downloadMaster = new Thread(new DownloadThread());
-			downloadMaster.setName("TexturePipeline");
-			downloadMaster.setDaemon(true);
-		}
 		_Running = true;
 
 		_Client.Network.RegisterCallback(PacketType.ImageData, this);
 		_Client.Network.RegisterCallback(PacketType.ImagePacket, this);
 		_Client.Network.RegisterCallback(PacketType.ImageNotInDatabase, this);
-		downloadMaster.start();
 
 		if (RefreshDownloadsTimer == null)
 		{
-			RefreshDownloadsTimer = new Timer();
+			RefreshDownloadsTimer = new Timer("TexturePipeline", true);
 			RefreshDownloadsTimer.schedule(new RefreshDownloadsTimer_Elapsed(), LibSettings.PIPELINE_REFRESH_INTERVAL,
 					LibSettings.PIPELINE_REFRESH_INTERVAL);
 		}
+
+		// Start any requests queued up before we were running
+		startPendingTasks();
 	}
 
 	/**
@@ -272,11 +303,7 @@ public class TexturePipeline implements PacketCallback
 		}
 		RefreshDownloadsTimer = null;
 
-		if (downloadMaster != null && downloadMaster.isAlive())
-		{
-			_Running = false;
-		}
-		downloadMaster = null;
+		_Running = false;
 
 		_Client.Network.UnregisterCallback(PacketType.ImageNotInDatabase, this);
 		_Client.Network.UnregisterCallback(PacketType.ImageData, this);
@@ -284,32 +311,58 @@ public class TexturePipeline implements PacketCallback
 
 		synchronized (_TexTransfers)
 		{
-			_TexTransfers.clear();
-		}
-
-		synchronized (_ThreadRequests)
-		{
-			for (int i = 0; i < _ThreadRequests.length; i++)
+			for (TaskInfo task : _TexTransfers.values())
 			{
-				if (_ThreadRequests[i] != null)
+				_Transfers.remove(task.Request);
+				if (task.Waiting != null)
 				{
-					_ThreadRequests[i].cancel(true);
-					_ThreadRequests[i] = null;
+					for (ImageDownload request : task.Waiting)
+						_Transfers.remove(request);
 				}
 			}
+			_TexTransfers.clear();
+			_PendingTasks.clear();
+			_ActiveTasks.clear();
 		}
 	}
 
+	/**
+	 * Checks the requests occupying a download slot for stalled transfers.
+	 * Only the active requests are visited, pending requests don't time out
+	 * while waiting for a slot.
+	 */
 	private class RefreshDownloadsTimer_Elapsed extends TimerTask
 	{
 		@Override
 		public void run()
 		{
+			ArrayList<TaskInfo> active;
 			synchronized (_TexTransfers)
 			{
-				for (TaskInfo task : _TexTransfers.values())
+				if (_ActiveTasks.isEmpty())
+					return;
+				active = new ArrayList<TaskInfo>(_ActiveTasks);
+			}
+
+			long now = System.currentTimeMillis();
+			for (TaskInfo task : active)
+			{
+				if (task.Request.State.equals(TextureRequestState.Progress))
 				{
-					if (task.Request.State.equals(TextureRequestState.Progress))
+					task.Request.TimeSinceLastPacket = now - task.LastPacketTime;
+					if (task.Request.TimeSinceLastPacket > _Client.Settings.PIPELINE_REQUEST_TIMEOUT)
+					{
+						Logger.Log("Timeout waiting for texture " + task.Request.ItemID + " to download got "
+								+ task.Request.Transferred + " of " + task.Request.Size, LogLevel.Warning, _Client);
+
+						if (removeTask(task))
+						{
+							task.Request.State = TextureRequestState.Timeout;
+							task.Request.callbacks.dispatch(task.Request);
+							_Client.Assets.FireImageProgressEvent(task.Request.ItemID, task.Request.Transferred, task.Request.Size);
+						}
+					}
+					else if (now - Math.max(task.LastPacketTime, task.LastRefreshTime) > 5000)
 					{
 						// Find the first missing packet in the download
 						short packet = 0;
@@ -321,25 +374,17 @@ public class TexturePipeline implements PacketCallback
 							}
 						}
 
-						if (task.Request.TimeSinceLastPacket > 5000)
+						// We're not receiving data for this texture fast
+						// enough, bump up the priority by 5%
+						task.Request.Priority *= 1.05f;
+						task.LastRefreshTime = now;
+						try
 						{
-							// We're not receiving data for this texture fast
-							// enough, bump up the priority by 5%
-							task.Request.Priority *= 1.05f;
-							task.Request.TimeSinceLastPacket = 0;
-							try
-							{
-								RequestImage(task.Request.ItemID, task.Request.ImageType, task.Request.Priority, task.Request.DiscardLevel,
-										packet);
-							}
-							catch (Exception e)
-							{
-							}
+							RequestImage(task.Request.ItemID, task.Request.ImageType, task.Request.Priority, task.Request.DiscardLevel,
+									packet);
 						}
-
-						if (task.Request.TimeSinceLastPacket > _Client.Settings.PIPELINE_REQUEST_TIMEOUT)
+						catch (Exception e)
 						{
-							task.TimeoutEvent.set(true);
 						}
 					}
 				}
@@ -383,20 +428,31 @@ public class TexturePipeline implements PacketCallback
 	 */
 	public boolean RequestTexture(ImageDownload request)
 	{
-		TaskInfo task = GetTransferValue(request.ItemID);
-		if (task == null)
+		synchronized (_TexTransfers)
 		{
-			request.State = TextureRequestState.Pending;
-			task = new TaskInfo();
-			task.TimeoutEvent = new TimeoutEvent<Boolean>();
-			task.RequestSlot = -1;
-			task.Request = request;
-		
-			synchronized (_TexTransfers)
+			TaskInfo active = _TexTransfers.get(request.ItemID);
+			if (active != null)
 			{
-				_TexTransfers.put(request.ItemID, task);
+				/* The simulator sends one image stream per texture, so a request for more of
+				 * the texture than the one in progress has to wait until that one is done */
+				if (active.Request != request)
+				{
+					if (active.Waiting == null)
+						active.Waiting = new ArrayList<ImageDownload>();
+					if (!active.Waiting.contains(request))
+						active.Waiting.add(request);
+				}
+				return true;
 			}
+
+			request.State = TextureRequestState.Pending;
+			TaskInfo task = new TaskInfo();
+			task.Sequence = _Sequence++;
+			task.Request = request;
+			_TexTransfers.put(request.ItemID, task);
+			_PendingTasks.add(task);
 		}
+		startPendingTasks();
 		return true;
 	}
 
@@ -501,16 +557,15 @@ public class TexturePipeline implements PacketCallback
 				request.RequestImage[0].Type = task.Request.ImageType.getValue();
 				_Client.Network.sendPacket(request);
 
-				RemoveTransfer(textureID);
+				removeTask(task);
 
-				task.TimeoutEvent.set(false);
 				task.Request.State = TextureRequestState.Aborted;
 				task.Request.callbacks.dispatch(task.Request);
 				_Client.Assets.FireImageProgressEvent(task.Request.ItemID, task.Request.Transferred, task.Request.Size);
 			}
 			else
 			{
-				RemoveTransfer(textureID);
+				removeTask(task);
 
 				task.Request.State = TextureRequestState.Aborted;
 				task.Request.callbacks.dispatch(task.Request);
@@ -520,156 +575,87 @@ public class TexturePipeline implements PacketCallback
 	}
 
 	/**
-	 * Master Download Thread, Queues up downloads in the threadpool
+	 * Cancel one texture request, leaving other requests for the same texture
+	 * in the pipeline
+	 * 
+	 * @param request
+	 *            The request to cancel
+	 * @throws Exception
 	 */
-	private class DownloadThread implements Runnable
+	public final void AbortTextureRequest(ImageDownload request) throws Exception
 	{
-		@Override
-		public void run()
-		{
-			while (_Running)
-			{
-				// find free slots
-				int active = 0;
-				int slot;
-
-				TaskInfo nextTask = null;
-
-				synchronized (_TexTransfers)
-				{
-					for (TaskInfo request : _TexTransfers.values())
-					{
-						if (request.Request.State == TextureRequestState.Pending)
-						{
-							nextTask = request;
-						}
-						else if (request.Request.State == TextureRequestState.Started ||
-								 request.Request.State == TextureRequestState.Progress)
-						{
-							++active;
-						}
-					}
-				}
-
-				if (nextTask != null  && active <= _ThreadRequests.length)
-				{
-					slot = -1;
-					// find available slot for reset event
-					synchronized (_ThreadRequests)
-					{
-						for (int i = 0; i < _ThreadRequests.length; i++)
-						{
-							if (_ThreadRequests[i] == null)
-							{
-								// found a free slot
-								slot = i;
-								break;
-							}
-						}
-					}
+		TaskInfo task = GetTransferValue(request.ItemID);
+		if (task == null)
+			return;
 
-					// -1 = slot not available
-					if (slot != -1)
-					{
-						nextTask.Request.State = TextureRequestState.Started;
-						nextTask.RequestSlot = slot;
+		if (task.Request == request)
+		{
+			AbortTextureRequest(request.ItemID);
+			return;
+		}
 
-						Logger.DebugLog(String.format("Sending Worker thread new download request %d", slot));
-						Future<?> request = _ThreadPool.submit(new TextureRequestDoWork(nextTask));
-						synchronized (_ThreadRequests)
-						{
-							_ThreadRequests[slot] = request;
-						}
-						continue;
-					}
-				}
-				// Queue was empty or all download slots are in use, let's give
-				// up some CPU time
-				try
-				{
-					Thread.sleep(500);
-				}
-				catch (InterruptedException e)
-				{
-				}
-			}
-			Logger.Log("Texture pipeline download thread shutting down", LogLevel.Info, _Client);
+		boolean removed;
+		synchronized (_TexTransfers)
+		{
+			removed = task.Waiting != null && task.Waiting.remove(request);
+		}
+		if (removed)
+		{
+			_Transfers.remove(request);
+			request.State = TextureRequestState.Aborted;
+			request.callbacks.dispatch(request);
 		}
 	}
 
 	/**
-	 * The worker thread that sends the request and handles timeouts
-	 * 
-	 * @param threadContext
-	 *            A <see cref="TaskInfo"/> object containing the request details
+	 * Moves the highest priority pending requests into the free download
+	 * slots and sends their request packets. Called whenever a request is
+	 * queued or leaves its slot, so no thread has to poll for free slots.
 	 */
-	private class TextureRequestDoWork implements Runnable
+	private void startPendingTasks()
 	{
-		private final TaskInfo task;
-
-		public TextureRequestDoWork(TaskInfo task)
+		ArrayList<TaskInfo> started = null;
+		synchronized (_TexTransfers)
 		{
-			this.task = task;
+			while (_Running && _ActiveTasks.size() < _MaxDownloads && !_PendingTasks.isEmpty())
+			{
+				TaskInfo task = _PendingTasks.poll();
+				task.Request.State = TextureRequestState.Started;
+				_ActiveTasks.add(task);
+				if (started == null)
+					started = new ArrayList<TaskInfo>();
+				started.add(task);
+			}
 		}
 
-		@Override
-		public void run()
+		if (started != null)
 		{
-
-			task.Request.State = TextureRequestState.Progress;
-			// Find the first missing packet in the download
-			short packet = 0;
-			synchronized (task.Request)
+			for (TaskInfo task : started)
 			{
-				if (task.PacketsSeen != null && task.PacketsSeen.size() > 0)
+				task.Request.State = TextureRequestState.Progress;
+				// Find the first missing packet in the download
+				short packet = 0;
+				synchronized (task.Request)
 				{
-					packet = GetFirstMissingPacket(task.PacketsSeen);
+					if (task.PacketsSeen != null && task.PacketsSeen.size() > 0)
+					{
+						packet = GetFirstMissingPacket(task.PacketsSeen);
+					}
 				}
-			}
 
-			// Request the texture
-			try
-			{
-				RequestImage(task.Request.ItemID, task.Request.ImageType, task.Request.Priority, task.Request.DiscardLevel, packet);
-			}
-			catch (Exception e)
-			{
-			}
-
-			// Set starting time
-			task.Request.TimeSinceLastPacket = 0;
+				// Set starting time
+				task.LastPacketTime = System.currentTimeMillis();
+				task.Request.TimeSinceLastPacket = 0;
 
-			// Don't release this worker slot until texture is downloaded or
-			// timeout occurs
-			Boolean timeout;
-			try
-			{
-				timeout = task.TimeoutEvent.waitOne(-1);
-				if (timeout == null || !timeout)
+				// Request the texture
+				try
 				{
-					// Timed out
-					Logger.Log("Worker " + task.RequestSlot + " timeout waiting for texture " + task.Request.ItemID
-							+ " to download got " + task.Request.Transferred + " of " + task.Request.Size,
-							LogLevel.Warning);
-
-					RemoveTransfer(task.Request.ItemID);
-
-					task.Request.State = TextureRequestState.Timeout;
-					task.Request.callbacks.dispatch(task.Request);
-					_Client.Assets
-							.FireImageProgressEvent(task.Request.ItemID, task.Request.Transferred, task.Request.Size);
+					RequestImage(task.Request.ItemID, task.Request.ImageType, task.Request.Priority, task.Request.DiscardLevel, packet);
+				}
+				catch (Exception ex)
+				{
+					Logger.Log("Failed to request texture " + task.Request.ItemID, LogLevel.Warning, _Client, ex);
 				}
-			}
-			catch (InterruptedException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-
-			// Free up this download slot
-			synchronized (_ThreadRequests)
-			{
-				_ThreadRequests[task.RequestSlot] = null;
 			}
 		}
 	}
@@ -727,18 +713,12 @@ public class TexturePipeline implements PacketCallback
 		TaskInfo task = GetTransferValue(imageNotFoundData.ID);
 		if (task != null)
 		{
-			// cancel active request and free up the threadpool slot
-			if (task.Request.State.equals(TextureRequestState.Progress))
-			{
-				task.TimeoutEvent.set(true);
-			}
-
-			RemoveTransfer(imageNotFoundData.ID);
+			// cancel active request and free up the download slot
+			removeTask(task);
 
 			// fire callback to inform the caller
 			task.Request.State = TextureRequestState.NotFound;
 			task.Request.callbacks.dispatch(task.Request);
-			task.TimeoutEvent.set(true);
 		}
 		else
 		{
@@ -747,8 +727,9 @@ public class TexturePipeline implements PacketCallback
 		}
 	}
 
-	private boolean processDelayedData(ImageDownload download, DelayedTransfer data)
+	private boolean processDelayedData(TaskInfo task, DelayedTransfer data)
 	{
+		ImageDownload download = task.Request;
 		while (data != null)
 		{
 			System.arraycopy(data.Data, 0, download.AssetData, download.Transferred, data.Data.length);
@@ -764,10 +745,7 @@ public class TexturePipeline implements PacketCallback
 			
 			if (download.State != TextureRequestState.Progress)
 			{
-				synchronized (_TexTransfers)
-				{
-					_TexTransfers.remove(download.ItemID);
-				}
+				removeTask(task);
 				download.delayed.clear();
 
 				download.Success = download.State == TextureRequestState.Finished;
@@ -819,7 +797,7 @@ public class TexturePipeline implements PacketCallback
 		}
 
 		// reset the timeout interval since we got data
-		task.Request.TimeSinceLastPacket = 0;
+		task.LastPacketTime = System.currentTimeMillis();
 
 		if (task.Request.Size == 0)
 		{
@@ -828,7 +806,7 @@ public class TexturePipeline implements PacketCallback
 			task.Request.Size = data.ImageID.Size;
 			task.Request.AssetData = new byte[task.Request.Size];
 
-			processDelayedData(task.Request, _Client.Assets.new DelayedTransfer(StatusCode.OK, data.ImageData.getData()));
+			processDelayedData(task, _Client.Assets.new DelayedTransfer(StatusCode.OK, data.ImageData.getData()));
 		}
 	}
 
@@ -859,9 +837,9 @@ public class TexturePipeline implements PacketCallback
 			}
 			else
 			{
-				processDelayedData(task.Request, info);
+				processDelayedData(task, info);
 			}
-			task.Request.TimeSinceLastPacket = 0;
+			task.LastPacketTime = System.currentTimeMillis();
 		}
 	}
 
@@ -880,11 +858,42 @@ public class TexturePipeline implements PacketCallback
 		}
 	}
 
-	private boolean RemoveTransfer(UUID textureID)
+	/**
+	 * Removes a request from the pipeline, freeing its download slot for the
+	 * next pending request
+	 * 
+	 * @param task The request to remove
+	 * @return true if the request was still in the pipeline
+	 */
+	private boolean removeTask(TaskInfo task)
 	{
+		boolean removed = false;
+		ArrayList<ImageDownload> waiting = null;
 		synchronized (_TexTransfers)
 		{
-			return _TexTransfers.remove(textureID) != null;
+			if (_TexTransfers.get(task.Request.ItemID) == task)
+			{
+				_TexTransfers.remove(task.Request.ItemID);
+				removed = true;
+				waiting = task.Waiting;
+				task.Waiting = null;
+			}
+			if (!_ActiveTasks.remove(task))
+			{
+				_PendingTasks.remove(task);
+			}
+		}
+		// Later requests for the texture start a new download
+		_Transfers.remove(task.Request);
+
+		if (waiting != null)
+		{
+			for (ImageDownload request : waiting)
+			{
+				RequestTexture(request);
+			}
 		}
+		startPendingTasks();
+		return removed;
 	}
 }
@@ -0,0 +1,334 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.assets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import libomv.assets.AssetItem.AssetType;
+import libomv.assets.AssetManager.Transfer;
+import libomv.types.UUID;
+import libomv.utils.Logger;
+import libomv.utils.Logger.LogLevel;
+
+/**
+ * The downloads in flight, shared by the UDP and HTTP transports. Concurrent
+ * requests for the same asset are coalesced into one transfer whose callbacks
+ * fan the result out to every requester. A transfer is identified by the asset
+ * ID, the asset type, the kind of transfer and the discard level, and a request
+ * joins any transfer fetching at least as much of the asset as it asks for.
+ *
+ * Every request holds a reference on its transfer. Releasing a reference only
+ * aborts the transfer when it was the last one, so repeated requests for the
+ * same asset from several places cost one download no matter which of them is
+ * cancelled.
+ *
+ * The registry returned by <code>getShared()</code> is used by all clients in
+ * the JVM. Each transfer is carried by the client that started it. Transfers
+ * over HTTP are marked shared and can be joined by any client, while a UDP
+ * transfer runs over the circuit of its carrier and is only joined by requests
+ * of the same client.
+ */
+public class TransferRegistry
+{
+	private static class Entry
+	{
+		final Transfer transfer;
+		final AssetType type;
+		final int discardLevel;
+		// The client running the transport of the transfer
+		final Object carrier;
+		// Whether other clients than the carrier can join
+		boolean shared;
+		// References held by each requesting client, and their sum
+		final IdentityHashMap<Object, Integer> requesters = new IdentityHashMap<Object, Integer>(2);
+		int references;
+		// Stops the transport currently carrying the transfer
+		Runnable abort;
+
+		Entry(Transfer transfer, AssetType type, int discardLevel, Object carrier, boolean shared)
+		{
+			this.transfer = transfer;
+			this.type = type;
+			this.discardLevel = discardLevel;
+			this.carrier = carrier;
+			this.shared = shared;
+			reference(carrier);
+		}
+
+		void reference(Object requester)
+		{
+			Integer count = requesters.get(requester);
+			requesters.put(requester, count == null ? 1 : count + 1);
+			references++;
+		}
+	}
+
+	private static final TransferRegistry _Shared = new TransferRegistry();
+
+	/**
+	 * @return the registry shared by all clients in this JVM
+	 */
+	public static TransferRegistry getShared()
+	{
+		return _Shared;
+	}
+
+	private final HashMap<UUID, ArrayList<Entry>> _Entries = new HashMap<UUID, ArrayList<Entry>>();
+	private final IdentityHashMap<Transfer, Entry> _Transfers = new IdentityHashMap<Transfer, Entry>();
+
+	/**
+	 * Join a transfer in flight and take a reference on it
+	 *
+	 * @param assetID The asset to download
+	 * @param type The type of the asset
+	 * @param discardLevel The number of resolution levels the requester can do without
+	 * @param clazz The kind of transfer
+	 * @param requester The client requesting the asset
+	 * @return The transfer to add the callback of the request to, or null if a
+	 *         new transfer needs to be started and added
+	 */
+	public synchronized <T extends Transfer> T join(UUID assetID, AssetType type, int discardLevel, Class<T> clazz,
+			Object requester)
+	{
+		ArrayList<Entry> entries = _Entries.get(assetID);
+		if (entries != null)
+		{
+			for (Entry entry : entries)
+			{
+				if (entry.type == type && entry.discardLevel <= discardLevel && clazz.isInstance(entry.transfer)
+						&& (entry.shared || entry.carrier == requester))
+				{
+					entry.reference(requester);
+					return clazz.cast(entry.transfer);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add a new transfer, holding the reference of the request starting it
+	 *
+	 * @param transfer The transfer, identified by its ItemID
+	 * @param type The type of the asset
+	 * @param discardLevel The number of resolution levels the transfer leaves out
+	 * @param carrier The client starting the transfer, which runs its transport
+	 * @param shared Whether requests of other clients can join the transfer
+	 */
+	public synchronized void add(Transfer transfer, AssetType type, int discardLevel, Object carrier, boolean shared)
+	{
+		Entry entry = new Entry(transfer, type, discardLevel, carrier, shared);
+		_Transfers.put(transfer, entry);
+		ArrayList<Entry> entries = _Entries.get(transfer.ItemID);
+		if (entries == null)
+		{
+			entries = new ArrayList<Entry>(1);
+			_Entries.put(transfer.ItemID, entries);
+		}
+		entries.add(entry);
+	}
+
+	/**
+	 * Set how to stop a transfer when its last reference is released. Called
+	 * again when the transfer moves to another transport.
+	 */
+	public synchronized void setAbort(Transfer transfer, Runnable abort)
+	{
+		Entry entry = _Transfers.get(transfer);
+		if (entry != null)
+			entry.abort = abort;
+	}
+
+	/**
+	 * Allow or stop other clients joining a transfer, for instance when it
+	 * falls back from HTTP to the UDP circuit of its carrier. Requests that
+	 * already joined keep their reference.
+	 */
+	public synchronized void setShared(Transfer transfer, boolean shared)
+	{
+		Entry entry = _Transfers.get(transfer);
+		if (entry != null)
+			entry.shared = shared;
+	}
+
+	/**
+	 * @return the transfers in flight for an asset
+	 */
+	public synchronized <T extends Transfer> List<T> get(UUID assetID, Class<T> clazz)
+	{
+		ArrayList<T> transfers = new ArrayList<T>();
+		ArrayList<Entry> entries = _Entries.get(assetID);
+		if (entries != null)
+		{
+			for (Entry entry : entries)
+			{
+				if (clazz.isInstance(entry.transfer))
+					transfers.add(clazz.cast(entry.transfer));
+			}
+		}
+		return transfers;
+	}
+
+	public synchronized boolean contains(Transfer transfer)
+	{
+		return _Transfers.containsKey(transfer);
+	}
+
+	/**
+	 * Release the reference of one request, aborting the transfer if no other
+	 * request still waits for it
+	 *
+	 * @param transfer The transfer the request joined
+	 * @param requester The client that made the request
+	 * @return true if the transfer was aborted
+	 */
+	public boolean release(Transfer transfer, Object requester)
+	{
+		return release(transfer, requester, 1);
+	}
+
+	/**
+	 * Release all references of one client, aborting the transfer if no
+	 * request of another client still waits for it
+	 *
+	 * @param transfer The transfer the requests joined
+	 * @param requester The client that made the requests
+	 * @return true if the transfer was aborted
+	 */
+	public boolean abort(Transfer transfer, Object requester)
+	{
+		return release(transfer, requester, Integer.MAX_VALUE);
+	}
+
+	private boolean release(Transfer transfer, Object requester, int count)
+	{
+		Runnable abort;
+		synchronized (this)
+		{
+			Entry entry = _Transfers.get(transfer);
+			if (entry == null)
+				return false;
+			Integer held = entry.requesters.get(requester);
+			if (held == null)
+				return false;
+			count = Math.min(count, held);
+			if (count < held)
+				entry.requesters.put(requester, held - count);
+			else
+				entry.requesters.remove(requester);
+			entry.references -= count;
+			if (entry.references > 0)
+				return false;
+			remove(transfer);
+			abort = entry.abort;
+		}
+		run(transfer, abort);
+		return true;
+	}
+
+	/**
+	 * Drop everything of a client that shuts down. Its references are
+	 * released, and the transfers it carries are aborted since their
+	 * transport goes away, even if other clients still wait for them.
+	 *
+	 * @param client The client shutting down
+	 */
+	public void abortAll(Object client)
+	{
+		ArrayList<Entry> aborted = new ArrayList<Entry>();
+		synchronized (this)
+		{
+			for (Entry entry : new ArrayList<Entry>(_Transfers.values()))
+			{
+				Integer held = entry.requesters.remove(client);
+				if (held != null)
+					entry.references -= held;
+				if (entry.carrier == client || entry.references <= 0)
+				{
+					remove(entry.transfer);
+					aborted.add(entry);
+				}
+			}
+		}
+		for (Entry entry : aborted)
+		{
+			run(entry.transfer, entry.abort);
+		}
+	}
+
+	private static void run(Transfer transfer, Runnable abort)
+	{
+		if (abort != null)
+		{
+			try
+			{
+				abort.run();
+			}
+			catch (Exception ex)
+			{
+				Logger.Log("Failed to abort transfer for " + transfer.ItemID, LogLevel.Warning, ex);
+			}
+		}
+	}
+
+	/**
+	 * Remove a transfer that completed, failed or was aborted, later requests
+	 * for the asset start a new transfer
+	 *
+	 * @return true if the transfer was still registered
+	 */
+	public synchronized boolean remove(Transfer transfer)
+	{
+		Entry entry = _Transfers.remove(transfer);
+		if (entry == null)
+			return false;
+		ArrayList<Entry> entries = _Entries.get(transfer.ItemID);
+		if (entries != null)
+		{
+			entries.remove(entry);
+			if (entries.isEmpty())
+				_Entries.remove(transfer.ItemID);
+		}
+		return true;
+	}
+
+	public synchronized int getCount()
+	{
+		return _Transfers.size();
+	}
+
+	public synchronized void clear()
+	{
+		_Entries.clear();
+		_Transfers.clear();
+	}
+}
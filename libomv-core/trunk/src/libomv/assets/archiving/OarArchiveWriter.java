@@ -0,0 +1,277 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.assets.archiving;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import libomv.ParcelManager.Parcel;
+import libomv.Simulator;
+import libomv.assets.AssetItem.AssetType;
+import libomv.assets.AssetManager;
+import libomv.assets.AssetPrim;
+import libomv.assets.AssetPrim.PrimObject;
+import libomv.assets.BulkAssetFetcher;
+import libomv.assets.BulkAssetFetcher.AssetSink;
+import libomv.assets.BulkAssetFetcher.FetchProgressCallbackArgs;
+import libomv.types.UUID;
+import libomv.utils.Callback;
+import libomv.utils.Helpers;
+import libomv.utils.Logger;
+
+/**
+ * Writes an OAR file in one pass. Every part of the region is serialized
+ * straight into the compressed tar stream as soon as it is available, without
+ * going through a directory on disk. All methods can be called from any
+ * thread, entries are written one at a time.
+ *
+ * The archive is compressed in blocks: whenever at least BLOCK_SIZE bytes of
+ * entries were written, the current gzip member is finished and a new one
+ * started. The result is a normal gzip file, but a {@link TarArchiveIndex} can
+ * read single entries from it by only inflating the block they are in.
+ */
+public class OarArchiveWriter
+{
+    private static final String ARCHIVE_XML = "<?xml version=\"1.0\" encoding=\"utf-16\"?>\n<archive major_version=\"0\" minor_version=\"1\" />";
+    /* Uncompressed size after which a new gzip member is started */
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    /* Concatenated gzip members, a new member is started on request */
+    private static class BlockGZIPOutputStream extends OutputStream
+    {
+        private final OutputStream m_out;
+        private GZIPOutputStream m_gzip;
+        private long m_blockSize;
+
+        public BlockGZIPOutputStream(OutputStream out) throws IOException
+        {
+            m_out = out;
+            m_gzip = new GZIPOutputStream(m_out, 64 * 1024);
+        }
+
+        public void endBlock(long minSize) throws IOException
+        {
+            if (m_blockSize >= minSize)
+            {
+                m_gzip.finish();
+                m_gzip = new GZIPOutputStream(m_out, 64 * 1024);
+                m_blockSize = 0;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            m_gzip.write(b);
+            m_blockSize++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            m_gzip.write(b, off, len);
+            m_blockSize += len;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            m_gzip.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            m_gzip.finish();
+            m_out.close();
+        }
+    }
+
+    private final BlockGZIPOutputStream m_stream;
+    private final TarArchiveWriter m_archive;
+    private final Set<UUID> m_assets = new HashSet<UUID>();
+
+    public OarArchiveWriter(File fileName) throws IOException
+    {
+        this(new FileOutputStream(fileName));
+    }
+
+    public OarArchiveWriter(OutputStream stream) throws IOException
+    {
+        m_stream = new BlockGZIPOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+        m_archive = new TarArchiveWriter(m_stream);
+        writeEntry("archive.xml", ARCHIVE_XML.getBytes(Helpers.ASCII_ENCODING));
+    }
+
+    private void writeEntry(String filePath, byte[] data) throws IOException
+    {
+        m_archive.writeFile(filePath, data);
+        m_stream.endBlock(BLOCK_SIZE);
+    }
+
+    /**
+     * Add an asset, assets already in the archive are skipped
+     *
+     * @return true if the asset was added
+     */
+    public synchronized boolean writeAsset(UUID assetID, AssetType type, byte[] data) throws IOException
+    {
+        if (m_assets.contains(assetID))
+            return false;
+
+        String extension = ArchiveConstants.getExtensionForType(type);
+        if (extension == null)
+        {
+            Logger.Log(String.format("Unrecognized asset type %s with uuid %s. This asset will be saved but unable to be reloaded",
+                type, assetID), Logger.LogLevel.Warning);
+            extension = Helpers.EmptyString;
+        }
+        writeEntry(ArchiveConstants.ASSETS_PATH + assetID.toString() + extension, data);
+        m_assets.add(assetID);
+        return true;
+    }
+
+    /**
+     * Download assets and add them to the archive as they arrive
+     *
+     * @param manager The asset manager to download the assets with
+     * @param type The type of the assets
+     * @param assets The assets to add
+     * @param progress Called whenever an asset was added or failed, can be null
+     * @return The number of assets added
+     */
+    public int writeAssets(AssetManager manager, AssetType type, Set<UUID> assets, Callback<FetchProgressCallbackArgs> progress) throws InterruptedException
+    {
+        Set<UUID> missing = new HashSet<UUID>();
+        synchronized (this)
+        {
+            for (UUID assetID : assets)
+            {
+                if (!m_assets.contains(assetID))
+                    missing.add(assetID);
+            }
+        }
+
+        int written = new BulkAssetFetcher(manager).fetch(type, missing, new AssetSink()
+        {
+            @Override
+            public void write(UUID assetID, AssetType type, byte[] data) throws IOException
+            {
+                writeAsset(assetID, type, data);
+            }
+        }, progress);
+        Logger.Log("Added " + written + " of " + assets.size() + " assets to the archive", Logger.LogLevel.Info);
+        return written;
+    }
+
+    public synchronized void writePrim(AssetPrim prim) throws IOException
+    {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(stream, Helpers.UTF8_ENCODING);
+        OarFile.SavePrim(prim, writer);
+        writer.close();
+        writeEntry(ArchiveConstants.OBJECTS_PATH + "Primitive_" + prim.getParent().ID + ".xml", stream.toByteArray());
+    }
+
+    /**
+     * Add linksets and the textures they use
+     *
+     * @param manager The asset manager to download the textures with
+     * @param prims The linksets to add
+     * @param progress Called whenever a texture was added or failed, can be null
+     */
+    public void writePrims(AssetManager manager, List<AssetPrim> prims, Callback<FetchProgressCallbackArgs> progress) throws IOException, InterruptedException
+    {
+        Map<UUID, UUID> textureList = new HashMap<UUID, UUID>();
+        for (AssetPrim assetPrim : prims)
+        {
+            writePrim(assetPrim);
+
+            OarFile.CollectTextures(assetPrim.getParent(), textureList);
+            List<PrimObject> children = assetPrim.getChildren();
+            if (children != null)
+            {
+                for (PrimObject child : children)
+                    OarFile.CollectTextures(child, textureList);
+            }
+        }
+        writeAssets(manager, AssetType.Texture, textureList.keySet(), progress);
+    }
+
+    public synchronized void writeTerrain(Simulator sim) throws IOException
+    {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(256 * 256 * 4);
+        OarFile.SaveTerrainStream(stream, sim);
+        writeEntry(ArchiveConstants.TERRAINS_PATH + sim.getName() + ".r32", stream.toByteArray());
+    }
+
+    public synchronized void writeParcels(Simulator sim) throws IOException, XmlPullParserException
+    {
+        for (Parcel parcel : sim.Parcels.values())
+        {
+            UUID globalID = UUID.GenerateUUID();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(stream, Helpers.UTF8_ENCODING);
+            OarFile.SerializeParcel(parcel, globalID, writer);
+            writer.close();
+            writeEntry(ArchiveConstants.LANDDATA_PATH + globalID + ".xml", stream.toByteArray());
+        }
+    }
+
+    public synchronized void writeRegionSettings(Simulator sim) throws IOException, XmlPullParserException
+    {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(stream, Helpers.UTF8_ENCODING);
+        OarFile.GetRegionSettings(sim).toXML(writer);
+        writer.close();
+        writeEntry(ArchiveConstants.SETTINGS_PATH + sim.getName() + ".xml", stream.toByteArray());
+    }
+
+    /**
+     * Finish the archive and close the underlying stream
+     */
+    public synchronized void close() throws IOException
+    {
+        m_archive.close();
+    }
+}
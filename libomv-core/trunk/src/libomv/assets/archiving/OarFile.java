@@ -44,7 +44,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.function.Consumer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -65,9 +73,11 @@ import libomv.assets.AssetItem;
 import libomv.assets.AssetItem.AssetType;
 import libomv.assets.AssetManager;
 import libomv.assets.AssetManager.AssetDownload;
-import libomv.assets.AssetManager.ImageDownload;
 import libomv.assets.AssetManager.SourceType;
 import libomv.assets.AssetPrim.PrimObject;
+import libomv.assets.BulkAssetFetcher;
+import libomv.assets.BulkAssetFetcher.AssetSink;
+import libomv.assets.BulkAssetFetcher.FetchProgressCallbackArgs;
 import libomv.primitives.TextureEntry.TextureEntryFace;
 import libomv.types.UUID;
 import libomv.utils.Callback;
@@ -135,94 +145,249 @@ public class OarFile
     }
     // #region Archive Loading
 
-    public static void UnpackageArchive(File filename, Callback<AssetLoadedData> assetCallback, Callback<TerrainLoadedData> terrainCallback,
-        Callback<SceneObjectLoadedData> objectCallback, Callback<SettingsLoadedData> settingsCallback) throws FileNotFoundException
-    {
-        int successfulAssetRestores = 0;
-        int failedAssetRestores = 0;
-
-        long fileLength = filename.length();
-        TarArchiveReader archive = null;
-        GZIPInputStream loadStream = null;
-        PushbackInputStream pushStream = null;
-        InputStream fileStream = new FileInputStream(filename);
-       	try
-       	{
-            loadStream = new GZIPInputStream(fileStream);
-            if (loadStream != null)
+    /* Entries decoded ahead of their delivery per worker thread, bounds the memory used by the pipeline */
+    private static final int DECODE_AHEAD = 4;
+
+    /**
+     * Load an OAR file and report its content to the callbacks. The archive is
+     * decompressed and split into entries by a reader thread, the entries are
+     * decoded by a pool of worker threads and the results are delivered to the
+     * callbacks on the calling thread, in archive order. Bounded queues between
+     * the stages keep the reader from running too far ahead.
+     */
+    public static void UnpackageArchive(File filename, final Callback<AssetLoadedData> assetCallback, final Callback<TerrainLoadedData> terrainCallback,
+        final Callback<SceneObjectLoadedData> objectCallback, final Callback<SettingsLoadedData> settingsCallback) throws FileNotFoundException
+    {
+        final long fileLength = filename.length();
+        final InputStream fileStream = new FileInputStream(filename);
+        final int[] restores = new int[2];
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService decoders = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "OarFile Decoder " + ++count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Decoded entries in archive order, an entry without result marks the end of the archive
+        final BlockingQueue<Future<Runnable>> entries = new ArrayBlockingQueue<Future<Runnable>>(threads * DECODE_AHEAD);
+        final Future<Runnable> endOfArchive = new FutureTask<Runnable>(new Callable<Runnable>()
+        {
+            @Override
+            public Runnable call()
+            {
+                return null;
+            }
+        });
+
+        Thread reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                GZIPInputStream loadStream = null;
+                PushbackInputStream pushStream = null;
+                TarArchiveReader archive = null;
+                try
+                {
+                    loadStream = new GZIPInputStream(fileStream, 64 * 1024);
+                    pushStream = new PushbackInputStream(loadStream);
+                    archive = new TarArchiveReader(pushStream);
+
+                    TarArchiveReader.TarHeader header = archive.new TarHeader();
+                    byte[] data;
+                    while ((data = archive.ReadEntry(header)) != null)
+                    {
+                        Callable<Runnable> decoder = DecodeEntry(header.FilePath, data, pushStream.getBytePosition(), fileLength,
+                            assetCallback, terrainCallback, objectCallback, settingsCallback, restores);
+                        if (decoder != null)
+                            entries.put(decoders.submit(decoder));
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    return;
+                }
+                catch (Exception ex)
+                {
+                    Logger.Log("[OarFile] Error loading OAR file: ", Logger.LogLevel.Error, ex);
+                }
+                finally
+                {
+                    try
+                    {
+                        if (archive != null)
+                            archive.close();
+                        else if (pushStream != null)
+                            pushStream.close();
+                        else if (loadStream != null)
+                            loadStream.close();
+                        else
+                            fileStream.close();
+                    }
+                    catch (IOException ex)
+                    {}
+                }
+
+                try
+                {
+                    entries.put(endOfArchive);
+                }
+                catch (InterruptedException ex)
+                {}
+            }
+        }, "OarFile Reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        try
+        {
+            Future<Runnable> entry;
+            while ((entry = entries.take()) != endOfArchive)
             {
-                pushStream = new PushbackInputStream(loadStream);
-                if (pushStream != null)
+                try
                 {
-                  	archive = new TarArchiveReader(pushStream);
-
-                  	TarArchiveReader.TarHeader header = archive.new TarHeader();
-                   	byte [] data;
-
-                   	while ((data = archive.ReadEntry(header)) != null)
-                   	{
-                   		if (header.FilePath.startsWith(ArchiveConstants.OBJECTS_PATH))
-                   		{
-                   			// Deserialize the XML bytes
-                   			if (objectCallback != null)
-                                LoadObjects(data, objectCallback, pushStream.getBytePosition(), fileLength);
+                    Runnable delivery = entry.get();
+                    if (delivery != null)
+                        delivery.run();
+                }
+                catch (ExecutionException ex)
+                {
+                    Logger.Log("[OarFile] Failed to decode archive entry: ", Logger.LogLevel.Warning, ex.getCause());
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Logger.Log("[OarFile] Loading OAR file interrupted", Logger.LogLevel.Warning);
+        }
+        finally
+        {
+            // Stops the reader if we got here early
+            reader.interrupt();
+            decoders.shutdownNow();
+        }
+
+        Logger.Log(String.format("[OarFile]: Restored " + restores[0] + " assets"), Logger.LogLevel.Debug);
+        if (restores[1] > 0)
+            Logger.Log(String.format("[OarFile]: Failed to load " + restores[1] + " assets"), Logger.LogLevel.Warning);
+    }
+
+    /*
+     * Returns a task decoding an archive entry on a worker thread, the task in
+     * turn returns the delivery of the result to the callback, which is run on
+     * the calling thread in archive order. Returns null for entries nobody
+     * listens to.
+     */
+    private static Callable<Runnable> DecodeEntry(final String filePath, final byte[] data, final long bytesRead, final long totalBytes,
+        final Callback<AssetLoadedData> assetCallback, final Callback<TerrainLoadedData> terrainCallback,
+        final Callback<SceneObjectLoadedData> objectCallback, final Callback<SettingsLoadedData> settingsCallback, final int[] restores)
+    {
+        if (filePath.startsWith(ArchiveConstants.OBJECTS_PATH) && objectCallback != null)
+        {
+            return new Callable<Runnable>()
+            {
+                @Override
+                public Runnable call() throws Exception
+                {
+                    final List<AssetPrim> linksets = DecodeObjects(data);
+                    return new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            for (AssetPrim linkset : linksets)
+                                objectCallback.callback(new OarFile().new SceneObjectLoadedData(linkset, bytesRead, totalBytes));
                         }
-                        else if (header.FilePath.startsWith(ArchiveConstants.ASSETS_PATH))
-                        {  
-                            if (assetCallback != null)
+                    };
+                }
+            };
+        }
+        else if (filePath.startsWith(ArchiveConstants.ASSETS_PATH) && assetCallback != null)
+        {
+            return new Callable<Runnable>()
+            {
+                @Override
+                public Runnable call()
+                {
+                    final AssetItem asset = DecodeAsset(filePath, data);
+                    return new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            if (asset != null)
+                            {
+                                assetCallback.callback(new OarFile().new AssetLoadedData(asset, bytesRead, totalBytes));
+                                restores[0]++;
+                            }
+                            else
                             {
-                           		if (LoadAsset(header.FilePath, data, assetCallback, pushStream.getBytePosition(), fileLength))
-                           			successfulAssetRestores++;
-                           		else
-                           			failedAssetRestores++;
+                                restores[1]++;
                             }
                         }
-                        else if (header.FilePath.startsWith(ArchiveConstants.TERRAINS_PATH))
+                    };
+                }
+            };
+        }
+        else if (filePath.startsWith(ArchiveConstants.TERRAINS_PATH) && terrainCallback != null)
+        {
+            return new Callable<Runnable>()
+            {
+                @Override
+                public Runnable call()
+                {
+                    final float[][] terrain = DecodeTerrain(filePath, data);
+                    if (terrain == null)
+                        return null;
+                    return new Runnable()
+                    {
+                        @Override
+                        public void run()
                         {
-                          	if (terrainCallback != null)
-                           		LoadTerrain(header.FilePath, data, terrainCallback, pushStream.getBytePosition(), fileLength);
+                            terrainCallback.callback(new OarFile().new TerrainLoadedData(terrain, bytesRead, totalBytes));
                         }
-                        else if (header.FilePath.startsWith(ArchiveConstants.SETTINGS_PATH))
+                    };
+                }
+            };
+        }
+        else if (filePath.startsWith(ArchiveConstants.SETTINGS_PATH) && settingsCallback != null)
+        {
+            return new Callable<Runnable>()
+            {
+                @Override
+                public Runnable call()
+                {
+                    final RegionSettings settings = DecodeRegionSettings(filePath, data);
+                    if (settings == null)
+                        return null;
+                    // Parse the region name out of the filename
+                    final String regionName = FilenameUtils.removeExtension(FilenameUtils.getName(filePath));
+                    return new Runnable()
+                    {
+                        @Override
+                        public void run()
                         {
-                          	if (settingsCallback != null)
-                           		LoadRegionSettings(header.FilePath, data, settingsCallback);
+                            settingsCallback.callback(new OarFile().new SettingsLoadedData(regionName, settings));
                         }
-                   	}
+                    };
                 }
-        	}
-       	}
-       	catch (Exception ex)
-       	{
-       		Logger.Log("[OarFile] Error loading OAR file: ", Logger.LogLevel.Error, ex);
-       		return;
-       	}
-       	finally
-       	{
-       		try
-       		{
-      			if (archive != null)
-       				archive.close();
-       			if (pushStream != null)
-       				pushStream.close();
-       			if (loadStream != null)
-       				pushStream.close();
-       			if (fileStream != null)
-        			fileStream.close();
-       		}
-       		catch (IOException ex)
-       		{}
-       	}
-        
-        Logger.Log(String.format("[OarFile]: Restored " + successfulAssetRestores + " assets"), Logger.LogLevel.Debug);
-        if (failedAssetRestores > 0)
-            Logger.Log(String.format("[OarFile]: Failed to load " + failedAssetRestores + " assets"), Logger.LogLevel.Warning);
+            };
+        }
+        return null;
     }
 
-    private static boolean LoadAsset(String assetPath, byte[] data, Callback<AssetLoadedData> assetCallback, long bytesRead, long totalBytes)
+    static AssetItem DecodeAsset(String assetPath, byte[] data)
     {
         // Right now we're nastily obtaining the UUID from the filename
     	if (!assetPath.startsWith(ArchiveConstants.ASSETS_PATH))
-    		return false;
+    		return null;
     	
     	String fileName = assetPath.substring(ArchiveConstants.ASSETS_PATH.length());
         String extension = Helpers.getFileExtension(fileName, ArchiveConstants.ASSET_EXTENSION_SEPARATOR);
@@ -232,7 +397,7 @@ public class OarFile
             Logger.Log(String.format(
                 "[OarFile]: Could not find extension information in asset path %s since it's missing the separator %c. Skipping",
                 assetPath, ArchiveConstants.ASSET_EXTENSION_SEPARATOR), Logger.LogLevel.Warning);
-            return false;
+            return null;
         }
 
         RefObject<UUID> uuid = new RefObject<UUID>(null);
@@ -242,40 +407,27 @@ public class OarFile
         {
             AssetItem asset = AssetManager.CreateAssetItem(assetType, uuid.argvalue, data);
             if (asset != null)
-            {
-                assetCallback.callback(new OarFile().new AssetLoadedData(asset, bytesRead, totalBytes));
-                return true;
-            }
+                return asset;
         }
         Logger.Log("[OarFile] Failed to load asset", Logger.LogLevel.Warning);
-        return false;
+        return null;
     }
 
-    private static boolean LoadRegionSettings(String filePath, byte[] data, Callback<SettingsLoadedData> settingsCallback)
+    private static RegionSettings DecodeRegionSettings(String filePath, byte[] data)
     {
-        RegionSettings settings = null;
-        boolean loaded = false;
-
         try
         {
             InputStream stream = new ByteArrayInputStream(data);
-                settings = RegionSettings.fromStream(stream, Helpers.ASCII_ENCODING);
-            loaded = true;
+            return RegionSettings.fromStream(stream, Helpers.ASCII_ENCODING);
         }
         catch (Exception ex)
         {
             Logger.Log("[OarFile] Failed to parse region settings file " + filePath + ": ", Logger.LogLevel.Warning, ex);
         }
-
-        // Parse the region name out of the filename
-        String regionName = FilenameUtils.removeExtension(FilenameUtils.getName(filePath.toString()));
-        if (loaded)
-            settingsCallback.callback(new OarFile().new SettingsLoadedData(regionName, settings));
-
-        return loaded;
+        return null;
     }
 
-    private static boolean LoadTerrain(String filePath, byte[] data, Callback<TerrainLoadedData> terrainCallback, long bytesRead, long totalBytes)
+    private static float[][] DecodeTerrain(String filePath, byte[] data)
     {
         float[][] terrain = new float[256][256];
         boolean loaded = false;
@@ -324,14 +476,18 @@ public class OarFile
         else
             Logger.Log("[OarFile] Unrecognized terrain format in " + filePath, Logger.LogLevel.Warning);
 
-        if (loaded)
-            terrainCallback.callback(new OarFile().new TerrainLoadedData(terrain, bytesRead, totalBytes));
-
-        return loaded;
+        return loaded ? terrain : null;
     }
 
     public static void LoadObjects(byte[] objectData, Callback<SceneObjectLoadedData> objectCallback, long bytesRead, long totalBytes) throws XmlPullParserException, IOException
     {
+        for (AssetPrim linkset : DecodeObjects(objectData))
+            objectCallback.callback(new OarFile().new SceneObjectLoadedData(linkset, bytesRead, totalBytes));
+    }
+
+    static List<AssetPrim> DecodeObjects(byte[] objectData) throws XmlPullParserException, IOException
+    {
+        List<AssetPrim> linksets = new ArrayList<AssetPrim>();
         InputStream stream = new ByteArrayInputStream(objectData);
         XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
 		parser.setInput(stream, Helpers.UTF8_ENCODING);
@@ -350,19 +506,16 @@ public class OarFile
   			parser.nextTag();
             while (parser.getEventType() == XmlPullParser.START_TAG)
             {
-                AssetPrim linkset = new AssetPrim(parser);
-                if (linkset != null)
-                    objectCallback.callback(new OarFile().new SceneObjectLoadedData(linkset, bytesRead, totalBytes));
+                linksets.add(new AssetPrim(parser));
       			parser.nextTag();
             }
         }
         else
         {
-            AssetPrim linkset = new AssetPrim(parser);
-            if (linkset != null)
-                objectCallback.callback(new OarFile().new SceneObjectLoadedData(linkset, bytesRead, totalBytes));
+            linksets.add(new AssetPrim(parser));
         }
 		stream.close();
+		return linksets;
     }
 
     //#endregion Archive Loading
@@ -411,6 +564,31 @@ public class OarFile
         archive.close();
     }
 
+    /**
+     * Save a region straight into an OAR file, without writing its parts to a
+     * temporary directory first
+     *
+     * @param manager The asset manager to download the textures with
+     * @param sim The region to save
+     * @param prims The linksets to save
+     * @param fileName The OAR file to create
+     */
+    public static void SaveArchive(AssetManager manager, Simulator sim, List<AssetPrim> prims, File fileName) throws IOException, InterruptedException, XmlPullParserException
+    {
+        OarArchiveWriter archive = new OarArchiveWriter(fileName);
+        try
+        {
+            archive.writeRegionSettings(sim);
+            archive.writeTerrain(sim);
+            archive.writeParcels(sim);
+            archive.writePrims(manager, prims, null);
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
     public static void SaveTerrain(Simulator sim, File terrainPath) throws IOException, InterruptedException
     {
         if (terrainPath.exists())
@@ -423,7 +601,7 @@ public class OarFile
         stream.close();
     }
 
-    private static void SaveTerrainStream(OutputStream stream, Simulator sim) throws IOException
+    static void SaveTerrainStream(OutputStream stream, Simulator sim) throws IOException
     {
         int x, y;
         for (y = 0; y < 256; y++)
@@ -454,6 +632,18 @@ public class OarFile
     private static void SerializeParcel(Parcel parcel, UUID globalID, File fileName) throws IllegalArgumentException, IllegalStateException, IOException, XmlPullParserException
     {
         Writer fileWriter = new FileWriter(fileName);
+        try
+        {
+            SerializeParcel(parcel, globalID, fileWriter);
+        }
+        finally
+        {
+            fileWriter.close();
+        }
+    }
+
+    static void SerializeParcel(Parcel parcel, UUID globalID, Writer fileWriter) throws IllegalArgumentException, IllegalStateException, IOException, XmlPullParserException
+    {
 		XmlSerializer writer = XmlPullParserFactory.newInstance().newSerializer();
    		writer.setProperty("http://xmlpull.org/v1/doc/properties.html#serializer-indentation", "  ");
 		writer.setOutput(fileWriter);
@@ -511,8 +701,7 @@ public class OarFile
         writeInt(writer, "OtherCleanTime", parcel.OtherCleanTime);
 
         writer.endTag(null, "LandData");
-
-        fileWriter.close();
+        writer.flush();
     }
 
     public static void SaveRegionSettings(Simulator sim, File settingsPath) throws IOException, InterruptedException, XmlPullParserException
@@ -523,6 +712,11 @@ public class OarFile
         settingsPath.mkdir();
         Thread.sleep(100);
 
+        GetRegionSettings(sim).toXML(new File(settingsPath, sim.getName() + ".xml"));
+    }
+
+    static RegionSettings GetRegionSettings(Simulator sim)
+    {
         RegionSettings settings = new RegionSettings();
         //settings.AgentLimit;
         settings.AllowDamage = (sim.Flags & RegionFlags.AllowDamage) == RegionFlags.AllowDamage;
@@ -552,8 +746,7 @@ public class OarFile
         settings.TerrainStartHeight11 = sim.TerrainStartHeight11;
         //settings.UseEstateSun;
         settings.WaterHeight = sim.WaterHeight;
-
-        settings.toXML(new File(settingsPath, sim.getName() + ".xml"));
+        return settings;
     }
 
     public static void SavePrims(AssetManager manager, List<AssetPrim> prims, File primsDir, File assetsPath) throws InterruptedException
@@ -648,102 +841,43 @@ public class OarFile
 
     public static void SaveAssets(AssetManager assetManager, AssetType assetType, Set<UUID> assets, File assetsPath) throws Exception
     {
-        List<UUID> remainingTextures = new ArrayList<UUID>(assets);
-        TimeoutEvent<Boolean> allReceived = new TimeoutEvent<Boolean>();
-        assets.forEach(new Consumer<UUID>()
+        SaveAssets(assetManager, assetType, assets, assetsPath, null);
+    }
+
+    /**
+     * Download a set of assets into the asset archive folder, several at a time
+     *
+     * @param assetManager The asset manager to download the assets with
+     * @param assetType The type of the assets
+     * @param assets The assets to save
+     * @param assetsPath The asset archive folder
+     * @param progress Called whenever an asset was saved or failed, can be null
+     * @return The number of assets saved
+     */
+    public static int SaveAssets(AssetManager assetManager, final AssetType assetType, Set<UUID> assets, final File assetsPath,
+    		Callback<FetchProgressCallbackArgs> progress) throws InterruptedException
+    {
+        final String extension = ArchiveConstants.getExtensionForType(assetType);
+        BulkAssetFetcher fetcher = new BulkAssetFetcher(assetManager);
+        int saved = fetcher.fetch(assetType, assets, new AssetSink()
         {
 			@Override
-			public void accept(UUID texture)
+			public void write(UUID assetID, AssetType type, byte[] data) throws IOException
 			{
-	            if (assetType.equals(AssetType.Texture))
-	            {
-	                assetManager.RequestImage(texture, new Callback<ImageDownload>()
-	                {
-	        			@Override
-	        			public boolean callback(ImageDownload transfer)
-	        			{
-	        				if (transfer.Success)
-	        				{
-	        					if (transfer.AssetData != null)
-	        					{
-	        						String extension = ArchiveConstants.getExtensionForType(assetType);
-	        						try
-	        						{
-	        							OutputStream stream = new FileOutputStream(new File(assetsPath, texture.toString() + extension));
-	        							stream.write(transfer.AssetData);
-	        							stream.close();
-	        							remainingTextures.remove(texture);
-	        							if (remainingTextures.size() == 0)
-	        								allReceived.set(true);
-	        						}
-	        						catch (IOException ex)
-	        						{}
-	        					}
-	        					else
-	        					{
-	        						System.out.println("Missing asset " + texture);
-	        					}
-	        				}
-	        				return true;
-	        			}
-	                });
-	            }
-	            else
-	            {
-	            	try
-	            	{
-	                    assetManager.RequestAsset(texture, assetType, false, new Callback<AssetDownload>()
-	                    {
-	               			@Override
-	            			public boolean callback(AssetDownload transfer)
-	            			{
-	            				if (transfer.Success)
-	            				{
-	            					if (transfer.AssetData != null)
-	            					{
-		        						String extension = ArchiveConstants.getExtensionForType(assetType);
-	            						try
-	            						{
-	            							OutputStream stream = new FileOutputStream(new File(assetsPath, texture.toString() + extension));
-	            							stream.write(transfer.AssetData);
-	            							stream.close();
-	            							remainingTextures.remove(texture);
-	            							if (remainingTextures.size() == 0)
-	            								allReceived.set(true);
-	            						}
-	               						catch (IOException ex)
-	            						{}
-	            					}
-	            					else
-	            					{
-	            						System.out.println("Missing asset " + texture);
-	            					}
-	            				}
-	            				return true;
-	            			}
-	                    });
-	            	}
-	            	catch (Exception ex)
-	            	{
-	            		
-	            	}
-	            }
-	            try
-	            {
-	            	Thread.sleep(200);
-		            if (remainingTextures.size() > 0 && remainingTextures.size() % 5 == 0)
-		                Thread.sleep(250);
-	            }
-	            catch (Exception ex)
-	            {
-	            	
-	            }
-			}	
-        });
-
-        allReceived.waitOne(5000 + 350 * assets.size());
+				OutputStream stream = new FileOutputStream(new File(assetsPath, assetID.toString() + extension));
+				try
+				{
+					stream.write(data);
+				}
+				finally
+				{
+					stream.close();
+				}
+			}
+        }, progress);
 
-        Logger.Log("Copied " + (assets.size() - remainingTextures.size()) + " textures to the asset archive folder", Logger.LogLevel.Info);
+        Logger.Log("Copied " + saved + " of " + assets.size() + " assets to the asset archive folder", Logger.LogLevel.Info);
+        return saved;
     }
 
     public static void SaveSimAssets(AssetManager assetManager, AssetType assetType, UUID assetID, UUID itemID, UUID primID, File assetsPath) throws Exception
@@ -785,19 +919,28 @@ public class OarFile
     static void SavePrim(AssetPrim prim, File filename) throws IOException
     {
     	Writer writer = new FileWriter(filename);
+        try
+        {
+            SavePrim(prim, writer);
+        }
+        finally
+        {
+           	writer.close();	
+        }
+    }
+
+    static void SavePrim(AssetPrim prim, Writer writer) throws IOException
+    {
         try
         {
             prim.writeXml(writer, 4);
+            writer.flush();
         }
         catch (Exception ex)
         {
             Logger.Log("Failed saving linkset: ", Logger.LogLevel.Error, ex);
             throw new IOException("failed saving linkset", ex);
         }
-        finally
-        {
-           	writer.close();	
-        }
     }
 
     static void writeBoolean(XmlSerializer writer, String tag, boolean value) throws IllegalArgumentException, IllegalStateException, IOException
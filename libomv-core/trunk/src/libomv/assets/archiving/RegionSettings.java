@@ -196,6 +196,18 @@ public class RegionSettings
     public void toXML(File filename) throws IOException, XmlPullParserException
     {
         Writer fileWriter = new FileWriter(filename);
+        try
+        {
+            toXML(fileWriter);
+        }
+        finally
+        {
+            fileWriter.close();
+        }
+    }
+
+    public void toXML(Writer fileWriter) throws IOException, XmlPullParserException
+    {
 		XmlSerializer writer = XmlPullParserFactory.newInstance().newSerializer();
    		writer.setProperty("http://xmlpull.org/v1/doc/properties.html#serializer-indentation", "  ");
 		writer.setOutput(fileWriter);
@@ -242,7 +254,7 @@ public class RegionSettings
         writer.endTag(null, "Terrain");
 
         writer.endTag(null, "RegionSettings");
-        fileWriter.close();
+        writer.flush();
     }
 
     private void writeBoolean(XmlSerializer writer, String tag, boolean value) throws IllegalArgumentException, IllegalStateException, IOException
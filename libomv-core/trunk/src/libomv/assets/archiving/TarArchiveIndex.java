@@ -0,0 +1,534 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.assets.archiving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+import libomv.assets.AssetItem;
+import libomv.types.UUID;
+import libomv.utils.Logger;
+import libomv.utils.RefObject;
+
+/**
+ * Random access to the entries of a tar archive, such as an OAR file. The
+ * archive is scanned once and the position of every entry is saved in an index
+ * file next to it, which is reused as long as the archive does not change.
+ * Entries are then read with positional reads, so several threads can read
+ * from the same index.
+ *
+ * Uncompressed archives are read directly. For gzip compressed archives the
+ * index also records where every gzip member starts, and reading an entry
+ * only inflates from the start of the member containing it. Archives written
+ * by {@link OarArchiveWriter} consist of many small members, an archive made
+ * of a single member has to be inflated from the start for every entry.
+ */
+public class TarArchiveIndex implements Closeable
+{
+    private static final int INDEX_MAGIC = 0x4F415249; // "OARI"
+    private static final int INDEX_VERSION = 1;
+    private static final String INDEX_SUFFIX = ".idx";
+
+    public class TarIndexEntry
+    {
+        public final String FilePath;
+        // Offset of the entry data in the uncompressed archive
+        public final long Offset;
+        public final int FileSize;
+
+        public TarIndexEntry(String filePath, long offset, int fileSize)
+        {
+            FilePath = filePath;
+            Offset = offset;
+            FileSize = fileSize;
+        }
+    }
+
+    /* Reads the archive file with positional reads, starting at an offset */
+    private class ChannelInputStream extends InputStream
+    {
+        private long m_position;
+
+        public ChannelInputStream(long position)
+        {
+            m_position = position;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int read = m_channel.read(ByteBuffer.wrap(b, off, len), m_position);
+            if (read > 0)
+                m_position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = Math.max(0, Math.min(n, m_channel.size() - m_position));
+            m_position += skipped;
+            return skipped;
+        }
+    }
+
+    /* Inflates concatenated gzip members and records where each of them starts */
+    private class MemberInflaterStream extends InputStream
+    {
+        private final ChannelInputStream m_in;
+        private final Inflater m_inflater = new Inflater(true);
+        private final byte[] m_buf = new byte[64 * 1024];
+        // Raw bytes in m_buf from m_bufPos to m_bufLen are not yet given to the inflater
+        private int m_bufPos, m_bufLen;
+        // Offset in the archive file of m_buf[0]
+        private long m_bufStart;
+        private long m_outPosition;
+        private boolean m_inMember;
+        private final ArrayList<long[]> m_members;
+
+        public MemberInflaterStream(long compressedOffset, long uncompressedOffset, ArrayList<long[]> members)
+        {
+            m_in = new ChannelInputStream(compressedOffset);
+            m_bufStart = compressedOffset;
+            m_outPosition = uncompressedOffset;
+            m_members = members;
+        }
+
+        private int rawRead() throws IOException
+        {
+            if (m_bufPos >= m_bufLen && !fill())
+                return -1;
+            return m_buf[m_bufPos++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException
+        {
+            m_bufStart += m_bufLen;
+            m_bufPos = 0;
+            m_bufLen = Math.max(m_in.read(m_buf, 0, m_buf.length), 0);
+            return m_bufLen > 0;
+        }
+
+        private void rawSkip(int count) throws IOException
+        {
+            for (int i = 0; i < count; i++)
+            {
+                if (rawRead() < 0)
+                    throw new EOFException("Truncated gzip member");
+            }
+        }
+
+        private boolean startMember() throws IOException
+        {
+            long start = m_bufStart + m_bufPos;
+            // Anything but another gzip header after a member ends the archive
+            if (rawRead() != 0x1f || rawRead() != 0x8b || rawRead() != 8)
+                return false;
+
+            int flags = rawRead();
+            rawSkip(6);
+            if ((flags & 4) != 0)
+                rawSkip(rawRead() | rawRead() << 8);
+            if ((flags & 8) != 0)
+                while (rawRead() > 0);
+            if ((flags & 16) != 0)
+                while (rawRead() > 0);
+            if ((flags & 2) != 0)
+                rawSkip(2);
+
+            if (m_members != null)
+                m_members.add(new long[] { start, m_outPosition });
+            m_inflater.reset();
+            m_inMember = true;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+
+            try
+            {
+                while (true)
+                {
+                    if (!m_inMember && !startMember())
+                        return -1;
+
+                    if (m_inflater.needsInput())
+                    {
+                        if (m_bufPos >= m_bufLen && !fill())
+                            throw new EOFException("Truncated gzip member");
+                        m_inflater.setInput(m_buf, m_bufPos, m_bufLen - m_bufPos);
+                        m_bufPos = m_bufLen;
+                    }
+
+                    int read = m_inflater.inflate(b, off, len);
+                    if (read > 0)
+                    {
+                        m_outPosition += read;
+                        return read;
+                    }
+
+                    if (m_inflater.finished())
+                    {
+                        // Hand back what the inflater did not use, then skip the CRC and size trailer
+                        m_bufPos = m_bufLen - m_inflater.getRemaining();
+                        rawSkip(8);
+                        m_inMember = false;
+                    }
+                    else if (m_inflater.needsDictionary())
+                    {
+                        throw new IOException("Unsupported gzip member with preset dictionary");
+                    }
+                }
+            }
+            catch (DataFormatException ex)
+            {
+                throw new IOException("Corrupt gzip data", ex);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            m_inflater.end();
+        }
+    }
+
+    private final File m_file;
+    private final RandomAccessFile m_raf;
+    private final FileChannel m_channel;
+    private boolean m_compressed;
+    // Archive offset and uncompressed offset where each gzip member starts
+    private long[] m_memberOffsets = new long[0];
+    private long[] m_memberPositions = new long[0];
+    private final LinkedHashMap<String, TarIndexEntry> m_entries = new LinkedHashMap<String, TarIndexEntry>();
+    private final HashMap<UUID, TarIndexEntry> m_assets = new HashMap<UUID, TarIndexEntry>();
+
+    /**
+     * Open an archive for random access, loading its index or creating it if
+     * it does not exist or is out of date
+     *
+     * @param archive The tar or tar.gz archive
+     * @return The index of the archive
+     */
+    public static TarArchiveIndex open(File archive) throws IOException
+    {
+        TarArchiveIndex index = new TarArchiveIndex(archive);
+        try
+        {
+            File indexFile = new File(archive.getPath() + INDEX_SUFFIX);
+            if (!index.load(indexFile))
+            {
+                index.scan();
+                try
+                {
+                    index.save(indexFile);
+                }
+                catch (IOException ex)
+                {
+                    Logger.Log("[TarArchiveIndex] Failed to save index " + indexFile + ": ", Logger.LogLevel.Warning, ex);
+                }
+            }
+            index.indexAssets();
+        }
+        catch (IOException ex)
+        {
+            index.close();
+            throw ex;
+        }
+        return index;
+    }
+
+    private TarArchiveIndex(File archive) throws IOException
+    {
+        m_file = archive;
+        m_raf = new RandomAccessFile(archive, "r");
+        m_channel = m_raf.getChannel();
+    }
+
+    private boolean load(File indexFile)
+    {
+        if (!indexFile.isFile())
+            return false;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024));
+            try
+            {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION || in.readLong() != m_file.length()
+                        || in.readLong() != m_file.lastModified())
+                    return false;
+
+                m_compressed = in.readBoolean();
+                int count = in.readInt();
+                m_memberOffsets = new long[count];
+                m_memberPositions = new long[count];
+                for (int i = 0; i < count; i++)
+                {
+                    m_memberOffsets[i] = in.readLong();
+                    m_memberPositions[i] = in.readLong();
+                }
+
+                count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    String filePath = in.readUTF();
+                    m_entries.put(filePath, new TarIndexEntry(filePath, in.readLong(), in.readInt()));
+                }
+                return true;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.Log("[TarArchiveIndex] Failed to load index " + indexFile + ", rescanning the archive", Logger.LogLevel.Warning, ex);
+            m_entries.clear();
+            return false;
+        }
+    }
+
+    private void save(File indexFile) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 64 * 1024));
+        try
+        {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(m_file.length());
+            out.writeLong(m_file.lastModified());
+            out.writeBoolean(m_compressed);
+            out.writeInt(m_memberOffsets.length);
+            for (int i = 0; i < m_memberOffsets.length; i++)
+            {
+                out.writeLong(m_memberOffsets[i]);
+                out.writeLong(m_memberPositions[i]);
+            }
+            out.writeInt(m_entries.size());
+            for (TarIndexEntry entry : m_entries.values())
+            {
+                out.writeUTF(entry.FilePath);
+                out.writeLong(entry.Offset);
+                out.writeInt(entry.FileSize);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void scan() throws IOException
+    {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        m_channel.read(magic, 0);
+        m_compressed = magic.position() == 2 && (magic.get(0) & 0xFF) == 0x1f && (magic.get(1) & 0xFF) == 0x8b;
+
+        ArrayList<long[]> members = new ArrayList<long[]>();
+        InputStream stream = m_compressed ? new MemberInflaterStream(0, 0, members)
+                : new BufferedInputStream(new ChannelInputStream(0), 64 * 1024);
+        CountingInputStream counter = new CountingInputStream(stream);
+        try
+        {
+            TarArchiveReader reader = new TarArchiveReader(counter);
+            TarArchiveReader.TarHeader header;
+            while ((header = reader.ReadHeader()) != null)
+            {
+                m_entries.put(header.FilePath, new TarIndexEntry(header.FilePath, counter.getByteCount(), header.FileSize));
+                reader.SkipData(header.FileSize);
+            }
+        }
+        finally
+        {
+            counter.close();
+        }
+
+        m_memberOffsets = new long[members.size()];
+        m_memberPositions = new long[members.size()];
+        for (int i = 0; i < members.size(); i++)
+        {
+            m_memberOffsets[i] = members.get(i)[0];
+            m_memberPositions[i] = members.get(i)[1];
+        }
+        Logger.Log("[TarArchiveIndex] Indexed " + m_entries.size() + " entries in " + m_file
+                + (m_compressed ? " with " + members.size() + " gzip members" : ""), Logger.LogLevel.Debug);
+    }
+
+    private void indexAssets()
+    {
+        for (TarIndexEntry entry : m_entries.values())
+        {
+            int start = ArchiveConstants.ASSETS_PATH.length();
+            if (entry.FilePath.startsWith(ArchiveConstants.ASSETS_PATH) && entry.FilePath.length() >= start + 36)
+            {
+                RefObject<UUID> uuid = new RefObject<UUID>(null);
+                if (UUID.TryParse(entry.FilePath.substring(start, start + 36), uuid))
+                    m_assets.put(uuid.argvalue, entry);
+            }
+        }
+    }
+
+    /**
+     * @return the entries of the archive in archive order
+     */
+    public Collection<TarIndexEntry> getEntries()
+    {
+        return Collections.unmodifiableCollection(m_entries.values());
+    }
+
+    public TarIndexEntry getEntry(String filePath)
+    {
+        return m_entries.get(filePath);
+    }
+
+    public boolean containsAsset(UUID assetID)
+    {
+        return m_assets.containsKey(assetID);
+    }
+
+    /**
+     * Read the data of an entry
+     *
+     * @param filePath The path of the entry in the archive
+     * @return The entry data or null if the archive has no such entry
+     */
+    public byte[] readEntry(String filePath) throws IOException
+    {
+        TarIndexEntry entry = m_entries.get(filePath);
+        return entry != null ? readEntry(entry) : null;
+    }
+
+    public byte[] readEntry(TarIndexEntry entry) throws IOException
+    {
+        byte[] data = new byte[entry.FileSize];
+        if (!m_compressed)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining())
+            {
+                if (m_channel.read(buffer, entry.Offset + buffer.position()) < 0)
+                    throw new EOFException("Truncated entry " + entry.FilePath);
+            }
+            return data;
+        }
+
+        // Inflate from the start of the last member starting at or before the entry
+        int member = 0, high = m_memberPositions.length - 1;
+        while (member < high)
+        {
+            int mid = (member + high + 1) >>> 1;
+            if (m_memberPositions[mid] <= entry.Offset)
+                member = mid;
+            else
+                high = mid - 1;
+        }
+
+        MemberInflaterStream stream = new MemberInflaterStream(m_memberOffsets.length > 0 ? m_memberOffsets[member] : 0,
+                m_memberPositions.length > 0 ? m_memberPositions[member] : 0, null);
+        try
+        {
+            DataInputStream in = new DataInputStream(stream);
+            long skip = entry.Offset - (m_memberPositions.length > 0 ? m_memberPositions[member] : 0);
+            while (skip > 0)
+            {
+                int skipped = in.skipBytes((int) Math.min(skip, Integer.MAX_VALUE));
+                if (skipped <= 0)
+                    throw new EOFException("Truncated entry " + entry.FilePath);
+                skip -= skipped;
+            }
+            in.readFully(data);
+        }
+        finally
+        {
+            stream.close();
+        }
+        return data;
+    }
+
+    /**
+     * Read and decode an asset
+     *
+     * @param assetID The asset to read
+     * @return The asset or null if the archive does not contain it or it could not be decoded
+     */
+    public AssetItem readAsset(UUID assetID) throws IOException
+    {
+        TarIndexEntry entry = m_assets.get(assetID);
+        if (entry == null)
+            return null;
+        return OarFile.DecodeAsset(entry.FilePath, readEntry(entry));
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        m_raf.close();
+    }
+}
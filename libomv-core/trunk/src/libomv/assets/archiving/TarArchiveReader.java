@@ -181,6 +181,27 @@ public class TarArchiveReader
         return data;
     }
 
+    /// Skip the data following a header, including its padding
+    /// <param name="size"></param>
+    protected void SkipData(int size) throws IOException
+    {
+        long left = size + (512 - size % 512) % 512;
+        while (left > 0)
+        {
+            long skipped = m_br.skip(left);
+            if (skipped <= 0)
+            {
+                if (m_br.read() < 0)
+                {
+                    Logger.Log("[TAR ARCHIVE READER]: Premature end of archive stream encounterd", Logger.LogLevel.Error);
+                    return;
+                }
+                skipped = 1;
+            }
+            left -= skipped;
+        }
+    }
+
     public void close() throws IOException
     {
         m_br = null;
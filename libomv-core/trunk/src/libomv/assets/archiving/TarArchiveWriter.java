@@ -116,7 +116,7 @@ public class TarArchiveWriter
 
         for (;  pos >= 0 && d > 0; pos--)
         {
-            oString[pos] = (char)('0' + d & 7);
+            oString[pos] = (char)('0' + (d & 7));
             d >>= 3;
         }
 
@@ -139,19 +139,19 @@ public class TarArchiveWriter
         // file path field (100)
         byte[] nameBytes = Helpers.StringToBytes(filePath, Helpers.ASCII_ENCODING);
         int nameSize = (nameBytes.length >= 100) ? 100 : nameBytes.length;
-        System.arraycopy(header, 0, nameBytes, 0, nameSize);
+        System.arraycopy(nameBytes, 0, header, 0, nameSize);
 
         // file mode (8)
         byte[] modeBytes = Helpers.StringToBytes("0000777", Helpers.ASCII_ENCODING);
-        System.arraycopy(header, 100, modeBytes, 0, 7);
+        System.arraycopy(modeBytes, 0, header, 100, 7);
 
         // owner user id (8)
         byte[] ownerIdBytes = Helpers.StringToBytes("0000764", Helpers.ASCII_ENCODING);
-        System.arraycopy(header, 108, ownerIdBytes, 0, 7);
+        System.arraycopy(ownerIdBytes, 0, header, 108, 7);
 
         // group user id (8)
         byte[] groupIdBytes = Helpers.StringToBytes("0000764", Helpers.ASCII_ENCODING);
-        System.arraycopy(header, 116, groupIdBytes, 0, 7);
+        System.arraycopy(groupIdBytes, 0, header, 116, 7);
 
         // file size in bytes (12)
         int fileSize = data.length;
@@ -159,31 +159,31 @@ public class TarArchiveWriter
 
         byte[] fileSizeBytes = ConvertDecimalToPaddedOctalBytes(fileSize, 11);
 
-        System.arraycopy(header, 124, fileSizeBytes, 0, 11);
+        System.arraycopy(fileSizeBytes, 0, header, 124, 11);
 
         // last modification time (12)
         byte[] lastModTimeBytes = Helpers.StringToBytes("11017037332", Helpers.ASCII_ENCODING);
-        System.arraycopy(header, 136, lastModTimeBytes, 0, 11);
+        System.arraycopy(lastModTimeBytes, 0, header, 136, 11);
 
         // entry type indicator (1)
         header[156] = (byte)fileType;
 
-        System.arraycopy(header, 329, Helpers.StringToBytes("0000000", Helpers.ASCII_ENCODING), 0, 7);
-        System.arraycopy(header, 337, Helpers.StringToBytes("0000000", Helpers.ASCII_ENCODING), 0, 7);
+        System.arraycopy(Helpers.StringToBytes("0000000", Helpers.ASCII_ENCODING), 0, header, 329, 7);
+        System.arraycopy(Helpers.StringToBytes("0000000", Helpers.ASCII_ENCODING), 0, header, 337, 7);
 
         // check sum for header block (8) [calculated last]
-        System.arraycopy(header, 148, Helpers.StringToBytes("        ", Helpers.ASCII_ENCODING), 0, 8);
+        System.arraycopy(Helpers.StringToBytes("        ", Helpers.ASCII_ENCODING), 0, header, 148, 8);
 
         int checksum = 0;
         for (byte b : header)
         {
-            checksum += b;
+            checksum += b & 0xFF;
         }
 
         //Logger.DebugLog(String.format("[TAR ARCHIVE WRITER]: Decimal header checksum is %d", checksum);
 
         byte[] checkSumBytes = ConvertDecimalToPaddedOctalBytes(checksum, 6);
-        System.arraycopy(header, 148, checkSumBytes, 0, 6);
+        System.arraycopy(checkSumBytes, 0, header, 148, 6);
 
         header[154] = 0;
 
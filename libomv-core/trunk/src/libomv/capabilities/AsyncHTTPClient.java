@@ -33,18 +33,17 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.nio.ByteBuffer;
-import java.security.KeyStore;
 import java.security.cert.X509Certificate;
-import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Future;
 
-import libomv.utils.Helpers;
 import libomv.utils.Logger;
 
+import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -60,9 +59,10 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.client.utils.URIUtils;
 import org.apache.http.entity.AbstractHttpEntity;
-import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.nio.ContentDecoder;
 import org.apache.http.nio.ContentEncoder;
 import org.apache.http.nio.IOControl;
@@ -71,29 +71,36 @@ import org.apache.http.nio.client.HttpAsyncResponseConsumer;
 import org.apache.http.nio.concurrent.BasicFuture;
 import org.apache.http.nio.concurrent.FutureCallback;
 import org.apache.http.nio.conn.scheme.Scheme;
-import org.apache.http.nio.conn.ssl.SSLLayeringStrategy;
 import org.apache.http.nio.entity.NByteArrayEntity;
 import org.apache.http.nio.entity.NFileEntity;
 import org.apache.http.nio.entity.NHttpEntityWrapper;
 import org.apache.http.nio.entity.NStringEntity;
 import org.apache.http.nio.entity.ProducingNHttpEntity;
 import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
 
 public abstract class AsyncHTTPClient<T>
 {
 	public static final long TIMEOUT_INFINITE = -1;
 
+	/* Amount of response content buffered ahead of the parser when streaming */
+	private static final int STREAM_BUFFER_SIZE = 32 * 1024;
+
 	public interface ProgressCallback
 	{
 		public void progress(long bytesTransceived, long totalBytes);
 	}
 	
-	private DefaultHttpAsyncClient asyncClient;
+	private HttpReactor reactor;
+	private BasicCredentialsProvider credentials;
 	private X509Certificate certificate;
-	private Timer timeout;
+	private TimerTask timeout;
 	private Future<T> resultFuture;
 	private FutureCallback<T> resultCb;
 	private ProgressCallback progressCb;
+	private boolean streaming;
+	private volatile long resourceLength = -1;
 
 	protected String name;
 
@@ -106,6 +113,38 @@ public abstract class AsyncHTTPClient<T>
 	{
 		certificate = cert;
 	}
+
+	/**
+	 * Enables parsing of the response content while it is still being
+	 * received. Instead of buffering the whole body, the bytes are handed to
+	 * <code>convertContent()</code> through a small bounded buffer on one of
+	 * the reactor's content threads, and the connection is paused whenever the
+	 * parser falls behind. Responses known to fit into this buffer are still
+	 * converted in one go.
+	 *
+	 * @param streaming True to parse the content incrementally
+	 */
+	public void setStreaming(boolean streaming)
+	{
+		this.streaming = streaming;
+	}
+
+	public boolean isStreaming()
+	{
+		return streaming;
+	}
+
+	/**
+	 * The full size of the document returned by the last response. For a
+	 * range request this is the size announced in the Content-Range header,
+	 * which can be larger than the content actually received.
+	 *
+	 * @return the size of the document or -1 if it is not known
+	 */
+	public long getResourceLength()
+	{
+		return resourceLength;
+	}
 	
 	/**
 	 * Sets basic authentication on web request using plain credentials
@@ -116,22 +155,24 @@ public abstract class AsyncHTTPClient<T>
 	 */
 	public synchronized void setBasicAuthentication(URI uri, String username, String password)
 	{
-		asyncClient.getCredentialsProvider().setCredentials(
-				new AuthScope(uri.getHost(), uri.getPort(), AuthScope.ANY_REALM),
+		if (credentials == null)
+			credentials = new BasicCredentialsProvider();
+		credentials.setCredentials(new AuthScope(uri.getHost(), uri.getPort(), AuthScope.ANY_REALM),
 				new UsernamePasswordCredentials(username, password));
 	}
 
 	/**
-	 * Registers a new scheme for this client. Useful to provide a scheme with
-	 * custom security provider such as for certificate verification for the
-	 * HTTPS scheme
+	 * Registers a new scheme for the reactor of this client. Useful to provide
+	 * a scheme with custom security provider such as for certificate
+	 * verification for the HTTPS scheme. The scheme applies to all clients
+	 * sharing the same reactor.
 	 *
-	 * @param scheme The scheme to add to the connection manager for this connection
+	 * @param scheme The scheme to add to the connection manager of the reactor
 	 * @return The scheme registered
 	 */
 	public synchronized Scheme register(Scheme scheme)
 	{
-		return asyncClient.getConnectionManager().getSchemeRegistry().register(scheme);
+		return reactor.register(scheme);
 	}
 	
 	protected synchronized void cancel(boolean mayInterruptIfRunning)
@@ -151,18 +192,41 @@ public abstract class AsyncHTTPClient<T>
 		}
 	}
 	
+	/**
+	 * Cancels the outstanding request if requested and detaches this client
+	 * from its reactor. The reactor and its pooled connections remain
+	 * available to the other clients.
+	 *
+	 * @param mayInterruptIfRunning Abort a request still in progress
+	 */
 	public synchronized void shutdown(boolean mayInterruptIfRunning) throws InterruptedException
 	{
 		cancel(mayInterruptIfRunning);
-		asyncClient.shutdown();
-		asyncClient = null;
+		reactor = null;
 	}
 
+	/**
+	 * Create a client which executes its requests through the reactor shared
+	 * by all clients in this JVM
+	 *
+	 * @param name The name of this client for logging purposes
+	 * @throws IOReactorException if the shared reactor could not be started
+	 */
 	public AsyncHTTPClient(String name) throws IOReactorException
+	{
+		this(name, HttpReactor.getDefault());
+	}
+
+	/**
+	 * Create a client which executes its requests through a specific reactor
+	 *
+	 * @param name The name of this client for logging purposes
+	 * @param reactor The reactor whose connection pool to use
+	 */
+	public AsyncHTTPClient(String name, HttpReactor reactor)
 	{
 		this.name = name;
-		asyncClient = new DefaultHttpAsyncClient();
-		asyncClient.start();
+		this.reactor = reactor;
 	}
 
 	/**
@@ -209,6 +273,36 @@ public abstract class AsyncHTTPClient<T>
 		return executeHttp(request, callback, millisecondTimeout);
 	}
 
+	/**
+	 * Do a HTTP Get Request for a byte range of a document. Servers that do
+	 * not support ranges return the whole document instead, use
+	 * <code>getResourceLength()</code> to find out whether the content
+	 * received is the complete document.
+	 * 
+	 * @param address The document uri to fetch
+	 * @param acceptHeader The content type to add as Accept: header or null
+	 * @param rangeStart The offset of the first byte to fetch
+	 * @param rangeEnd The offset of the last byte to fetch or -1 to fetch up to the end of the document
+	 * @param callback The result callback to be called on success, exception or failure
+	 * @param millisecondTimeout The timeout to wait for a response or -1 if no timeout should be used
+	 *                The request can still be aborted through the returned future.
+	 * @return A Future that can be used to cancel the request
+	 */
+	public Future<T> executeHttpGet(URI address, String acceptHeader, long rangeStart, long rangeEnd,
+			                        FutureCallback<T> callback, long millisecondTimeout)
+	{
+		HttpGet request = new HttpGet(address);
+		if (acceptHeader != null && !acceptHeader.isEmpty())
+			request.addHeader("Accept", acceptHeader);
+		if (rangeStart > 0 || rangeEnd >= 0)
+		{
+			request.addHeader("Range", "bytes=" + rangeStart + "-" + (rangeEnd >= 0 ? Long.toString(rangeEnd) : ""));
+			// A range of the compressed content would be useless
+			request.addHeader("Accept-Encoding", "identity");
+		}
+		return executeHttp(request, callback, millisecondTimeout);
+	}
+
 	/**
 	 * Do a HTTP Post Request from the server from string data
 	 * 
@@ -343,25 +437,7 @@ public abstract class AsyncHTTPClient<T>
 		HttpHost host = URIUtils.extractHost(address);
 		if (address.getScheme().equals("https"))
 		{
-			try
-			{
-				String hostname = host.getHostName();
-				if (certificate == null)
-				{
-					certificate = Helpers.getCertificate(hostname);
-				}
-
-				if (certificate != null)
-				{
-					KeyStore store = Helpers.getExtendedKeyStore();
-					store.setCertificateEntry(hostname, certificate);
-					register(new Scheme("https", 443, new SSLLayeringStrategy(store)));
-				}
-			}
-			catch (Exception ex)
-			{
-				// Ignore exceptions that happen while trying to add extra certificates to keystore
-			}
+			reactor.trustHost(host.getHostName(), certificate);
 		}
 		return host;
 	}
@@ -380,20 +456,40 @@ public abstract class AsyncHTTPClient<T>
 
 		try
 		{
-			resultFuture = asyncClient.execute(new AsyncHttpRequestProducer(determineTarget(request.getURI()), request),
-				                                	new AsyncHttpResponseConsumer(), internalCallback);
+			if (reactor == null)
+			{
+				throw new IllegalStateException("Client has been shut down");
+			}
+
+			HttpContext context = new BasicHttpContext();
+			if (credentials != null)
+				context.setAttribute(ClientContext.CREDS_PROVIDER, credentials);
+
+			AsyncHttpRequestProducer producer = new AsyncHttpRequestProducer(determineTarget(request.getURI()), request);
+			if (streaming)
+			{
+				StreamedFuture future = new StreamedFuture(internalCallback);
+				future.setRequest(reactor.getClient().execute(producer, new AsyncHttpResponseConsumer(reactor, future),
+						                                      context, future.requestCallback));
+				resultFuture = future;
+			}
+			else
+			{
+				resultFuture = reactor.getClient().execute(producer, new AsyncHttpResponseConsumer(null, null),
+						                                   context, internalCallback);
+			}
 
 			if (millisecondTimeout >= 0)
 			{
-				timeout = new Timer("HTTP Async Timer");
-				timeout.schedule(new TimerTask()
+				timeout = new TimerTask()
 				{
 					@Override
 					public void run()
 					{
 						AsyncHTTPClient.this.cancel(true);
 					}
-				}, millisecondTimeout);
+				};
+				reactor.getTimer().schedule(timeout, millisecondTimeout);
 			}
 			return resultFuture;
 		}
@@ -432,6 +528,71 @@ public abstract class AsyncHTTPClient<T>
 		}
 	}
 
+	/**
+	 * Future of a request whose response content is parsed while it is
+	 * received. The reactor considers the request done as soon as the last
+	 * content has arrived, while the parser may still be working on it on a
+	 * content thread. Rather than having the I/O thread wait for the parser,
+	 * this future is completed by the parser itself once it is done.
+	 */
+	private class StreamedFuture extends BasicFuture<T>
+	{
+		/* The future of the request in the reactor, used to abort the connection */
+		private volatile Future<T> request;
+		/* Set once the parser has been started and so is the one to complete this future */
+		private volatile boolean parsing;
+
+		final FutureCallback<T> requestCallback = new FutureCallback<T>()
+		{
+			@Override
+			public void completed(T result)
+			{
+				// Content that was not streamed was already converted on the I/O thread
+				if (!parsing)
+					StreamedFuture.this.completed(result);
+			}
+
+			@Override
+			public void failed(Exception ex)
+			{
+				StreamedFuture.this.failed(ex);
+			}
+
+			@Override
+			public void cancelled()
+			{
+				StreamedFuture.this.cancel(true);
+			}
+		};
+
+		public StreamedFuture(FutureCallback<T> callback)
+		{
+			super(callback);
+		}
+
+		void setRequest(Future<T> request)
+		{
+			this.request = request;
+			if (isCancelled())
+				request.cancel(true);
+		}
+
+		void setParsing()
+		{
+			parsing = true;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			Future<T> request = this.request;
+			if (cancelled && request != null)
+				request.cancel(mayInterruptIfRunning);
+			return cancelled;
+		}
+	}
+
 	private class AsyncHttpRequestProducer implements HttpAsyncRequestProducer, Closeable
 	{
 		private final HttpHost target;
@@ -499,7 +660,8 @@ public abstract class AsyncHTTPClient<T>
 		@Override
 		public synchronized boolean isRepeatable()
 		{
-			return producer.isRepeatable();
+			// Requests without entity, such as GET, can always be repeated
+			return producer == null || producer.isRepeatable();
 		}
 
 		@Override
@@ -507,7 +669,8 @@ public abstract class AsyncHTTPClient<T>
 		{
 			try
 			{
-				producer.finish();
+				if (producer != null)
+					producer.finish();
 			}
 			catch (IOException ignore)
 			{
@@ -516,12 +679,179 @@ public abstract class AsyncHTTPClient<T>
 
 		public synchronized void close() throws IOException
 		{
-			this.producer.finish();
+			if (producer != null)
+				producer.finish();
 		}
 	}
 
 	protected abstract T convertContent(InputStream in, String encoding) throws IOException;
-	
+
+	/**
+	 * Convert content that has been received completely into a buffer. Clients
+	 * that can use the buffered bytes directly override this to avoid reading
+	 * them through a stream.
+	 *
+	 * @param buffer The received content from position 0 up to its limit
+	 * @param encoding The content encoding or charset of the response or null
+	 */
+	protected T convertContent(ByteBuffer buffer, String encoding) throws IOException
+	{
+		InputStream in = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset(), buffer.limit());
+		try
+		{
+			return convertContent(in, encoding);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Bounded byte buffer between the I/O reactor filling in response content
+	 * and the parser reading it as an InputStream. When the buffer is full,
+	 * input on the connection is suspended until the parser has consumed half
+	 * of it.
+	 */
+	private static class ContentPipe extends InputStream
+	{
+		private final byte[] buffer;
+		private int head;
+		private int count;
+		private boolean eof;
+		private boolean closed;
+		private IOException error;
+		private IOControl suspended;
+
+		public ContentPipe(int capacity)
+		{
+			buffer = new byte[capacity];
+		}
+
+		/**
+		 * Read as much content from the decoder as fits into the buffer
+		 *
+		 * @return the number of bytes read from the decoder
+		 */
+		public synchronized int fill(ContentDecoder decoder, IOControl ioctrl) throws IOException
+		{
+			int total = 0, read;
+
+			if (closed)
+			{
+				// The parser is done, discard whatever the server still sends
+				ByteBuffer discard = ByteBuffer.wrap(buffer);
+				do
+				{
+					discard.clear();
+					read = decoder.read(discard);
+					if (read > 0)
+						total += read;
+				}
+				while (read > 0);
+				return total;
+			}
+
+			while (count < buffer.length)
+			{
+				int tail = (head + count) % buffer.length;
+				int space = tail >= head ? buffer.length - tail : head - tail;
+				read = decoder.read(ByteBuffer.wrap(buffer, tail, space));
+				if (read <= 0)
+				{
+					if (read < 0)
+						eof = true;
+					break;
+				}
+				count += read;
+				total += read;
+			}
+
+			if (decoder.isCompleted())
+			{
+				eof = true;
+			}
+			else if (count == buffer.length)
+			{
+				suspended = ioctrl;
+				ioctrl.suspendInput();
+			}
+			notifyAll();
+			return total;
+		}
+
+		public synchronized void finish()
+		{
+			eof = true;
+			notifyAll();
+		}
+
+		public synchronized void abort(IOException ex)
+		{
+			error = ex;
+			notifyAll();
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return 0;
+
+			while (count == 0 && !eof && error == null)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException ex)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+			if (error != null)
+				throw error;
+			if (count == 0)
+				return -1;
+
+			int read = Math.min(len, Math.min(count, buffer.length - head));
+			System.arraycopy(buffer, head, b, off, read);
+			head = (head + read) % buffer.length;
+			count -= read;
+			if (suspended != null && count <= buffer.length / 2)
+			{
+				suspended.requestInput();
+				suspended = null;
+			}
+			return read;
+		}
+
+		@Override
+		public synchronized int available()
+		{
+			return count;
+		}
+
+		@Override
+		public synchronized void close()
+		{
+			closed = true;
+			count = 0;
+			if (suspended != null)
+			{
+				suspended.requestInput();
+				suspended = null;
+			}
+		}
+	}
+
 	private class AsyncHttpResponseConsumer implements HttpAsyncResponseConsumer<T>
 	{
 		private volatile String encoding;
@@ -531,17 +861,46 @@ public abstract class AsyncHTTPClient<T>
 		private volatile boolean completed;
 
 		private ByteBuffer buffer;
+
+		/* Only set when streaming, the reactor whose executor runs the parser and the future it completes */
+		private final HttpReactor streamReactor;
+		private final StreamedFuture streamFuture;
+		private ContentPipe pipe;
+		private long received;
+
+		public AsyncHttpResponseConsumer(HttpReactor streamReactor, StreamedFuture streamFuture)
+		{
+			this.streamReactor = streamReactor;
+			this.streamFuture = streamFuture;
+		}
 		
 		@Override
 		public synchronized void responseReceived(final HttpResponse response) throws IOException
 		{
 			StatusLine status = response.getStatusLine();
-			if (status.getStatusCode() != HttpStatus.SC_OK)
+			if (status.getStatusCode() != HttpStatus.SC_OK && status.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT)
 			{
 				throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
 			}
 
 			HttpEntity entity = response.getEntity();
+			resourceLength = entity != null ? entity.getContentLength() : -1;
+			if (status.getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT)
+			{
+				// Content-Range: bytes <first>-<last>/<length or *>
+				Header range = response.getFirstHeader("Content-Range");
+				resourceLength = -1;
+				if (range != null)
+				{
+					String value = range.getValue();
+					try
+					{
+						resourceLength = Long.parseLong(value.substring(value.lastIndexOf('/') + 1).trim());
+					}
+					catch (NumberFormatException ex) { }
+				}
+			}
+
 			if (entity != null)
 			{
 				length = entity.getContentLength();
@@ -561,6 +920,36 @@ public abstract class AsyncHTTPClient<T>
 						}
 					}
 				}
+
+				if (streamReactor != null && (length < 0 || length > STREAM_BUFFER_SIZE))
+				{
+					pipe = new ContentPipe(STREAM_BUFFER_SIZE);
+					streamFuture.setParsing();
+					streamReactor.getExecutor().execute(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							try
+							{
+								result = convertContent(pipe, encoding);
+							}
+							catch (Exception exc)
+							{
+								ex = exc;
+							}
+							finally
+							{
+								pipe.close();
+							}
+
+							if (ex != null)
+								streamFuture.failed(ex);
+							else
+								streamFuture.completed(result);
+						}
+					});
+				}
 			}
 		}
 
@@ -581,6 +970,19 @@ public abstract class AsyncHTTPClient<T>
 		{
 			int toRead;
 
+			if (pipe != null)
+			{
+				received += pipe.fill(decoder, ioctrl);
+				if (progressCb != null)
+				{
+					if (decoder.isCompleted() && length < 0)
+						progressCb.progress(received, received);
+					else
+						progressCb.progress(received, length);
+				}
+				return;
+			}
+
 			if (buffer == null)
 			{
 				if (length < 0)
@@ -609,15 +1011,7 @@ public abstract class AsyncHTTPClient<T>
 					progressCb.progress(buffer.position(), buffer.position());	
 
 				buffer.flip();
-				InputStream in = new ByteArrayInputStream(buffer.array(), 0, buffer.limit());
-				try
-				{
-					result = convertContent(in, encoding);
-				}
-				finally
-				{
-					in.close();
-				}
+				result = convertContent(buffer, encoding);
 			}
 		}
 
@@ -632,6 +1026,16 @@ public abstract class AsyncHTTPClient<T>
 				return;
 			}
 			completed = true;
+
+			if (pipe != null)
+			{
+				/*
+				 * Only the content still buffered in the pipe remains to be parsed.
+				 * The parser completes the request once it is done with it, so the
+				 * I/O thread is not held up here.
+				 */
+				pipe.finish();
+			}
 		}
 
 		@Override
@@ -642,6 +1046,8 @@ public abstract class AsyncHTTPClient<T>
 				return;
 			}
 			completed = true;
+			if (pipe != null)
+				pipe.abort(new InterruptedIOException("Request cancelled"));
 			result = null;
 		}
 
@@ -652,6 +1058,8 @@ public abstract class AsyncHTTPClient<T>
 			{
 				return;
 			}
+			if (pipe != null)
+				pipe.abort(exc instanceof IOException ? (IOException)exc : new IOException(exc.toString()));
 			ex = exc;
 			completed = true;
 		}
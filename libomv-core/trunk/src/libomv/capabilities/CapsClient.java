@@ -80,8 +80,22 @@ public class CapsClient extends AsyncHTTPClient<OSD>
 
 	public CapsClient(GridClient client, String name) throws IOReactorException
 	{
-		super(name);
+		this(client, name, client != null ? client.Network.getHttpReactor() : HttpReactor.getDefault());
+	}
+
+	/**
+	 * Create a capability client executing its requests on a specific reactor
+	 * 
+	 * @param client The client this capability client belongs to, can be null
+	 * @param name The name of this capability client
+	 * @param reactor The reactor to execute the requests on
+	 */
+	public CapsClient(GridClient client, String name, HttpReactor reactor)
+	{
+		super(name, reactor);
 		_Client = client;
+		// LLSD responses can get large, parse them while they are received
+		setStreaming(true);
 
 		if (client != null)
 		{
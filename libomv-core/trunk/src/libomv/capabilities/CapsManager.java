@@ -198,7 +198,9 @@ public class CapsManager extends Thread
 		_Simulator = simulator;
 
 		_SeedCapsURI = seedcaps;
-		_Client = new CapsClient(simulator.getClient(), CapsEventType.EventQueueGet.toString());
+		// The event queue is polled continuously, keep it off the connections of the other capabilities
+		_Client = new CapsClient(simulator.getClient(), CapsEventType.EventQueueGet.toString(),
+				                 simulator.getClient().Network.getLongPollReactor());
 		
 		start();
 	}
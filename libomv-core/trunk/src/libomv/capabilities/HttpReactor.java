@@ -0,0 +1,338 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.capabilities;
+
+import java.net.URI;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.impl.nio.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.conn.PoolStats;
+import org.apache.http.nio.conn.scheme.Scheme;
+import org.apache.http.nio.conn.ssl.SSLLayeringStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.SyncBasicHttpParams;
+
+import libomv.LibSettings;
+import libomv.utils.Helpers;
+import libomv.utils.Logger;
+import libomv.utils.Logger.LogLevel;
+
+/**
+ * Asynchronous HTTP transport shared by any number of AsyncHTTPClient
+ * instances. It runs one I/O reactor with a small fixed set of threads and
+ * keeps a pool of keep-alive connections, limited in total and per host, over
+ * which all requests of its clients are multiplexed.
+ * 
+ * By default all clients in the JVM share one reactor, returned by
+ * <code>getDefault()</code>. A GridClient can be given its own reactor through
+ * <code>NetworkManager.setHttpReactor()</code> before creating capability
+ * clients.
+ * 
+ * Event queue long-polls keep their connection busy for most of the time they
+ * are open. They run on a second reactor, returned by <code>getLongPoll()</code>,
+ * whose limits allow one connection per long-poll even to the same host, so
+ * that many clients connected to the same simulator do not starve the
+ * connections of the shared reactor.
+ */
+public class HttpReactor
+{
+	/* Interval in ms in which expired and idle connections are closed */
+	private static final long IDLE_CHECK_INTERVAL = 30 * 1000;
+
+	/* Time in ms after which idle content threads are stopped */
+	private static final long CONTENT_THREAD_KEEPALIVE = 60 * 1000;
+
+	private static HttpReactor _Default;
+	private static HttpReactor _LongPoll;
+
+	/**
+	 * Get the reactor shared by all clients in this JVM, starting it if
+	 * necessary
+	 * 
+	 * @return the shared reactor
+	 * @throws IOReactorException if the I/O reactor could not be started
+	 */
+	public static synchronized HttpReactor getDefault() throws IOReactorException
+	{
+		if (_Default == null || !_Default.isRunning())
+		{
+			_Default = new HttpReactor(LibSettings.HTTP_REACTOR_THREADS, LibSettings.HTTP_MAX_CONNECTIONS,
+					                   LibSettings.HTTP_MAX_CONNECTIONS_PER_HOST);
+		}
+		return _Default;
+	}
+
+	/**
+	 * Get the reactor shared by the event queue long-polls of all clients in
+	 * this JVM, starting it if necessary. It keeps up to
+	 * LibSettings.HTTP_MAX_LONG_POLLS connections open without a lower limit
+	 * per host.
+	 * 
+	 * @return the shared long-poll reactor
+	 * @throws IOReactorException if the I/O reactor could not be started
+	 */
+	public static synchronized HttpReactor getLongPoll() throws IOReactorException
+	{
+		if (_LongPoll == null || !_LongPoll.isRunning())
+		{
+			_LongPoll = new HttpReactor(1, LibSettings.HTTP_MAX_LONG_POLLS, LibSettings.HTTP_MAX_LONG_POLLS);
+		}
+		return _LongPoll;
+	}
+
+	private final PoolingClientConnectionManager _Pool;
+	private final DefaultHttpAsyncClient _Client;
+	private final Timer _Timer;
+	private final ExecutorService _Executor;
+
+	/* Certificates added to the trust store, null values for hosts without specific certificate */
+	private final HashMap<String, X509Certificate> _Certificates = new HashMap<String, X509Certificate>();
+	private KeyStore _TrustStore;
+
+	private volatile boolean _Running;
+
+	/**
+	 * Create a new reactor and start its I/O threads
+	 * 
+	 * @param threads The number of I/O dispatch threads to distribute the connections over
+	 * @param maxTotal The maximum number of connections open at any time
+	 * @param maxPerHost The maximum number of connections open to the same host
+	 * @throws IOReactorException if the I/O reactor could not be started
+	 */
+	public HttpReactor(int threads, int maxTotal, int maxPerHost) throws IOReactorException
+	{
+		HttpParams params = new SyncBasicHttpParams();
+		DefaultHttpAsyncClient.setDefaultHttpParams(params);
+
+		_Pool = new PoolingClientConnectionManager(new DefaultConnectingIOReactor(Math.max(1, threads),
+				new ReactorThreadFactory("HTTP Reactor "), params));
+		_Pool.setTotalMax(Math.max(1, maxTotal));
+		_Pool.setDefaultMaxPerHost(Math.max(1, maxPerHost));
+
+		_Client = new DefaultHttpAsyncClient(_Pool, params);
+		/*
+		 * Each streamed response occupies one content thread while it is received,
+		 * so there is no use for more threads than connections. Responses beyond
+		 * that wait in the queue for the next free thread.
+		 */
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(1, maxTotal), Math.max(1, maxTotal),
+				CONTENT_THREAD_KEEPALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ReactorThreadFactory("HTTP Content "));
+		executor.allowCoreThreadTimeOut(true);
+		_Executor = executor;
+		_Timer = new Timer("HTTP Reactor Timer", true);
+		_Timer.schedule(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				_Pool.closeExpiredConnections();
+				_Pool.closeIdleConnections(IDLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+		}, IDLE_CHECK_INTERVAL, IDLE_CHECK_INTERVAL);
+
+		_Running = true;
+		_Client.start();
+	}
+
+	public boolean isRunning()
+	{
+		return _Running;
+	}
+
+	/**
+	 * @return the client executing the requests of all AsyncHTTPClient instances using this reactor
+	 */
+	public HttpAsyncClient getClient()
+	{
+		return _Client;
+	}
+
+	/**
+	 * @return the timer used to schedule request timeouts and connection maintenance
+	 */
+	public Timer getTimer()
+	{
+		return _Timer;
+	}
+
+	/**
+	 * @return the executor on which streamed response content is parsed while it is received
+	 */
+	public ExecutorService getExecutor()
+	{
+		return _Executor;
+	}
+
+	/**
+	 * @return the number of leased, pending and available connections of the pool
+	 */
+	public PoolStats getPoolStats()
+	{
+		return _Pool.getTotalStats();
+	}
+
+	/**
+	 * Change the maximum number of connections open at any time
+	 * 
+	 * @param max The new maximum number of connections
+	 */
+	public void setMaxConnections(int max)
+	{
+		_Pool.setTotalMax(Math.max(1, max));
+	}
+
+	/**
+	 * Change the maximum number of connections open to a specific host, for
+	 * instance to allow more parallel requests to a texture or mesh server
+	 * 
+	 * @param uri An uri pointing to the host
+	 * @param max The new maximum number of connections to this host
+	 */
+	public void setMaxConnectionsPerHost(URI uri, int max)
+	{
+		HttpHost host = URIUtils.extractHost(uri);
+		_Pool.setMaxPerHost(new HttpRoute(host, null, "https".equals(uri.getScheme())), Math.max(1, max));
+	}
+
+	/**
+	 * Registers a new scheme for all clients of this reactor. Useful to provide
+	 * a scheme with custom security provider such as for certificate
+	 * verification for the HTTPS scheme
+	 * 
+	 * @param scheme The scheme to add to the connection manager
+	 * @return The scheme previously registered with the same name
+	 */
+	public Scheme register(Scheme scheme)
+	{
+		return _Pool.getSchemeRegistry().register(scheme);
+	}
+
+	/**
+	 * Make sure the https scheme accepts the certificate of a host. If no
+	 * certificate is given, the certificates bundled in the resources are
+	 * searched for one matching the hostname. The trust store is loaded and the
+	 * scheme is replaced only when a new certificate is added, not on every
+	 * request.
+	 * 
+	 * @param hostname The name of the host to connect to
+	 * @param certificate The certificate to accept for this host or null
+	 */
+	public synchronized void trustHost(String hostname, X509Certificate certificate)
+	{
+		if (certificate == null)
+		{
+			if (_Certificates.containsKey(hostname))
+				return;
+		}
+		else if (certificate.equals(_Certificates.get(hostname)))
+		{
+			return;
+		}
+
+		try
+		{
+			if (certificate == null)
+			{
+				certificate = Helpers.getCertificate(hostname);
+			}
+			_Certificates.put(hostname, certificate);
+
+			if (certificate != null)
+			{
+				if (_TrustStore == null)
+				{
+					_TrustStore = Helpers.getExtendedKeyStore();
+				}
+				_TrustStore.setCertificateEntry(hostname, certificate);
+				register(new Scheme("https", 443, new SSLLayeringStrategy(_TrustStore)));
+			}
+		}
+		catch (Exception ex)
+		{
+			// Ignore exceptions that happen while trying to add extra certificates to keystore
+			Logger.Log("Failed to add certificate for " + hostname, LogLevel.Debug, ex);
+		}
+	}
+
+	/**
+	 * Stop the I/O threads and close all pooled connections. Requests still
+	 * pending are aborted.
+	 */
+	public void shutdown()
+	{
+		_Running = false;
+		_Timer.cancel();
+		_Executor.shutdown();
+		try
+		{
+			_Client.shutdown();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class ReactorThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+		private final String prefix;
+
+		public ReactorThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, prefix + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -89,6 +89,11 @@ public class RpcClient extends AsyncHTTPClient<OSD>
 		super(name);
 	}
 
+	public RpcClient(String name, HttpReactor reactor)
+	{
+		super(name, reactor);
+	}
+
 	@Override
 	protected void finalize() throws Throwable
 	{
@@ -0,0 +1,306 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the openmetaverse.org or libomv-java project nor the
+ *   names of its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.imaging;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import jj2000.j2k.io.EndianType;
+import jj2000.j2k.io.RandomAccessIO;
+
+/**
+ * Read-only {@link RandomAccessIO} over data that is already in memory
+ *
+ * Reads go straight to the backing byte array or buffer, which can also be a
+ * direct or memory-mapped one, so unlike ISRandomAccessIO nothing is copied into
+ * an internal cache first. The backing data must not change while it is read.
+ */
+public class ByteBufferRandomAccessIO implements RandomAccessIO
+{
+	/* The data from the position of the buffer passed in up to its limit */
+	private ByteBuffer buffer;
+	/* Second view of the same data for the relative bulk reads */
+	private ByteBuffer view;
+	private int pos;
+
+	/**
+	 * Creates a reader over the whole byte array
+	 *
+	 * @param data The data to read
+	 */
+	public ByteBufferRandomAccessIO(byte[] data)
+	{
+		this(data, 0, data.length);
+	}
+
+	/**
+	 * Creates a reader over a range of a byte array
+	 *
+	 * @param data The data to read
+	 * @param offset The offset of the first byte in the array, which becomes position 0
+	 * @param length The number of bytes to read
+	 */
+	public ByteBufferRandomAccessIO(byte[] data, int offset, int length)
+	{
+		this(ByteBuffer.wrap(data, offset, length));
+	}
+
+	/**
+	 * Creates a reader over the remaining bytes of a buffer. The current position of
+	 * the buffer becomes position 0 of the reader, and neither the position nor the
+	 * limit of the buffer are changed by reading.
+	 *
+	 * @param data The data to read
+	 */
+	public ByteBufferRandomAccessIO(ByteBuffer data)
+	{
+		// slice() shares the content and always has big endian byte order
+		buffer = data.slice();
+		view = buffer.duplicate();
+		pos = 0;
+	}
+
+	/**
+	 * Releases the references to the backing data. Reading afterwards fails.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		buffer = null;
+		view = null;
+	}
+
+	@Override
+	public int getPos() throws IOException
+	{
+		return pos;
+	}
+
+	@Override
+	public int length() throws IOException
+	{
+		return buffer.limit();
+	}
+
+	/**
+	 * Moves the current position. Seeking to the end of the data is allowed, seeking
+	 * beyond it is not.
+	 *
+	 * @param off The new position
+	 * @throws EOFException If the position is beyond the end of the data
+	 */
+	@Override
+	public void seek(int off) throws IOException
+	{
+		if (off > buffer.limit())
+		{
+			throw new EOFException();
+		}
+		pos = off;
+	}
+
+	@Override
+	public int read() throws EOFException, IOException
+	{
+		if (pos >= buffer.limit())
+		{
+			throw new EOFException();
+		}
+		return buffer.get(pos++) & 0xFF;
+	}
+
+	@Override
+	public void readFully(byte[] b, int off, int n) throws IOException
+	{
+		if (pos + n > buffer.limit())
+		{
+			throw new EOFException();
+		}
+		view.position(pos);
+		view.get(b, off, n);
+		pos += n;
+	}
+
+	@Override
+	public int getByteOrdering()
+	{
+		return EndianType.BIG_ENDIAN;
+	}
+
+	@Override
+	public byte readByte() throws EOFException, IOException
+	{
+		if (pos >= buffer.limit())
+		{
+			throw new EOFException();
+		}
+		return buffer.get(pos++);
+	}
+
+	@Override
+	public int readUnsignedByte() throws EOFException, IOException
+	{
+		return read();
+	}
+
+	@Override
+	public short readShort() throws EOFException, IOException
+	{
+		return buffer.getShort(advance(2));
+	}
+
+	@Override
+	public int readUnsignedShort() throws EOFException, IOException
+	{
+		return buffer.getShort(advance(2)) & 0xFFFF;
+	}
+
+	@Override
+	public int readInt() throws EOFException, IOException
+	{
+		return buffer.getInt(advance(4));
+	}
+
+	@Override
+	public long readUnsignedInt() throws EOFException, IOException
+	{
+		return buffer.getInt(advance(4)) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public long readLong() throws EOFException, IOException
+	{
+		return buffer.getLong(advance(8));
+	}
+
+	@Override
+	public float readFloat() throws EOFException, IOException
+	{
+		return buffer.getFloat(advance(4));
+	}
+
+	@Override
+	public double readDouble() throws EOFException, IOException
+	{
+		return buffer.getDouble(advance(8));
+	}
+
+	/**
+	 * Skips bytes of the data
+	 *
+	 * @param n The number of bytes to skip
+	 * @return Always n
+	 * @throws EOFException If the end of the data is reached before all bytes are skipped
+	 */
+	@Override
+	public int skipBytes(int n) throws EOFException, IOException
+	{
+		if (pos + n > buffer.limit())
+		{
+			throw new EOFException();
+		}
+		pos += n;
+		return n;
+	}
+
+	/**
+	 * Does nothing, since the data is never written
+	 */
+	@Override
+	public void flush()
+	{
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		throw new IOException("read-only");
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException
+	{
+		throw new IOException("read-only");
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		throw new IOException("read-only");
+	}
+
+	@Override
+	public void writeByte(int v) throws IOException
+	{
+		throw new IOException("read-only");
+	}
+
+	@Override
+	public void writeShort(int v) throws IOException
+	{
+		throw new IOException("read-only");
+	}
+
+	@Override
+	public void writeInt(int v) throws IOException
+	{
+		throw new IOException("read-only");
+	}
+
+	@Override
+	public void writeLong(long v) throws IOException
+	{
+		throw new IOException("read-only");
+	}
+
+	@Override
+	public void writeFloat(float v) throws IOException
+	{
+		throw new IOException("read-only");
+	}
+
+	@Override
+	public void writeDouble(double v) throws IOException
+	{
+		throw new IOException("read-only");
+	}
+
+	/* Returns the current position and moves it past n bytes, if there are that many left */
+	private int advance(int n) throws EOFException
+	{
+		int off = pos;
+		if (off + n > buffer.limit())
+		{
+			throw new EOFException();
+		}
+		pos = off + n;
+		return off;
+	}
+}
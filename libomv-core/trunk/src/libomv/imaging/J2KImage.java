@@ -31,359 +31,144 @@ package libomv.imaging;
 import icc.ICCProfileException;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
 
-import jj2000.j2k.JJ2KExceptionHandler;
+import jj2000.j2k.codestream.HeaderInfo;
+import jj2000.j2k.codestream.reader.BitstreamReaderAgent;
+import jj2000.j2k.codestream.reader.CBlkInfo;
+import jj2000.j2k.codestream.reader.FileBitstreamReaderAgent;
+import jj2000.j2k.codestream.reader.HeaderDecoder;
+import jj2000.j2k.codestream.reader.PktDecoder;
+import jj2000.j2k.decoder.DecoderSpecs;
 import jj2000.j2k.decoder.ImgDecoder;
 import jj2000.j2k.encoder.ImgEncoder;
 import jj2000.j2k.fileformat.reader.FileFormatReader;
 import jj2000.j2k.image.BlkImgDataSrc;
 import jj2000.j2k.image.Coord;
-import jj2000.j2k.image.DataBlk;
 import jj2000.j2k.image.DataBlkInt;
-import jj2000.j2k.image.input.ImgReader;
 import jj2000.j2k.io.RandomAccessIO;
 import jj2000.j2k.util.ISRandomAccessIO;
 import jj2000.j2k.util.ParameterList;
 
 public class J2KImage extends ManagedImage
 {
+	/**
+	 * Byte span of a quality layer or resolution level inside an encoded codestream.
+	 * Start is the offset of the first packet and End the offset just past the last
+	 * packet, so End is the number of codestream bytes needed to contain all of it.
+	 */
 	public class J2KLayerInfo
 	{
         public int Start;
         public int End;
 	}
 
-	private class PixelScale
-	{
-		int ls, mv, fb;
-	}
-	
-	private class ImgReaderMI extends ImgReader
+	/**
+	 * Packet decoder that records the codestream span of every packet the bit stream
+	 * reader walks over. The packet bodies are only skipped, so no code-block is ever
+	 * entropy decoded. Running into the end of a truncated codestream ends the tile
+	 * the same way reaching the decoding rate does, instead of failing the scan.
+	 * A packet that is cut short is not recorded.
+	 */
+	private static class PacketScanner extends PktDecoder
 	{
-		/**
-		 * Temporary DataBlkInt object (needed when encoder uses floating-point
-		 * filters). This avoids allocating new DataBlk at each time
-		 */
-		private DataBlkInt intBlk;
-		
-		private byte ptrs[][];
-
-		public ImgReaderMI(int numComp)
-		{
-			w = getWidth();
-			h = getHeight();
-			nc = numComp;
-			ptrs = new byte[nc][];
-			for (int i = 0; i < nc; i++)
-			{
-				switch (i)
-				{
-					case 0:
-						ptrs[i] = getRed();
-						break;
-					case 1:
-						if (nc > 2)
-							ptrs[i] = getGreen();
-						else
-							ptrs[i] = getAlpha();
-						break;
-					case 2:
-						ptrs[i] = getBlue();
-						break;
-					case 3:
-						ptrs[i] = getAlpha();
-						break;
-					case 5:
-						ptrs[i] = getBump();
-						break;
-	                default:
-	                	throw new InvalidParameterException();
-				}
-			}
-			
-		}
+		private RandomAccessIO in;
+		private int start;
+		private int[][] layers;
+		private int[][] levels;
 
-		
-		/* BlkImageDataSrc methods */
-		/**
-		 * Returns the position of the fixed point in the specified component (i.e.
-		 * the number of fractional bits), which is always 0 for this ImgReader.
-		 * 
-		 * @param c
-		 *            The index of the component.
-		 * 
-		 * @return The position of the fixed-point (i.e. the number of fractional
-		 *         bits). Always 0 for this ImgReader.
-		 */
-		@Override
-		public int getFixedPoint(int c)
+		public PacketScanner(DecoderSpecs decSpec, HeaderDecoder hd, RandomAccessIO in, BitstreamReaderAgent src)
 		{
-			// Check component index
-			if (c < 0 || c >= nc)
-				throw new IllegalArgumentException();
-			return 0;
+			// Outside of truncation mode readPktBody() throws on a packet cut short
+			// instead of ending the tile, which tells it apart from a complete one
+			super(decSpec, hd, in, src, false, -1);
+			this.in = in;
+			this.layers = new int[decSpec.nls.getMax()][2];
+			this.levels = new int[decSpec.dls.getMax() + 1][2];
 		}
 
-		/**
-		 * Returns the number of bits corresponding to the nominal range of the data
-		 * in the specified component. This is the value rb (range bits) that was
-		 * specified in the constructor, which normally is 8 for non bilevel data,
-		 * and 1 for bilevel data.
-		 * 
-		 * <P>
-		 * If this number is <i>b</b> then the nominal range is between -2^(b-1) and
-		 * 2^(b-1)-1, since unsigned data is level shifted to have a nominal avergae
-		 * of 0.
-		 * 
-		 * @param c
-		 *            The index of the component.
-		 * 
-		 * @return The number of bits corresponding to the nominal range of the
-		 *         data. For floating-point data this value is not applicable and
-		 *         the return value is undefined.
-		 */
 		@Override
-		public int getNomRangeBits(int c)
+		public boolean readSOPMarker(int[] nBytes, int p, int c, int r) throws IOException
 		{
-			// Check component index
-			if (c < 0 || c >= nc)
-				throw new IllegalArgumentException();
-
-			return getBitDepth();
+			// Called for every packet after any tile-part change, so this is where it starts
+			start = in.getPos();
+			try
+			{
+				return super.readSOPMarker(nBytes, p, c, r);
+			}
+			catch (EOFException ex)
+			{
+				return true;
+			}
 		}
 
-
-		/**
-		 * Returns, in the blk argument, the block of image data containing the
-		 * specifed rectangular area, in the specified component. The data is
-		 * returned, as a reference to the internal data, if any, instead of as a
-		 * copy, therefore the returned data should not be modified.
-		 * 
-		 * <P>
-		 * After being read the coefficients are level shifted by subtracting
-		 * 2^(nominal bit range - 1)
-		 * 
-		 * <P>
-		 * The rectangular area to return is specified by the 'ulx', 'uly', 'w' and
-		 * 'h' members of the 'blk' argument, relative to the current tile. These
-		 * members are not modified by this method. The 'offset' and 'scanw' of the
-		 * returned data can be arbitrary. See the 'DataBlk' class.
-		 * 
-		 * <P>
-		 * If the data array in <tt>blk</tt> is <tt>null</tt>, then a new one is
-		 * created if necessary. The implementation of this interface may choose to
-		 * return the same array or a new one, depending on what is more efficient.
-		 * Therefore, the data array in <tt>blk</tt> prior to the method call should
-		 * not be considered to contain the returned data, a new array may have been
-		 * created. Instead, get the array from <tt>blk</tt> after the method has
-		 * returned.
-		 * 
-		 * <P>
-		 * The returned data always has its 'progressive' attribute unset (i.e.
-		 * false).
-		 * 
-		 * <P>
-		 * When an I/O exception is encountered the JJ2KExceptionHandler is used.
-		 * The exception is passed to its handleException method. The action that is
-		 * taken depends on the action that has been registered in
-		 * JJ2KExceptionHandler. See JJ2KExceptionHandler for details.
-		 * 
-		 * <P>
-		 * This method implements buffering for the 3 components: When the first one
-		 * is asked, all the 3 components are read and stored until they are needed.
-		 * 
-		 * @param blk
-		 *            Its coordinates and dimensions specify the area to return.
-		 *            Some fields in this object are modified to return the data.
-		 * 
-		 * @param c
-		 *            The index of the component from which to get the data. Only 0,
-		 *            1 and 3 are valid.
-		 * 
-		 * @return The requested DataBlk
-		 * 
-		 * @see #getCompData
-		 * 
-		 * @see JJ2KExceptionHandler
-		 */
 		@Override
-		public DataBlk getInternCompData(DataBlk blk, int c)
+		public boolean readPktHead(int l, int r, int c, int p, CBlkInfo[][][] cbI, int[] nb) throws IOException
 		{
-			// Check component index
-			if (c < 0 || c >= nc)
-				throw new IllegalArgumentException();
-
-			// Check type of block provided as an argument
-			if (blk.getDataType() != DataBlk.TYPE_INT)
+			try
 			{
-				if (intBlk == null)
-					intBlk = new DataBlkInt(blk.ulx, blk.uly, blk.w, blk.h);
-				else
-				{
-					intBlk.ulx = blk.ulx;
-					intBlk.uly = blk.uly;
-					intBlk.w = blk.w;
-					intBlk.h = blk.h;
-				}
-				blk = intBlk;
+				return super.readPktHead(l, r, c, p, cbI, nb);
 			}
-
-			// Get data array
-			int[] barr = (int[]) blk.getData();
-			if (barr == null || barr.length < blk.w * blk.h)
-			{
-				barr = new int[blk.w * blk.h];
-				blk.setData(barr);
-			}
-			
-			int i, j, k, mi = blk.uly + blk.h;
-			int levShift = 1 << (getBitDepth() - 1);
-			byte buf[] = ptrs[c];
-
-			for (i = blk.uly; i < mi; i++)
+			catch (EOFException ex)
 			{
-				for (k = (i - blk.uly) * blk.w + blk.w - 1, j = blk.w - 1; j >= 0; k--)
-					barr[k] = ((buf[j--] & 0xFF) - levShift);
+				return true;
 			}
-			
-			// Turn off the progressive attribute
-			blk.progressive = false;
-			// Set buffer attributes
-			blk.offset = 0;
-			blk.scanw = blk.w;
-			return blk;
 		}
 
-		/**
-		 * Returns, in the blk argument, a block of image data containing the
-		 * specifed rectangular area, in the specified component. The data is
-		 * returned, as a copy of the internal data, therefore the returned data can
-		 * be modified "in place".
-		 * 
-		 * <P>
-		 * After being read the coefficients are level shifted by subtracting
-		 * 2^(nominal bit range - 1)
-		 * 
-		 * <P>
-		 * The rectangular area to return is specified by the 'ulx', 'uly', 'w' and
-		 * 'h' members of the 'blk' argument, relative to the current tile. These
-		 * members are not modified by this method. The 'offset' of the returned
-		 * data is 0, and the 'scanw' is the same as the block's width. See the
-		 * 'DataBlk' class.
-		 * 
-		 * <P>
-		 * If the data array in 'blk' is 'null', then a new one is created. If the
-		 * data array is not 'null' then it is reused, and it must be large enough
-		 * to contain the block's data. Otherwise an 'ArrayStoreException' or an
-		 * 'IndexOutOfBoundsException' is thrown by the Java system.
-		 * 
-		 * <P>
-		 * The returned data has its 'progressive' attribute unset (i.e. false).
-		 * 
-		 * <P>
-		 * When an I/O exception is encountered the JJ2KExceptionHandler is used.
-		 * The exception is passed to its handleException method. The action that is
-		 * taken depends on the action that has been registered in
-		 * JJ2KExceptionHandler. See JJ2KExceptionHandler for details.
-		 * 
-		 * @param blk
-		 *            Its coordinates and dimensions specify the area to return. If
-		 *            it contains a non-null data array, then it must have the
-		 *            correct dimensions. If it contains a null data array a new one
-		 *            is created. The fields in this object are modified to return
-		 *            the data.
-		 * 
-		 * @param c
-		 *            The index of the component from which to get the data. Between null and numComp -1.
-		 * 
-		 * @return The requested DataBlk
-		 * 
-		 * @see #getInternCompData
-		 * 
-		 * @see JJ2KExceptionHandler
-		 */
 		@Override
-		public final DataBlk getCompData(DataBlk blk, int c)
+		public boolean readPktBody(int l, int r, int c, int p, CBlkInfo[][][] cbI, int[] nb) throws IOException
 		{
-			// NOTE: can not directly call getInternCompData since that returns
-			// internally buffered data.
-			int w, h;
-
-			// Check type of block provided as an argument
-			if (blk.getDataType() != DataBlk.TYPE_INT)
+			boolean stop;
+			try
 			{
-				DataBlkInt tmp = new DataBlkInt(blk.ulx, blk.uly, blk.w, blk.h);
-				blk = tmp;
+				stop = super.readPktBody(l, r, c, p, cbI, nb);
 			}
-
-			int bakarr[] = (int[]) blk.getData();
-			// Save requested block size
-			w = blk.w;
-			h = blk.h;
-			// Force internal data buffer to be different from external
-			blk.setData(null);
-			getInternCompData(blk, c);
-			// Copy the data
-			if (bakarr == null)
+			catch (EOFException ex)
 			{
-				bakarr = new int[w * h];
+				return true;
 			}
-			if (blk.offset == 0 && blk.scanw == w)
-			{
-				// Requested and returned block buffer are the same size
-				System.arraycopy(blk.getData(), 0, bakarr, 0, w * h);
-			}
-			else
-			{ // Requested and returned block are different
-				for (int i = h - 1; i >= 0; i--)
-				{ // copy line by line
-					System.arraycopy(blk.getData(), blk.offset + i * blk.scanw, bakarr, i * w, w);
-				}
-			}
-			blk.setData(bakarr);
-			blk.offset = 0;
-			blk.scanw = blk.w;
-			return blk;
+			record(layers, l, start, in.getPos());
+			record(levels, r, start, in.getPos());
+			return stop;
 		}
 
-		/* ImgReader methods */
-		/**
-		 * Closes the underlying file from where the image data is being read. No
-		 * operations are possible after a call to this method.
-		 * 
-		 * @exception IOException
-		 *                If an I/O error occurs.
-		 */
-		@Override
-		public void close() throws IOException
+		private static void record(int[][] spans, int idx, int start, int end)
 		{
-			// Nothing to do here.		
+			if (idx < spans.length)
+			{
+				if (spans[idx][1] == 0 || start < spans[idx][0])
+					spans[idx][0] = start;
+				if (end > spans[idx][1])
+					spans[idx][1] = end;
+			}
 		}
+	}
 
-		/**
-		 * Returns true if the data read was originally signed in the specified
-		 * component, false if not. This method always returns false since PPM data
-		 * is always unsigned.
-		 * 
-		 * @param c
-		 *            The index of the component, from 0 to N-1.
-		 * 
-		 * @return always false, since PPM data is always unsigned.
-		 */
-		@Override
-		public boolean isOrigSigned(int c)
-		{
-			// Check component index
-			if (c < 0 || c >= nc)
-				throw new IllegalArgumentException();
-			return false;
-		}
+	private class PixelScale
+	{
+		int ls, mv, fb;
 	}
 
+	/* Number of threads entropy decoding the code-blocks of a subband, 0 for one per processor */
+	private static volatile int decoderThreads;
+
+	/**
+	 * Set the number of threads that entropy decode the code-blocks of a subband
+	 * in parallel, including the calling thread. The decoded image is the same
+	 * for any number of threads.
+	 *
+	 * @param threads The number of threads, 0 to use one per processor
+	 */
+	public static void setDecoderThreads(int threads)
+	{
+		decoderThreads = Math.max(0, threads);
+	}
+	
 	private J2KImage()
 	{
 		
@@ -427,6 +212,8 @@ public class J2KImage extends ManagedImage
     /**
      * Encode a <seealso cref="ManagedImage"/> object into a byte array
      * 
+     * The codestream is written wrapped in the jp2 file format, which all decode methods read.
+     * 
      * @param os The <seealso cref="OutputStream"/> to encode the image into
      * @param image The <seealso cref="ManagedImage"/> object to encode
      * @param lossless true to enable lossless conversion, only useful for small images ie: sculptmaps
@@ -468,7 +255,7 @@ public class J2KImage extends ManagedImage
 		}
 		
 		ImgEncoder enc = new ImgEncoder(pl);
-        ImgReaderMI source = new J2KImage().new ImgReaderMI(components);
+        J2KImageReader source = new J2KImageReader(image, components);
         
         boolean[] imsigned = new boolean[components];
         for (int i = 0; i < components; i++)
@@ -489,8 +276,101 @@ public class J2KImage extends ManagedImage
 
 	public static J2KImage decode(InputStream is) throws IllegalArgumentException, IOException, ICCProfileException
 	{
-		BlkImgDataSrc dataSrc = decodeInternal(is);
-		
+		return decode(is, 0, 0);
+	}
+
+	/**
+	 * Decode a JPEG2000 codestream at a reduced resolution and/or quality
+	 * 
+	 * The resolution levels above the discard level are left out of the wavelet
+	 * synthesis and their code-blocks are never entropy decoded. Limiting the
+	 * quality layers stops the entropy decoding of each code-block after that layer.
+	 * 
+	 * @param is The <seealso cref="InputStream"/> to read the codestream from
+	 * @param discardLevel The number of highest resolution levels to drop, each one
+	 *            halving the image dimensions, 0 for the full resolution. Values beyond
+	 *            the levels in the codestream decode the lowest resolution it has
+	 * @param maxLayers The maximum number of quality layers to decode, 0 for all layers
+	 * @return The decoded image
+	 */
+	public static J2KImage decode(InputStream is, int discardLevel, int maxLayers) throws IllegalArgumentException, IOException, ICCProfileException
+	{
+		return decode(decodeInternal(new ISRandomAccessIO(is), discardLevel, 0, maxLayers));
+	}
+
+	/**
+	 * Decode a JPEG2000 codestream at the lowest discard level that fits a maximum size
+	 * 
+	 * @param is The <seealso cref="InputStream"/> to read the codestream from
+	 * @param maxSize The maximum width and height of the decoded image. The lowest
+	 *            resolution in the codestream is returned if even that is larger
+	 * @param maxLayers The maximum number of quality layers to decode, 0 for all layers
+	 * @return The decoded image
+	 */
+	public static J2KImage decodeMaxSize(InputStream is, int maxSize, int maxLayers) throws IllegalArgumentException, IOException, ICCProfileException
+	{
+		return decode(decodeInternal(new ISRandomAccessIO(is), 0, maxSize, maxLayers));
+	}
+
+	/**
+	 * Decode a JPEG2000 codestream that is already in memory
+	 * 
+	 * The codestream is read in place, without copying it into a stream cache first.
+	 * 
+	 * @param encoded The encoded codestream
+	 * @return The decoded image
+	 */
+	public static J2KImage decode(byte[] encoded) throws IllegalArgumentException, IOException, ICCProfileException
+	{
+		return decode(ByteBuffer.wrap(encoded), 0, 0);
+	}
+
+	/**
+	 * Decode a JPEG2000 codestream from the remaining bytes of a buffer
+	 * 
+	 * The buffer is read in place, so it can also be a direct or memory-mapped one.
+	 * Its position and limit are left unchanged.
+	 * 
+	 * @param encoded The buffer holding the codestream
+	 * @return The decoded image
+	 */
+	public static J2KImage decode(ByteBuffer encoded) throws IllegalArgumentException, IOException, ICCProfileException
+	{
+		return decode(encoded, 0, 0);
+	}
+
+	/**
+	 * Decode a JPEG2000 codestream from the remaining bytes of a buffer at a reduced
+	 * resolution and/or quality
+	 * 
+	 * @param encoded The buffer holding the codestream
+	 * @param discardLevel The number of highest resolution levels to drop, 0 for the full resolution
+	 * @param maxLayers The maximum number of quality layers to decode, 0 for all layers
+	 * @return The decoded image
+	 * @see #decode(InputStream, int, int)
+	 */
+	public static J2KImage decode(ByteBuffer encoded, int discardLevel, int maxLayers) throws IllegalArgumentException, IOException, ICCProfileException
+	{
+		return decode(decodeInternal(new ByteBufferRandomAccessIO(encoded), discardLevel, 0, maxLayers));
+	}
+
+	/**
+	 * Decode a JPEG2000 codestream from the remaining bytes of a buffer at the lowest
+	 * discard level that fits a maximum size
+	 * 
+	 * @param encoded The buffer holding the codestream
+	 * @param maxSize The maximum width and height of the decoded image
+	 * @param maxLayers The maximum number of quality layers to decode, 0 for all layers
+	 * @return The decoded image
+	 * @see #decodeMaxSize(InputStream, int, int)
+	 */
+	public static J2KImage decodeMaxSize(ByteBuffer encoded, int maxSize, int maxLayers) throws IllegalArgumentException, IOException, ICCProfileException
+	{
+		return decode(decodeInternal(new ByteBufferRandomAccessIO(encoded), 0, maxSize, maxLayers));
+	}
+
+	private static J2KImage decode(BlkImgDataSrc dataSrc)
+	{
 		int ncomps = dataSrc.getNumComps();
 
 		// Check component sizes and bit depths
@@ -527,9 +407,21 @@ public class J2KImage extends ManagedImage
 				throw new IllegalArgumentException("Decoded image with unhandled number of components: " + ncomps);
 		}		
 
-		J2KImage image = new J2KImage(height, width, channels);
+		// When decoding at a reduced resolution level only the image size reflects it,
+		// the component and tile sizes still describe the full resolution grid
+		int shift = 0;
+		while (((width + (1 << shift) - 1) >> shift) > dataSrc.getImgWidth())
+		{
+			shift++;
+		}
+		width = dataSrc.getImgWidth();
+		height = dataSrc.getImgHeight();
+
+		J2KImage image = new J2KImage(width, height, channels);
 		
 		int tOffx, tOffy; // Active tile offset
+		int tUlx, tUly; // Active tile origin at full resolution
+		int round = (1 << shift) - 1;
 		int tIdx = 0; // index of the current tile
 		int off, l, x, y;
 		Coord nT = dataSrc.getNumTiles(null);
@@ -555,14 +447,16 @@ public class J2KImage extends ManagedImage
 			{
 				dataSrc.setTile(x, y);
 
-				// Initialize tile
-				height = dataSrc.getTileCompHeight(tIdx, 0);
-				width = dataSrc.getTileCompWidth(tIdx, 0);
+				// Initialize tile, scaled down to the decoded resolution level
+				tUlx = dataSrc.getCompULX(0);
+				tUly = dataSrc.getCompULY(0);
+				height = ((tUly + dataSrc.getTileCompHeight(tIdx, 0) + round) >> shift) - ((tUly + round) >> shift);
+				width = ((tUlx + dataSrc.getTileCompWidth(tIdx, 0) + round) >> shift) - ((tUlx + round) >> shift);
 
 				// The offset of the active tiles is the same for all components,
 				// since we don't support different component dimensions.
-				tOffx = dataSrc.getCompULX(0) - (int) Math.ceil(dataSrc.getImgULX() / (double) dataSrc.getCompSubsX(0));
-				tOffy = dataSrc.getCompULY(0) - (int) Math.ceil(dataSrc.getImgULY() / (double) dataSrc.getCompSubsY(0));
+				tOffx = ((tUlx + round) >> shift) - (int) Math.ceil(dataSrc.getImgULX() / (double) dataSrc.getCompSubsX(0));
+				tOffy = ((tUly + round) >> shift) - (int) Math.ceil(dataSrc.getImgULY() / (double) dataSrc.getCompSubsY(0));
 				off = tOffy * image.getWidth() + tOffx;
 
 				// Deliver in lines to reduce memory usage
@@ -597,6 +491,7 @@ public class J2KImage extends ManagedImage
 		                default:
 		                	throw new InvalidParameterException();
 					}
+					off += image.getWidth();
 				}
 			}
 		}
@@ -614,12 +509,114 @@ public class J2KImage extends ManagedImage
 		}
 	}
 
-	public static J2KLayerInfo[] decodeLayerBoundaries(byte[] encoded)
+	/**
+	 * Scans the packets of a JPEG2000 codestream and returns the byte span of each
+	 * quality layer, without decoding any image data
+	 * 
+	 * @param encoded The encoded codestream, optionally wrapped in the jp2 file format
+	 * @return One entry per quality layer, starting with the lowest quality layer. For
+	 *         a truncated codestream only the layers whose packets are present are returned
+	 * @throws IOException if the codestream headers could not be read
+	 */
+	public static J2KLayerInfo[] decodeLayerBoundaries(byte[] encoded) throws IOException
 	{
-		return null;
+		return scanPackets(encoded, true);
 	}
-	
-	private static BlkImgDataSrc decodeInternal(InputStream is) throws IOException, ICCProfileException
+
+	/**
+	 * Scans the packets of a JPEG2000 codestream and returns the byte span of each
+	 * resolution level, without decoding any image data
+	 * 
+	 * @param encoded The encoded codestream, optionally wrapped in the jp2 file format
+	 * @return One entry per resolution level, starting with the lowest resolution. For
+	 *         a truncated codestream only the levels whose packets are present are returned
+	 * @throws IOException if the codestream headers could not be read
+	 */
+	public static J2KLayerInfo[] decodeResolutionBoundaries(byte[] encoded) throws IOException
+	{
+		return scanPackets(encoded, false);
+	}
+
+	/**
+	 * Calculates how many bytes of a codestream are needed to decode it at a discard level
+	 * 
+	 * The prefix holds every packet of the remaining resolution levels, and decoding it
+	 * gives the same result for those levels as decoding the complete codestream. A
+	 * codestream cut anywhere else decodes all packets that are complete in it.
+	 * 
+	 * @param resolutions The resolution level spans as returned by {@link #decodeResolutionBoundaries}
+	 * @param discardLevel The number of highest resolution levels to drop, 0 for the full image
+	 * @return The length of the codestream prefix containing all packets of the remaining
+	 *         resolution levels, or 0 if no resolution level remains
+	 */
+	public static int getDiscardLevelLength(J2KLayerInfo[] resolutions, int discardLevel)
+	{
+		int length = 0;
+		for (int r = resolutions.length - 1 - discardLevel; r >= 0; r--)
+		{
+			if (resolutions[r].End > length)
+				length = resolutions[r].End;
+		}
+		return length;
+	}
+
+	private static J2KLayerInfo[] scanPackets(byte[] encoded, boolean byLayer) throws IOException
+	{
+		ParameterList pl = getDecoderParameters();
+		// Truncation mode reads the packets exactly as they are laid out, up to the end
+		// of the available data, without the parsing mode's rate allocation pass
+		pl.put("parsing", "off");
+
+		RandomAccessIO in = new ByteBufferRandomAccessIO(encoded);
+		try
+		{
+			FileFormatReader ff = new FileFormatReader(in);
+			ff.readFileFormat();
+			if (ff.JP2FFUsed)
+			{
+				in.seek(ff.getFirstCodeStreamPos());
+			}
+
+			HeaderInfo hi = new HeaderInfo();
+			HeaderDecoder hd = new HeaderDecoder(in, pl, hi);
+			DecoderSpecs decSpec = hd.getDecoderSpecs();
+			FileBitstreamReaderAgent breader = (FileBitstreamReaderAgent) BitstreamReaderAgent.createInstance(in, hd, pl, decSpec, false, hi);
+
+			// Reading the packets of a tile is all setTile() does with them before the
+			// entropy decoder asks for code-blocks, so walking the tiles is the whole scan
+			PacketScanner scanner = new PacketScanner(decSpec, hd, in, breader);
+			breader.pktDec = scanner;
+			Coord nT = breader.getNumTiles(null);
+			for (int y = 0; y < nT.y; y++)
+			{
+				for (int x = 0; x < nT.x; x++)
+				{
+					breader.setTile(x, y);
+				}
+			}
+
+			int[][] spans = byLayer ? scanner.layers : scanner.levels;
+			int count = 0;
+			while (count < spans.length && spans[count][1] > 0)
+				count++;
+
+			J2KImage outer = new J2KImage();
+			J2KLayerInfo[] info = new J2KLayerInfo[count];
+			for (int i = 0; i < count; i++)
+			{
+				info[i] = outer.new J2KLayerInfo();
+				info[i].Start = spans[i][0];
+				info[i].End = spans[i][1];
+			}
+			return info;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static ParameterList getDecoderParameters()
 	{
 		ParameterList defpl = new ParameterList();
     	String[][] param = ImgDecoder.getAllParameters();
@@ -631,10 +628,25 @@ public class J2KImage extends ManagedImage
     	    	defpl.put(param[i][0], param[i][3]);
             }
         }
+        ParameterList pl = new ParameterList(defpl);
 
-        ImgDecoder decoder = new ImgDecoder(new ParameterList(defpl));
-        
-        RandomAccessIO in = new ISRandomAccessIO(is);
+        // Entropy decode the code-blocks on all processors, if the jj2000 build supports it
+        if (defpl.getParameter("Cthreads") != null)
+        {
+        	int threads = decoderThreads;
+        	pl.put("Cthreads", Integer.toString(threads > 0 ? threads : Runtime.getRuntime().availableProcessors()));
+        }
+        return pl;
+	}
+
+	private static BlkImgDataSrc decodeInternal(RandomAccessIO in, int discardLevel, int maxSize, int maxLayers) throws IOException, ICCProfileException
+	{
+		ParameterList pl = getDecoderParameters();
+		// Truncation mode reads the packets in codestream order and stops at the end
+		// of the data, so a codestream prefix decodes the packets it holds exactly as
+		// the full codestream does. The default parsing mode allocates the rate over
+		// all packets first, which gives a different image for a prefix.
+		pl.put("parsing", "off");
 
 		// **** File Format ****
 		// If the codestream is wrapped in the jp2 fileformat, Read the file format wrapper
@@ -644,6 +656,40 @@ public class J2KImage extends ManagedImage
 		{
 			in.seek(ff.getFirstCodeStreamPos());
 		}
-		return decoder.decode(in, ff, false);
+
+		if (ff.JP2FFUsed || discardLevel > 0 || maxSize > 0)
+		{
+			// Peek at the main header for the number of components, the number of
+			// decomposition levels and the image size
+			int pos = in.getPos();
+			HeaderDecoder hd = new HeaderDecoder(in, pl, new HeaderInfo());
+			if (ff.JP2FFUsed && hd.getNumComps() != 1 && hd.getNumComps() != 3)
+			{
+				// The jp2 colour space mapping only handles gray and colour images. The
+				// alpha and bump components of a texture are taken as they are
+				pl.put("nocolorspace", "on");
+			}
+			if (discardLevel > 0 || maxSize > 0)
+			{
+				// The decoder wants an absolute resolution level index
+				int levels = hd.getDecoderSpecs().dls.getMin();
+				if (maxSize > 0)
+				{
+					int size = Math.max(hd.getImgWidth(), hd.getImgHeight());
+					while (discardLevel < levels && ((size + (1 << discardLevel) - 1) >> discardLevel) > maxSize)
+					{
+						discardLevel++;
+					}
+				}
+				pl.put("res", Integer.toString(Math.max(0, levels - discardLevel)));
+			}
+			in.seek(pos);
+		}
+		if (maxLayers > 0)
+		{
+			// The bit stream reader stops one layer short of l_quit
+			pl.put("l_quit", Integer.toString(maxLayers + 1));
+		}
+		return new ImgDecoder(pl).decode(in, ff, false);
 	}
 }
@@ -47,7 +47,7 @@ public class J2KImageReader extends ImgReader
 				case 3:
 					dataPtrs[i] = image.getAlpha();
 					break;
-				case 5:
+				case 4:
 					dataPtrs[i] = image.getBump();
 					break;
                 default:
@@ -190,12 +190,12 @@ public class J2KImageReader extends ImgReader
 		}
 		
 		int i, j, k, mi = blk.uly + blk.h;
-		int levShift = 1 << (image.getBitDepth() - 1);
+		int levShift = 1 << (rb - 1);
 		byte buf[] = dataPtrs[c];
 
 		for (i = blk.uly; i < mi; i++)
 		{
-			for (k = (i - blk.uly) * blk.w + blk.w - 1, j = blk.w - 1; j >= 0; k--)
+			for (k = (i - blk.uly) * blk.w + blk.w - 1, j = i * w + blk.ulx + blk.w - 1; k >= (i - blk.uly) * blk.w; k--)
 				barr[k] = ((buf[j--] & 0xFF) - levShift);
 		}
 		
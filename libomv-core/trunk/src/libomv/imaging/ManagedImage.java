@@ -33,6 +33,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -513,7 +514,9 @@ public class ManagedImage implements Cloneable
 		{
 			if (ext.equals("j2k") || ext.equals("jp2"))
 			{
-				image = decode(is, ImageCodec.J2K);
+				// Decode straight from the mapped file rather than through a stream copy
+				FileChannel channel = is.getChannel();
+				image = J2KImage.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
 			}
 			else if (ext.equals("tga"))
 			{
@@ -912,6 +912,461 @@ public class mapgenerator
 		writer.close();
 	}
 
+	static int FieldWireSize(MapField field)
+	{
+		switch (field.type)
+		{
+			case FieldType.Fixed:
+				return field.count;
+			case FieldType.Quaternion:
+				// Quaternions are sent normalized without the W component
+				return 12;
+			default:
+				break;
+		}
+		return FieldType.TypeSizes[field.type];
+	}
+
+	/* Size of a block on the wire or -1 if the block contains variable fields */
+	static int BlockWireSize(MapBlock block)
+	{
+		int length = 0;
+		for (MapField field : block.Fields)
+		{
+			if (field.type == FieldType.Variable)
+				return -1;
+			length += FieldWireSize(field);
+		}
+		return length;
+	}
+
+	static boolean IsBlockClass(MapBlock block)
+	{
+		return block.Fields.size() > 1 || block.Fields.get(0).type == FieldType.Variable;
+	}
+
+	/* Name used for the accessors of a block or single field block in a view, avoiding clashes with PacketView methods */
+	static String ViewAccessorName(String name)
+	{
+		if (name.equals("Header") || name.equals("Type") || name.equals("Length") || name.equals("Class"))
+			return name + "Field";
+		return name;
+	}
+
+	static void WriteFieldViewGetter(PrintWriter writer, int indent, String fieldName, MapField field, String offset, String params)
+	{
+		String lead = spaces.substring(0, indent);
+		String type = FieldTypeString(field.type);
+
+		switch (field.type)
+		{
+			case FieldType.Variable:
+				writer.println(lead + "public byte[] get" + fieldName + "(" + params + ")\n" + lead + "{");
+				writer.println(lead + "    return readVariable(" + offset + ", " + field.count + ");\n" + lead + "}\n");
+				writer.println(lead + "public int get" + fieldName + "Length(" + params + ")\n" + lead + "{");
+				writer.println(lead + "    return readVariableLength(" + offset + ", " + field.count + ");\n" + lead + "}\n");
+				writer.println(lead + "public int get" + fieldName + "Offset(" + params + ")\n" + lead + "{");
+				writer.println(lead + "    return variableOffset(" + offset + ", " + field.count + ");\n" + lead + "}\n");
+				return;
+			default:
+				break;
+		}
+
+		writer.println(lead + "public " + type + " get" + fieldName + "(" + params + ")\n" + lead + "{");
+		writer.write(lead + "    return ");
+		switch (field.type)
+		{
+			case FieldType.BOOL:
+				writer.println("_bytes.get(" + offset + ") != 0;");
+				break;
+			case FieldType.F32:
+				writer.println("_bytes.getFloat(" + offset + ");");
+				break;
+			case FieldType.F64:
+				writer.println("_bytes.getDouble(" + offset + ");");
+				break;
+			case FieldType.Fixed:
+				writer.println("readBytes(" + offset + ", " + field.count + ");");
+				break;
+			case FieldType.IPPORT:
+				// IPPORT is big endian while U16/S16 are little endian.
+				writer.println("readPort(" + offset + ");");
+				break;
+			case FieldType.U16:
+			case FieldType.I16:
+				writer.println("_bytes.getShort(" + offset + ");");
+				break;
+			case FieldType.IPADDR:
+			case FieldType.U32:
+			case FieldType.I32:
+				writer.println("_bytes.getInt(" + offset + ");");
+				break;
+			case FieldType.U64:
+				writer.println("_bytes.getLong(" + offset + ");");
+				break;
+			case FieldType.U8:
+			case FieldType.I8:
+				writer.println("_bytes.get(" + offset + ");");
+				break;
+			case FieldType.Quaternion:
+			case FieldType.UUID:
+			case FieldType.Vector3:
+			case FieldType.Vector3d:
+			case FieldType.Vector4:
+				writer.println("read" + type + "(" + offset + ");");
+				break;
+			default:
+				writer.println("!!! ERROR: Unhandled FieldType: " + field.type + " !!!");
+				break;
+		}
+		writer.println(lead + "}\n");
+	}
+
+	static void WriteBlockViewClass(PrintWriter writer, ProtocolManager protocol, MapBlock block)
+	{
+		String blockName = protocol.keywordPosition(block.keywordIndex);
+
+		writer.println("    public final class " + blockName + "Block\n    {");
+		writer.println("        private int _offset;\n");
+
+		// The offset of every field is relative to the start of the block, skipping any variable fields before it
+		String offset = "_offset";
+		int constant = 0;
+		for (MapField field : block.Fields)
+		{
+			String fieldName = protocol.keywordPosition(field.keywordIndex);
+			WriteFieldViewGetter(writer, 8, fieldName, field, offset + (constant > 0 ? " + " + constant : ""), "");
+			if (field.type == FieldType.Variable)
+			{
+				offset = "skip(" + offset + (constant > 0 ? " + " + constant : "") + ", " + field.count + ")";
+				constant = 0;
+			}
+			else
+			{
+				constant += FieldWireSize(field);
+			}
+		}
+
+		writer.println("    }\n");
+
+		// Returns the offset of the next block after the one at the given offset
+		writer.println("    private int skip" + blockName + "(int pos)\n    {");
+		for (MapField field : block.Fields)
+		{
+			if (field.type == FieldType.Variable)
+			{
+				writer.println("        pos = skip(pos, " + field.count + ");");
+			}
+			else
+			{
+				writer.println("        pos += " + FieldWireSize(field) + ";");
+			}
+		}
+		writer.println("        return pos;\n    }\n");
+	}
+
+	static void WritePacketViewClass(File packets_dir, String template, ProtocolManager protocol, MapPacket packet) throws IOException
+	{
+		boolean[] usedType = new boolean[FieldType.NumTypes];
+		PrintWriter writer = WriteHeader(new File(packets_dir, packet.Name + "PacketView.java"), template);
+
+		writer.println();
+		writer.println("import libomv.types.PacketHeader;");
+		for (MapBlock block : packet.Blocks)
+		{
+			for (MapField field : block.Fields)
+			{
+				if (!usedType[field.type])
+				{
+					switch (field.type)
+					{
+						case FieldType.UUID:
+						case FieldType.Vector3:
+						case FieldType.Vector3d:
+						case FieldType.Vector4:
+						case FieldType.Quaternion:
+							writer.println("import libomv.types." + FieldTypeString(field.type) + ";");
+							usedType[field.type] = true;
+							break;
+						default:
+							break;
+					}
+				}
+			}
+		}
+
+		writer.println("\n/**\n * Read-only view of a " + packet.Name + " packet, decoding fields on access directly from the\n"
+				+ " * receive buffer. Block accessors return a shared flyweight that is only valid until the next\n"
+				+ " * call of the same accessor.\n */");
+		writer.println("public class " + packet.Name + "PacketView extends PacketView\n{");
+
+		for (MapBlock block : packet.Blocks)
+		{
+			if (IsBlockClass(block))
+			{
+				WriteBlockViewClass(writer, protocol, block);
+			}
+		}
+
+		writer.println("    @Override");
+		writer.println("    public PacketType getType() { return PacketType." + packet.Name + "; }\n");
+
+		// Offsets of the blocks in the buffer
+		for (MapBlock block : packet.Blocks)
+		{
+			String blockName = protocol.keywordPosition(block.keywordIndex);
+			writer.println("    private int _" + blockName + "Offset;");
+			if (block.count != 1)
+			{
+				writer.println("    private int _" + blockName + "Count;");
+				if (BlockWireSize(block) < 0)
+				{
+					writer.println("    private int[] _" + blockName + "Offsets;");
+				}
+			}
+			if (IsBlockClass(block))
+			{
+				writer.println("    private final " + blockName + "Block _" + blockName + " = new " + blockName + "Block();");
+			}
+		}
+		writer.println();
+
+		// Constructor locating all blocks in the buffer
+		writer.println("    public " + packet.Name + "PacketView(PacketHeader head, ByteBuffer bytes)");
+		writer.println("    {");
+		writer.println("        super(head, bytes);");
+		writer.println("        int pos = bytes.position();");
+		for (MapBlock block : packet.Blocks)
+		{
+			String blockName = protocol.keywordPosition(block.keywordIndex);
+			int size = BlockWireSize(block);
+			String next = size >= 0 ? "pos + " + size : "skip" + blockName + "(pos)";
+
+			writer.println("        _" + blockName + "Offset = pos;");
+			if (block.count == 1)
+			{
+				writer.println("        pos = " + next + ";");
+			}
+			else
+			{
+				if (block.count == -1)
+				{
+					// Variable count block, the count is missing if the block is empty at the end of the packet
+					writer.println("        if (pos < bytes.limit())\n        {");
+					writer.println("            _" + blockName + "Count = bytes.get(pos++) & 0xFF;");
+					writer.println("            _" + blockName + "Offset = pos;\n        }");
+				}
+				else
+				{
+					writer.println("        _" + blockName + "Count = " + block.count + ";");
+				}
+
+				if (size >= 0)
+				{
+					writer.println("        pos += _" + blockName + "Count * " + size + ";");
+				}
+				else
+				{
+					writer.println("        _" + blockName + "Offsets = new int[_" + blockName + "Count];");
+					writer.println("        for (int j = 0; j < _" + blockName + "Count; j++)\n        {");
+					writer.println("            _" + blockName + "Offsets[j] = pos;");
+					writer.println("            pos = " + next + ";\n        }");
+				}
+			}
+		}
+		writer.println("        checkLimit(pos);");
+		writer.println("    }\n");
+
+		// Accessors
+		for (MapBlock block : packet.Blocks)
+		{
+			String blockName = protocol.keywordPosition(block.keywordIndex);
+			int size = BlockWireSize(block);
+			String offset = block.count == 1 ? "_" + blockName + "Offset" : (size >= 0 ? "_" + blockName
+					+ "Offset + checkIndex(index, _" + blockName + "Count) * " + size : "_" + blockName + "Offsets[index]");
+
+			if (IsBlockClass(block))
+			{
+				String accessor = ViewAccessorName(blockName);
+				if (block.count == 1)
+				{
+					writer.println("    public " + blockName + "Block get" + accessor + "()\n    {");
+				}
+				else
+				{
+					writer.println("    public int get" + accessor + "Count()\n    {");
+					writer.println("        return _" + blockName + "Count;\n    }\n");
+					writer.println("    public " + blockName + "Block get" + accessor + "(int index)\n    {");
+				}
+				writer.println("        _" + blockName + "._offset = " + offset + ";");
+				writer.println("        return _" + blockName + ";\n    }\n");
+			}
+			else
+			{
+				MapField field = block.Fields.get(0);
+				String accessor = ViewAccessorName(protocol.keywordPosition(field.keywordIndex));
+				if (block.count == 1)
+				{
+					WriteFieldViewGetter(writer, 4, accessor, field, offset, "");
+				}
+				else
+				{
+					writer.println("    public int get" + accessor + "Count()\n    {");
+					writer.println("        return _" + blockName + "Count;\n    }\n");
+					WriteFieldViewGetter(writer, 4, accessor, field, offset, "int index");
+				}
+			}
+		}
+
+		writer.println("    @Override");
+		writer.println("    public Packet toPacket()");
+		writer.println("    {");
+		writer.println("        ByteBuffer bytes = _bytes.duplicate();");
+		writer.println("        bytes.order(ByteOrder.LITTLE_ENDIAN);");
+		writer.println("        bytes.position(_bodyOffset);");
+		writer.println("        return new " + packet.Name + "Packet(_header, bytes);");
+		writer.println("    }");
+		writer.println("}");
+		writer.close();
+	}
+
+	static void WritePacketViewBase(File packets_dir, String template) throws IOException
+	{
+		PrintWriter writer = WriteHeader(new File(packets_dir, "PacketView.java"), template);
+
+		writer.println("import java.nio.BufferUnderflowException;\n\n"
+				+ "import libomv.types.PacketHeader;\n"
+				+ "import libomv.types.Quaternion;\n"
+				+ "import libomv.types.UUID;\n"
+				+ "import libomv.types.Vector3;\n"
+				+ "import libomv.types.Vector3d;\n"
+				+ "import libomv.types.Vector4;\n\n"
+				+ "/**\n"
+				+ " * Base class of the read-only packet views. A view keeps a reference to the array backed\n"
+				+ " * buffer it was built from and decodes fields only when they are accessed, so the buffer\n"
+				+ " * must not be reused as long as the view is in use.\n"
+				+ " */\n"
+				+ "public abstract class PacketView extends Packet\n"
+				+ "{\n"
+				+ "    protected final ByteBuffer _bytes;\n"
+				+ "    protected final int _bodyOffset;\n\n"
+				+ "    protected PacketView(PacketHeader head, ByteBuffer bytes)\n    {\n"
+				+ "        _header = head;\n"
+				+ "        _bytes = bytes;\n"
+				+ "        _bodyOffset = bytes.position();\n"
+				+ "    }\n\n"
+				+ "    /**\n"
+				+ "     * The array backing this view, to access variable fields in place using their offset\n"
+				+ "     *\n"
+				+ "     * @return The array containing the packet data\n"
+				+ "     */\n"
+				+ "    public final byte[] array()\n    {\n        return _bytes.array();\n    }\n\n"
+				+ "    /**\n"
+				+ "     * Decode the complete packet into its regular packet class\n"
+				+ "     *\n"
+				+ "     * @return The fully decoded packet\n"
+				+ "     */\n"
+				+ "    public abstract Packet toPacket();\n\n"
+				+ "    @Override\n"
+				+ "    public int getLength()\n    {\n        return _bytes.limit();\n    }\n\n"
+				+ "    @Override\n"
+				+ "    public ByteBuffer ToBytes() throws Exception\n    {\n        return toPacket().ToBytes();\n    }\n\n"
+				+ "    @Override\n"
+				+ "    public ByteBuffer[] ToBytesMultiple() throws Exception\n    {\n        return toPacket().ToBytesMultiple();\n    }\n\n"
+				+ "    @Override\n"
+				+ "    public String toString()\n    {\n        return toPacket().toString();\n    }\n\n"
+				+ "    protected final void checkLimit(int pos)\n    {\n"
+				+ "        if (pos > _bytes.limit())\n"
+				+ "            throw new BufferUnderflowException();\n    }\n\n"
+				+ "    protected final int checkIndex(int index, int count)\n    {\n"
+				+ "        if (index < 0 || index >= count)\n"
+				+ "            throw new IndexOutOfBoundsException(\"Index \" + index + \" out of range, count is \" + count);\n"
+				+ "        return index;\n    }\n\n"
+				+ "    // Returns the offset behind the variable field at pos with a length prefix of the given size\n"
+				+ "    protected final int skip(int pos, int prefix)\n    {\n"
+				+ "        checkLimit(pos + prefix);\n"
+				+ "        return pos + prefix + readVariableLength(pos, prefix);\n    }\n\n"
+				+ "    protected final int readVariableLength(int pos, int prefix)\n    {\n"
+				+ "        return prefix == 1 ? _bytes.get(pos) & 0xFF : _bytes.getShort(pos) & 0xFFFF;\n    }\n\n"
+				+ "    protected final int variableOffset(int pos, int prefix)\n    {\n"
+				+ "        return _bytes.arrayOffset() + pos + prefix;\n    }\n\n"
+				+ "    protected final byte[] readVariable(int pos, int prefix)\n    {\n"
+				+ "        return readBytes(pos + prefix, readVariableLength(pos, prefix));\n    }\n\n"
+				+ "    protected final byte[] readBytes(int pos, int length)\n    {\n"
+				+ "        byte[] value = new byte[length];\n"
+				+ "        System.arraycopy(_bytes.array(), _bytes.arrayOffset() + pos, value, 0, length);\n"
+				+ "        return value;\n    }\n\n"
+				+ "    protected final short readPort(int pos)\n    {\n"
+				+ "        return (short)(((_bytes.get(pos) & 0xFF) << 8) + (_bytes.get(pos + 1) & 0xFF));\n    }\n\n"
+				+ "    protected final UUID readUUID(int pos)\n    {\n"
+				+ "        return new UUID(_bytes.array(), _bytes.arrayOffset() + pos);\n    }\n\n"
+				+ "    protected final Vector3 readVector3(int pos)\n    {\n"
+				+ "        return new Vector3(_bytes.array(), _bytes.arrayOffset() + pos, true);\n    }\n\n"
+				+ "    protected final Vector3d readVector3d(int pos)\n    {\n"
+				+ "        return new Vector3d(_bytes.array(), _bytes.arrayOffset() + pos, true);\n    }\n\n"
+				+ "    protected final Vector4 readVector4(int pos)\n    {\n"
+				+ "        return new Vector4(_bytes.array(), _bytes.arrayOffset() + pos, true);\n    }\n\n"
+				+ "    protected final Quaternion readQuaternion(int pos)\n    {\n"
+				+ "        return new Quaternion(_bytes.array(), _bytes.arrayOffset() + pos, true, true);\n    }\n"
+				+ "}");
+		writer.close();
+	}
+
+	static void WriteBuildPacketViewCases(PrintWriter writer, ProtocolManager.MapPacketMap map, String cast)
+	{
+		for (int k = 0; k < map.mapPackets.size(); k++)
+		{
+			MapPacket packet = map.mapPackets.get(k);
+			if (packet != null)
+			{
+				writer.println("                        case " + cast + packet.ID + ": return new " + packet.Name
+						+ "PacketView(_header, bytes);");
+			}
+		}
+		writer.println("                        default:\n                            break;");
+	}
+
+	static void WriteBuildPacketView(PrintWriter writer, ProtocolManager protocol)
+	{
+		writer.println("        /**\n"
+				+ "         * Get the type of the packet in a byte buffer without decoding it\n"
+				+ "         *\n"
+				+ "         * @param bytes Byte buffer containing the packet, starting at position 0\n"
+				+ "         * @returns The packet type, or PacketType.Default\n"
+				+ "         */\n"
+				+ "        public static PacketType getType(ByteBuffer bytes)\n        {\n"
+				+ "            if (bytes.get(6) != (byte)0xFF)\n"
+				+ "                return getType((short)bytes.get(6), PacketFrequency.High);\n"
+				+ "            if (bytes.get(7) != (byte)0xFF)\n"
+				+ "                return getType((short)bytes.get(7), PacketFrequency.Medium);\n"
+				+ "            return getType((short)(((bytes.get(8) & 0xFF) << 8) + (bytes.get(9) & 0xFF)), PacketFrequency.Low);\n"
+				+ "        }\n");
+
+		writer.println("        /**\n"
+				+ "         * Construct a read-only view of a packet from a byte array, which decodes\n"
+				+ "         * its fields only when they are accessed\n"
+				+ "         *\n"
+				+ "         * @param bytes Array backed byte buffer containing the packet, starting at position 0.\n"
+				+ "         *        The view reads from this buffer, so it must not be reused while the view is in use\n"
+				+ "         * @returns The view class for this type of packet, typecasted to the generic PacketView\n"
+				+ "         */\n        public static PacketView BuildPacketView(ByteBuffer bytes) throws Exception\n"
+				+ "        {\n            PacketHeader _header = new PacketHeader(bytes);\n"
+				+ "            bytes.order(ByteOrder.LITTLE_ENDIAN);\n"
+				+ "            bytes.position(_header.getLength());\n\n"
+				+ "            switch (_header.getFrequency())\n            {\n"
+				+ "                case PacketFrequency.Low:\n                    switch (_header.getID())\n"
+				+ "                    {");
+		WriteBuildPacketViewCases(writer, protocol.LowMaps, "(short)");
+		writer.println("                    }\n                    break;\n                case PacketFrequency.Medium:\n"
+				+ "                    switch (_header.getID())\n                    {");
+		WriteBuildPacketViewCases(writer, protocol.MediumMaps, "");
+		writer.println("                    }\n                    break;\n                case PacketFrequency.High:\n"
+				+ "                    switch (_header.getID())\n                    {");
+		WriteBuildPacketViewCases(writer, protocol.HighMaps, "");
+		writer.println("                    }\n                    break;\n                default:\n                    break;\n            }\n"
+				+ "            throw new Exception(\"Unknown packet ID\");\n        }\n");
+	}
+
 	static void WriteToBytes(PrintWriter writer, ProtocolManager protocol, MapPacket packet)
 	{
 		String blockName;
@@ -1438,6 +1893,9 @@ public class mapgenerator
 			writer.println("                    }\n                    break;\n                default:\n                    break;\n            }\n"
 					+ "            throw new Exception(\"Unknown packet ID\");\n        }\n");
 
+			WriteBuildPacketView(writer, protocol);
+			WritePacketViewBase(packets_dir, args[1]);
+
 			// Write the packet classes
 			for (int k = 0; k < protocol.LowMaps.mapPackets.size(); k++)
 			{
@@ -1445,6 +1903,7 @@ public class mapgenerator
 				if (packet != null)
 				{
 					WritePacketClass(packets_dir, args[1], protocol, packet);
+					WritePacketViewClass(packets_dir, args[1], protocol, packet);
 				}
 			}
 
@@ -1454,6 +1913,7 @@ public class mapgenerator
 				if (packet != null)
 				{
 					WritePacketClass(packets_dir, args[1], protocol, packet);
+					WritePacketViewClass(packets_dir, args[1], protocol, packet);
 				}
 			}
 
@@ -1463,6 +1923,7 @@ public class mapgenerator
 				if (packet != null)
 				{
 					WritePacketClass(packets_dir, args[1], protocol, packet);
+					WritePacketViewClass(packets_dir, args[1], protocol, packet);
 				}
 			}
 			writer.println("}");
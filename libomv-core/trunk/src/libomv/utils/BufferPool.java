@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of equally sized byte buffers, used to avoid allocating a new
+ * buffer for every packet on hot network paths. Acquiring and releasing a
+ * buffer does not allocate once the pool has warmed up.
+ */
+public class BufferPool
+{
+	private final ArrayBlockingQueue<ByteBuffer> _Pool;
+	private final int _BufferSize;
+	private final boolean _Direct;
+
+	private final AtomicLong _Allocated = new AtomicLong();
+	private final AtomicLong _Reused = new AtomicLong();
+	private final AtomicLong _Oversized = new AtomicLong();
+
+	/**
+	 * Create a new buffer pool
+	 * 
+	 * @param bufferSize The capacity of the buffers in this pool
+	 * @param capacity The maximum number of idle buffers kept in the pool
+	 * @param direct Whether to allocate direct buffers rather than heap buffers
+	 */
+	public BufferPool(int bufferSize, int capacity, boolean direct)
+	{
+		_Pool = new ArrayBlockingQueue<ByteBuffer>(capacity);
+		_BufferSize = bufferSize;
+		_Direct = direct;
+	}
+
+	public int getBufferSize()
+	{
+		return _BufferSize;
+	}
+
+	/** Number of buffers allocated because the pool was empty */
+	public long getAllocated()
+	{
+		return _Allocated.get();
+	}
+
+	/** Number of buffers handed out from the pool */
+	public long getReused()
+	{
+		return _Reused.get();
+	}
+
+	/** Number of one-off buffers allocated because a request exceeded the buffer size */
+	public long getOversized()
+	{
+		return _Oversized.get();
+	}
+
+	/** Number of idle buffers currently in the pool */
+	public int getIdle()
+	{
+		return _Pool.size();
+	}
+
+	/**
+	 * Get a cleared little endian buffer from the pool
+	 * 
+	 * @return a buffer with a capacity of <code>getBufferSize()</code> bytes
+	 */
+	public ByteBuffer acquire()
+	{
+		ByteBuffer buffer = _Pool.poll();
+		if (buffer == null)
+		{
+			_Allocated.incrementAndGet();
+			buffer = allocate(_BufferSize);
+		}
+		else
+		{
+			_Reused.incrementAndGet();
+			buffer.clear();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	/**
+	 * Get a cleared little endian buffer of at least the requested size. Requests
+	 * larger than the pool buffer size are served with a one-off buffer which
+	 * will not be taken back by <code>release()</code>.
+	 * 
+	 * @param minSize The minimum capacity the buffer must have
+	 * @return a buffer with at least minSize bytes capacity
+	 */
+	public ByteBuffer acquire(int minSize)
+	{
+		if (minSize > _BufferSize)
+		{
+			_Oversized.incrementAndGet();
+			ByteBuffer buffer = allocate(minSize);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return buffer;
+		}
+		return acquire();
+	}
+
+	/**
+	 * Return a buffer to the pool. The caller must not use the buffer anymore
+	 * after this call. Buffers not matching this pool are simply dropped.
+	 * 
+	 * @param buffer The buffer to return, can be null
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		if (buffer != null && buffer.capacity() == _BufferSize && buffer.isDirect() == _Direct)
+		{
+			_Pool.offer(buffer);
+		}
+	}
+
+	private ByteBuffer allocate(int size)
+	{
+		return _Direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+}
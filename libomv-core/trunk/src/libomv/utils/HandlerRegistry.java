@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.utils;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A registry of handlers per enum constant. The handlers of every key are
+ * kept in an immutable array indexed by the ordinal of the key, which is
+ * replaced as a whole whenever a handler is added or removed. Looking up the
+ * handlers is therefore lock free and firing them never blocks registration
+ * or the handlers of any other key.
+ * 
+ * @param <K> The enum type used as key
+ * @param <H> The handler type
+ */
+public class HandlerRegistry<K extends Enum<K>, H>
+{
+	private final AtomicReferenceArray<H[]> _Handlers;
+	private final H[] _Empty;
+
+	@SuppressWarnings("unchecked")
+	public HandlerRegistry(Class<K> keyType, Class<H> handlerType)
+	{
+		_Empty = (H[]) Array.newInstance(handlerType, 0);
+		_Handlers = new AtomicReferenceArray<H[]>(keyType.getEnumConstants().length);
+		for (int i = 0; i < _Handlers.length(); i++)
+		{
+			_Handlers.set(i, _Empty);
+		}
+	}
+
+	/**
+	 * Get the handlers registered for a key. The returned array is a snapshot
+	 * and must not be modified.
+	 * 
+	 * @param key The key to get the handlers for
+	 * @return The registered handlers, an empty array if there are none
+	 */
+	public H[] get(K key)
+	{
+		return _Handlers.get(key.ordinal());
+	}
+
+	/**
+	 * Register a handler for a key. A handler that is already registered for
+	 * this key is moved to the end of the list.
+	 * 
+	 * @param key The key to register the handler for
+	 * @param handler The handler to add
+	 */
+	public synchronized void add(K key, H handler)
+	{
+		H[] handlers = _Handlers.get(key.ordinal());
+		int index = indexOf(handlers, handler);
+		H[] copy = copyWithout(handlers, index, 1);
+		copy[copy.length - 1] = handler;
+		_Handlers.set(key.ordinal(), copy);
+	}
+
+	/**
+	 * Unregister a handler for a key
+	 * 
+	 * @param key The key to unregister the handler from
+	 * @param handler The handler to remove
+	 * @return True if the handler was registered for this key
+	 */
+	public synchronized boolean remove(K key, H handler)
+	{
+		H[] handlers = _Handlers.get(key.ordinal());
+		int index = indexOf(handlers, handler);
+		if (index < 0)
+			return false;
+		_Handlers.set(key.ordinal(), handlers.length == 1 ? _Empty : copyWithout(handlers, index, 0));
+		return true;
+	}
+
+	/**
+	 * Check if there are handlers registered for a key
+	 * 
+	 * @param key The key to check
+	 * @return True if at least one handler is registered for the key
+	 */
+	public boolean containsKey(K key)
+	{
+		return _Handlers.get(key.ordinal()).length > 0;
+	}
+
+	private static int indexOf(Object[] handlers, Object handler)
+	{
+		for (int i = 0; i < handlers.length; i++)
+		{
+			if (handlers[i].equals(handler))
+				return i;
+		}
+		return -1;
+	}
+
+	/* Copy the handlers, leaving out the one at index if it is >= 0 and adding extra free slots at the end */
+	@SuppressWarnings("unchecked")
+	private H[] copyWithout(H[] handlers, int index, int extra)
+	{
+		int length = handlers.length - (index >= 0 ? 1 : 0);
+		H[] copy = (H[]) Array.newInstance(handlers.getClass().getComponentType(), length + extra);
+		for (int i = 0, j = 0; i < handlers.length; i++)
+		{
+			if (i != index)
+				copy[j++] = handlers[i];
+		}
+		return copy;
+	}
+}
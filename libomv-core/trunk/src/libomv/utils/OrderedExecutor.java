@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the libomv-java project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import libomv.utils.Logger.LogLevel;
+
+/**
+ * Runs tasks on a fixed number of worker threads while keeping the tasks
+ * submitted for the same key and group in FIFO order. Every key and group
+ * combination has its own serial queue which is scheduled on the workers when
+ * it has work, so tasks of different keys or groups run in parallel.
+ * 
+ * The number of tasks waiting or running is bounded. When the limit is
+ * reached, submitting blocks until a task has finished, which pushes back on
+ * the producer instead of piling up work.
+ */
+public class OrderedExecutor
+{
+	/* Maximum number of tasks a serial queue runs before giving other queues a turn */
+	private static final int BATCH_SIZE = 32;
+	/* Key used for tasks submitted without key */
+	private static final Object NULL_KEY = new Object();
+
+	private final class SerialQueue implements Runnable
+	{
+		private final ConcurrentLinkedQueue<Runnable> _Tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicBoolean _Scheduled = new AtomicBoolean();
+
+		void execute(Runnable task)
+		{
+			_Tasks.offer(task);
+			schedule();
+		}
+
+		private void schedule()
+		{
+			if (_Scheduled.compareAndSet(false, true))
+			{
+				_Workers.execute(this);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			Runnable task;
+			for (int count = 0; count < BATCH_SIZE && (task = _Tasks.poll()) != null; count++)
+			{
+				try
+				{
+					task.run();
+				}
+				catch (Throwable ex)
+				{
+					Logger.Log("Exception in ordered task", LogLevel.Error, ex);
+				}
+				finally
+				{
+					_Depth.decrementAndGet();
+					_Completed.incrementAndGet();
+					_Capacity.release();
+				}
+			}
+			_Scheduled.set(false);
+			// Tasks added while we were finishing or left over from a full batch
+			if (!_Tasks.isEmpty() && !_Workers.isShutdown())
+			{
+				schedule();
+			}
+		}
+	}
+
+	private final ExecutorService _Workers;
+	private final ConcurrentHashMap<Object, SerialQueue[]> _Queues = new ConcurrentHashMap<Object, SerialQueue[]>();
+	private final int _Groups;
+	private final Semaphore _Capacity;
+
+	private final AtomicInteger _Depth = new AtomicInteger();
+	private final AtomicInteger _MaxDepth = new AtomicInteger();
+	private final AtomicLong _Completed = new AtomicLong();
+	private final AtomicLong _Blocked = new AtomicLong();
+
+	/**
+	 * Create a new ordered executor
+	 * 
+	 * @param name The name prefix of the worker threads
+	 * @param threads The number of worker threads
+	 * @param groups The number of groups per key, each group keeps its own order
+	 * @param capacity The maximum number of tasks waiting or running at any time
+	 */
+	public OrderedExecutor(final String name, int threads, int groups, int capacity)
+	{
+		_Groups = groups;
+		_Capacity = new Semaphore(capacity);
+		_Workers = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			private final AtomicInteger _Count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, name + " " + _Count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Run a task after all tasks previously submitted for the same key and group
+	 * have finished. Blocks while the executor is at its capacity.
+	 * 
+	 * @param key The key to order the task on, can be null
+	 * @param group The group within the key, from 0 to the number of groups - 1
+	 * @param task The task to run
+	 * @throws InterruptedException if interrupted while waiting for capacity
+	 */
+	public void execute(Object key, int group, Runnable task) throws InterruptedException
+	{
+		if (!_Capacity.tryAcquire())
+		{
+			_Blocked.incrementAndGet();
+			_Capacity.acquire();
+		}
+
+		int depth = _Depth.incrementAndGet();
+		for (int max = _MaxDepth.get(); depth > max && !_MaxDepth.compareAndSet(max, depth); max = _MaxDepth.get())
+			;
+
+		getQueue(key == null ? NULL_KEY : key, group).execute(task);
+	}
+
+	private SerialQueue getQueue(Object key, int group)
+	{
+		SerialQueue[] queues = _Queues.get(key);
+		if (queues == null)
+		{
+			queues = new SerialQueue[_Groups];
+			for (int i = 0; i < _Groups; i++)
+			{
+				queues[i] = new SerialQueue();
+			}
+			SerialQueue[] existing = _Queues.putIfAbsent(key, queues);
+			if (existing != null)
+			{
+				queues = existing;
+			}
+		}
+		return queues[group];
+	}
+
+	/**
+	 * Forget the queues of a key once no more tasks are submitted for it.
+	 * Tasks already queued for the key still run.
+	 * 
+	 * @param key The key to remove
+	 */
+	public void remove(Object key)
+	{
+		_Queues.remove(key == null ? NULL_KEY : key);
+	}
+
+	/** Stop the worker threads once all queued tasks have run */
+	public void shutdown()
+	{
+		_Workers.shutdown();
+	}
+
+	public boolean isShutdown()
+	{
+		return _Workers.isShutdown();
+	}
+
+	/** Number of tasks currently waiting or running */
+	public int getQueueDepth()
+	{
+		return _Depth.get();
+	}
+
+	/** Highest number of tasks waiting or running at the same time */
+	public int getMaxQueueDepth()
+	{
+		return _MaxDepth.get();
+	}
+
+	/** Number of tasks that have finished */
+	public long getCompletedCount()
+	{
+		return _Completed.get();
+	}
+
+	/** Number of times a submit had to wait because the executor was at its capacity */
+	public long getBlockedCount()
+	{
+		return _Blocked.get();
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2016-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * - Redistribution and use in source and binary forms, with or without
+ *   modification, are permitted provided that the following conditions are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Neither the name of the openmetaverse.org nor the names
+ *   of its contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package archive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+import libomv.assets.AssetItem;
+import libomv.assets.AssetItem.AssetType;
+import libomv.assets.archiving.ArchiveConstants;
+import libomv.assets.archiving.OarArchiveWriter;
+import libomv.assets.archiving.TarArchiveIndex;
+import libomv.assets.archiving.TarArchiveWriter;
+import libomv.types.UUID;
+
+public class TarArchiveIndexTests extends TestCase
+{
+	private File archive;
+	private LinkedHashMap<UUID, byte[]> assets;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		// Enough data for the OAR writer to start more than one gzip member
+		Random random = new Random(3);
+		assets = new LinkedHashMap<UUID, byte[]>();
+		for (int i = 0; i < 40; i++)
+		{
+			byte[] data = new byte[1000 + random.nextInt(100000)];
+			random.nextBytes(data);
+			assets.put(new UUID(true), data);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		if (archive != null)
+		{
+			new File(archive.getPath() + ".idx").delete();
+			archive.delete();
+		}
+	}
+
+	private static String assetPath(UUID assetID)
+	{
+		return ArchiveConstants.ASSETS_PATH + assetID.toString() + ArchiveConstants.getExtensionForType(AssetType.Sound);
+	}
+
+	private void writeTar(boolean compressed) throws Exception
+	{
+		archive = File.createTempFile("archive", compressed ? ".tar.gz" : ".tar");
+		FileOutputStream out = new FileOutputStream(archive);
+		TarArchiveWriter writer = new TarArchiveWriter(compressed ? new GZIPOutputStream(out) : out);
+		for (Map.Entry<UUID, byte[]> e : assets.entrySet())
+		{
+			writer.writeFile(assetPath(e.getKey()), e.getValue());
+		}
+		writer.close();
+	}
+
+	private void writeOar() throws Exception
+	{
+		archive = File.createTempFile("archive", ".oar");
+		OarArchiveWriter writer = new OarArchiveWriter(archive);
+		for (Map.Entry<UUID, byte[]> e : assets.entrySet())
+		{
+			assertTrue("Asset should be written", writer.writeAsset(e.getKey(), AssetType.Sound, e.getValue()));
+		}
+		writer.close();
+	}
+
+	/* Looks up every asset twice, once with a freshly scanned index and once with the index loaded from disk */
+	private void verify() throws Exception
+	{
+		for (int pass = 0; pass < 2; pass++)
+		{
+			TarArchiveIndex index = TarArchiveIndex.open(archive);
+			try
+			{
+				assertTrue("Index file should be saved", new File(archive.getPath() + ".idx").isFile());
+				assertNull("Unknown entry should not be found", index.readEntry("assets/missing"));
+				assertFalse("Unknown asset should not be found", index.containsAsset(new UUID(true)));
+
+				// Look the assets up in reverse order, so reads have to go back in the archive
+				UUID[] ids = assets.keySet().toArray(new UUID[assets.size()]);
+				for (int i = ids.length - 1; i >= 0; i--)
+				{
+					byte[] data = assets.get(ids[i]);
+					assertTrue("Asset " + ids[i] + " should be indexed", index.containsAsset(ids[i]));
+					assertTrue("Entry " + i + " differs", Arrays.equals(data, index.readEntry(assetPath(ids[i]))));
+
+					AssetItem asset = index.readAsset(ids[i]);
+					assertNotNull("Asset " + ids[i] + " should be decoded", asset);
+					assertEquals(ids[i], asset.getAssetID());
+					assertTrue("Asset " + i + " differs", Arrays.equals(data, asset.getAssetData()));
+				}
+			}
+			finally
+			{
+				index.close();
+			}
+		}
+	}
+
+	public void testPlainTar() throws Exception
+	{
+		writeTar(false);
+		verify();
+	}
+
+	public void testGZipTar() throws Exception
+	{
+		writeTar(true);
+		verify();
+	}
+
+	public void testBlockGZipOar() throws Exception
+	{
+		writeOar();
+		verify();
+	}
+}
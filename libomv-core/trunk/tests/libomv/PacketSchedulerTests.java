@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * - Redistribution and use in source and binary forms, with or without
+ *   modification, are permitted provided that the following conditions are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Neither the name of the openmetaverse.org nor the names
+ *   of its contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv;
+
+import junit.framework.TestCase;
+
+import libomv.PacketScheduler.TokenBucket;
+
+public class PacketSchedulerTests extends TestCase
+{
+	private static final long SECOND = 1000000000L;
+
+	/* Empties the bucket and returns the number of bytes it let through */
+	private static long drain(TokenBucket bucket)
+	{
+		long bytes = 0;
+		while (bucket.consume(1000))
+		{
+			bytes += 1000;
+		}
+		return bytes;
+	}
+
+	public void testTokenBucketRefill()
+	{
+		long now = 0;
+		TokenBucket bucket = new TokenBucket(now);
+		bucket.setRate(45056 * 8);
+
+		assertTrue("A new bucket should start out full", drain(bucket) > 0);
+		assertTrue("An empty bucket should delay sending", bucket.getDelay() > 0);
+
+		now += SECOND;
+		bucket.refill(now);
+		long bytes = drain(bucket);
+		assertTrue("One second should refill about the rate, was " + bytes, bytes >= 11000 && bytes <= 12000);
+	}
+
+	public void testTokenBucketRefillAfterLongIdle()
+	{
+		long now = 0;
+		TokenBucket bucket = new TokenBucket(now);
+		bucket.setRate(45056 * 8);
+		long burst = drain(bucket);
+
+		// idle for long enough that elapsed nanoseconds times the rate do not fit in a long
+		now += 100L * 3600 * SECOND;
+		bucket.refill(now);
+		assertEquals("Bucket should be full again after a long idle time", 0, bucket.getDelay());
+		assertEquals("Refill should not exceed the burst size", burst, drain(bucket));
+
+		// and the bucket keeps refilling normally afterwards
+		now += SECOND;
+		bucket.refill(now);
+		assertTrue("Bucket should still be refilled after a long idle time", drain(bucket) > 0);
+	}
+}
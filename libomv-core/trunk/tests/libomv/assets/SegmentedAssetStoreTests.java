@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * - Redistribution and use in source and binary forms, with or without
+ *   modification, are permitted provided that the following conditions are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Neither the name of the openmetaverse.org nor the names
+ *   of its contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.assets;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SegmentedAssetStoreTests extends TestCase
+{
+	private static final int SEGMENT_SIZE = 16 * 1024;
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		directory = File.createTempFile("assetstore", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/* Fills the store with assets spread over many segments, every second one replaced to leave the segments sparse */
+	private static HashMap<String, byte[]> fill(SegmentedAssetStore store, Random random) throws Exception
+	{
+		HashMap<String, byte[]> assets = new HashMap<String, byte[]>();
+		for (int pass = 0; pass < 2; pass++)
+		{
+			for (int i = pass; i < 200; i += pass + 1)
+			{
+				byte[] data = new byte[500 + random.nextInt(2000)];
+				random.nextBytes(data);
+				String key = "asset-" + i;
+				assertTrue("Asset should be stored", store.put(key, data));
+				assets.put(key, data);
+			}
+		}
+		return assets;
+	}
+
+	private static void verify(SegmentedAssetStore store, HashMap<String, byte[]> assets)
+	{
+		assertEquals("Number of assets in the store", assets.size(), store.getCount());
+		for (Map.Entry<String, byte[]> e : assets.entrySet())
+		{
+			byte[] data = store.get(e.getKey());
+			assertNotNull("Asset " + e.getKey() + " got lost", data);
+			assertTrue("Asset " + e.getKey() + " changed", Arrays.equals(e.getValue(), data));
+		}
+	}
+
+	public void testRoundTrip() throws Exception
+	{
+		SegmentedAssetStore store = SegmentedAssetStore.open(directory, SEGMENT_SIZE);
+		HashMap<String, byte[]> assets = fill(store, new Random(1));
+		verify(store, assets);
+		assertTrue("Assets should be spread over several segments", store.getSize() > 4 * SEGMENT_SIZE);
+		store.close();
+
+		store = SegmentedAssetStore.open(directory, SEGMENT_SIZE);
+		verify(store, assets);
+		store.close();
+	}
+
+	public void testCompactWhileClosing() throws Exception
+	{
+		Random random = new Random(2);
+		for (int i = 0; i < 20; i++)
+		{
+			SegmentedAssetStore store = SegmentedAssetStore.open(directory, SEGMENT_SIZE);
+			HashMap<String, byte[]> assets = fill(store, random);
+
+			// Start compacting the sparse segments and close the store while it is busy
+			store.beginMaintenance();
+			if (i % 2 == 0)
+				Thread.sleep(random.nextInt(3));
+			store.close();
+
+			store = SegmentedAssetStore.open(directory, SEGMENT_SIZE);
+			verify(store, assets);
+			store.clear();
+			store.close();
+		}
+	}
+
+	public void testMaxSizeOfSharedStore() throws Exception
+	{
+		SegmentedAssetStore store = SegmentedAssetStore.open(directory, SEGMENT_SIZE);
+		Object first = new Object(), second = new Object();
+		try
+		{
+			assertEquals("A store without users is not limited", Long.MAX_VALUE, store.getMaxSize());
+
+			store.setMaxSize(first, 100000);
+			store.setMaxSize(second, 50000);
+			assertEquals("The largest size of all users applies", 100000, store.getMaxSize());
+
+			store.setMaxSize(first, 20000);
+			assertEquals(50000, store.getMaxSize());
+
+			store.removeMaxSize(second);
+			assertEquals(20000, store.getMaxSize());
+
+			fill(store, new Random(3));
+			assertTrue("The store should be kept at its maximum size", store.getLiveSize() <= 20000);
+
+			store.setMaxSize(second, 0);
+			assertEquals("A user without limit lifts it", Long.MAX_VALUE, store.getMaxSize());
+
+			store.removeMaxSize(first);
+			store.removeMaxSize(second);
+			assertEquals(Long.MAX_VALUE, store.getMaxSize());
+		}
+		finally
+		{
+			store.clear();
+			store.close();
+		}
+	}
+}
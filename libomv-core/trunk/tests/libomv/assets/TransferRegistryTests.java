@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * - Redistribution and use in source and binary forms, with or without
+ *   modification, are permitted provided that the following conditions are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Neither the name of the openmetaverse.org nor the names
+ *   of its contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.assets;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import libomv.assets.AssetItem.AssetType;
+import libomv.assets.AssetManager.Transfer;
+import libomv.types.UUID;
+
+public class TransferRegistryTests extends TestCase
+{
+	private static class OtherTransfer extends Transfer
+	{
+	}
+
+	private final Object first = new Object(), second = new Object(), third = new Object();
+
+	private TransferRegistry registry;
+	private UUID assetID;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		registry = new TransferRegistry();
+		assetID = new UUID();
+	}
+
+	private Transfer newTransfer()
+	{
+		Transfer transfer = new Transfer();
+		transfer.ItemID = assetID;
+		return transfer;
+	}
+
+	/* Counts how often the transport of a transfer is stopped */
+	private AtomicInteger countAborts(Transfer transfer)
+	{
+		final AtomicInteger aborts = new AtomicInteger();
+		registry.setAbort(transfer, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				aborts.incrementAndGet();
+			}
+		});
+		return aborts;
+	}
+
+	public void testJoin()
+	{
+		Transfer transfer = newTransfer();
+		registry.add(transfer, AssetType.Texture, 2, first, true);
+
+		assertSame(transfer, registry.join(assetID, AssetType.Texture, 2, Transfer.class, second));
+		assertSame("A request needing less should join", transfer, registry.join(assetID, AssetType.Texture, 4, Transfer.class, second));
+		assertNull("A request needing more should not join", registry.join(assetID, AssetType.Texture, 1, Transfer.class, second));
+		assertNull(registry.join(assetID, AssetType.Sound, 2, Transfer.class, second));
+		assertNull(registry.join(assetID, AssetType.Texture, 2, OtherTransfer.class, second));
+		assertNull(registry.join(new UUID(), AssetType.Texture, 2, Transfer.class, second));
+	}
+
+	public void testJoinCircuitTransfer()
+	{
+		Transfer transfer = newTransfer();
+		registry.add(transfer, AssetType.Texture, 0, first, false);
+
+		assertNull("Another client should not join a transfer on the circuit of the carrier",
+				   registry.join(assetID, AssetType.Texture, 0, Transfer.class, second));
+		assertSame(transfer, registry.join(assetID, AssetType.Texture, 0, Transfer.class, first));
+
+		registry.setShared(transfer, true);
+		assertSame(transfer, registry.join(assetID, AssetType.Texture, 0, Transfer.class, second));
+	}
+
+	public void testLastRequesterCancels()
+	{
+		Transfer transfer = newTransfer();
+		registry.add(transfer, AssetType.Texture, 0, first, true);
+		AtomicInteger aborts = countAborts(transfer);
+
+		assertTrue("The only request should abort the transfer", registry.release(transfer, first));
+		assertEquals(1, aborts.get());
+		assertFalse(registry.contains(transfer));
+		assertEquals(0, registry.getCount());
+
+		assertFalse("Releasing again should do nothing", registry.release(transfer, first));
+		assertEquals(1, aborts.get());
+		assertNull(registry.join(assetID, AssetType.Texture, 0, Transfer.class, first));
+	}
+
+	public void testReleaseCountsReferences()
+	{
+		Transfer transfer = newTransfer();
+		registry.add(transfer, AssetType.Texture, 0, first, true);
+		AtomicInteger aborts = countAborts(transfer);
+		registry.join(assetID, AssetType.Texture, 0, Transfer.class, first);
+		registry.join(assetID, AssetType.Texture, 0, Transfer.class, second);
+
+		assertFalse(registry.release(transfer, first));
+		assertFalse("A client without request should not release one", registry.release(transfer, third));
+		assertFalse(registry.release(transfer, second));
+		assertFalse("The carrier still waits for its first request", registry.release(transfer, second));
+		assertEquals(0, aborts.get());
+		assertTrue(registry.contains(transfer));
+
+		assertTrue(registry.release(transfer, first));
+		assertEquals(1, aborts.get());
+		assertFalse(registry.contains(transfer));
+	}
+
+	public void testAbortReleasesRequester()
+	{
+		Transfer transfer = newTransfer();
+		registry.add(transfer, AssetType.Texture, 0, first, true);
+		AtomicInteger aborts = countAborts(transfer);
+		registry.join(assetID, AssetType.Texture, 0, Transfer.class, first);
+		registry.join(assetID, AssetType.Texture, 0, Transfer.class, second);
+
+		assertFalse("Another client still waits for the transfer", registry.abort(transfer, first));
+		assertFalse("All requests of the client should be released", registry.release(transfer, first));
+		assertEquals(0, aborts.get());
+
+		assertTrue(registry.abort(transfer, second));
+		assertEquals(1, aborts.get());
+		assertFalse(registry.contains(transfer));
+	}
+
+	public void testAbortAll()
+	{
+		Transfer carried = newTransfer(), joined = newTransfer(), other = newTransfer();
+		registry.add(carried, AssetType.Texture, 0, first, true);
+		registry.add(joined, AssetType.Sound, 0, second, true);
+		registry.add(other, AssetType.Mesh, 0, second, true);
+		AtomicInteger carriedAborts = countAborts(carried);
+		AtomicInteger joinedAborts = countAborts(joined);
+		registry.join(assetID, AssetType.Texture, 0, Transfer.class, second);
+		registry.join(assetID, AssetType.Sound, 0, Transfer.class, first);
+
+		registry.abortAll(first);
+		assertEquals("The transport of a transfer goes away with its carrier", 1, carriedAborts.get());
+		assertFalse(registry.contains(carried));
+		assertTrue(registry.contains(joined));
+		assertTrue(registry.contains(other));
+
+		assertTrue("The references of the client should be gone", registry.release(joined, second));
+		assertEquals(1, joinedAborts.get());
+		assertEquals(1, registry.getCount());
+	}
+}
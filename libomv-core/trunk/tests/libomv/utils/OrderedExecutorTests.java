@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * - Redistribution and use in source and binary forms, with or without
+ *   modification, are permitted provided that the following conditions are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Neither the name of the openmetaverse.org nor the names
+ *   of its contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class OrderedExecutorTests extends TestCase
+{
+	private OrderedExecutor executor;
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		if (executor != null)
+			executor.shutdown();
+		super.tearDown();
+	}
+
+	/* A task that waits until the gate opens */
+	private static Runnable blocker(final CountDownLatch started, final CountDownLatch gate)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				started.countDown();
+				try
+				{
+					gate.await();
+				}
+				catch (InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	public void testOrderPerKeyAndGroup() throws Exception
+	{
+		final int keys = 3, groups = 2, count = 500;
+		executor = new OrderedExecutor("Ordered", 4, groups, 64);
+
+		final List<List<Integer>> results = new ArrayList<List<Integer>>();
+		for (int i = 0; i < keys * groups; i++)
+		{
+			results.add(new ArrayList<Integer>());
+		}
+		final CountDownLatch done = new CountDownLatch(keys * groups * count);
+
+		for (int n = 0; n < count; n++)
+		{
+			for (int k = 0; k < keys; k++)
+			{
+				for (int g = 0; g < groups; g++)
+				{
+					final List<Integer> result = results.get(k * groups + g);
+					final int value = n;
+					executor.execute("key" + k, g, new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							// Tasks of one queue never run concurrently, so this needs no lock
+							result.add(value);
+							done.countDown();
+						}
+					});
+				}
+			}
+		}
+		assertTrue("All tasks should run", done.await(10, TimeUnit.SECONDS));
+
+		for (int i = 0; i < results.size(); i++)
+		{
+			List<Integer> result = results.get(i);
+			assertEquals(count, result.size());
+			for (int n = 0; n < count; n++)
+			{
+				assertEquals("Queue " + i + " should run its tasks in order", n, result.get(n).intValue());
+			}
+		}
+		assertTrue("Depth should never exceed the capacity", executor.getMaxQueueDepth() <= 64);
+	}
+
+	public void testCapacityBlocksSubmit() throws Exception
+	{
+		executor = new OrderedExecutor("Ordered", 2, 1, 2);
+		CountDownLatch started = new CountDownLatch(2);
+		CountDownLatch gate = new CountDownLatch(1);
+		executor.execute("a", 0, blocker(started, gate));
+		executor.execute("b", 0, blocker(started, gate));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertEquals(2, executor.getQueueDepth());
+
+		final CountDownLatch submitted = new CountDownLatch(1);
+		final CountDownLatch ran = new CountDownLatch(1);
+		Thread producer = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					executor.execute("c", 0, new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							ran.countDown();
+						}
+					});
+					submitted.countDown();
+				}
+				catch (InterruptedException ex)
+				{
+				}
+			}
+		};
+		producer.start();
+
+		assertFalse("Submit should block while at capacity", submitted.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(1, executor.getBlockedCount());
+
+		gate.countDown();
+		assertTrue("Submit should continue once a task finished", submitted.await(5, TimeUnit.SECONDS));
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		producer.join(5000);
+		assertEquals(2, executor.getMaxQueueDepth());
+	}
+
+	public void testCapacitySubmitInterrupted() throws Exception
+	{
+		executor = new OrderedExecutor("Ordered", 1, 1, 1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		executor.execute("a", 0, blocker(started, gate));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		Thread.currentThread().interrupt();
+		try
+		{
+			executor.execute("a", 0, blocker(started, gate));
+			fail("Submit at capacity should throw when interrupted");
+		}
+		catch (InterruptedException ex)
+		{
+		}
+		assertEquals(1, executor.getQueueDepth());
+		gate.countDown();
+	}
+
+	private static Runnable countDown(final CountDownLatch latch)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				latch.countDown();
+			}
+		};
+	}
+
+	public void testRemove() throws Exception
+	{
+		executor = new OrderedExecutor("Ordered", 1, 1, 16);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		CountDownLatch queued = new CountDownLatch(1);
+		executor.execute("key", 0, blocker(started, gate));
+		executor.execute("key", 0, countDown(queued));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		// Tasks that are already queued still run after the key was removed
+		executor.remove("key");
+		gate.countDown();
+		assertTrue("Queued task should run after remove", queued.await(5, TimeUnit.SECONDS));
+
+		// The key can be used again afterwards
+		CountDownLatch reused = new CountDownLatch(1);
+		executor.execute("key", 0, countDown(reused));
+		assertTrue("Task for a removed key should run", reused.await(5, TimeUnit.SECONDS));
+
+		// A null key is a key like any other
+		CountDownLatch nullKey = new CountDownLatch(1);
+		executor.execute(null, 0, countDown(nullKey));
+		assertTrue(nullKey.await(5, TimeUnit.SECONDS));
+		executor.remove(null);
+	}
+}
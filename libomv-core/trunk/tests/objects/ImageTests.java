@@ -24,11 +24,15 @@
  */
 package objects;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
 import libomv.imaging.J2KImage;
+import libomv.imaging.J2KImage.J2KLayerInfo;
 import libomv.imaging.ManagedImage;
 
 public class ImageTests extends TestCase
@@ -45,4 +49,139 @@ public class ImageTests extends TestCase
         
         
 	}
+
+	public void testJ2KEncode() throws Exception
+	{
+		byte[] channels = {ManagedImage.ImageChannels.Color,
+				ManagedImage.ImageChannels.Color | ManagedImage.ImageChannels.Alpha,
+				ManagedImage.ImageChannels.Color | ManagedImage.ImageChannels.Alpha | ManagedImage.ImageChannels.Bump};
+		for (byte channel : channels)
+		{
+			// Not square, so swapped dimensions or rows show up
+			J2KImage image = new J2KImage(64, 48, channel);
+			byte[][] planes = {image.getRed(), image.getGreen(), image.getBlue(), image.getAlpha(), image.getBump()};
+			for (int c = 0; c < planes.length; c++)
+			{
+				for (int i = 0; planes[c] != null && i < planes[c].length; i++)
+				{
+					planes[c][i] = (byte)(i * (c + 1) + (i >> 6) * 7);
+				}
+			}
+
+			byte[] encoded = J2KImage.encode(image, true);
+			assertEquals("Not a jp2 file", "jP  ", new String(encoded, 4, 4, "US-ASCII"));
+
+			J2KImage decoded = J2KImage.decode(encoded);
+			assertEquals("Wrong channels", channel, decoded.getChannels());
+			assertEquals("Wrong width", 64, decoded.getWidth());
+			assertEquals("Wrong height", 48, decoded.getHeight());
+			assertTrue("Red differs", Arrays.equals(image.getRed(), decoded.getRed()));
+			assertTrue("Green differs", Arrays.equals(image.getGreen(), decoded.getGreen()));
+			assertTrue("Blue differs", Arrays.equals(image.getBlue(), decoded.getBlue()));
+			assertTrue("Alpha differs", Arrays.equals(image.getAlpha(), decoded.getAlpha()));
+			assertTrue("Bump differs", Arrays.equals(image.getBump(), decoded.getBump()));
+		}
+	}
+
+	public void testJ2KPrefixDecode() throws Exception
+	{
+		byte[] encoded = readResource("/res/relax.jp2");
+
+		J2KLayerInfo[] layers = J2KImage.decodeLayerBoundaries(encoded);
+		assertTrue("No quality layers found", layers.length > 0);
+		for (J2KLayerInfo layer : layers)
+		{
+			assertTrue("Invalid layer span", layer.Start < layer.End && layer.End <= encoded.length);
+		}
+
+		J2KLayerInfo[] resolutions = J2KImage.decodeResolutionBoundaries(encoded);
+		assertTrue("No decomposition levels found", resolutions.length > 1);
+		assertEquals("No resolution level left", 0, J2KImage.getDiscardLevelLength(resolutions, resolutions.length));
+
+		// The prefix for the full resolution holds every packet
+		int length = J2KImage.getDiscardLevelLength(resolutions, 0);
+		assertTrue("Full length beyond the codestream", length <= encoded.length);
+		J2KImage full = J2KImage.decode(new ByteArrayInputStream(encoded));
+		J2KImage prefix = J2KImage.decode(new ByteArrayInputStream(encoded, 0, length));
+		assertTrue("Prefix decodes differently", sameImage(full, prefix));
+
+		int previous = length;
+		for (int d = 0; d < resolutions.length; d++)
+		{
+			length = J2KImage.getDiscardLevelLength(resolutions, d);
+			assertTrue("Prefix longer than at the previous discard level", length > 0 && length <= previous);
+			previous = length;
+
+			// A cut inside the next packet leaves out that packet, but keeps all before it
+			int cut = Math.min(encoded.length, length + 7);
+			J2KLayerInfo[] scanned = J2KImage.decodeResolutionBoundaries(Arrays.copyOf(encoded, cut));
+			assertEquals("Cut scan lost levels", resolutions.length, scanned.length);
+			for (int r = 0; r < scanned.length; r++)
+			{
+				if (r < resolutions.length - d)
+					assertEquals("Cut scan changed level " + r, resolutions[r].End, scanned[r].End);
+				assertTrue("Cut scan recorded a partial packet", cut == encoded.length || scanned[r].End < cut);
+			}
+
+			J2KImage reduced = J2KImage.decode(new ByteArrayInputStream(encoded), d, 0);
+			assertEquals("Wrong width at discard level " + d, (full.getWidth() + (1 << d) - 1) >> d, reduced.getWidth());
+			assertEquals("Wrong height at discard level " + d, (full.getHeight() + (1 << d) - 1) >> d, reduced.getHeight());
+
+			// Both hold every packet the reduced resolution needs
+			prefix = J2KImage.decode(new ByteArrayInputStream(encoded, 0, length), d, 0);
+			assertTrue("Prefix decodes differently at discard level " + d, sameImage(reduced, prefix));
+			prefix = J2KImage.decode(new ByteArrayInputStream(encoded, 0, cut), d, 0);
+			assertTrue("Cut codestream decodes differently at discard level " + d, sameImage(reduced, prefix));
+		}
+	}
+
+	public void testJ2KDecodeThreads() throws Exception
+	{
+		byte[] encoded = readResource("/res/relax.jp2");
+		try
+		{
+			J2KImage.setDecoderThreads(1);
+			J2KImage single = J2KImage.decode(encoded);
+
+			J2KImage.setDecoderThreads(4);
+			J2KImage parallel = J2KImage.decode(encoded);
+			assertTrue("Decoding with several threads gives a different image", sameImage(single, parallel));
+
+			// An interrupted caller still gets the complete image and keeps its interrupt status
+			Thread.currentThread().interrupt();
+			parallel = J2KImage.decode(encoded);
+			assertTrue("Interrupt status got lost while decoding", Thread.interrupted());
+			assertTrue("Decoding while interrupted gives a different image", sameImage(single, parallel));
+		}
+		finally
+		{
+			Thread.interrupted();
+			J2KImage.setDecoderThreads(0);
+		}
+	}
+
+	private byte[] readResource(String name) throws Exception
+	{
+		InputStream is = getClass().getResourceAsStream(name);
+		try
+		{
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int n = is.read(buffer); n >= 0; n = is.read(buffer))
+			{
+				os.write(buffer, 0, n);
+			}
+			return os.toByteArray();
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	private static boolean sameImage(J2KImage a, J2KImage b)
+	{
+		return a.getWidth() == b.getWidth() && a.getHeight() == b.getHeight() && Arrays.equals(a.getRed(), b.getRed())
+				&& Arrays.equals(a.getGreen(), b.getGreen()) && Arrays.equals(a.getBlue(), b.getBlue());
+	}
 }
@@ -2594,6 +2594,7 @@ public class HeaderDecoder implements ProgressionType, Markers, StdEntropyCoderO
 		boolean doer;
 		boolean verber;
 		int mMax;
+		int nThreads;
 
 		// Check parameters
 		pl.checkList(EntropyDecoder.OPT_PREFIX, ParameterList.toNameArray(EntropyDecoder.getParameterInfo()));
@@ -2604,7 +2605,9 @@ public class HeaderDecoder implements ProgressionType, Markers, StdEntropyCoderO
 
 		// Get maximum number of bit planes from m quit condition
 		mMax = pl.getIntParameter("m_quit");
-		return new StdEntropyDecoder(src, decSpec, doer, verber, mMax);
+		// Get number of decoding threads
+		nThreads = pl.getIntParameter("Cthreads");
+		return new StdEntropyDecoder(src, decSpec, doer, verber, mMax, nThreads);
 
 	}
 
@@ -1324,7 +1324,16 @@ public class PktDecoder implements StdEntropyCoderOptions
 						ccb.ntp[l] = 0;
 						ccb.pktIdx[l] = -1;
 					}
-					throw new EOFException();
+					if (!isTruncMode)
+					{
+						throw new EOFException();
+					}
+					// In truncation mode the codestream just ends inside this
+					// packet, which stops the reading like the decoding rate
+					// does. None of the following code-blocks are complete.
+					stopRead = true;
+					curOff = ehs.length();
+					continue;
 				}
 
 				// If truncation mode
@@ -87,7 +87,13 @@ public abstract class EntropyDecoder extends MultiResImgDataAdapter implements C
 							+ "decoder engine. If errors are detected they will be concealed and "
 							+ "the resulting distortion will be less important. Note that errors "
 							+ "can only be detected if the encoder that generated the data "
-							+ "included error resilience information.", "on" }, };
+							+ "included error resilience information.", "on" },
+			{
+					"Cthreads",
+					"<number of threads>",
+					"Specifies the number of threads that decode the code-blocks of "
+							+ "each subband in parallel, including the calling thread. With 0 "
+							+ "or 1 the code-blocks are decoded one at a time by the calling thread.", "0" }, };
 
 	/**
 	 * The bit stream transport from where to get the compressed data (the
@@ -89,13 +89,45 @@ public class StdEntropyDecoder extends EntropyDecoder implements StdEntropyCoder
 	 */
 	private long time[];
 
-	/** The bit based input for arithmetic coding bypass (i.e. raw) coding */
-	private ByteToBitInput bin;
+	/** The code-block decoding engine used by the calling thread */
+	private final CBlkDecoder cblkDec;
 
 	/**
-	 * The MQ decoder to use. It has in as the underlying source of coded data.
+	 * The number of threads decoding the code-blocks of a subband in parallel,
+	 * the calling thread included. If 1 or less all code-blocks are decoded one
+	 * at a time in the calling thread.
 	 */
-	private MQDecoder mq;
+	private final int nThreads;
+
+	/**
+	 * The thread pool shared by all parallel entropy decoders. It only grows,
+	 * so that decoding many images does not keep creating new threads.
+	 */
+	private static ThreadPool decPool;
+
+	/** The tasks decoding a subband in parallel, one per thread */
+	private DecodingTask decTasks[];
+
+	/** The lock used to wait for all decoding tasks of a subband to complete */
+	private final Object decLock = new Object();
+
+	/** The number of decoding tasks of the current subband still running */
+	private int decPending;
+
+	/** The first error or runtime exception thrown by a decoding task */
+	private Throwable decError;
+
+	/** The coded code-blocks of the subband decoded in parallel */
+	private DecLyrdCBlk decSrcblks[];
+
+	/** The decoded code-blocks of the subband decoded in parallel */
+	private DataBlk decBlks[];
+
+	/** The subband whose code-blocks are in 'decBlks', if any */
+	private SubbandSyn decSb;
+
+	/** The component and tile of the code-blocks in 'decBlks' */
+	private int decC, decT;
 
 	/** The decoder spec */
 	private DecoderSpecs decSpec;
@@ -188,43 +220,6 @@ public class StdEntropyDecoder extends EntropyDecoder implements StdEntropyCoder
 	 */
 	private static final int SEG_SYMBOL = 10;
 
-	/**
-	 * The state array for entropy coding. Each element of the state array
-	 * stores the state of two coefficients. The lower 16 bits store the state
-	 * of a coefficient in row 'i' and column 'j', while the upper 16 bits store
-	 * the state of a coefficient in row 'i+1' and column 'j'. The 'i' row is
-	 * either the first or the third row of a stripe. This packing of the states
-	 * into 32 bit words allows a faster scan of all coefficients on each coding
-	 * pass and diminished the amount of data transferred. The size of the state
-	 * array is increased by 1 on each side (top, bottom, left, right) to handle
-	 * boundary conditions without any special logic.
-	 * 
-	 * <P>
-	 * The state of a coefficient is stored in the following way in the lower 16
-	 * bits, where bit 0 is the least significant bit. Bit 15 is the
-	 * significance of a coefficient (0 if non-significant, 1 otherwise). Bit 14
-	 * is the visited state (i.e. if a coefficient has been coded in the
-	 * significance propagation pass of the current bit-plane). Bit 13 is the
-	 * "non zero-context" state (i.e. if one of the eight immediate neighbors is
-	 * significant it is 1, otherwise is 0). Bits 12 to 9 store the sign of the
-	 * already significant left, right, up and down neighbors (1 for negative, 0
-	 * for positive or not yet significant). Bit 8 indicates if the magnitude
-	 * refinement has already been applied to the coefficient. Bits 7 to 4 store
-	 * the significance of the left, right, up and down neighbors (1 for
-	 * significant, 0 for non significant). Bits 3 to 0 store the significance
-	 * of the diagonal coefficients (up-left, up-right, down-left and
-	 * down-right; 1 for significant, 0 for non significant).
-	 * 
-	 * <P>
-	 * The upper 16 bits the state is stored as in the lower 16 bits, but with
-	 * the bits shifted up by 16.
-	 * 
-	 * <P>
-	 * The lower 16 bits are referred to as "row 1" ("R1") while the upper 16
-	 * bits are referred to as "row 2" ("R2").
-	 */
-	private final int state[];
-
 	/**
 	 * The separation between the upper and lower bits in the state array: 16
 	 */
@@ -720,8 +715,38 @@ public class StdEntropyDecoder extends EntropyDecoder implements StdEntropyCoder
 	 *            the maximum number of bit planes to decode according to the m
 	 *            quit condition
 	 */
-	@SuppressWarnings("deprecation")
 	public StdEntropyDecoder(CodedCBlkDataSrcDec src, DecoderSpecs decSpec, boolean doer, boolean verber, int mQuit)
+	{
+		this(src, decSpec, doer, verber, mQuit, 0);
+	}
+
+	/**
+	 * Instantiates a new entropy decoder engine, with the specified source of
+	 * data, nominal block width and height, that decodes the code-blocks of
+	 * each subband with several threads.
+	 * 
+	 * @param src
+	 *            The source of data
+	 * 
+	 * @param doer
+	 *            If true error detection will be performed, if any error
+	 *            detection features have been enabled.
+	 * 
+	 * @param verber
+	 *            This flag indicates if the entropy decoder should be verbose
+	 *            about bit stream errors that are detected and concealed.
+	 * 
+	 * @param mQuit
+	 *            the maximum number of bit planes to decode according to the m
+	 *            quit condition
+	 * 
+	 * @param nThreads
+	 *            The number of threads to decode with, including the calling
+	 *            thread. If 1 or less no additional threads are used.
+	 */
+	@SuppressWarnings("deprecation")
+	public StdEntropyDecoder(CodedCBlkDataSrcDec src, DecoderSpecs decSpec, boolean doer, boolean verber, int mQuit,
+			int nThreads)
 	{
 		super(src);
 
@@ -729,6 +754,7 @@ public class StdEntropyDecoder extends EntropyDecoder implements StdEntropyCoder
 		this.doer = doer;
 		this.verber = verber;
 		this.mQuit = mQuit;
+		this.nThreads = nThreads;
 
 		// If we do timing create necessary structures
 		if (DO_TIMING)
@@ -739,7 +765,16 @@ public class StdEntropyDecoder extends EntropyDecoder implements StdEntropyCoder
 		}
 
 		// Initialize internal variables
-		state = new int[(decSpec.cblks.getMaxCBlkWidth() + 2) * ((decSpec.cblks.getMaxCBlkHeight() + 1) / 2 + 2)];
+		cblkDec = new CBlkDecoder();
+		if (nThreads > 1)
+		{
+			decTasks = new DecodingTask[nThreads];
+			decTasks[0] = new DecodingTask(0, cblkDec);
+			for (int i = 1; i < nThreads; i++)
+			{
+				decTasks[i] = new DecodingTask(i, new CBlkDecoder());
+			}
+		}
 	}
 
 	/**
@@ -823,16 +858,17 @@ public class StdEntropyDecoder extends EntropyDecoder implements StdEntropyCoder
 	public DataBlk getCodeBlock(int c, int m, int n, SubbandSyn sb, DataBlk cblk)
 	{
 		long stime = 0L; // Start time for timed sections
-		int zc_lut[]; // The ZC lookup table to use
-		int out_data[]; // The outupt data buffer
-		int npasses; // The number of coding passes to perform
-		int curbp; // The current magnitude bit-plane (starts at 30)
-		boolean error; // Error indicator
-		int tslen; // Length of first terminated segment
-		int tsidx; // Index of current terminated segment
-		ByteInputBuffer in = null;
 
-		boolean isterm;
+		// With several threads all code-blocks of the subband are decoded at
+		// once, on the first request for one of them
+		if (nThreads > 1 && sb.numCb.x * sb.numCb.y > 1)
+		{
+			if (sb != decSb || c != decC || tIdx != decT)
+			{
+				decodeSubband(c, sb);
+			}
+			return copyCodeBlock(decBlks[m * sb.numCb.x + n], cblk);
+		}
 
 		// Get the code-block to decode
 		srcblk = src.getCodeBlock(c, m, n, sb, 1, -1, srcblk);
@@ -842,199 +878,7 @@ public class StdEntropyDecoder extends EntropyDecoder implements StdEntropyCoder
 		// Retrieve options from decSpec
 		options = ((Integer) decSpec.ecopts.getTileCompVal(tIdx, c)).intValue();
 
-		// Reset state
-		ArrayUtil.intArraySet(state, 0);
-
-		// Initialize output code-block
-		if (cblk == null)
-		{
-			cblk = new DataBlkInt();
-		}
-		cblk.progressive = srcblk.prog;
-		cblk.ulx = srcblk.ulx;
-		cblk.uly = srcblk.uly;
-		cblk.w = srcblk.w;
-		cblk.h = srcblk.h;
-		cblk.offset = 0;
-		cblk.scanw = cblk.w;
-		out_data = (int[]) cblk.getData();
-
-		if (out_data == null || out_data.length < srcblk.w * srcblk.h)
-		{
-			out_data = new int[srcblk.w * srcblk.h];
-			cblk.setData(out_data);
-		}
-		else
-		{
-			// Set data values to 0
-			ArrayUtil.intArraySet(out_data, 0);
-		}
-
-		if (srcblk.nl <= 0 || srcblk.nTrunc <= 0)
-		{
-			// 0 layers => no data to decode => return all 0s
-			return cblk;
-		}
-
-		// Get the length of the first terminated segment
-		tslen = (srcblk.tsLengths == null) ? srcblk.dl : srcblk.tsLengths[0];
-		tsidx = 0;
-		// Initialize for decoding
-		npasses = srcblk.nTrunc;
-		if (mq == null)
-		{
-			in = new ByteInputBuffer(srcblk.data, 0, tslen);
-			mq = new MQDecoder(in, NUM_CTXTS, MQ_INIT);
-		}
-		else
-		{
-			// We always start by an MQ segment
-			mq.nextSegment(srcblk.data, 0, tslen);
-			mq.resetCtxts();
-		}
-		error = false;
-
-		if ((options & OPT_BYPASS) != 0)
-		{
-			if (bin == null)
-			{
-				if (in == null)
-					in = mq.getByteInputBuffer();
-				bin = new ByteToBitInput(in);
-			}
-		}
-
-		// Choose correct ZC lookup table for global orientation
-		switch (sb.orientation)
-		{
-			case Subband.WT_ORIENT_HL:
-				zc_lut = ZC_LUT_HL;
-				break;
-			case Subband.WT_ORIENT_LH:
-			case Subband.WT_ORIENT_LL:
-				zc_lut = ZC_LUT_LH;
-				break;
-			case Subband.WT_ORIENT_HH:
-				zc_lut = ZC_LUT_HH;
-				break;
-			default:
-				throw new Error("JJ2000 internal error");
-		}
-
-		// NOTE: we don't currently detect which is the last magnitude
-		// bit-plane so that 'isterm' is true for the last pass of it. Doing
-		// so would aid marginally in error detection with the predictable
-		// error resilient MQ termination. However, determining which is the
-		// last magnitude bit-plane is quite hard (due to ROI, quantization,
-		// etc.) and in any case the predictable error resilient termination
-		// used without the arithmetic coding bypass and/or regular
-		// termination modes is almost useless.
-
-		// Loop on bit-planes and passes
-
-		curbp = 30 - srcblk.skipMSBP;
-
-		// Check for maximum number of bitplanes quit condition
-		if (mQuit != -1 && (mQuit * 3 - 2) < npasses)
-		{
-			npasses = mQuit * 3 - 2;
-		}
-
-		// First bit-plane has only the cleanup pass
-		if (curbp >= 0 && npasses > 0)
-		{
-			isterm = (options & OPT_TERM_PASS) != 0
-					|| ((options & OPT_BYPASS) != 0 && (31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP) >= curbp);
-			error = cleanuppass(cblk, mq, curbp, state, zc_lut, isterm);
-			npasses--;
-			if (!error || !doer)
-				curbp--;
-		}
-
-		// Other bit-planes have the three coding passes
-		if (!error || !doer)
-		{
-			while (curbp >= 0 && npasses > 0)
-			{
-
-				if ((options & OPT_BYPASS) != 0 && (curbp < 31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP))
-				{
-					// Use bypass decoding mode (only all bit-planes
-					// after the first 4 bit-planes).
-
-					// Here starts a new raw segment
-					bin.setByteArray(null, -1, srcblk.tsLengths[++tsidx]);
-					isterm = (options & OPT_TERM_PASS) != 0;
-					error = rawSigProgPass(cblk, bin, curbp, state, isterm);
-					npasses--;
-					if (npasses <= 0 || (error && doer))
-						break;
-
-					if ((options & OPT_TERM_PASS) != 0)
-					{
-						// Start a new raw segment
-						bin.setByteArray(null, -1, srcblk.tsLengths[++tsidx]);
-					}
-					isterm = (options & OPT_TERM_PASS) != 0
-							|| ((options & OPT_BYPASS) != 0 && (31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP > curbp));
-					error = rawMagRefPass(cblk, bin, curbp, state, isterm);
-				}
-				else
-				{ // Do not use bypass decoding mode
-					if ((options & OPT_TERM_PASS) != 0)
-					{
-						// Here starts a new MQ segment
-						mq.nextSegment(null, -1, srcblk.tsLengths[++tsidx]);
-					}
-					isterm = (options & OPT_TERM_PASS) != 0;
-					error = sigProgPass(cblk, mq, curbp, state, zc_lut, isterm);
-					npasses--;
-					if (npasses <= 0 || (error && doer))
-						break;
-
-					if ((options & OPT_TERM_PASS) != 0)
-					{
-						// Here starts a new MQ segment
-						mq.nextSegment(null, -1, srcblk.tsLengths[++tsidx]);
-					}
-					isterm = (options & OPT_TERM_PASS) != 0
-							|| ((options & OPT_BYPASS) != 0 && (31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP > curbp));
-					error = magRefPass(cblk, mq, curbp, state, isterm);
-				}
-
-				npasses--;
-				if (npasses <= 0 || (error && doer))
-					break;
-
-				if ((options & OPT_TERM_PASS) != 0
-						|| ((options & OPT_BYPASS) != 0 && (curbp < 31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP)))
-				{
-					// Here starts a new MQ segment
-					mq.nextSegment(null, -1, srcblk.tsLengths[++tsidx]);
-				}
-				isterm = (options & OPT_TERM_PASS) != 0
-						|| ((options & OPT_BYPASS) != 0 && (31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP) >= curbp);
-				error = cleanuppass(cblk, mq, curbp, state, zc_lut, isterm);
-				npasses--;
-				if (error && doer)
-					break;
-				// Goto next bit-plane
-				curbp--;
-			}
-		}
-
-		// If an error occurred, conceal it
-		if (error && doer)
-		{
-			if (verber)
-			{
-				FacilityManager.getMsgLogger().printmsg(
-						MsgLogger.WARNING,
-						"Error detected at bit-plane " + curbp + " in code-block (" + m + "," + n + "), sb_idx "
-								+ sb.sbandIdx + ", res. level " + sb.resLvl + ". Concealing...");
-			}
-			conceal(cblk, curbp);
-		}
+		cblk = cblkDec.decode(m, n, sb, srcblk, cblk);
 
 		if (DO_TIMING)
 			time[c] += System.currentTimeMillis() - stime;
@@ -1099,6 +943,510 @@ public class StdEntropyDecoder extends EntropyDecoder implements StdEntropyCoder
 		return getCodeBlock(c, m, n, sb, cblk);
 	}
 
+	/**
+	 * Decodes the code-blocks of a subband with all threads, storing the
+	 * results in 'decBlks'. The coded data is read in the calling thread, since
+	 * the bit stream reader is not thread safe, and every thread then decodes
+	 * its share of code-blocks with its own decoding engine. The results do not
+	 * depend on the number of threads or the order in which they finish.
+	 * 
+	 * @param c
+	 *            The component of the subband.
+	 * 
+	 * @param sb
+	 *            The subband whose code-blocks to decode.
+	 */
+	private void decodeSubband(int c, SubbandSyn sb)
+	{
+		int ncb = sb.numCb.x * sb.numCb.y;
+		int k, m, n;
+
+		if (decBlks == null || decBlks.length < ncb)
+		{
+			decSrcblks = new DecLyrdCBlk[ncb];
+			decBlks = new DataBlk[ncb];
+		}
+		for (k = 0, m = 0; m < sb.numCb.y; m++)
+		{
+			for (n = 0; n < sb.numCb.x; n++, k++)
+			{
+				decSrcblks[k] = src.getCodeBlock(c, m, n, sb, 1, -1, decSrcblks[k]);
+			}
+		}
+
+		// Retrieve options from decSpec
+		options = ((Integer) decSpec.ecopts.getTileCompVal(tIdx, c)).intValue();
+
+		// Invalidate the previous subband until this one is complete
+		decSb = null;
+
+		int ntasks = Math.min(nThreads, ncb);
+		ThreadPool pool = getThreadPool(ntasks - 1);
+		decError = null;
+		decPending = ntasks;
+		for (int i = 0; i < ntasks; i++)
+		{
+			decTasks[i].setSubband(sb, ntasks);
+		}
+		boolean interrupted = false;
+		for (int i = 1; i < ntasks; i++)
+		{
+			// The pool only gives up waiting for an idle thread when this
+			// thread is interrupted, the task then runs here instead
+			if (!pool.runTarget(decTasks[i], null))
+			{
+				interrupted = true;
+				decTasks[i].run();
+			}
+		}
+		decTasks[0].run();
+
+		// The tasks write to the shared code-block arrays, so wait for all of
+		// them even when interrupted and restore the interrupt status after
+		synchronized (decLock)
+		{
+			while (decPending > 0)
+			{
+				try
+				{
+					decLock.wait();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (decError instanceof Error)
+		{
+			throw (Error) decError;
+		}
+		else if (decError instanceof RuntimeException)
+		{
+			throw (RuntimeException) decError;
+		}
+		decSb = sb;
+		decC = c;
+		decT = tIdx;
+	}
+
+	/**
+	 * Copies a code-block decoded in parallel to the code-block to return.
+	 * 
+	 * @param blk
+	 *            The decoded code-block.
+	 * 
+	 * @param cblk
+	 *            If non-null this object will be used to return the copy. If
+	 *            null a new one will be allocated and returned.
+	 * 
+	 * @return The copy of the code-block.
+	 */
+	private static DataBlk copyCodeBlock(DataBlk blk, DataBlk cblk)
+	{
+		int len = blk.w * blk.h;
+
+		if (cblk == null)
+		{
+			cblk = new DataBlkInt();
+		}
+		cblk.progressive = blk.progressive;
+		cblk.ulx = blk.ulx;
+		cblk.uly = blk.uly;
+		cblk.w = blk.w;
+		cblk.h = blk.h;
+		cblk.offset = 0;
+		cblk.scanw = cblk.w;
+
+		int data[] = (int[]) cblk.getData();
+		if (data == null || data.length < len)
+		{
+			data = new int[len];
+			cblk.setData(data);
+		}
+		System.arraycopy(blk.getData(), 0, data, 0, len);
+		return cblk;
+	}
+
+	/**
+	 * Returns the thread pool shared by all parallel entropy decoders, making
+	 * sure it has at least the requested number of threads.
+	 * 
+	 * @param size
+	 *            The minimum number of threads in the pool.
+	 * 
+	 * @return The shared thread pool.
+	 */
+	private static synchronized ThreadPool getThreadPool(int size)
+	{
+		if (decPool == null || decPool.getSize() < size)
+		{
+			decPool = new ThreadPool(size, Thread.NORM_PRIORITY, "StdEntropyDecoder");
+		}
+		return decPool;
+	}
+
+	/**
+	 * Decodes every n-th code-block of a subband, starting with the code-block
+	 * given by its index. Used only when decoding with several threads.
+	 */
+	private class DecodingTask implements Runnable
+	{
+		/** The index of the first code-block to decode */
+		private final int idx;
+
+		/** The decoding engine of this task */
+		private final CBlkDecoder dec;
+
+		/** The subband to decode */
+		private SubbandSyn sb;
+
+		/** The number of tasks decoding the subband */
+		private int step;
+
+		DecodingTask(int idx, CBlkDecoder dec)
+		{
+			this.idx = idx;
+			this.dec = dec;
+		}
+
+		void setSubband(SubbandSyn sb, int step)
+		{
+			this.sb = sb;
+			this.step = step;
+		}
+
+		/**
+		 * Decodes this task's share of code-blocks. Errors are stored for the
+		 * calling thread to throw, and the task is always counted as done.
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				int ncb = sb.numCb.x * sb.numCb.y;
+				for (int k = idx; k < ncb; k += step)
+				{
+					decBlks[k] = dec.decode(k / sb.numCb.x, k % sb.numCb.x, sb, decSrcblks[k], decBlks[k]);
+				}
+			}
+			catch (Throwable t)
+			{
+				synchronized (decLock)
+				{
+					if (decError == null)
+						decError = t;
+				}
+			}
+			finally
+			{
+				synchronized (decLock)
+				{
+					decPending--;
+					decLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The code-block decoding engine. It keeps the state array, MQ decoder and
+	 * raw bit input needed to decode one code-block, so that each thread can
+	 * decode with its own engine. All other data it uses, including the
+	 * 'options' of the current tile-component, is only read while decoding.
+	 */
+	private class CBlkDecoder
+	{
+		/**
+		 * The state array for entropy coding. Each element of the state array
+		 * stores the state of two coefficients. The lower 16 bits store the state
+		 * of a coefficient in row 'i' and column 'j', while the upper 16 bits store
+		 * the state of a coefficient in row 'i+1' and column 'j'. The 'i' row is
+		 * either the first or the third row of a stripe. This packing of the states
+		 * into 32 bit words allows a faster scan of all coefficients on each coding
+		 * pass and diminished the amount of data transferred. The size of the state
+		 * array is increased by 1 on each side (top, bottom, left, right) to handle
+		 * boundary conditions without any special logic.
+		 * 
+		 * <P>
+		 * The state of a coefficient is stored in the following way in the lower 16
+		 * bits, where bit 0 is the least significant bit. Bit 15 is the
+		 * significance of a coefficient (0 if non-significant, 1 otherwise). Bit 14
+		 * is the visited state (i.e. if a coefficient has been coded in the
+		 * significance propagation pass of the current bit-plane). Bit 13 is the
+		 * "non zero-context" state (i.e. if one of the eight immediate neighbors is
+		 * significant it is 1, otherwise is 0). Bits 12 to 9 store the sign of the
+		 * already significant left, right, up and down neighbors (1 for negative, 0
+		 * for positive or not yet significant). Bit 8 indicates if the magnitude
+		 * refinement has already been applied to the coefficient. Bits 7 to 4 store
+		 * the significance of the left, right, up and down neighbors (1 for
+		 * significant, 0 for non significant). Bits 3 to 0 store the significance
+		 * of the diagonal coefficients (up-left, up-right, down-left and
+		 * down-right; 1 for significant, 0 for non significant).
+		 * 
+		 * <P>
+		 * The upper 16 bits the state is stored as in the lower 16 bits, but with
+		 * the bits shifted up by 16.
+		 * 
+		 * <P>
+		 * The lower 16 bits are referred to as "row 1" ("R1") while the upper 16
+		 * bits are referred to as "row 2" ("R2").
+		 */
+		private final int state[];
+
+		/** The bit based input for arithmetic coding bypass (i.e. raw) coding */
+		private ByteToBitInput bin;
+
+		/**
+		 * The MQ decoder to use. It has in as the underlying source of coded
+		 * data.
+		 */
+		private MQDecoder mq;
+
+		CBlkDecoder()
+		{
+			state = new int[(decSpec.cblks.getMaxCBlkWidth() + 2) * ((decSpec.cblks.getMaxCBlkHeight() + 1) / 2 + 2)];
+		}
+
+		/**
+		 * Decodes a code-block with the 'options' of its tile-component.
+		 * 
+		 * @param m
+		 *            The vertical index of the code-block, in the subband.
+		 * 
+		 * @param n
+		 *            The horizontal index of the code-block, in the subband.
+		 * 
+		 * @param sb
+		 *            The subband in which the code-block is.
+		 * 
+		 * @param srcblk
+		 *            The coded code-block.
+		 * 
+		 * @param cblk
+		 *            If non-null this object will be used to return the
+		 *            decoded code-block. If null a new one will be allocated
+		 *            and returned.
+		 * 
+		 * @return The decoded code-block.
+		 */
+		DataBlk decode(int m, int n, SubbandSyn sb, DecLyrdCBlk srcblk, DataBlk cblk)
+		{
+			int zc_lut[]; // The ZC lookup table to use
+			int out_data[]; // The outupt data buffer
+			int npasses; // The number of coding passes to perform
+			int curbp; // The current magnitude bit-plane (starts at 30)
+			boolean error; // Error indicator
+			int tslen; // Length of first terminated segment
+			int tsidx; // Index of current terminated segment
+			ByteInputBuffer in = null;
+
+			boolean isterm;
+
+			// Reset state
+			ArrayUtil.intArraySet(state, 0);
+
+			// Initialize output code-block
+			if (cblk == null)
+			{
+				cblk = new DataBlkInt();
+			}
+			cblk.progressive = srcblk.prog;
+			cblk.ulx = srcblk.ulx;
+			cblk.uly = srcblk.uly;
+			cblk.w = srcblk.w;
+			cblk.h = srcblk.h;
+			cblk.offset = 0;
+			cblk.scanw = cblk.w;
+			out_data = (int[]) cblk.getData();
+
+			if (out_data == null || out_data.length < srcblk.w * srcblk.h)
+			{
+				out_data = new int[srcblk.w * srcblk.h];
+				cblk.setData(out_data);
+			}
+			else
+			{
+				// Set data values to 0
+				ArrayUtil.intArraySet(out_data, 0);
+			}
+
+			if (srcblk.nl <= 0 || srcblk.nTrunc <= 0)
+			{
+				// 0 layers => no data to decode => return all 0s
+				return cblk;
+			}
+
+			// Get the length of the first terminated segment
+			tslen = (srcblk.tsLengths == null) ? srcblk.dl : srcblk.tsLengths[0];
+			tsidx = 0;
+			// Initialize for decoding
+			npasses = srcblk.nTrunc;
+			if (mq == null)
+			{
+				in = new ByteInputBuffer(srcblk.data, 0, tslen);
+				mq = new MQDecoder(in, NUM_CTXTS, MQ_INIT);
+			}
+			else
+			{
+				// We always start by an MQ segment
+				mq.nextSegment(srcblk.data, 0, tslen);
+				mq.resetCtxts();
+			}
+			error = false;
+
+			if ((options & OPT_BYPASS) != 0)
+			{
+				if (bin == null)
+				{
+					if (in == null)
+						in = mq.getByteInputBuffer();
+					bin = new ByteToBitInput(in);
+				}
+			}
+
+			// Choose correct ZC lookup table for global orientation
+			switch (sb.orientation)
+			{
+				case Subband.WT_ORIENT_HL:
+					zc_lut = ZC_LUT_HL;
+					break;
+				case Subband.WT_ORIENT_LH:
+				case Subband.WT_ORIENT_LL:
+					zc_lut = ZC_LUT_LH;
+					break;
+				case Subband.WT_ORIENT_HH:
+					zc_lut = ZC_LUT_HH;
+					break;
+				default:
+					throw new Error("JJ2000 internal error");
+			}
+
+			// NOTE: we don't currently detect which is the last magnitude
+			// bit-plane so that 'isterm' is true for the last pass of it. Doing
+			// so would aid marginally in error detection with the predictable
+			// error resilient MQ termination. However, determining which is the
+			// last magnitude bit-plane is quite hard (due to ROI, quantization,
+			// etc.) and in any case the predictable error resilient termination
+			// used without the arithmetic coding bypass and/or regular
+			// termination modes is almost useless.
+
+			// Loop on bit-planes and passes
+
+			curbp = 30 - srcblk.skipMSBP;
+
+			// Check for maximum number of bitplanes quit condition
+			if (mQuit != -1 && (mQuit * 3 - 2) < npasses)
+			{
+				npasses = mQuit * 3 - 2;
+			}
+
+			// First bit-plane has only the cleanup pass
+			if (curbp >= 0 && npasses > 0)
+			{
+				isterm = (options & OPT_TERM_PASS) != 0
+						|| ((options & OPT_BYPASS) != 0 && (31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP) >= curbp);
+				error = cleanuppass(cblk, mq, curbp, state, zc_lut, isterm);
+				npasses--;
+				if (!error || !doer)
+					curbp--;
+			}
+
+			// Other bit-planes have the three coding passes
+			if (!error || !doer)
+			{
+				while (curbp >= 0 && npasses > 0)
+				{
+
+					if ((options & OPT_BYPASS) != 0 && (curbp < 31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP))
+					{
+						// Use bypass decoding mode (only all bit-planes
+						// after the first 4 bit-planes).
+
+						// Here starts a new raw segment
+						bin.setByteArray(null, -1, srcblk.tsLengths[++tsidx]);
+						isterm = (options & OPT_TERM_PASS) != 0;
+						error = rawSigProgPass(cblk, bin, curbp, state, isterm);
+						npasses--;
+						if (npasses <= 0 || (error && doer))
+							break;
+
+						if ((options & OPT_TERM_PASS) != 0)
+						{
+							// Start a new raw segment
+							bin.setByteArray(null, -1, srcblk.tsLengths[++tsidx]);
+						}
+						isterm = (options & OPT_TERM_PASS) != 0
+								|| ((options & OPT_BYPASS) != 0 && (31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP > curbp));
+						error = rawMagRefPass(cblk, bin, curbp, state, isterm);
+					}
+					else
+					{ // Do not use bypass decoding mode
+						if ((options & OPT_TERM_PASS) != 0)
+						{
+							// Here starts a new MQ segment
+							mq.nextSegment(null, -1, srcblk.tsLengths[++tsidx]);
+						}
+						isterm = (options & OPT_TERM_PASS) != 0;
+						error = sigProgPass(cblk, mq, curbp, state, zc_lut, isterm);
+						npasses--;
+						if (npasses <= 0 || (error && doer))
+							break;
+
+						if ((options & OPT_TERM_PASS) != 0)
+						{
+							// Here starts a new MQ segment
+							mq.nextSegment(null, -1, srcblk.tsLengths[++tsidx]);
+						}
+						isterm = (options & OPT_TERM_PASS) != 0
+								|| ((options & OPT_BYPASS) != 0 && (31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP > curbp));
+						error = magRefPass(cblk, mq, curbp, state, isterm);
+					}
+
+					npasses--;
+					if (npasses <= 0 || (error && doer))
+						break;
+
+					if ((options & OPT_TERM_PASS) != 0
+							|| ((options & OPT_BYPASS) != 0 && (curbp < 31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP)))
+					{
+						// Here starts a new MQ segment
+						mq.nextSegment(null, -1, srcblk.tsLengths[++tsidx]);
+					}
+					isterm = (options & OPT_TERM_PASS) != 0
+							|| ((options & OPT_BYPASS) != 0 && (31 - NUM_NON_BYPASS_MS_BP - srcblk.skipMSBP) >= curbp);
+					error = cleanuppass(cblk, mq, curbp, state, zc_lut, isterm);
+					npasses--;
+					if (error && doer)
+						break;
+					// Goto next bit-plane
+					curbp--;
+				}
+			}
+
+			// If an error occurred, conceal it
+			if (error && doer)
+			{
+				if (verber)
+				{
+					FacilityManager.getMsgLogger().printmsg(
+							MsgLogger.WARNING,
+							"Error detected at bit-plane " + curbp + " in code-block (" + m + "," + n + "), sb_idx "
+									+ sb.sbandIdx + ", res. level " + sb.resLvl + ". Concealing...");
+				}
+				conceal(cblk, curbp);
+			}
+
+			// Return decoded block
+			return cblk;
+		}
+	}
+
 	/**
 	 * Performs the significance propagation pass on the specified data and
 	 * bit-plane. It decodes all insignificant samples which have, at least, one
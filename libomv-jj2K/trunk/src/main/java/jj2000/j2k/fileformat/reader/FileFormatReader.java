@@ -171,6 +171,10 @@ public class FileFormatReader implements FileFormatBoxes
 									+ "found before Contiguous codestream box ");
 						}
 						readContiguousCodeStreamBox(pos, length, longLength);
+						// A truncated file ends inside the codestream, which can
+						// still be decoded up to there
+						if (pos + length > in.length())
+							lastBoxFound = true;
 						break;
 					case JP2_HEADER_BOX:
 						if (jp2HeaderBoxFound)
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the openmetaverse.org or libomv-java project nor the
+ *   names of its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.imaging.benchmarks;
+
+import java.util.List;
+
+import jj2000.j2k.NoNextElementException;
+import jj2000.j2k.codestream.reader.BitstreamReaderAgent;
+import jj2000.j2k.entropy.decoder.CodedCBlkDataSrcDec;
+import jj2000.j2k.entropy.decoder.DecLyrdCBlk;
+import jj2000.j2k.wavelet.synthesis.MultiResImgDataAdapter;
+import jj2000.j2k.wavelet.synthesis.SubbandSyn;
+
+/**
+ * Entropy coded code-block source that serves all code-blocks of a single tile
+ * codestream from memory
+ * 
+ * The code-blocks are read from the bit stream reader once, when the cache is created,
+ * so decoding from the cache measures the entropy decoder without the packet parsing
+ * in front of it.
+ */
+class CodedCBlkCache extends MultiResImgDataAdapter implements CodedCBlkDataSrcDec
+{
+	private final BitstreamReaderAgent src;
+	/* The code-blocks by component, resolution level and subband index, and code-block index */
+	private final DecLyrdCBlk[][][] cblks;
+
+	CodedCBlkCache(BitstreamReaderAgent src)
+	{
+		super(src);
+		this.src = src;
+		src.setTile(0, 0);
+
+		int nc = src.getNumComps();
+		cblks = new DecLyrdCBlk[nc][][];
+		for (int c = 0; c < nc; c++)
+		{
+			cblks[c] = new DecLyrdCBlk[(src.getSynSubbandTree(0, c).resLvl + 1) * 4][];
+			List<SubbandSyn> subbands = J2KCodestream.getSubbands(src, c);
+			for (SubbandSyn sb : subbands)
+			{
+				DecLyrdCBlk[] blks = new DecLyrdCBlk[sb.numCb.x * sb.numCb.y];
+				for (int m = 0, i = 0; m < sb.numCb.y; m++)
+				{
+					for (int n = 0; n < sb.numCb.x; n++, i++)
+					{
+						blks[i] = src.getCodeBlock(c, m, n, sb, 1, -1, null);
+					}
+				}
+				cblks[c][sb.resLvl * 4 + sb.sbandIdx] = blks;
+			}
+		}
+	}
+
+	/**
+	 * Returns the cached code-block with all its layers. The layer range is ignored.
+	 */
+	@Override
+	public DecLyrdCBlk getCodeBlock(int c, int m, int n, SubbandSyn sb, int fl, int nl, DecLyrdCBlk ccb)
+	{
+		return cblks[c][sb.resLvl * 4 + sb.sbandIdx][m * sb.numCb.x + n];
+	}
+
+	/**
+	 * Stays on the only tile, without reading its packets again
+	 */
+	@Override
+	public int setTile(int x, int y)
+	{
+		if (x != 0 || y != 0)
+			throw new IllegalArgumentException();
+		return 0;
+	}
+
+	@Override
+	public int nextTile()
+	{
+		throw new NoNextElementException();
+	}
+
+	@Override
+	public SubbandSyn getSynSubbandTree(int t, int c)
+	{
+		return src.getSynSubbandTree(t, c);
+	}
+
+	@Override
+	public int getCbULX()
+	{
+		return src.getCbULX();
+	}
+
+	@Override
+	public int getCbULY()
+	{
+		return src.getCbULY();
+	}
+}
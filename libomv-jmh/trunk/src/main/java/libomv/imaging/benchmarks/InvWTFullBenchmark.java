@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the openmetaverse.org or libomv-java project nor the
+ *   names of its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.imaging.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import jj2000.j2k.image.DataBlk;
+import jj2000.j2k.wavelet.synthesis.InvWTFull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Full resolution wavelet synthesis of all components of a corpus codestream with
+ * {@link InvWTFull}, with the 9x7 filter for lossy and the 5x3 filter for lossless images
+ * 
+ * The dequantized coefficients come from a {@link WTCBlkCache}, so entropy decoding and
+ * dequantization are not part of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvWTFullBenchmark
+{
+	@Param({"32", "64", "128", "256", "512", "1024"})
+	public int size;
+
+	@Param({"3", "4", "5"})
+	public int components;
+
+	@Param({"false", "true"})
+	public boolean lossless;
+
+	private InvWTFull invWT;
+	private DataBlk[] blks;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		J2KCodestream codestream = new J2KCodestream(J2KCorpus.encode(size, components, lossless), 0);
+		WTCBlkCache cache = new WTCBlkCache(codestream.createDequantizer(codestream.breader));
+		invWT = new InvWTFull(cache, codestream.decSpec);
+		invWT.setImgResLevel(codestream.breader.getImgRes());
+
+		blks = new DataBlk[cache.getNumComps()];
+		for (int c = 0; c < blks.length; c++)
+		{
+			blks[c] = J2KCodestream.createDataBlk(cache, c);
+			blks[c].w = invWT.getTileCompWidth(0, c);
+			blks[c].h = invWT.getTileCompHeight(0, c);
+		}
+	}
+
+	@Benchmark
+	public void synthesize(Blackhole bh)
+	{
+		// Changing the tile drops the components reconstructed by the last invocation
+		invWT.setTile(0, 0);
+		for (int c = 0; c < blks.length; c++)
+		{
+			bh.consume(invWT.getInternCompData(blks[c], c));
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the openmetaverse.org or libomv-java project nor the
+ *   names of its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.imaging.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jj2000.j2k.codestream.HeaderInfo;
+import jj2000.j2k.codestream.reader.BitstreamReaderAgent;
+import jj2000.j2k.codestream.reader.HeaderDecoder;
+import jj2000.j2k.decoder.DecoderSpecs;
+import jj2000.j2k.entropy.decoder.CodedCBlkDataSrcDec;
+import jj2000.j2k.entropy.decoder.EntropyDecoder;
+import jj2000.j2k.fileformat.reader.FileFormatReader;
+import jj2000.j2k.image.DataBlk;
+import jj2000.j2k.image.DataBlkFloat;
+import jj2000.j2k.image.DataBlkInt;
+import jj2000.j2k.quantization.dequantizer.Dequantizer;
+import jj2000.j2k.roi.ROIDeScaler;
+import jj2000.j2k.util.ParameterList;
+import jj2000.j2k.wavelet.synthesis.InvWTData;
+import jj2000.j2k.wavelet.synthesis.SubbandSyn;
+import libomv.imaging.ByteBufferRandomAccessIO;
+
+/**
+ * The front of the jj2000 decoding chain for a corpus codestream, set up the way
+ * ImgDecoder does it, for benchmarks of the stages behind it
+ */
+final class J2KCodestream
+{
+	final ParameterList pl;
+	final HeaderDecoder hd;
+	final DecoderSpecs decSpec;
+	final BitstreamReaderAgent breader;
+	final int[] depth;
+
+	/**
+	 * @param encoded The codestream, optionally wrapped in the jp2 file format, which must consist of a single tile
+	 * @param threads The number of threads to entropy decode with, 0 to decode on the calling thread
+	 */
+	J2KCodestream(byte[] encoded, int threads) throws IOException
+	{
+		pl = J2KCorpus.getDecoderParameters(threads);
+		ByteBufferRandomAccessIO in = new ByteBufferRandomAccessIO(encoded);
+		FileFormatReader ff = new FileFormatReader(in);
+		ff.readFileFormat();
+		if (ff.JP2FFUsed)
+		{
+			in.seek(ff.getFirstCodeStreamPos());
+		}
+		HeaderInfo hi = new HeaderInfo();
+		hd = new HeaderDecoder(in, pl, hi);
+		decSpec = hd.getDecoderSpecs();
+		depth = new int[hd.getNumComps()];
+		for (int c = 0; c < depth.length; c++)
+		{
+			depth[c] = hd.getOriginalBitDepth(c);
+		}
+		breader = BitstreamReaderAgent.createInstance(in, hd, pl, decSpec, false, hi);
+		if (breader.getNumTiles() != 1)
+			throw new IllegalArgumentException("Only codestreams with a single tile are supported");
+	}
+
+	EntropyDecoder createEntropyDecoder(CodedCBlkDataSrcDec src)
+	{
+		return hd.createEntropyDecoder(src, pl);
+	}
+
+	Dequantizer createDequantizer(CodedCBlkDataSrcDec src)
+	{
+		ROIDeScaler roids = hd.createROIDeScaler(createEntropyDecoder(src), pl, decSpec);
+		return hd.createDequantizer(roids, depth, decSpec);
+	}
+
+	/**
+	 * Returns the leaf subbands of a component of the first tile, from the lowest to
+	 * the highest resolution level
+	 */
+	static List<SubbandSyn> getSubbands(InvWTData src, int c)
+	{
+		List<SubbandSyn> subbands = new ArrayList<SubbandSyn>();
+		SubbandSyn root = src.getSynSubbandTree(0, c);
+		for (int r = 0; r <= root.resLvl; r++)
+		{
+			for (int s = (r == 0) ? 0 : 1; s <= ((r == 0) ? 0 : 3); s++)
+			{
+				SubbandSyn sb = (SubbandSyn) root.getSubbandByIdx(r, s);
+				if (sb != null && sb.numCb != null)
+					subbands.add(sb);
+			}
+		}
+		return subbands;
+	}
+
+	/**
+	 * Creates a data block of the type the inverse wavelet transform of a component works in
+	 */
+	static DataBlk createDataBlk(InvWTData src, int c)
+	{
+		SubbandSyn root = src.getSynSubbandTree(0, c);
+		if (root.getHorWFilter() != null && root.getHorWFilter().getDataType() == DataBlk.TYPE_FLOAT)
+			return new DataBlkFloat();
+		return new DataBlkInt();
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the openmetaverse.org or libomv-java project nor the
+ *   names of its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.imaging.benchmarks;
+
+import java.util.Random;
+
+import jj2000.j2k.decoder.ImgDecoder;
+import jj2000.j2k.util.ParameterList;
+import libomv.imaging.J2KImage;
+import libomv.imaging.ManagedImage;
+
+/**
+ * Synthetic images in the sizes and channel layouts of Second Life textures
+ * 
+ * The images are generated from a fixed seed, so every fork and every run benchmarks
+ * the same data. Smooth gradients are mixed with fine noise, which compresses more like
+ * photographic texture content than flat colours or pure noise would.
+ */
+final class J2KCorpus
+{
+	private J2KCorpus()
+	{
+	}
+
+	/**
+	 * Returns the image channels for a number of JPEG2000 components
+	 * 
+	 * @param components 3 for RGB, 4 for RGBA and 5 for RGBA with a bump map
+	 * @return The {@link ManagedImage.ImageChannels} flags
+	 */
+	static byte getChannels(int components)
+	{
+		switch (components)
+		{
+			case 3:
+				return ManagedImage.ImageChannels.Color;
+			case 4:
+				return ManagedImage.ImageChannels.Color | ManagedImage.ImageChannels.Alpha;
+			case 5:
+				return ManagedImage.ImageChannels.Color | ManagedImage.ImageChannels.Alpha | ManagedImage.ImageChannels.Bump;
+			default:
+				throw new IllegalArgumentException("Unsupported number of components: " + components);
+		}
+	}
+
+	static J2KImage createImage(int size, int components)
+	{
+		J2KImage image = new J2KImage(size, size, getChannels(components));
+		Random random = new Random(size * 31 + components);
+		fillChannel(image.getRed(), size, random, 0.0);
+		fillChannel(image.getGreen(), size, random, 2.1);
+		fillChannel(image.getBlue(), size, random, 4.2);
+		if (components > 3)
+			fillAlpha(image.getAlpha(), size);
+		if (components > 4)
+			fillChannel(image.getBump(), size, random, 1.3);
+		return image;
+	}
+
+	/**
+	 * Creates and encodes a corpus image
+	 * 
+	 * @param size The width and height of the image
+	 * @param components The number of components, see {@link #getChannels(int)}
+	 * @param lossless true for the reversible 5x3 wavelet, false for the irreversible 9x7 one
+	 * @return The JPEG2000 codestream, wrapped in the jp2 file format
+	 */
+	static byte[] encode(int size, int components, boolean lossless) throws Exception
+	{
+		byte[] encoded = J2KImage.encode(createImage(size, components), lossless);
+		if (encoded == null)
+			throw new IllegalStateException("Encoding the " + size + "x" + size + " corpus image failed");
+		return encoded;
+	}
+
+	/**
+	 * Returns the default decoder parameters, the way J2KImage sets them up
+	 * 
+	 * @param threads The number of threads to entropy decode with, 0 to decode on the calling thread
+	 * @return The parameter list
+	 */
+	static ParameterList getDecoderParameters(int threads)
+	{
+		ParameterList defpl = new ParameterList();
+		String[][] param = ImgDecoder.getAllParameters();
+
+		for (int i = param.length - 1; i >= 0; i--)
+		{
+			if (param[i][3] != null)
+			{
+				defpl.put(param[i][0], param[i][3]);
+			}
+		}
+		ParameterList pl = new ParameterList(defpl);
+		pl.put("Cthreads", Integer.toString(threads));
+		pl.put("parsing", "off");
+		return pl;
+	}
+
+	private static void fillChannel(byte[] data, int size, Random random, double phase)
+	{
+		double scale = 2 * Math.PI / size;
+		for (int y = 0, i = 0; y < size; y++)
+		{
+			for (int x = 0; x < size; x++, i++)
+			{
+				double value = 128 + 48 * Math.sin(3 * x * scale + phase) * Math.cos(2 * y * scale - phase)
+						+ 24 * Math.sin((x + y) * 11 * scale) + 12 * random.nextGaussian();
+				data[i] = (byte) Math.max(0, Math.min(255, (int) value));
+			}
+		}
+	}
+
+	/* Opaque with a transparent disc with a soft edge, like a typical cut-out texture */
+	private static void fillAlpha(byte[] data, int size)
+	{
+		double center = (size - 1) / 2.0, radius = size / 4.0, edge = size / 16.0 + 1;
+		for (int y = 0, i = 0; y < size; y++)
+		{
+			for (int x = 0; x < size; x++, i++)
+			{
+				double distance = Math.sqrt((x - center) * (x - center) + (y - center) * (y - center));
+				data[i] = (byte) Math.max(0, Math.min(255, (int) ((distance - radius) * 255 / edge)));
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the openmetaverse.org or libomv-java project nor the
+ *   names of its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.imaging.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import jj2000.j2k.entropy.decoder.ByteInputBuffer;
+import jj2000.j2k.entropy.decoder.MQDecoder;
+import jj2000.j2k.entropy.encoder.ByteOutputBuffer;
+import jj2000.j2k.entropy.encoder.MQCoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Arithmetic decoding with {@link MQDecoder} of a segment coded by {@link MQCoder}
+ * 
+ * The segment holds 64K symbols spread over the 19 contexts of the code-block coder,
+ * with the given probability of a symbol being 0. Real bit-planes range from nearly
+ * random near the top to strongly skewed further down.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MQDecoderBenchmark
+{
+	/* The number of contexts and their initial states, as used by StdEntropyDecoder */
+	private static final int NUM_CTXTS = 19;
+	private static final int MQ_INIT[] = { 46, 3, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+	private static final int NUM_SYMBOLS = 1 << 16;
+
+	@Param({"0.6", "0.9", "0.99"})
+	public double probability;
+
+	private int[] bits;
+	private int[] contexts;
+	private int[] decoded;
+	private byte[] data;
+	private int length;
+	private MQDecoder mq;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Random random = new Random(NUM_SYMBOLS);
+		bits = new int[NUM_SYMBOLS];
+		contexts = new int[NUM_SYMBOLS];
+		for (int i = 0; i < NUM_SYMBOLS; i++)
+		{
+			bits[i] = random.nextDouble() < probability ? 0 : 1;
+			contexts[i] = random.nextInt(NUM_CTXTS);
+		}
+
+		ByteOutputBuffer out = new ByteOutputBuffer();
+		MQCoder coder = new MQCoder(out, NUM_CTXTS, MQ_INIT);
+		coder.codeSymbols(bits, contexts, NUM_SYMBOLS);
+		coder.terminate();
+		length = out.size();
+		data = new byte[length];
+		out.toByteArray(0, length, data, 0);
+
+		mq = new MQDecoder(new ByteInputBuffer(data, 0, length), NUM_CTXTS, MQ_INIT);
+		decoded = new int[NUM_SYMBOLS];
+		mq.decodeSymbols(decoded, contexts, NUM_SYMBOLS);
+		for (int i = 0; i < NUM_SYMBOLS; i++)
+		{
+			if (decoded[i] != bits[i])
+				throw new IllegalStateException("MQ decoding does not reproduce symbol " + i);
+		}
+	}
+
+	@Benchmark
+	public int decodeSymbol()
+	{
+		mq.nextSegment(data, 0, length);
+		mq.resetCtxts();
+		int sum = 0;
+		for (int i = 0; i < NUM_SYMBOLS; i++)
+		{
+			sum += mq.decodeSymbol(contexts[i]);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int[] decodeSymbols()
+	{
+		mq.nextSegment(data, 0, length);
+		mq.resetCtxts();
+		mq.decodeSymbols(decoded, contexts, NUM_SYMBOLS);
+		return decoded;
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the openmetaverse.org or libomv-java project nor the
+ *   names of its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.imaging.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jj2000.j2k.entropy.decoder.EntropyDecoder;
+import jj2000.j2k.entropy.decoder.StdEntropyDecoder;
+import jj2000.j2k.image.DataBlk;
+import jj2000.j2k.wavelet.synthesis.SubbandSyn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Entropy decoding of all code-blocks of a corpus codestream with {@link StdEntropyDecoder}
+ * 
+ * The code-blocks come from a {@link CodedCBlkCache}, so the packet parsing of the bit
+ * stream reader is not part of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StdEntropyDecoderBenchmark
+{
+	@Param({"32", "64", "128", "256", "512", "1024"})
+	public int size;
+
+	@Param({"3", "4", "5"})
+	public int components;
+
+	@Param({"false", "true"})
+	public boolean lossless;
+
+	/* The Cthreads decoder parameter, 0 decodes on the benchmark thread */
+	@Param({"0"})
+	public int threads;
+
+	private EntropyDecoder entdec;
+	private SubbandSyn[][] subbands;
+	private DataBlk blk;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		J2KCodestream codestream = new J2KCodestream(J2KCorpus.encode(size, components, lossless), threads);
+		CodedCBlkCache cache = new CodedCBlkCache(codestream.breader);
+		entdec = codestream.createEntropyDecoder(cache);
+
+		subbands = new SubbandSyn[cache.getNumComps()][];
+		for (int c = 0; c < subbands.length; c++)
+		{
+			List<SubbandSyn> list = J2KCodestream.getSubbands(cache, c);
+			subbands[c] = list.toArray(new SubbandSyn[list.size()]);
+		}
+	}
+
+	@Benchmark
+	public void decode(Blackhole bh)
+	{
+		for (int c = 0; c < subbands.length; c++)
+		{
+			for (SubbandSyn sb : subbands[c])
+			{
+				for (int m = 0; m < sb.numCb.y; m++)
+				{
+					for (int n = 0; n < sb.numCb.x; n++)
+					{
+						blk = entdec.getCodeBlock(c, m, n, sb, blk);
+						bh.consume(blk);
+					}
+				}
+			}
+		}
+	}
+}
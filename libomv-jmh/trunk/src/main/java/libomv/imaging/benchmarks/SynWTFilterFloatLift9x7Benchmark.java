@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the openmetaverse.org or libomv-java project nor the
+ *   names of its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.imaging.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import jj2000.j2k.wavelet.synthesis.SynWTFilterFloatLift9x7;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One level of 9x7 lifting synthesis over a square image with {@link SynWTFilterFloatLift9x7},
+ * along the rows and along the columns
+ * 
+ * The rows are contiguous in memory and the columns are strided by the image width,
+ * which is how InvWTFull runs the horizontal and the vertical filter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SynWTFilterFloatLift9x7Benchmark
+{
+	@Param({"32", "64", "128", "256", "512", "1024"})
+	public int size;
+
+	private SynWTFilterFloatLift9x7 filter;
+	private float[] low;
+	private float[] high;
+	private float[] out;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		filter = new SynWTFilterFloatLift9x7();
+		Random random = new Random(size);
+		int half = size * size / 2;
+		low = new float[half];
+		high = new float[half];
+		out = new float[size * size];
+		for (int i = 0; i < half; i++)
+		{
+			low[i] = random.nextFloat() * 256 - 128;
+			high[i] = random.nextFloat() * 32 - 16;
+		}
+	}
+
+	@Benchmark
+	public float[] synthesizeRows()
+	{
+		int half = size / 2;
+		for (int y = 0; y < size; y++)
+		{
+			filter.synthetize_lpf(low, y * half, half, 1, high, y * half, half, 1, out, y * size, 1);
+		}
+		return out;
+	}
+
+	@Benchmark
+	public float[] synthesizeColumns()
+	{
+		int half = size / 2;
+		for (int x = 0; x < size; x++)
+		{
+			filter.synthetize_lpf(low, x, half, size, high, x, half, size, out, x, size);
+		}
+		return out;
+	}
+}
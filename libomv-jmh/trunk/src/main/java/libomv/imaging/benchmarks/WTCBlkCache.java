@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2009-2017, Frederick Martian
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ * - Neither the name of the openmetaverse.org or libomv-java project nor the
+ *   names of its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package libomv.imaging.benchmarks;
+
+import java.util.List;
+
+import jj2000.j2k.NoNextElementException;
+import jj2000.j2k.image.DataBlk;
+import jj2000.j2k.image.DataBlkFloat;
+import jj2000.j2k.image.DataBlkInt;
+import jj2000.j2k.quantization.dequantizer.Dequantizer;
+import jj2000.j2k.wavelet.synthesis.CBlkWTDataSrcDec;
+import jj2000.j2k.wavelet.synthesis.MultiResImgDataAdapter;
+import jj2000.j2k.wavelet.synthesis.SubbandSyn;
+
+/**
+ * Wavelet coefficient source that serves the dequantized code-blocks of a single tile
+ * codestream from memory
+ * 
+ * The code-blocks are entropy decoded and dequantized once, when the cache is created,
+ * so synthesizing from the cache measures the inverse wavelet transform on its own.
+ */
+class WTCBlkCache extends MultiResImgDataAdapter implements CBlkWTDataSrcDec
+{
+	private final Dequantizer src;
+	/* The code-blocks by component, resolution level and subband index, and code-block index */
+	private final DataBlk[][][] cblks;
+
+	WTCBlkCache(Dequantizer src)
+	{
+		super(src);
+		this.src = src;
+		src.setTile(0, 0);
+
+		int nc = src.getNumComps();
+		cblks = new DataBlk[nc][][];
+		for (int c = 0; c < nc; c++)
+		{
+			cblks[c] = new DataBlk[(src.getSynSubbandTree(0, c).resLvl + 1) * 4][];
+			List<SubbandSyn> subbands = J2KCodestream.getSubbands(src, c);
+			for (SubbandSyn sb : subbands)
+			{
+				DataBlk[] blks = new DataBlk[sb.numCb.x * sb.numCb.y];
+				for (int m = 0, i = 0; m < sb.numCb.y; m++)
+				{
+					for (int n = 0; n < sb.numCb.x; n++, i++)
+					{
+						// A new block every time, so each one keeps its own data array
+						blks[i] = src.getCodeBlock(c, m, n, sb, J2KCodestream.createDataBlk(src, c));
+					}
+				}
+				cblks[c][sb.resLvl * 4 + sb.sbandIdx] = blks;
+			}
+		}
+	}
+
+	@Override
+	public int getNomRangeBits(int c)
+	{
+		return src.getNomRangeBits(c);
+	}
+
+	@Override
+	public int getFixedPoint(int c)
+	{
+		return src.getFixedPoint(c);
+	}
+
+	/**
+	 * Returns a copy of the cached code-block in a new data block
+	 */
+	@Override
+	public DataBlk getCodeBlock(int c, int m, int n, SubbandSyn sb, DataBlk cblk)
+	{
+		DataBlk blk = getInternCodeBlock(c, m, n, sb, null);
+		if (blk.getDataType() == DataBlk.TYPE_FLOAT)
+			return new DataBlkFloat((DataBlkFloat) blk);
+		return new DataBlkInt((DataBlkInt) blk);
+	}
+
+	/**
+	 * Returns the cached code-block itself, which must not be modified
+	 */
+	@Override
+	public DataBlk getInternCodeBlock(int c, int m, int n, SubbandSyn sb, DataBlk cblk)
+	{
+		return cblks[c][sb.resLvl * 4 + sb.sbandIdx][m * sb.numCb.x + n];
+	}
+
+	/**
+	 * Stays on the only tile, without decoding it again
+	 */
+	@Override
+	public int setTile(int x, int y)
+	{
+		if (x != 0 || y != 0)
+			throw new IllegalArgumentException();
+		return 0;
+	}
+
+	@Override
+	public int nextTile()
+	{
+		throw new NoNextElementException();
+	}
+
+	@Override
+	public SubbandSyn getSynSubbandTree(int t, int c)
+	{
+		return src.getSynSubbandTree(t, c);
+	}
+
+	@Override
+	public int getCbULX()
+	{
+		return src.getCbULX();
+	}
+
+	@Override
+	public int getCbULY()
+	{
+		return src.getCbULY();
+	}
+}